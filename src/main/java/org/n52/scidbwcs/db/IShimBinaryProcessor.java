@@ -0,0 +1,36 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Interface to process binary result streams of SciDB queries
+ */
+public interface IShimBinaryProcessor {
+
+    /**
+     * This function reads the complete result in SciDB's binary format
+     * @param in result stream, cells are stored consecutively in little endian byte order
+     * @throws IOException
+     */
+    public void process(InputStream in) throws IOException;
+}
@@ -76,9 +76,10 @@ public class SciDBConnection {
     /**
      * Executes a write query in AFL, i.e. does not return results
      * @param query AFL query string
+     * @return true if the query has been executed successfully
      */
-    public void queryWrite(String query) {
-        queryWrite(query, true);
+    public boolean queryWrite(String query) {
+        return queryWrite(query, true);
     }
     
     
@@ -86,18 +87,21 @@ public class SciDBConnection {
      * Executes a write query in either AFL or AQL, i.e. does not return results
      * @param query SciDB query string
      * @param afl if true, query string is understood as AFL, otherwise as AQL
+     * @return true if the query has been executed successfully
      */
-    public void queryWrite(String query, boolean afl) {
+    public boolean queryWrite(String query, boolean afl) {
         createConnectionIfNeeded();
-        try {
-            Statement st = conn.createStatement();
+        try (Statement st = conn.createStatement()) {
             if (afl) {
                 IStatementWrapper stWrapper = st.unwrap(IStatementWrapper.class);
                 stWrapper.setAfl(true);
             }
+            st.execute(query);
+            return true;
         } catch (SQLException e) {
             log.error("Error while trying to execute write query: " + e);
         }
+        return false;
     }
 
      /**
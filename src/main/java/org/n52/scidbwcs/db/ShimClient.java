@@ -19,8 +19,10 @@
  */
 package org.n52.scidbwcs.db;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -32,6 +34,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -45,8 +48,9 @@ import org.n52.scidbwcs.util.Config;
 
 /**
  * This class uses SciDB's web service Shim to communicate with the database. It
- * is aimed at replacing JDBC usage in future releases. This class is a
- * singleton.
+ * is aimed at replacing JDBC usage in future releases. Queries may be run
+ * concurrently, each in its own Shim session; the number of open sessions is
+ * limited by SCIDBWCS_SHIM_MAX_SESSIONS. This class is a singleton.
  */
 public class ShimClient {
 
@@ -72,9 +76,10 @@ public class ShimClient {
     private boolean auth = true;
 
     /* Status variables */
-    private String curSessionID = null;
-    private String curQueryID = null;
-    private String curAuthToken = null;
+    private volatile String curAuthToken = null;
+
+    /* Limits the number of concurrently open Shim sessions */
+    private final Semaphore sessions;
 
     /* Singleton instance */
     private static ShimClient instance = null;
@@ -84,7 +89,7 @@ public class ShimClient {
      *
      * @return singleton instance
      */
-    public static ShimClient get() {
+    public static synchronized ShimClient get() {
         if (instance == null) {
             instance = new ShimClient();
         }
@@ -99,6 +104,7 @@ public class ShimClient {
         ssl = Config.get().SCIDBWCS_DB_SSL;
         auth = ssl; // TODO: Check whether unauthenticated SSL and authenticated NON SSL is possible
         url = (ssl ? "https" : "http") + "://" + host + ":" + port;
+        sessions = new Semaphore(Math.max(1, Config.get().SCIDBWCS_SHIM_MAX_SESSIONS), true);
 
         // Accept certificate of Shim if it runs on the same server
         if (host.equalsIgnoreCase("localhost") || host.equalsIgnoreCase("127.0.0.1")) {
@@ -227,7 +233,7 @@ public class ShimClient {
         return null;
     }
 
-    private void login() {
+    private synchronized void login() {
 
         if (!auth) {
             return;
@@ -252,13 +258,15 @@ public class ShimClient {
         }
     }
 
-    private void newSession() {
+    /**
+     * Creates a new Shim session
+     * @return session id or null if failed
+     */
+    private String newSession() {
         if (auth && curAuthToken == null) {
             login();
         }
 
-        // This method does not check whether there is already an active session. 
-        // It always tries to create a new session
         // Build HTTP GET parameters
         HashMap<String, String> pars = new HashMap<>();
         if (auth) {
@@ -271,27 +279,26 @@ public class ShimClient {
             String response = performSimpleHTTPGet(reqUrl);
 
             // TODO: Test whether result is a number?
-            curSessionID = response;
+            return response;
 
         } catch (MalformedURLException ex) {
             log.error("Shim new_session failed: " + ex);
-            curSessionID = null;
         }
+        return null;
     }
 
     /**
      *
+     * @param sessionID Shim session
      * @param afl AFL query
      * @param outFormat Output format string, use null for write queries.
+     * @return query id or null if failed
      */
-    private void executeQuery(String afl, String outFormat) {
-        if (curSessionID == null) {
-            newSession();
-        }
-        assert curSessionID != null;
+    private String executeQuery(String sessionID, String afl, String outFormat) {
+        assert sessionID != null;
 
         HashMap<String, String> pars = new HashMap<>();
-        pars.put("id", curSessionID);
+        pars.put("id", sessionID);
         pars.put("query", afl);
         pars.put("release", "0");
         if (outFormat != null) {
@@ -310,20 +317,34 @@ public class ShimClient {
             String response = performSimpleHTTPGet(reqUrl);
 
             // TODO: Test whether result is a number?
-            curQueryID = response;
+            return response;
 
         } catch (MalformedURLException ex) {
             log.error("Shim execute_query failed: " + ex);
-            curQueryID = null;
         }
+        return null;
+    }
+
+    /**
+     * Opens an HTTP(S) GET connection and returns the response body as stream
+     */
+    private HttpURLConnection openHTTPGet(URL u) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) u.openConnection(); // HttpsURLConnection if ssl
+        con.setRequestMethod("GET");
+        log.debug("Performing HTTP" + (ssl ? "S" : "") + " GET: " + u);
+        int responseCode = con.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            con.disconnect();
+            throw new IOException("HTTP GET returned code " + responseCode);
+        }
+        return con;
     }
 
-    private String readLines() {
-        assert curSessionID != null;
-        assert curQueryID != null;
+    private String readLines(String sessionID) {
+        assert sessionID != null;
 
         HashMap<String, String> pars = new HashMap<>();
-        pars.put("id", curSessionID);
+        pars.put("id", sessionID);
         pars.put("n", "0");
         if (auth) {
             assert curAuthToken != null;
@@ -337,15 +358,16 @@ public class ShimClient {
 
         } catch (MalformedURLException ex) {
             log.error("Shim read_lines failed: " + ex);
-            curQueryID = null;
         }
         return null;
     }
 
-    private void release() {
-
+    private void release(String sessionID) {
+        if (sessionID == null) {
+            return;
+        }
         HashMap<String, String> pars = new HashMap<>();
-        pars.put("id", curSessionID);
+        pars.put("id", sessionID);
         if (auth) {
             assert curAuthToken != null;
             pars.put("auth", curAuthToken);
@@ -356,14 +378,22 @@ public class ShimClient {
             String response = performSimpleHTTPGet(reqUrl);
         } catch (MalformedURLException ex) {
             log.warn("Shim release_session failed: " + ex);
-            curQueryID = null;
-        } finally {
-            curQueryID = null;
-            curSessionID = null;
         }
 
     }
 
+    /**
+     * Waits for a free session slot
+     */
+    private void acquireSession() throws IOException {
+        try {
+            sessions.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a Shim session");
+        }
+    }
+
     /**
      * Runs a SciDB AFL red query and applies a callback function to each CSV
      * string row, i.e the string representation of one result array cell.
@@ -374,11 +404,25 @@ public class ShimClient {
      */
     public void queryReadCSV(String afl, IShimTextCellProcessor callback)   {
 
-        newSession(); // automatically calls login if needed
-        executeQuery(afl, "csv");
-       
-        String res = readLines();
-        release();
+        String res;
+        try {
+            acquireSession();
+        } catch (IOException ex) {
+            log.error(ex);
+            return;
+        }
+        String sessionID = null;
+        try {
+            sessionID = newSession(); // automatically calls login if needed
+            executeQuery(sessionID, afl, "csv");
+            res = readLines(sessionID);
+        } finally {
+            release(sessionID);
+            sessions.release();
+        }
+        if (res == null) {
+            return;
+        }
 
         // Split result by new lines (CSV)
         String[] strcells = res.split("\\r?\\n");
@@ -390,4 +434,46 @@ public class ShimClient {
 
     }
 
+    /**
+     * Runs a SciDB AFL read query and streams the result in SciDB's binary
+     * format to a callback function. In contrast to queryReadCSV(), the result
+     * is never materialized as a whole.
+     *
+     * @param afl SciDB AFL query
+     * @param format SciDB binary format string, e.g. "(int64,double null)"
+     * @param callback a callback function that reads the binary result stream
+     * @throws IOException if the query fails or the result cannot be read
+     */
+    public void queryReadBinary(String afl, String format, IShimBinaryProcessor callback) throws IOException {
+        acquireSession();
+        String sessionID = null;
+        try {
+            sessionID = newSession(); // automatically calls login if needed
+            if (sessionID == null) {
+                throw new IOException("Shim new_session failed");
+            }
+            String queryID = executeQuery(sessionID, afl, format);
+            if (queryID == null) {
+                throw new IOException("Shim execute_query failed for query '" + afl + "'");
+            }
+
+            HashMap<String, String> pars = new HashMap<>();
+            pars.put("id", sessionID);
+            pars.put("n", "0");
+            if (auth) {
+                assert curAuthToken != null;
+                pars.put("auth", curAuthToken);
+            }
+            HttpURLConnection con = openHTTPGet(new URL(url + SHIM_ENDPOINT_READBYTES + parsToUrlString(pars)));
+            try (InputStream in = new BufferedInputStream(con.getInputStream(), 1 << 16)) {
+                callback.process(in);
+            } finally {
+                con.disconnect();
+            }
+        } finally {
+            release(sessionID);
+            sessions.release();
+        }
+    }
+
 }
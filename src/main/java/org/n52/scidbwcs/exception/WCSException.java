@@ -48,6 +48,7 @@ public class WCSException extends Exception {
         InvalidUpdateSequence("Invalid update sequence", HTTP_BAD_REQUEST),
         MissingParameterValue("Missing parameter", HTTP_BAD_REQUEST),
         InvalidParameterValue("Invalid parameter value", HTTP_BAD_REQUEST),
+        ServiceUnavailable("Service temporarily unavailable", HTTP_UNAVAILABLE),
         InternalServerError("Internal server error",HTTP_INTERNAL_ERROR);
         
         private WCS_EXCEPTION_CODE(String msg,int httpcode) {
@@ -84,16 +85,35 @@ public class WCSException extends Exception {
     };
     
     private WCS_EXCEPTION_CODE code;
+    
+    /**
+     * Seconds after which clients may retry the request, 0 if not applicable
+     */
+    private long retryAfter = 0;
    
     public WCS_EXCEPTION_CODE getCode() {
         return code;
     }
+    
+    /**
+     * Gets the number of seconds after which clients may retry the request
+     * @return seconds or 0 if the request should not be retried
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+    
     public WCSException(String msg, WCS_EXCEPTION_CODE code) {
         super(msg);
         this.code = code;
         log.debug("Generated WCS Exception '" + code.name() + "': " + msg);      
     }
     
+    public WCSException(String msg, WCS_EXCEPTION_CODE code, long retryAfter) {
+        this(msg, code);
+        this.retryAfter = retryAfter;
+    }
+    
     public WCSException(Throwable e, WCS_EXCEPTION_CODE code) {
         super(e);
         this.code = code;
@@ -0,0 +1,376 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.exec;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Admission control for expensive coverage jobs such as GDAL processes. At most
+ * a configurable number of jobs run at the same time, small requests are
+ * served before large ones, and clients within each size class are served
+ * round robin so that a single client cannot monopolize the WCS. Requests that
+ * would wait longer than the configured maximum queue time are rejected with a
+ * retry hint. This is a singleton class.
+ */
+public class CoverageJobScheduler {
+
+    private static final Logger log = LogManager.getLogger(CoverageJobScheduler.class);
+    private static CoverageJobScheduler instance = null; // Singleton instance
+
+    /**
+     * Size classes of coverage jobs, each class has its own queue
+     */
+    public enum JobClass {
+        SMALL, LARGE
+    }
+
+    /**
+     * A queued job waiting for admission
+     */
+    private class Ticket {
+
+        final String client;
+        final JobClass jobClass;
+        final long enqueued = System.nanoTime();
+        final Condition admitted = lock.newCondition();
+        boolean granted = false;
+
+        Ticket(String client, JobClass jobClass) {
+            this.client = client;
+            this.jobClass = jobClass;
+        }
+    }
+
+    /**
+     * Per-client FIFO queues of one job class together with the round robin
+     * order of clients that currently have waiting jobs
+     */
+    private static class FairQueue {
+
+        final HashMap<String, ArrayDeque<Ticket>> clientQueues = new HashMap<>();
+        final ArrayDeque<String> clientOrder = new ArrayDeque<>();
+        int size = 0;
+
+        void add(Ticket t) {
+            ArrayDeque<Ticket> q = clientQueues.get(t.client);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                clientQueues.put(t.client, q);
+                clientOrder.addLast(t.client);
+            }
+            q.addLast(t);
+            ++size;
+        }
+
+        Ticket poll() {
+            String client = clientOrder.pollFirst();
+            if (client == null) {
+                return null;
+            }
+            ArrayDeque<Ticket> q = clientQueues.get(client);
+            Ticket t = q.pollFirst();
+            if (q.isEmpty()) {
+                clientQueues.remove(client);
+            } else {
+                clientOrder.addLast(client); // next job of this client has to wait for all other clients
+            }
+            --size;
+            return t;
+        }
+
+        void remove(Ticket t) {
+            ArrayDeque<Ticket> q = clientQueues.get(t.client);
+            if (q != null && q.remove(t)) {
+                --size;
+                if (q.isEmpty()) {
+                    clientQueues.remove(t.client);
+                    clientOrder.remove(t.client);
+                }
+            }
+        }
+
+        long oldestWaitNanos(long now) {
+            long oldest = 0;
+            for (ArrayDeque<Ticket> q : clientQueues.values()) {
+                Ticket t = q.peekFirst();
+                if (t != null) {
+                    oldest = Math.max(oldest, now - t.enqueued);
+                }
+            }
+            return oldest;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FairQueue smallQueue = new FairQueue();
+    private final FairQueue largeQueue = new FairQueue();
+
+    private final int maxJobs;
+    private final int maxLargeJobs;
+    private final long largeJobPixels;
+    private final long maxQueueNanos;
+    private final long retryAfterSec;
+
+    private int running = 0;
+    private int runningLarge = 0;
+
+    // Exponentially weighted moving average of job runtimes per class, used to estimate queue times
+    private double avgRuntimeSmallNanos = 0;
+    private double avgRuntimeLargeNanos = 0;
+    private static final double RUNTIME_EWMA_WEIGHT = 0.2;
+
+    private CoverageJobScheduler() {
+        this(Config.get().SCIDBWCS_MAX_CONCURRENT_JOBS, Config.get().SCIDBWCS_MAX_CONCURRENT_LARGE_JOBS, Config.get().SCIDBWCS_LARGE_JOB_PIXELS, Config.get().SCIDBWCS_MAX_QUEUE_SEC, Config.get().SCIDBWCS_RETRY_AFTER_SEC);
+    }
+
+    CoverageJobScheduler(int maxJobs, int maxLargeJobs, long largeJobPixels, long maxQueueSec, long retryAfterSec) {
+        this.maxJobs = Math.max(1, maxJobs);
+        // Large jobs must never occupy all slots, otherwise small interactive requests starve
+        this.maxLargeJobs = Math.max(1, Math.min(maxLargeJobs, this.maxJobs - 1));
+        this.largeJobPixels = largeJobPixels;
+        this.maxQueueNanos = TimeUnit.SECONDS.toNanos(maxQueueSec);
+        this.retryAfterSec = Math.max(1, retryAfterSec);
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return scheduler instance
+     */
+    public static synchronized CoverageJobScheduler get() {
+        if (instance == null) {
+            instance = new CoverageJobScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Classifies a job by its estimated cost
+     *
+     * @param estimatedPixels estimated cost of the job in output pixels or the
+     * equivalent amount of source data
+     * @return job class
+     */
+    public JobClass classify(long estimatedPixels) {
+        return (estimatedPixels > largeJobPixels) ? JobClass.LARGE : JobClass.SMALL;
+    }
+
+    /**
+     * Runs a job on the calling thread as soon as it is admitted by the
+     * scheduler
+     *
+     * @param <T> result type of the job
+     * @param client identifier of the requesting client, used for fair queuing
+     * @param estimatedPixels estimated cost of the job in output pixels or the
+     * equivalent amount of source data
+     * @param job the actual work
+     * @return result of the job
+     * @throws WCSException if the job has been rejected due to overload or
+     * failed
+     */
+    public <T> T run(String client, long estimatedPixels, Callable<T> job) throws WCSException {
+        JobClass c = classify(estimatedPixels);
+        Ticket t = acquire(client == null ? "" : client, c);
+        long start = System.nanoTime();
+        try {
+            return job.call();
+        } catch (WCSException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new WCSException(ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        } finally {
+            release(t, System.nanoTime() - start);
+        }
+    }
+
+    private FairQueue queueOf(JobClass c) {
+        return (c == JobClass.LARGE) ? largeQueue : smallQueue;
+    }
+
+    private Ticket acquire(String client, JobClass c) throws WCSException {
+        lock.lock();
+        try {
+            Ticket t = new Ticket(client, c);
+            FairQueue q = queueOf(c);
+
+            // Shed load early if the expected queue time already exceeds the limit
+            long expectedWait = expectedWaitNanos(c);
+            if (expectedWait > maxQueueNanos) {
+                throw overloaded(expectedWait);
+            }
+
+            q.add(t);
+            dispatch();
+
+            long remaining = maxQueueNanos;
+            while (!t.granted) {
+                if (remaining <= 0) {
+                    q.remove(t);
+                    throw overloaded(expectedWaitNanos(c));
+                }
+                try {
+                    remaining = t.admitted.awaitNanos(remaining);
+                } catch (InterruptedException ex) {
+                    q.remove(t);
+                    if (t.granted) { // granted concurrently, give the slot back without a runtime of a job that never ran
+                        free(t);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new WCSException(ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+                }
+            }
+            log.debug("Admitted " + c + " coverage job of client '" + client + "' after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t.enqueued) + " ms");
+            return t;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Ticket t, long runtimeNanos) {
+        lock.lock();
+        try {
+            if (t.jobClass == JobClass.LARGE) {
+                avgRuntimeLargeNanos = (avgRuntimeLargeNanos == 0) ? runtimeNanos : (1 - RUNTIME_EWMA_WEIGHT) * avgRuntimeLargeNanos + RUNTIME_EWMA_WEIGHT * runtimeNanos;
+            } else {
+                avgRuntimeSmallNanos = (avgRuntimeSmallNanos == 0) ? runtimeNanos : (1 - RUNTIME_EWMA_WEIGHT) * avgRuntimeSmallNanos + RUNTIME_EWMA_WEIGHT * runtimeNanos;
+            }
+            free(t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees the slot of a granted job without updating the average runtime,
+     * e.g. if the job has never been run
+     */
+    private void free(Ticket t) {
+        lock.lock();
+        try {
+            --running;
+            if (t.jobClass == JobClass.LARGE) {
+                --runningLarge;
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Grants free slots to waiting jobs, small jobs first. Must be called while
+     * holding the lock.
+     */
+    private void dispatch() {
+        while (running < maxJobs) {
+            Ticket t = smallQueue.poll();
+            if (t == null && runningLarge < maxLargeJobs) {
+                t = largeQueue.poll();
+            }
+            if (t == null) {
+                return;
+            }
+            ++running;
+            if (t.jobClass == JobClass.LARGE) {
+                ++runningLarge;
+            }
+            t.granted = true;
+            t.admitted.signal();
+        }
+    }
+
+    /**
+     * Estimates how long a newly arriving job of the given class would wait.
+     * Must be called while holding the lock.
+     */
+    private long expectedWaitNanos(JobClass c) {
+        long now = System.nanoTime();
+        if (c == JobClass.SMALL) {
+            if (running < maxJobs && smallQueue.size == 0) {
+                return 0;
+            }
+            double est = (smallQueue.size + 1) * avgRuntimeSmallNanos / maxJobs;
+            return Math.max((long) est, smallQueue.oldestWaitNanos(now));
+        }
+        if (runningLarge < maxLargeJobs && running < maxJobs && largeQueue.size == 0) {
+            return 0;
+        }
+        double est = (largeQueue.size + 1) * avgRuntimeLargeNanos / maxLargeJobs;
+        return Math.max((long) est, largeQueue.oldestWaitNanos(now));
+    }
+
+    private WCSException overloaded(long expectedWaitNanos) {
+        long retry = Math.max(retryAfterSec, TimeUnit.NANOSECONDS.toSeconds(expectedWaitNanos - maxQueueNanos));
+        log.warn("Rejecting coverage job due to overload, " + running + " jobs running, " + (smallQueue.size + largeQueue.size) + " queued");
+        return new WCSException("Server is busy, please retry after " + retry + " seconds.", WCSException.WCS_EXCEPTION_CODE.ServiceUnavailable, retry);
+    }
+
+    /**
+     * Checks whether a further job could run without delaying client
+     * requests, i.e. no job is waiting and at least two slots are free
+     *
+     * @return true if speculative jobs may be started
+     */
+    public boolean hasIdleCapacity() {
+        lock.lock();
+        try {
+            return smallQueue.size + largeQueue.size == 0 && running < maxJobs - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of currently running jobs
+     *
+     * @return number of running jobs
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of currently queued jobs
+     *
+     * @return number of waiting jobs
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return smallQueue.size + largeQueue.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.exec;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.io.TempStorage;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Coalesces identical concurrent coverage requests. The first request with a
+ * given key executes the job while all further requests with the same key that
+ * arrive before the job has finished simply wait for its result, i.e. the
+ * produced coverage file. Results are retained for a short time afterwards such
+ * that clients can resume interrupted downloads with range requests without
+ * rerunning the job. Every caller receives its own reference to the produced
+ * temporary file, retained results are marked as such in the temporary
+ * storage. This is a singleton class.
+ */
+public class RequestCoalescer {
+
+    private static final Logger log = LogManager.getLogger(RequestCoalescer.class);
+    private static RequestCoalescer instance = null; // Singleton instance
+
+    /**
+     * A completed job result
+     */
+    private static class Result {
+
+        final TempStorage.TempFile file;
+        final long created = System.nanoTime();
+        final long retainNanos;
+
+        Result(TempStorage.TempFile file, long retainNanos) {
+            this.file = file;
+            this.retainNanos = retainNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<String, FutureTask<TempStorage.TempFile>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Result> completed = new ConcurrentHashMap<>();
+    private final long retainNanos;
+
+    private RequestCoalescer() {
+        this(Config.get().SCIDBWCS_RESULT_RETAIN_SEC);
+    }
+
+    RequestCoalescer(long retainSec) {
+        this.retainNanos = TimeUnit.SECONDS.toNanos(retainSec);
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return coalescer instance
+     */
+    public static synchronized RequestCoalescer get() {
+        if (instance == null) {
+            instance = new RequestCoalescer();
+        }
+        return instance;
+    }
+
+    /**
+     * Executes a job unless an identical job is already running, in which case
+     * the caller attaches to the running job and receives its result
+     *
+     * @param key canonical representation of the request
+     * @param job job producing a temporary coverage file referenced once
+     * @return produced coverage, referenced once by the caller who must release
+     * it, or null if the job did not produce a file
+     * @throws WCSException if the (shared) job failed
+     */
+    public TempStorage.TempFile execute(String key, Callable<TempStorage.TempFile> job) throws WCSException {
+        return executeRetained(key, retainNanos, job);
+    }
+
+    /**
+     * Executes a job unless an identical job is already running, retaining
+     * the result for a given time, e.g. for outputs that clients typically
+     * read with many range requests over a longer period
+     *
+     * @param key canonical representation of the request
+     * @param retainSec seconds to retain the result
+     * @param job job producing a temporary coverage file referenced once
+     * @return produced coverage, referenced once by the caller who must release
+     * it, or null if the job did not produce a file
+     * @throws WCSException if the (shared) job failed
+     */
+    public TempStorage.TempFile execute(String key, long retainSec, Callable<TempStorage.TempFile> job) throws WCSException {
+        return executeRetained(key, TimeUnit.SECONDS.toNanos(retainSec), job);
+    }
+
+    private TempStorage.TempFile executeRetained(String key, long retainNanos, Callable<TempStorage.TempFile> job) throws WCSException {
+        while (true) {
+            Result r = completed.get(key);
+            if (r != null) {
+                if (System.nanoTime() - r.created <= r.retainNanos && r.file.acquire()) {
+                    log.debug("Reusing retained result of request '" + key + "'");
+                    return r.file;
+                }
+                // expired or evicted from temporary storage
+                if (completed.remove(key, r)) {
+                    r.file.setRetained(false);
+                }
+            }
+
+            FutureTask<TempStorage.TempFile> task = new FutureTask<>(job);
+            FutureTask<TempStorage.TempFile> running = inFlight.putIfAbsent(key, task);
+            if (running == null) {
+                try {
+                    task.run();
+                    TempStorage.TempFile file = result(task);
+                    if (file != null && retainNanos > 0) {
+                        file.setRetained(true);
+                        Result old = completed.put(key, new Result(file, retainNanos));
+                        if (old != null) {
+                            old.file.setRetained(false);
+                        }
+                    }
+                    return file; // the producer's reference is passed to the caller
+                } finally {
+                    inFlight.remove(key, task);
+                    purge();
+                }
+            }
+            log.debug("Attaching to in-flight execution of identical request '" + key + "'");
+            TempStorage.TempFile file = result(running);
+            if (file == null || file.acquire()) {
+                return file;
+            }
+            // The shared file has already been deleted, try again
+            log.debug("Result of identical request '" + key + "' is not available anymore, executing again");
+        }
+    }
+
+    /**
+     * Checks whether the result of a request is being produced or retained,
+     * e.g. to skip speculative executions
+     *
+     * @param key canonical representation of the request
+     * @return true if a request with this key would not execute a new job
+     */
+    public boolean isAvailable(String key) {
+        if (inFlight.containsKey(key)) {
+            return true;
+        }
+        Result r = completed.get(key);
+        return r != null && System.nanoTime() - r.created <= r.retainNanos;
+    }
+
+    /**
+     * Returns the number of jobs currently executing
+     *
+     * @return number of distinct in-flight jobs
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Forgets retained results that are older than the retention time
+     */
+    private void purge() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Result>> it = completed.entrySet().iterator();
+        while (it.hasNext()) {
+            Result r = it.next().getValue();
+            if (now - r.created > r.retainNanos) {
+                it.remove();
+                r.file.setRetained(false);
+            }
+        }
+    }
+
+    private static TempStorage.TempFile result(FutureTask<TempStorage.TempFile> task) throws WCSException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WCSException(ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof WCSException) {
+                throw (WCSException) ex.getCause();
+            }
+            throw new WCSException(ex.getCause(), WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        }
+    }
+}
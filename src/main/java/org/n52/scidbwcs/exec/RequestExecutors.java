@@ -0,0 +1,140 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.exec;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Dedicated thread pools for asynchronously processed WCS requests, such that
+ * servlet container threads are not blocked by long running requests. Pools
+ * have bounded queues, submissions beyond their capacity are rejected. This is
+ * a singleton class.
+ */
+public class RequestExecutors {
+
+    private static final Logger log = LogManager.getLogger(RequestExecutors.class);
+    private static RequestExecutors instance = null; // Singleton instance
+
+    private final ThreadPoolExecutor coverageExecutor;
+    private final ThreadPoolExecutor describeExecutor;
+    private final ThreadPoolExecutor fetchExecutor;
+    private final ThreadPoolExecutor prefetchExecutor;
+
+    private RequestExecutors() {
+        coverageExecutor = create("scidbwcs-coverage", Config.get().SCIDBWCS_COVERAGE_THREADS, Config.get().SCIDBWCS_ASYNC_QUEUE_SIZE);
+        describeExecutor = create("scidbwcs-describe", Config.get().SCIDBWCS_DESCRIBE_THREADS, Config.get().SCIDBWCS_ASYNC_QUEUE_SIZE);
+        fetchExecutor = create("scidbwcs-fetch", Config.get().SCIDBWCS_SHIM_MAX_SESSIONS, Config.get().SCIDBWCS_ASYNC_QUEUE_SIZE);
+        fetchExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy()); // never fail a request due to a full queue
+        prefetchExecutor = create("scidbwcs-prefetch", Config.get().SCIDBWCS_PREFETCH_THREADS, Config.get().SCIDBWCS_PREFETCH_QUEUE_SIZE, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Returns the singleton instance or creates the thread pools if not yet
+     * done
+     *
+     * @return executors instance
+     */
+    public static synchronized RequestExecutors get() {
+        if (instance == null) {
+            instance = new RequestExecutors();
+        }
+        return instance;
+    }
+
+    private static ThreadPoolExecutor create(final String name, int threads, int queueSize) {
+        return create(name, threads, queueSize, Thread.NORM_PRIORITY);
+    }
+
+    private static ThreadPoolExecutor create(final String name, int threads, int queueSize, final int priority) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        });
+        ex.allowCoreThreadTimeOut(true);
+        return ex;
+    }
+
+    /**
+     * Gets the executor for GetCoverage requests
+     *
+     * @return executor service
+     */
+    public ExecutorService coverage() {
+        return coverageExecutor;
+    }
+
+    /**
+     * Gets the executor for DescribeCoverage requests
+     *
+     * @return executor service
+     */
+    public ExecutorService describe() {
+        return describeExecutor;
+    }
+
+    /**
+     * Gets the executor for reading parts of large coverages concurrently
+     *
+     * @return executor service
+     */
+    public ExecutorService fetch() {
+        return fetchExecutor;
+    }
+
+    /**
+     * Gets the low priority executor for speculative prefetching and seeding
+     * of coverages
+     *
+     * @return executor service
+     */
+    public ExecutorService prefetch() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Stops all threads, should be called when the servlet is destroyed
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            log.debug("Shutting down request executors");
+            instance.coverageExecutor.shutdownNow();
+            instance.describeExecutor.shutdownNow();
+            instance.fetchExecutor.shutdownNow();
+            instance.prefetchExecutor.shutdownNow();
+            instance = null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Non-blocking writer for response bodies of asynchronously processed
+ * requests. Data is only written while the servlet output stream is ready, so
+ * that slow clients do not block any thread. The async context is completed
+ * after the last byte has been written. File regions are copied through a
+ * bounded pool of reusable buffers.
+ *
+ * Streamed formats (NetCDF, PNG and JPEG images) are not written by this class,
+ * they are still written with blocking calls by the processing thread.
+ */
+public class AsyncBodyWriter implements WriteListener {
+
+    private static final Logger log = LogManager.getLogger(AsyncBodyWriter.class);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(Math.max(1, Config.get().SCIDBWCS_ASYNC_BUFFER_POOL));
+
+    private final AsyncContext ctx;
+    private final ServletOutputStream oStream;
+    private final List<FileDelivery.Segment> body;
+    private final File file;
+    private final TempStorage.TempFile tf;
+
+    private FileChannel iChannel = null;
+    private ByteBuffer byteBuffer = null;
+
+    private int curSegment = 0;
+    private long curOffset = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a writer
+     *
+     * @param ctx async context of the request
+     * @param oStream output stream of the response
+     * @param body segments of the response body
+     * @param file file referenced by file region segments, may be null if all
+     * segments are literal bytes
+     * @param tf referenced temporary file which is released after writing, may
+     * be null
+     */
+    public AsyncBodyWriter(AsyncContext ctx, ServletOutputStream oStream, List<FileDelivery.Segment> body, File file, TempStorage.TempFile tf) {
+        this.ctx = ctx;
+        this.oStream = oStream;
+        this.body = body;
+        this.file = file;
+        this.tf = tf;
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a new one if the pool is empty
+     */
+    static ByteBuffer acquire() {
+        ByteBuffer b = pool.poll();
+        return (b != null) ? b : ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a buffer to the pool, buffers that do not fit are left to the
+     * garbage collector
+     */
+    static void release(ByteBuffer b) {
+        b.clear();
+        pool.offer(b);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        try {
+            while (oStream.isReady()) {
+                if (curSegment >= body.size()) {
+                    finish();
+                    return;
+                }
+                FileDelivery.Segment s = body.get(curSegment);
+                if (!s.isFileRegion()) {
+                    oStream.write(s.bytes);
+                    ++curSegment;
+                    continue;
+                }
+                if (iChannel == null) {
+                    iChannel = new RandomAccessFile(file, "r").getChannel();
+                    byteBuffer = acquire();
+                }
+                long remaining = s.count - curOffset;
+                if (remaining <= 0) {
+                    ++curSegment;
+                    curOffset = 0;
+                    continue;
+                }
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(CHUNK_SIZE, remaining));
+                int n = iChannel.read(byteBuffer, s.position + curOffset);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                curOffset += n;
+                oStream.write(byteBuffer.array(), 0, n);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.warn("Writing asynchronous response failed: " + t);
+        finish();
+    }
+
+    private void finish() {
+        close();
+        ctx.complete();
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (iChannel != null) {
+            try {
+                iChannel.close();
+            } catch (IOException ex) {
+                log.warn(ex);
+            }
+        }
+        if (byteBuffer != null) {
+            release(byteBuffer);
+            byteBuffer = null;
+        }
+        if (tf != null) {
+            tf.release();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single byte range of an HTTP Range request with inclusive start and end
+ * positions
+ */
+public class ByteRange {
+
+    // Maximum number of ranges after merging, requests with more are answered with the full resource
+    public static final int MAX_RANGES = 16;
+
+    public final long start;
+    public final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Gets the number of bytes in this range
+     *
+     * @return range length
+     */
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Builds the value of a Content-Range header for this range
+     *
+     * @param total total length of the resource
+     * @return Content-Range header value
+     */
+    public String toContentRange(long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    /**
+     * Parses the value of an HTTP Range header (RFC 7233). Overlapping and
+     * adjacent ranges are merged and returned in ascending order.
+     *
+     * @param header value of the Range header, may be null
+     * @param total total length of the resource in bytes
+     * @return list of satisfiable ranges, null if the header is missing or
+     * syntactically invalid or has more than MAX_RANGES ranges after merging
+     * (i.e. the full resource should be served), or an empty list if no range
+     * is satisfiable
+     */
+    public static List<ByteRange> parse(String header, long total) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int idx = spec.indexOf('-');
+            if (idx < 0) {
+                return null;
+            }
+            String first = spec.substring(0, idx).trim();
+            String last = spec.substring(idx + 1).trim();
+            long start, end;
+            try {
+                if (first.isEmpty()) { // suffix range, i.e. the last n bytes
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    long n = Long.parseLong(last);
+                    if (n <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, total - n);
+                    end = total - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? total - 1 : Math.min(Long.parseLong(last), total - 1);
+                    if (end < start && !last.isEmpty() && Long.parseLong(last) < start) {
+                        return null; // invalid syntax, ignore header
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (start < 0) {
+                return null;
+            }
+            if (start >= total || end < start) {
+                continue; // not satisfiable
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        ranges = merge(ranges);
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges
+     *
+     * @param ranges ranges in any order
+     * @return disjoint ranges in ascending order
+     */
+    static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange a, ByteRange b) {
+                return Long.compare(a.start, b.start);
+            }
+        });
+        List<ByteRange> out = new ArrayList<>();
+        ByteRange cur = sorted.get(0);
+        for (int i = 1; i < sorted.size(); ++i) {
+            ByteRange r = sorted.get(i);
+            if (r.start <= cur.end + 1) {
+                cur = new ByteRange(cur.start, Math.max(cur.end, r.end));
+            } else {
+                out.add(cur);
+                cur = r;
+            }
+        }
+        out.add(cur);
+        return out;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Delivers file-backed responses such as generated coverages. Files are handed
+ * to the servlet container's sendfile support (Tomcat) if available, which
+ * avoids copying them through the JVM, and are otherwise copied to the output
+ * stream through a pooled buffer. Single and multiple HTTP byte ranges are
+ * supported, which allows clients to resume interrupted downloads. For
+ * asynchronously processed requests, bodies are written with a non-blocking
+ * AsyncBodyWriter.
+ */
+public class FileDelivery {
+
+    private static final Logger log = LogManager.getLogger(FileDelivery.class);
+
+    // Request attributes of Tomcat's sendfile support
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Files handed to the container's sendfile support are released after this delay as completion cannot be observed
+    private static final long SENDFILE_RELEASE_DELAY_SEC = 60;
+
+    // Request attribute indicating that an AsyncBodyWriter completes the request
+    private static final String ASYNC_WRITE_PENDING = "org.n52.scidbwcs.async.writepending";
+
+    /**
+     * A part of the response body, either a region of the file or literal
+     * bytes (e.g. multipart headers)
+     */
+    public static class Segment {
+
+        public final byte[] bytes;
+        public final long position;
+        public final long count;
+
+        private Segment(byte[] bytes, long position, long count) {
+            this.bytes = bytes;
+            this.position = position;
+            this.count = count;
+        }
+
+        public static Segment ofBytes(String s) {
+            byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+            return new Segment(b, 0, b.length);
+        }
+
+        public static Segment ofFile(long position, long count) {
+            return new Segment(null, position, count);
+        }
+
+        public boolean isFileRegion() {
+            return bytes == null;
+        }
+    }
+
+    /**
+     * Sends a file as HTTP response, honoring Range headers of the request
+     *
+     * @param request HTTP request, may be null if ranges and container
+     * sendfile support should not be used
+     * @param response HTTP response
+     * @param file file to send
+     * @param mime content type of the file
+     * @throws IOException
+     */
+    public static void send(HttpServletRequest request, HttpServletResponse response, File file, String mime) throws IOException {
+        deliver(request, response, file, mime, null);
+    }
+
+    /**
+     * Sends a managed temporary file as HTTP response and releases the
+     * caller's reference after the response has been completed
+     *
+     * @param request HTTP request, may be null if ranges and container
+     * sendfile support should not be used
+     * @param response HTTP response
+     * @param tf referenced temporary file
+     * @param mime content type of the file
+     * @throws IOException
+     */
+    public static void send(HttpServletRequest request, HttpServletResponse response, TempStorage.TempFile tf, String mime) throws IOException {
+        boolean handedOver = false;
+        try {
+            handedOver = deliver(request, response, tf.getFile(), mime, tf);
+        } finally {
+            if (!handedOver) {
+                tf.release();
+            }
+        }
+    }
+
+    /**
+     * Fails if the processing thread has been interrupted, i.e. the request
+     * has been cancelled after a timeout and its response may already be
+     * recycled by the container. Must be called before anything is written to
+     * the response.
+     *
+     * @throws InterruptedIOException if the request has been cancelled
+     */
+    public static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Request has been cancelled");
+        }
+    }
+
+    /**
+     * Sends a file and returns true if the responsibility for releasing the
+     * temporary file has been handed over to a non-blocking writer or the
+     * container
+     */
+    private static boolean deliver(HttpServletRequest request, HttpServletResponse response, File file, String mime, TempStorage.TempFile tf) throws IOException {
+        checkCancelled();
+        long total = file.length();
+        String etag = "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(total) + "\"";
+
+        List<ByteRange> ranges = null;
+        if (request != null) {
+            String ifRange = request.getHeader("If-Range");
+            if (ifRange == null || ifRange.equals(etag)) {
+                ranges = ByteRange.parse(request.getHeader("Range"), total);
+            }
+        }
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+
+        List<Segment> body = new ArrayList<>();
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(mime);
+            body.add(Segment.ofFile(0, total));
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + total);
+            response.setContentLength(0);
+            return false;
+        } else if (ranges.size() == 1) {
+            ByteRange r = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(mime);
+            response.setHeader("Content-Range", r.toContentRange(total));
+            body.add(Segment.ofFile(r.start, r.length()));
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            for (ByteRange r : ranges) {
+                body.add(Segment.ofBytes("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: " + r.toContentRange(total) + "\r\n\r\n"));
+                body.add(Segment.ofFile(r.start, r.length()));
+            }
+            body.add(Segment.ofBytes("\r\n--" + boundary + "--\r\n"));
+        }
+
+        long length = 0;
+        for (Segment s : body) {
+            length += s.count;
+        }
+        response.setHeader("Content-Length", Long.toString(length));
+
+        // Let the container send the file with zero copy if possible
+        if (body.size() == 1 && request != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            Segment s = body.get(0);
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, s.position);
+            request.setAttribute(SENDFILE_END, s.position + s.count);
+            log.debug("Delivering " + file + " using container sendfile");
+            if (tf != null) {
+                tf.releaseLater(SENDFILE_RELEASE_DELAY_SEC);
+            }
+            return true;
+        }
+
+        if (request != null && request.isAsyncStarted()) {
+            writeAsync(request, response, body, file, tf);
+            return true;
+        }
+        write(body, file, response.getOutputStream());
+        return false;
+    }
+
+    /**
+     * Sends a response body from memory, e.g. XML documents
+     *
+     * @param request HTTP request, may be null
+     * @param response HTTP response
+     * @param data response body
+     * @param mime content type
+     * @throws IOException
+     */
+    public static void sendBytes(HttpServletRequest request, HttpServletResponse response, byte[] data, String mime) throws IOException {
+        response.setContentType(mime);
+        response.setHeader("Content-Length", Integer.toString(data.length));
+        if (request != null && request.isAsyncStarted()) {
+            List<Segment> body = new ArrayList<>();
+            body.add(new Segment(data, 0, data.length));
+            writeAsync(request, response, body, null, null);
+            return;
+        }
+        response.getOutputStream().write(data);
+        response.getOutputStream().flush();
+    }
+
+    /**
+     * Checks whether a non-blocking writer has taken over the response of an
+     * asynchronously processed request. In this case, the writer completes the
+     * async context and callers must not complete it.
+     *
+     * @param request HTTP request
+     * @return true if the response is still being written
+     */
+    public static boolean isWritePending(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(ASYNC_WRITE_PENDING));
+    }
+
+    private static void writeAsync(HttpServletRequest request, HttpServletResponse response, List<Segment> body, File file, TempStorage.TempFile tf) throws IOException {
+        request.setAttribute(ASYNC_WRITE_PENDING, Boolean.TRUE);
+        ServletOutputStream oStream = response.getOutputStream();
+        oStream.setWriteListener(new AsyncBodyWriter(request.getAsyncContext(), oStream, body, file, tf));
+    }
+
+    /**
+     * Writes all segments of a response body to a servlet output stream,
+     * copying file regions through a buffer of the AsyncBodyWriter pool
+     */
+    private static void write(List<Segment> body, File file, ServletOutputStream oStream) throws IOException {
+        ByteBuffer pooled = AsyncBodyWriter.acquire();
+        byte[] buf = pooled.array();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (Segment s : body) {
+                if (!s.isFileRegion()) {
+                    oStream.write(s.bytes);
+                    continue;
+                }
+                raf.seek(s.position);
+                long remaining = s.count;
+                while (remaining > 0) {
+                    int n = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n <= 0) {
+                        throw new IOException("Unexpected end of file " + file);
+                    }
+                    oStream.write(buf, 0, n);
+                    remaining -= n;
+                }
+            }
+        } finally {
+            AsyncBodyWriter.release(pooled);
+        }
+        oStream.flush();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Manages temporary coverage files. Files get collision-free names, are
+ * reference counted and deleted as soon as the last response using them has
+ * been completed (unless they are retained e.g. for range requests). The total
+ * size of files is limited by a byte quota, the oldest unused files are evicted
+ * if needed. Small outputs may be placed on a memory-backed file system such as
+ * /dev/shm. This is a singleton class.
+ */
+public class TempStorage {
+
+    private static final Logger log = LogManager.getLogger(TempStorage.class);
+    private static TempStorage instance = null; // Singleton instance
+
+    private static final long REAPER_INTERVAL_SEC = 60;
+
+    /**
+     * A directory with a byte quota
+     */
+    private static class Store {
+
+        final File dir;
+        final long quota;
+        long used = 0;
+
+        Store(File dir, long quota) {
+            this.dir = dir;
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * A managed temporary file
+     */
+    public class TempFile {
+
+        private final File file;
+        private final Store store;
+        private final long created = System.currentTimeMillis();
+        private long size = 0; // reserved estimate until committed, actual size afterwards
+        private boolean committed = false;
+        private int refs = 1; // the producer holds the first reference
+        private boolean retained = false;
+        private boolean deleted = false;
+
+        private TempFile(File file, Store store) {
+            this.file = file;
+            this.store = store;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getPath() {
+            return file.getPath();
+        }
+
+        /**
+         * Acquires a further reference, e.g. for another response using this
+         * file
+         *
+         * @return false if the file has already been deleted
+         */
+        public boolean acquire() {
+            synchronized (TempStorage.this) {
+                if (deleted) {
+                    return false;
+                }
+                ++refs;
+                return true;
+            }
+        }
+
+        /**
+         * Releases a reference, the file is deleted when it is neither
+         * referenced nor retained anymore
+         */
+        public void release() {
+            synchronized (TempStorage.this) {
+                if (--refs <= 0 && !retained) {
+                    delete(this);
+                }
+            }
+        }
+
+        /**
+         * Releases a reference after a delay
+         *
+         * @param delaySec delay in seconds
+         */
+        public void releaseLater(long delaySec) {
+            reaper.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                }
+            }, delaySec, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Marks the file as retained, i.e. it is kept even if not referenced
+         * until it is unretained or evicted due to the quota
+         *
+         * @param retained retain or unretain the file
+         */
+        public void setRetained(boolean retained) {
+            synchronized (TempStorage.this) {
+                this.retained = retained;
+                if (!retained && refs <= 0) {
+                    delete(this);
+                }
+            }
+        }
+
+        /**
+         * Must be called after the file has been written completely to replace
+         * the reserved estimate by its actual size in the quota
+         */
+        public void commit() {
+            synchronized (TempStorage.this) {
+                if (deleted) {
+                    return;
+                }
+                long actual = file.length();
+                store.used += actual - size;
+                size = actual;
+                committed = true;
+                enforceQuota(store, 0);
+            }
+        }
+    }
+
+    private Store disk;
+    private Store memory = null;
+    private final long memoryMaxFileBytes;
+    private final LinkedHashMap<String, TempFile> files = new LinkedHashMap<>(); // in creation order
+    private final ScheduledExecutorService reaper;
+
+    private TempStorage() {
+        File dir = new File(Config.get().SCIDBWCS_TEMPPATH);
+        if (!prepareDir(dir)) {
+            log.error("Cannot create temporary coverage directory, using '" + System.getProperty("java.io.tmpdir") + "' instead");
+            dir = new File(System.getProperty("java.io.tmpdir"), "scidb-wcs");
+            dir.mkdirs();
+            Config.get().SCIDBWCS_TEMPPATH = dir.getPath();
+        }
+        disk = new Store(dir, Config.get().SCIDBWCS_TEMP_QUOTA_BYTES);
+
+        if (Config.get().SCIDBWCS_TEMPPATH_MEM != null && !Config.get().SCIDBWCS_TEMPPATH_MEM.isEmpty()) {
+            File mdir = new File(Config.get().SCIDBWCS_TEMPPATH_MEM);
+            if (prepareDir(mdir)) {
+                memory = new Store(mdir, Config.get().SCIDBWCS_TEMP_MEM_QUOTA_BYTES);
+            } else {
+                log.warn("Cannot create memory-backed temporary directory '" + mdir + "', using disk only");
+            }
+        }
+        memoryMaxFileBytes = Config.get().SCIDBWCS_TEMP_MEM_MAX_FILE_BYTES;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scidbwcs-tempstorage-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, REAPER_INTERVAL_SEC, REAPER_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the singleton instance, creating (and cleaning) temporary
+     * directories if not yet done
+     *
+     * @return temporary storage instance
+     */
+    public static synchronized TempStorage get() {
+        if (instance == null) {
+            instance = new TempStorage();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the reaper thread and deletes all managed files, should be called
+     * when the servlet is destroyed
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.reaper.shutdownNow();
+            synchronized (instance) {
+                for (TempFile f : new ArrayList<>(instance.files.values())) {
+                    instance.delete(f);
+                }
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Cleans and recreates a directory, files of earlier runs are removed
+     */
+    private static boolean prepareDir(File dir) {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException ex) {
+            log.error(ex);
+        }
+        return dir.mkdirs() || dir.isDirectory();
+    }
+
+    /**
+     * Allocates a new temporary file. The file itself is not created.
+     *
+     * @param extension file extension including the dot, e.g. ".tif"
+     * @param estimatedBytes expected file size, used to select the storage
+     * location and reserved in its quota until the file is committed or
+     * released
+     * @return managed file, referenced once by the caller
+     */
+    public synchronized TempFile allocate(String extension, long estimatedBytes) {
+        Store store = disk;
+        if (memory != null && estimatedBytes <= memoryMaxFileBytes) {
+            enforceQuota(memory, estimatedBytes);
+            if (memory.used + estimatedBytes <= memory.quota) {
+                store = memory;
+            }
+        }
+        if (store == disk) {
+            enforceQuota(disk, estimatedBytes);
+        }
+        File f = new File(store.dir, UUID.randomUUID().toString() + extension);
+        TempFile tf = new TempFile(f, store);
+        // Concurrent allocations must see the space of files still being written
+        tf.size = Math.max(0, estimatedBytes);
+        store.used += tf.size;
+        files.put(f.getPath(), tf);
+        return tf;
+    }
+
+    /**
+     * Evicts the oldest unreferenced files of a store until the given number
+     * of bytes fits into its quota and onto the file system. Must be called
+     * while holding the lock.
+     */
+    private void enforceQuota(Store store, long additionalBytes) {
+        long usable = store.dir.getUsableSpace();
+        if (store.used + additionalBytes <= store.quota && (usable == 0 || usable > additionalBytes)) {
+            return;
+        }
+        List<TempFile> candidates = new ArrayList<>();
+        for (TempFile f : files.values()) {
+            if (f.store == store && f.refs <= 0) {
+                candidates.add(f);
+            }
+        }
+        Collections.sort(candidates, new Comparator<TempFile>() {
+            @Override
+            public int compare(TempFile a, TempFile b) {
+                return Long.compare(a.created, b.created);
+            }
+        });
+        for (TempFile f : candidates) {
+            if (store.used + additionalBytes <= store.quota && (usable == 0 || usable > additionalBytes)) {
+                return;
+            }
+            log.debug("Evicting temporary file " + f.file + " (" + f.size + " bytes) due to quota");
+            usable += f.size;
+            delete(f);
+        }
+        if (store.used + additionalBytes > store.quota) {
+            log.warn("Temporary storage quota of '" + store.dir + "' exceeded, all files are in use");
+        }
+    }
+
+    /**
+     * Deletes a file. Must be called while holding the lock.
+     */
+    private void delete(TempFile f) {
+        if (f.deleted) {
+            return;
+        }
+        f.deleted = true;
+        files.remove(f.file.getPath());
+        f.store.used -= f.size;
+        if (f.file.exists() && !f.file.delete()) {
+            log.warn("Cannot delete temporary file " + f.file);
+        }
+    }
+
+    /**
+     * Periodically forgets files that have been removed externally and
+     * enforces quotas
+     */
+    private synchronized void reap() {
+        for (TempFile f : new ArrayList<>(files.values())) {
+            if (f.committed && !f.file.exists()) {
+                delete(f);
+            }
+        }
+        enforceQuota(disk, 0);
+        if (memory != null) {
+            enforceQuota(memory, 0);
+        }
+    }
+
+}
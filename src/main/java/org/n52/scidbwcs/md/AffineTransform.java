@@ -223,8 +223,8 @@ public class AffineTransform {
             double inv_a12 = d1 * (-_a12);
             double inv_a21 = d1 * (-_a21);
             double inv_a22 = d1 * _a11;
-            double inv_x0 = -inv_a11 * _x0 + inv_a12 * _y0;
-            double inv_y0 = inv_a21 * _x0 - inv_a22 * _y0;
+            double inv_x0 = -(inv_a11 * _x0 + inv_a12 * _y0);
+            double inv_y0 = -(inv_a21 * _x0 + inv_a22 * _y0);
 
             _inv = new AffineTransform(inv_x0, inv_y0, inv_a11, inv_a22, inv_a12, inv_a21);
             _inv._inv = this;
@@ -67,6 +67,12 @@ public class Array {
     private Extent extent;
     private Extent extentWGS84;
 
+    private List<Array> overviews = new ArrayList<>(); // downsampled copies, see PyramidManager
+    private Array base = null; // for overviews, the original array
+    private int overviewFactor = 1;
+    private List<Array> members = null; // for mosaics, the merged arrays
+    private long[] memberOffsets = null; // for mosaics, column and row offsets of members
+
     public Array() {
         name = "";
         attributes = new ArrayList<>();
@@ -202,6 +208,211 @@ public class Array {
         return trs;
     }
 
+    /**
+     * Gets the overviews (downsampled copies) of an array
+     * @return list of overviews, empty if there are none
+     */
+    public List<Array> getOverviews() {
+        return overviews;
+    }
+
+    public void setOverviews(List<Array> overviews) {
+        this.overviews = overviews;
+    }
+
+    /**
+     * Gets the array an overview has been derived from
+     * @return base array or null if this is not an overview
+     */
+    public Array getBase() {
+        return base;
+    }
+
+    /**
+     * Gets the downsampling factor of an overview
+     * @return factor with respect to the base array, 1 if this is not an overview
+     */
+    public int getOverviewFactor() {
+        return overviewFactor;
+    }
+
+    /**
+     * Derives the metadata of an overview, i.e. of an array downsampled
+     * by regrid() with the given factor along both spatial dimensions
+     * @param name name of the overview array
+     * @param factor downsampling factor
+     * @return overview metadata
+     */
+    public Array createOverview(String name, int factor) {
+        Array o = new Array(name);
+        o.base = this;
+        o.overviewFactor = factor;
+        for (ArrayAttribute a : attributes) {
+            o.attributes.add(new ArrayAttribute(a.name, a.typeId, true)); // aggregates are nullable
+        }
+        for (ArrayDimension d : dimensions) {
+            if (d == getXDim() || d == getYDim()) {
+                o.dimensions.add(d.downsample(factor));
+            } else {
+                o.dimensions.add(d);
+            }
+        }
+
+        // Overview cell i covers base cells min + (i - min) * factor, ...
+        AffineTransform a = srs.a;
+        long xmin = getXDim().min;
+        long ymin = getYDim().min;
+        AffineTransform oa = new AffineTransform(
+                a._x0 + a._a11 * xmin * (1 - factor) + a._a12 * ymin * (1 - factor),
+                a._y0 + a._a21 * xmin * (1 - factor) + a._a22 * ymin * (1 - factor),
+                a._a11 * factor, a._a22 * factor, a._a12 * factor, a._a21 * factor);
+        o.srs = new SpatialReference(oa, srs.xdim, srs.ydim, srs.auth_name, srs.auth_id, srs.proj4, srs.wkt);
+        o.trs = trs;
+        o.extent = extent;
+        return o;
+    }
+
+    /**
+     * Gets the arrays a virtual mosaic is composed of
+     * @return member arrays in order of precedence or null if this is not a
+     * mosaic
+     */
+    public List<Array> getMembers() {
+        return members;
+    }
+
+    /**
+     * Gets the column offset of a mosaic member, i.e. the mosaic column of
+     * the member's column 0
+     * @param i index of the member
+     * @return column offset
+     */
+    public long getMemberColumnOffset(int i) {
+        return memberOffsets[2 * i];
+    }
+
+    /**
+     * Gets the row offset of a mosaic member, i.e. the mosaic row of the
+     * member's row 0
+     * @param i index of the member
+     * @return row offset
+     */
+    public long getMemberRowOffset(int i) {
+        return memberOffsets[2 * i + 1];
+    }
+
+    /**
+     * Derives the metadata of a virtual mosaic of arrays. The mosaic uses the
+     * grid of the first array and covers the union of all arrays, which must
+     * have the same dimensions, attributes, reference systems, and cell
+     * sizes, and whose axis-aligned grids must be shifted by whole cells.
+     * @param name name of the mosaic
+     * @param members arrays in order of precedence where they overlap
+     * @return mosaic metadata or null if the arrays cannot be mosaicked
+     */
+    public static Array createMosaic(String name, List<Array> members) {
+        if (members.isEmpty()) {
+            return null;
+        }
+        Array f = members.get(0);
+        if (!f.isSpatial() || f.getXDim() == null || f.getYDim() == null) {
+            log.warn("Cannot mosaic array '" + f.getName() + "' without spatial reference");
+            return null;
+        }
+        AffineTransform a = f.srs.a;
+        if (a._a12 != 0 || a._a21 != 0) {
+            log.warn("Cannot mosaic array '" + f.getName() + "' with rotated grid");
+            return null;
+        }
+        Array o = new Array(name);
+        o.members = new ArrayList<>(members);
+        o.memberOffsets = new long[2 * members.size()];
+        for (int i = 0; i < members.size(); ++i) {
+            Array m = members.get(i);
+            String reason = null;
+            if (!m.isSpatial() || m.getXDim() == null || m.getYDim() == null) {
+                reason = "no spatial reference";
+            } else if (m.srs.a._a12 != 0 || m.srs.a._a21 != 0 || Math.abs(m.srs.a._a11 - a._a11) > 1e-9 * Math.abs(a._a11) || Math.abs(m.srs.a._a22 - a._a22) > 1e-9 * Math.abs(a._a22)) {
+                reason = "a different cell size";
+            } else if (!m.srs.auth_name.equalsIgnoreCase(f.srs.auth_name) || m.srs.auth_id != f.srs.auth_id || (f.srs.auth_id <= 0 && !m.srs.wkt.equals(f.srs.wkt))) {
+                reason = "a different reference system";
+            } else if (m.isTemporal() != f.isTemporal() || (f.isTemporal() && (!m.trs.tdim.equals(f.trs.tdim) || !m.trs.t0.isEqual(f.trs.t0) || !m.trs.dt.equals(f.trs.dt)))) {
+                reason = "a different temporal reference";
+            } else if (m.dimensions.size() != f.dimensions.size()) {
+                reason = "different dimensions";
+            } else if (m.attributes.size() != f.attributes.size()) {
+                reason = "different attributes";
+            }
+            for (int j = 0; reason == null && j < f.dimensions.size(); ++j) {
+                if (!m.dimensions.get(j).name.equals(f.dimensions.get(j).name)) {
+                    reason = "different dimensions";
+                }
+            }
+            for (int j = 0; reason == null && j < f.attributes.size(); ++j) {
+                if (!m.attributes.get(j).name.equals(f.attributes.get(j).name) || !m.attributes.get(j).typeId.equals(f.attributes.get(j).typeId)) {
+                    reason = "different attributes";
+                }
+            }
+            if (reason == null) {
+                double dx = (m.srs.a._x0 - a._x0) / a._a11;
+                double dy = (m.srs.a._y0 - a._y0) / a._a22;
+                o.memberOffsets[2 * i] = Math.round(dx);
+                o.memberOffsets[2 * i + 1] = Math.round(dy);
+                if (Math.abs(dx - Math.round(dx)) > 1e-6 || Math.abs(dy - Math.round(dy)) > 1e-6) {
+                    reason = "a grid not aligned to the grid of array '" + f.getName() + "'";
+                }
+            }
+            if (reason != null) {
+                log.warn("Cannot mosaic array '" + m.getName() + "' with " + reason);
+                return null;
+            }
+        }
+
+        // Members are nullable in the mosaic if any member is
+        for (int j = 0; j < f.attributes.size(); ++j) {
+            boolean nullable = false;
+            for (Array m : members) {
+                nullable |= m.attributes.get(j).nullable;
+            }
+            o.attributes.add(new ArrayAttribute(f.attributes.get(j).name, f.attributes.get(j).typeId, nullable));
+        }
+        for (int j = 0; j < f.dimensions.size(); ++j) {
+            ArrayDimension d = f.dimensions.get(j);
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE, curMin = Long.MAX_VALUE, curMax = Long.MIN_VALUE;
+            for (int i = 0; i < members.size(); ++i) {
+                ArrayDimension md = members.get(i).dimensions.get(j);
+                long off = (md == members.get(i).getXDim()) ? o.getMemberColumnOffset(i) : ((md == members.get(i).getYDim()) ? o.getMemberRowOffset(i) : 0);
+                min = Math.min(min, md.min + off);
+                max = Math.max(max, md.max + off);
+                curMin = Math.min(curMin, md.getTrueMin() + off);
+                curMax = Math.max(curMax, md.getTrueMax() + off);
+            }
+            o.dimensions.add(new ArrayDimension(d.name, min, max, curMin, curMax, d.chunkSize, 0L));
+        }
+        o.srs = f.srs;
+        o.trs = f.trs;
+        if (f.extent != null) {
+            Extent e = new Extent(f.extent.xmin, f.extent.xmax, f.extent.ymin, f.extent.ymax, f.extent.tmin, f.extent.tmax, f.extent.zmin, f.extent.zmax);
+            for (Array m : members) {
+                if (m.extent == null) {
+                    continue;
+                }
+                e.xmin = Math.min(e.xmin, m.extent.xmin);
+                e.xmax = Math.max(e.xmax, m.extent.xmax);
+                e.ymin = Math.min(e.ymin, m.extent.ymin);
+                e.ymax = Math.max(e.ymax, m.extent.ymax);
+                if (e.tmin != null && m.extent.tmin != null && !m.extent.tmin.isEmpty() && m.extent.tmin.compareTo(e.tmin) < 0) {
+                    e.tmin = m.extent.tmin;
+                }
+                if (e.tmax != null && m.extent.tmax != null && m.extent.tmax.compareTo(e.tmax) > 0) {
+                    e.tmax = m.extent.tmax;
+                }
+            }
+            o.extent = e;
+        }
+        return o;
+    }
+
     /**
      * Computes the spatial extent 
      * @return 
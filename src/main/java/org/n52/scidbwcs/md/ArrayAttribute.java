@@ -47,5 +47,23 @@ public class ArrayAttribute {
        // this.nullable = nullable;
     }
 
-   
+    /**
+     * Builds an AFL expression that converts an average of this attribute,
+     * e.g. computed by regrid(), back to the attribute's type. Integers are
+     * rounded.
+     * @param avg name or expression of the average
+     * @return AFL expression
+     */
+    public String castAverage(String avg) {
+        switch (typeId) {
+            case "double":
+                return avg;
+            case "float":
+                return "float(" + avg + ")";
+            case "bool":
+                return avg + ">=0.5";
+            default:
+                return typeId + "(floor(" + avg + "+0.5))";
+        }
+    }
 }
@@ -73,7 +73,17 @@ public class ArrayDimension {
         this.chunkSize = chunkSize;
         this.overlap = overlap;
     }
-    
-    
-    
+
+    /**
+     * Derives the dimension resulting from regrid() with the given factor
+     * @param factor downsampling factor
+     * @return dimension with the same start and name
+     */
+    public ArrayDimension downsample(long factor) {
+        return new ArrayDimension(name, min, min + (max - min) / factor,
+                Math.abs(curMin) == INT64MAX ? curMin : min + Math.floorDiv(curMin - min, factor),
+                Math.abs(curMax) == INT64MAX ? curMax : min + Math.floorDiv(curMax - min, factor),
+                chunkSize, overlap);
+    }
+
 }
@@ -24,8 +24,8 @@ import java.io.StringWriter;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.logging.log4j.LogManager;
@@ -50,8 +50,8 @@ public class ArrayManager {
     private static ArrayManager instance = null;
 
     private ArrayManager() {
-        this.arrayCache = new HashMap<>();
-        this.cacheTimes = new HashMap<>();
+        this.arrayCache = new ConcurrentHashMap<>();
+        this.cacheTimes = new ConcurrentHashMap<>();
     }
 
     public static ArrayManager instance() {
@@ -61,14 +61,23 @@ public class ArrayManager {
         return instance;
     }
 
-    private HashMap<String, Array> arrayCache; // Actual metadata cache with array names as keys
-    private HashMap<String, Long> cacheTimes;  // Datetime of latest metadata queries for arrays
+    private ConcurrentHashMap<String, Array> arrayCache; // Actual metadata cache with array names as keys
+    private ConcurrentHashMap<String, Long> cacheTimes;  // Datetime of latest metadata queries for arrays
 
     private void cacheRemove(String array) {
         arrayCache.remove(array);
         cacheTimes.remove(array);
     }
 
+    /**
+     * Removes an array from the metadata cache such that its metadata is
+     * reloaded on next access, e.g. after overviews have been changed
+     * @param array array name
+     */
+    public void invalidate(String array) {
+        cacheRemove(array);
+    }
+
     private boolean cacheHas(String array) {
         if (arrayCache.containsKey(array)) {
             if ((System.currentTimeMillis() - cacheTimes.getOrDefault(array, (long) 0)) <= REFRESH_AFTER_SEC) {
@@ -94,11 +103,70 @@ public class ArrayManager {
     }
 
     public Array getArrayMD_JDBC(String array) {
+        List<String> members = mosaicMembers(array);
+        if (members != null) {
+            return getMosaicMD_JDBC(array, members);
+        }
         ArrayList<String> s = new ArrayList<>();
         s.add(array);
         return getArrayMD_JDBC(s).get(0);
     }
 
+    /**
+     * Gets the arrays of a virtual mosaic
+     * @param name either a comma separated list of arrays or the name of a
+     * mosaic configured in SCIDBWCS_MOSAICS
+     * @return member arrays or null if the name does not refer to a mosaic
+     */
+    public static List<String> mosaicMembers(String name) {
+        String[] members = Config.get().SCIDBWCS_MOSAICS.get(name);
+        if (members == null && name.contains(",")) {
+            members = name.split(",");
+        }
+        if (members == null) {
+            return null;
+        }
+        List<String> out = new ArrayList<>();
+        for (String m : members) {
+            if (!m.trim().isEmpty() && !out.contains(m.trim())) {
+                out.add(m.trim());
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Derives the metadata of a virtual mosaic from the cached metadata of
+     * its members, see Array.createMosaic()
+     * @return mosaic metadata or null if the arrays are unknown or cannot be
+     * mosaicked
+     */
+    private Array getMosaicMD_JDBC(String name, List<String> members) {
+        if (members.isEmpty()) {
+            return null;
+        }
+        List<Array> arrays = getArrayMD_JDBC(members);
+        if (arrays.size() != members.size()) {
+            log.warn("Cannot find all arrays of mosaic '" + name + "'");
+            return null;
+        }
+        // Results of eo_all() are not ordered like the requested arrays
+        List<Array> ordered = new ArrayList<>();
+        for (String m : members) {
+            for (Array a : arrays) {
+                if (a.getName().equals(m)) {
+                    ordered.add(a);
+                    break;
+                }
+            }
+        }
+        if (ordered.size() != members.size()) {
+            log.warn("Cannot find all arrays of mosaic '" + name + "'");
+            return null;
+        }
+        return Array.createMosaic(name, ordered);
+    }
+
     public List<Array> getArrayMD_JDBC() {
         return getArrayMD_JDBC(new ArrayList<String>());
     }
@@ -136,7 +204,7 @@ public class ArrayManager {
             for (int i = 0; i < toLoad.size() - 1; ++i) {
                 afl += toLoad.get(i) + ",";
             }
-            afl += arrays.get(toLoad.size() - 1) + ")";
+            afl += toLoad.get(toLoad.size() - 1) + ")";
 
         }
         log.debug("Performing AFL Query: " + afl);
@@ -267,6 +335,10 @@ public class ArrayManager {
                         a.setExtent(null);
                     }
 
+                    if (a.isSpatial()) {
+                        a.setOverviews(PyramidManager.get().overviewsOf(a));
+                    }
+
                     A.add(a);
 
                     arrayCache.put(a.getName(), a);
@@ -347,7 +419,7 @@ public class ArrayManager {
             for (int i = 0; i < toLoad.size() - 1; ++i) {
                 afl += toLoad.get(i) + ",";
             }
-            afl += arrays.get(toLoad.size() - 1) + ")";
+            afl += toLoad.get(toLoad.size() - 1) + ")";
 
         }
         log.debug("Performing AFL Query: " + afl);
@@ -488,6 +560,10 @@ public class ArrayManager {
                         a.setExtent(null);
                     }
 
+                    if (a.isSpatial()) {
+                        a.setOverviews(PyramidManager.get().overviewsOf(a));
+                    }
+
                     A.add(a);
 
                     arrayCache.put(a.getName(), a);
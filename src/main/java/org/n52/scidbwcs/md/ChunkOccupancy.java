@@ -0,0 +1,226 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.md;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.db.ISciDBCellProcessor;
+import org.n52.scidbwcs.db.SciDBConnection;
+import org.n52.scidbwcs.db.SciDBQueryResult;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Maintains bitmaps of the spatial chunks of arrays that contain at least one
+ * cell in any time slice. Bitmaps are computed by a single count aggregate
+ * over the chunk grid and recomputed when the array version changes. They
+ * allow to answer requests of empty regions of sparse arrays without reading
+ * from SciDB and to shrink read windows to occupied chunks. This is a
+ * singleton class.
+ */
+public class ChunkOccupancy {
+
+    private static final Logger log = LogManager.getLogger(ChunkOccupancy.class);
+    private static ChunkOccupancy instance = null; // Singleton instance
+
+    /**
+     * Occupied chunks of one version of an array
+     */
+    public static class Bitmap {
+
+        public final long version;
+        final long ox, oy, cx, cy; // chunk origin and size
+        final long i0, j0; // index of the first chunk column and row
+        final int nx, ny;
+        final BitSet bits;
+        volatile long checked; // time of the last version check
+
+        Bitmap(long version, long ox, long oy, long cx, long cy, long i0, long j0, int nx, int ny, BitSet bits, long checked) {
+            this.version = version;
+            this.ox = ox;
+            this.oy = oy;
+            this.cx = cx;
+            this.cy = cy;
+            this.i0 = i0;
+            this.j0 = j0;
+            this.nx = nx;
+            this.ny = ny;
+            this.bits = bits;
+            this.checked = checked;
+        }
+
+        /**
+         * Gets the cells of all occupied chunks within a window
+         * @param x0 first column
+         * @param x1 last column
+         * @param y0 first row
+         * @param y1 last row
+         * @return bounding box {x0, x1, y0, y1} of occupied chunks intersected
+         * with the window, or null if no chunk of the window is occupied
+         */
+        public long[] occupiedWindow(long x0, long x1, long y0, long y1) {
+            long ia = Math.max(Math.floorDiv(x0 - ox, cx) - i0, 0);
+            long ib = Math.min(Math.floorDiv(x1 - ox, cx) - i0, nx - 1L);
+            long ja = Math.max(Math.floorDiv(y0 - oy, cy) - j0, 0);
+            long jb = Math.min(Math.floorDiv(y1 - oy, cy) - j0, ny - 1L);
+            long imin = Long.MAX_VALUE, imax = -1, jmin = Long.MAX_VALUE, jmax = -1;
+            for (long j = ja; j <= jb; ++j) {
+                int row = (int) (j * nx);
+                int first = bits.nextSetBit(row + (int) ia);
+                if (first < 0 || first > row + ib) {
+                    continue;
+                }
+                int last = bits.previousSetBit(row + (int) ib);
+                imin = Math.min(imin, first - row);
+                imax = Math.max(imax, last - row);
+                jmin = Math.min(jmin, j);
+                jmax = j;
+            }
+            if (imax < 0) {
+                return null;
+            }
+            return new long[]{
+                Math.max(x0, ox + (i0 + imin) * cx), Math.min(x1, ox + (i0 + imax + 1) * cx - 1),
+                Math.max(y0, oy + (j0 + jmin) * cy), Math.min(y1, oy + (j0 + jmax + 1) * cy - 1)};
+        }
+
+        /**
+         * Gets the number of occupied chunks
+         * @return number of chunks containing cells
+         */
+        public int count() {
+            return bits.cardinality();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Bitmap> bitmaps = new ConcurrentHashMap<>();
+
+    private ChunkOccupancy() {
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return chunk occupancy instance
+     */
+    public static synchronized ChunkOccupancy get() {
+        if (instance == null) {
+            instance = new ChunkOccupancy();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the occupancy bitmap of the current version of an array, the version
+     * is checked at most every SCIDBWCS_OCCUPANCY_CHECK_SEC seconds
+     * @param A array
+     * @return bitmap or null if not available, e.g. if disabled, the array has
+     * too many chunks, or the query fails
+     */
+    public Bitmap of(Array A) {
+        return of(A, false);
+    }
+
+    /**
+     * Gets the occupancy bitmap of the current version of an array
+     * @param A array
+     * @param verify check the version even if it has been checked recently,
+     * e.g. before results are omitted based on the bitmap
+     * @return bitmap or null if not available, e.g. if disabled, the array has
+     * too many chunks, or the query fails
+     */
+    public Bitmap of(Array A, boolean verify) {
+        if (!Config.get().SCIDBWCS_CHUNK_OCCUPANCY || A == null || !A.isSpatial()) {
+            return null;
+        }
+        String name = A.getName();
+        long now = System.currentTimeMillis();
+        Bitmap b = bitmaps.get(name);
+        if (b != null && !verify && now - b.checked < Config.get().SCIDBWCS_OCCUPANCY_CHECK_SEC * 1000) {
+            return b;
+        }
+        long version = PyramidManager.currentVersion(name);
+        if (version < 0) {
+            return null;
+        }
+        if (b != null && b.version == version) {
+            b.checked = now;
+            return b;
+        }
+        b = compute(A, version, now);
+        if (b == null) {
+            bitmaps.remove(name);
+            return null;
+        }
+        bitmaps.put(name, b);
+        log.debug("Array '" + name + "' version " + version + " has " + b.count() + " of " + ((long) b.nx * b.ny) + " spatial chunks occupied");
+        return b;
+    }
+
+    /**
+     * Counts cells per spatial chunk of an array version
+     */
+    private static Bitmap compute(Array A, long version, long now) {
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        final long ox = StatisticsManager.origin(xd), cx = StatisticsManager.chunkSize(xd);
+        final long oy = StatisticsManager.origin(yd), cy = StatisticsManager.chunkSize(yd);
+        final long i0 = Math.floorDiv(xd.getTrueMin() - ox, cx);
+        final long j0 = Math.floorDiv(yd.getTrueMin() - oy, cy);
+        long nxl = Math.max(0, Math.floorDiv(xd.getTrueMax() - ox, cx) - i0 + 1);
+        long nyl = Math.max(0, Math.floorDiv(yd.getTrueMax() - oy, cy) - j0 + 1);
+        if (nxl * nyl > Config.get().SCIDBWCS_OCCUPANCY_MAX_CHUNKS) {
+            log.debug("Array '" + A.getName() + "' has too many chunks for an occupancy bitmap");
+            return null;
+        }
+        final int nx = (int) nxl, ny = (int) nyl;
+        final BitSet bits = new BitSet(nx * ny);
+        if (nx > 0 && ny > 0) {
+            // regrid() keeps the lower bound of dimensions, such that output coordinates are chunk indexes relative to the origin
+            StringBuilder grid = new StringBuilder();
+            for (ArrayDimension d : A.Dimensions()) {
+                grid.append(",").append(d == xd ? cx : (d == yd ? cy : Math.max(1, d.getTrueMax() - StatisticsManager.origin(d) + 1)));
+            }
+            final String xname = xd.name, yname = yd.name;
+            SciDBQueryResult res = SciDBConnection.get().queryRead("regrid(project(apply(" + A.getName() + "@" + version + ",_wcs_o,true),_wcs_o)" + grid + ",count(_wcs_o) as _wcs_n)");
+            if (res == null) {
+                log.warn("Computing chunk occupancy of array '" + A.getName() + "' failed");
+                return null;
+            }
+            res.iterate(new ISciDBCellProcessor() {
+                @Override
+                public void process(ResultSet res1) throws SQLException {
+                    if (res1.getLong("_wcs_n") <= 0) {
+                        return;
+                    }
+                    long i = res1.getLong(xname) - ox - i0;
+                    long j = res1.getLong(yname) - oy - j0;
+                    if (i >= 0 && i < nx && j >= 0 && j < ny) {
+                        bits.set((int) (j * nx + i));
+                    }
+                }
+            });
+        }
+        return new Bitmap(version, ox, oy, cx, cy, i0, j0, nx, ny, bits, now);
+    }
+}
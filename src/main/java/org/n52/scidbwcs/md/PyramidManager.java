@@ -0,0 +1,266 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.md;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.db.ISciDBCellProcessor;
+import org.n52.scidbwcs.db.SciDBConnection;
+import org.n52.scidbwcs.db.SciDBQueryResult;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Builds and maintains multi-resolution pyramids for configured arrays. Each
+ * level is a separate SciDB array computed by regrid() from the previous level
+ * with factor two along both spatial dimensions. Overview array names contain
+ * the base array version they have been computed from; if the base array is
+ * updated, a new pyramid is built and the previous one is removed afterwards.
+ * Overviews are attached to the base array's metadata by the ArrayManager.
+ * This is a singleton class.
+ */
+public class PyramidManager {
+
+    private static final Logger log = LogManager.getLogger(PyramidManager.class);
+    private static PyramidManager instance = null; // Singleton instance
+
+    /**
+     * Overview levels of one version of a base array
+     */
+    private static class Pyramid {
+
+        final long version;
+        final List<Integer> factors = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+
+        Pyramid(long version) {
+            this.version = version;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Pyramid> pyramids = new ConcurrentHashMap<>();
+    private final Set<String> retired = new HashSet<>(); // overview arrays to be removed on next refresh
+    private ScheduledExecutorService scheduler = null;
+
+    private PyramidManager() {
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return pyramid manager instance
+     */
+    public static synchronized PyramidManager get() {
+        if (instance == null) {
+            instance = new PyramidManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts periodic checks of configured arrays in the background
+     */
+    public synchronized void start() {
+        if (scheduler != null || Config.get().SCIDBWCS_PYRAMID_ARRAYS == null || Config.get().SCIDBWCS_PYRAMID_ARRAYS.length == 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scidbwcs-pyramids");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, 0, Config.get().SCIDBWCS_PYRAMID_CHECK_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops background checks, should be called when the servlet is destroyed
+     */
+    public static synchronized void shutdown() {
+        if (instance != null && instance.scheduler != null) {
+            instance.scheduler.shutdownNow();
+            instance.scheduler = null;
+        }
+    }
+
+    /**
+     * Builds the name of an overview array
+     * @param base base array name
+     * @param factor downsampling factor
+     * @param version version of the base array
+     * @return array name
+     */
+    public static String overviewName(String base, int factor, long version) {
+        return base + "_ovr" + factor + "_v" + version;
+    }
+
+    /**
+     * Derives metadata of the current overviews of an array
+     * @param base base array metadata
+     * @return overviews ordered by increasing factor, empty if there are none
+     */
+    public List<Array> overviewsOf(Array base) {
+        List<Array> out = new ArrayList<>();
+        Pyramid p = pyramids.get(base.getName());
+        if (p == null || base.getXDim() == null || base.getYDim() == null) {
+            return out;
+        }
+        for (int i = 0; i < p.factors.size(); ++i) {
+            out.add(base.createOverview(p.names.get(i), p.factors.get(i)));
+        }
+        return out;
+    }
+
+    /**
+     * Checks all configured arrays and (re)builds outdated pyramids
+     */
+    synchronized void refresh() {
+        // Remove pyramids replaced during the previous run, requests have had a full period to finish
+        for (String name : retired) {
+            SciDBConnection.get().queryWrite("remove(" + name + ")");
+        }
+        retired.clear();
+
+        for (String name : Config.get().SCIDBWCS_PYRAMID_ARRAYS) {
+            try {
+                refresh(name);
+            } catch (Exception ex) {
+                log.error("Updating pyramid of array '" + name + "' failed: " + ex);
+            }
+        }
+    }
+
+    private void refresh(String name) {
+        long version = currentVersion(name);
+        if (version < 0) {
+            log.warn("Cannot determine version of array '" + name + "', pyramid will not be updated");
+            return;
+        }
+        Pyramid old = pyramids.get(name);
+        if (old != null && old.version == version) {
+            return;
+        }
+
+        ArrayManager.instance().invalidate(name);
+        Array base = ArrayManager.instance().getArrayMD_JDBC(name);
+        if (base == null || !base.isSpatial() || base.getXDim() == null || base.getYDim() == null) {
+            log.warn("Array '" + name + "' is not spatially referenced, cannot build pyramid");
+            return;
+        }
+
+        Set<String> existing = listArrays();
+        Pyramid p = new Pyramid(version);
+        long size = Math.max(base.getXDim().getTrueLength(), base.getYDim().getTrueLength());
+        String src = name + "@" + version;
+        for (int f = 2; size / f >= Config.get().SCIDBWCS_PYRAMID_MIN_SIZE; f *= 2) {
+            String target = overviewName(name, f, version);
+            if (!existing.contains(target)) {
+                log.info("Building overview '" + target + "' of array '" + name + "'");
+                if (!SciDBConnection.get().queryWrite(regridAFL(base, src, target))) {
+                    // Partial pyramids are still usable
+                    break;
+                }
+            }
+            p.factors.add(f);
+            p.names.add(target);
+            src = target;
+        }
+
+        pyramids.put(name, p);
+        ArrayManager.instance().invalidate(name);
+
+        // Retire overviews of other versions, including leftovers of earlier runs
+        for (String a : existing) {
+            if (a.startsWith(name + "_ovr") && !p.names.contains(a) && a.matches("\\Q" + name + "\\E_ovr\\d+_v\\d+")) {
+                retired.add(a);
+            }
+        }
+        log.info("Pyramid of array '" + name + "' (version " + version + ") has " + p.factors.size() + " levels");
+    }
+
+    /**
+     * Builds the AFL query computing the next pyramid level
+     */
+    private static String regridAFL(Array base, String src, String target) {
+        StringBuilder grid = new StringBuilder();
+        for (ArrayDimension d : base.Dimensions()) {
+            if (grid.length() > 0) {
+                grid.append(",");
+            }
+            grid.append(d == base.getXDim() || d == base.getYDim() ? "2" : "1");
+        }
+        StringBuilder aggr = new StringBuilder();
+        StringBuilder cast = new StringBuilder();
+        StringBuilder proj = new StringBuilder();
+        for (ArrayAttribute a : base.Attributes()) {
+            aggr.append(",avg(").append(a.name).append(") as _wcs_").append(a.name);
+            cast.append(",").append(a.name).append(",").append(a.castAverage("_wcs_" + a.name));
+            proj.append(",").append(a.name);
+        }
+        return "store(project(apply(regrid(" + src + "," + grid + aggr + ")" + cast + ")" + proj + ")," + target + ")";
+    }
+
+    static long currentVersion(String name) {
+        final long[] v = {-1};
+        SciDBQueryResult res = SciDBConnection.get().queryRead("aggregate(versions(" + name + "),max(version_id) as v)");
+        if (res == null) {
+            return -1;
+        }
+        res.iterate(new ISciDBCellProcessor() {
+            @Override
+            public void process(ResultSet res1) throws SQLException {
+                v[0] = res1.getLong("v");
+            }
+        });
+        return v[0];
+    }
+
+    private static Set<String> listArrays() {
+        final Set<String> names = new HashSet<>();
+        SciDBQueryResult res = SciDBConnection.get().queryRead("project(list('arrays'),name)");
+        if (res != null) {
+            res.iterate(new ISciDBCellProcessor() {
+                @Override
+                public void process(ResultSet res1) throws SQLException {
+                    names.add(res1.getString("name"));
+                }
+            });
+        }
+        return names;
+    }
+}
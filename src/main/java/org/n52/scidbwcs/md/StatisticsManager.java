@@ -0,0 +1,558 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.md;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.n52.scidbwcs.db.ISciDBCellProcessor;
+import org.n52.scidbwcs.db.SciDBConnection;
+import org.n52.scidbwcs.db.SciDBQueryResult;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Computes summary statistics of array attributes within spatial windows.
+ * Count, sum, sum of squares, minimum, maximum, and a histogram are computed
+ * per chunk by SciDB aggregates and cached per array version. Statistics of a
+ * window merge the cached summaries of all chunks completely covered by the
+ * window, only partially covered chunks at the window's edges are read again.
+ * Histograms of all chunks share the bins over the attribute's range in the
+ * whole array version, such that they can be merged. This is a singleton
+ * class.
+ */
+public class StatisticsManager {
+
+    private static final Logger log = LogManager.getLogger(StatisticsManager.class);
+    private static StatisticsManager instance = null; // Singleton instance
+
+    /**
+     * Mergeable summary statistics of an attribute
+     */
+    public static class Summary {
+
+        public long count = 0;
+        public double sum = 0;
+        public double sumSquares = 0;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+        public final double histogramMin, histogramMax; // range of the histogram bins
+        public final long[] histogram;
+
+        public Summary(int bins, double histogramMin, double histogramMax) {
+            this.histogram = new long[bins];
+            this.histogramMin = histogramMin;
+            this.histogramMax = histogramMax;
+        }
+
+        /**
+         * Adds the values of another summary with the same histogram bins
+         * @param o other summary
+         */
+        public void merge(Summary o) {
+            count += o.count;
+            sum += o.sum;
+            sumSquares += o.sumSquares;
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+            for (int i = 0; i < histogram.length; ++i) {
+                histogram[i] += o.histogram[i];
+            }
+        }
+
+        public double mean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        public double stddev() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double m = mean();
+            return Math.sqrt(Math.max(0, sumSquares / count - m * m));
+        }
+
+        /**
+         * Estimates a percentile from the histogram, assuming uniformly
+         * distributed values within bins
+         * @param p percentile in [0,100]
+         * @return value or NaN if the histogram is empty
+         */
+        public double percentile(double p) {
+            long total = 0;
+            for (long c : histogram) {
+                total += c;
+            }
+            if (total == 0) {
+                return Double.NaN;
+            }
+            double target = p / 100 * total;
+            double width = (histogramMax - histogramMin) / histogram.length;
+            long cum = 0;
+            for (int b = 0; b < histogram.length; ++b) {
+                if (histogram[b] > 0 && cum + histogram[b] >= target) {
+                    double v = histogramMin + (b + (target - cum) / histogram[b]) * width;
+                    return Math.max(min, Math.min(max, v));
+                }
+                cum += histogram[b];
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Histogram ranges of one version of an array
+     */
+    private static class ArrayStats {
+
+        final long version;
+        final double[] lo, hi; // per attribute
+        volatile long checked; // time of the last version check
+
+        ArrayStats(long version, double[] lo, double[] hi, long checked) {
+            this.version = version;
+            this.lo = lo;
+            this.hi = hi;
+            this.checked = checked;
+        }
+    }
+
+    private final ConcurrentHashMap<String, ArrayStats> arrays = new ConcurrentHashMap<>();
+
+    // Summaries per chunk, keyed by array@version/t/column/row, least recently used are evicted
+    private final LinkedHashMap<String, Summary[]> chunks = new LinkedHashMap<String, Summary[]>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Summary[]> eldest) {
+            return size() > Config.get().SCIDBWCS_STATS_CACHE_CHUNKS;
+        }
+    };
+
+    private StatisticsManager() {
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return statistics manager instance
+     */
+    public static synchronized StatisticsManager get() {
+        if (instance == null) {
+            instance = new StatisticsManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Computes statistics of all attributes within a window of cells
+     * @param A array
+     * @param t time index, ignored for arrays without temporal dimension
+     * @param x0 first column
+     * @param x1 last column
+     * @param y0 first row
+     * @param y1 last row
+     * @return one summary per attribute of the array, attributes of
+     * unsupported types have empty summaries
+     * @throws IOException if a query fails
+     */
+    public Summary[] window(Array A, long t, long x0, long x1, long y0, long y1) throws IOException {
+        ArrayStats s = stats(A);
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        long ox = origin(xd), cx = chunkSize(xd);
+        long oy = origin(yd), cy = chunkSize(yd);
+        long[] fx = fullChunks(x0, x1, ox, cx);
+        long[] fy = fullChunks(y0, y1, oy, cy);
+        String prefix = A.getName() + "@" + s.version + "/" + (A.isTemporal() ? t : 0) + "/";
+
+        Summary[] total = empty(A, s);
+        List<long[]> edges = new ArrayList<>();
+        if (fx[0] <= fx[1] && fy[0] <= fy[1]) {
+            // Completely covered chunks, missing summaries are computed for the bounding box of missing chunks
+            long mx0 = Long.MAX_VALUE, mx1 = Long.MIN_VALUE, my0 = Long.MAX_VALUE, my1 = Long.MIN_VALUE;
+            synchronized (chunks) {
+                for (long j = fy[0]; j <= fy[1]; ++j) {
+                    for (long i = fx[0]; i <= fx[1]; ++i) {
+                        if (!chunks.containsKey(prefix + i + "/" + j)) {
+                            mx0 = Math.min(mx0, i);
+                            mx1 = Math.max(mx1, i);
+                            my0 = Math.min(my0, j);
+                            my1 = Math.max(my1, j);
+                        }
+                    }
+                }
+            }
+            Map<String, Summary[]> computed = new HashMap<>();
+            if (mx0 <= mx1) {
+                log.debug("Computing statistics of " + ((mx1 - mx0 + 1) * (my1 - my0 + 1)) + " chunks of array '" + A.getName() + "'");
+                Map<String, Summary[]> cells = summarize(A, s, t, ox + mx0 * cx, ox + (mx1 + 1) * cx - 1, oy + my0 * cy, oy + (my1 + 1) * cy - 1, cx, cy);
+                for (long j = my0; j <= my1; ++j) {
+                    for (long i = mx0; i <= mx1; ++i) {
+                        Summary[] c = cells.get((i - mx0) + "/" + (j - my0));
+                        computed.put(prefix + i + "/" + j, c != null ? c : empty(A, s)); // empty chunks are cached as well
+                    }
+                }
+                synchronized (chunks) {
+                    chunks.putAll(computed);
+                }
+            }
+            for (long j = fy[0]; j <= fy[1]; ++j) {
+                for (long i = fx[0]; i <= fx[1]; ++i) {
+                    String key = prefix + i + "/" + j;
+                    Summary[] c = computed.get(key);
+                    if (c == null) {
+                        synchronized (chunks) {
+                            c = chunks.get(key);
+                        }
+                    }
+                    if (c != null) {
+                        merge(total, c);
+                    } else {
+                        // Evicted in the meantime
+                        edges.add(new long[]{ox + i * cx, ox + (i + 1) * cx - 1, oy + j * cy, oy + (j + 1) * cy - 1});
+                    }
+                }
+            }
+            edges.addAll(edges(x0, x1, y0, y1, ox + fx[0] * cx, ox + (fx[1] + 1) * cx - 1, oy + fy[0] * cy, oy + (fy[1] + 1) * cy - 1));
+        } else {
+            edges.add(new long[]{x0, x1, y0, y1});
+        }
+
+        // Partially covered chunks are read directly
+        for (long[] e : edges) {
+            Summary[] c = summarize(A, s, t, e[0], e[1], e[2], e[3], e[1] - e[0] + 1, e[3] - e[2] + 1).get("0/0");
+            if (c != null) {
+                merge(total, c);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the range of full chunks within a range of cells
+     * @param lo first cell
+     * @param hi last cell
+     * @param origin first cell of the first chunk
+     * @param size chunk size
+     * @return indexes of the first and last completely covered chunk, the
+     * first is larger than the last if no chunk is covered completely
+     */
+    static long[] fullChunks(long lo, long hi, long origin, long size) {
+        return new long[]{Math.floorDiv(lo - origin + size - 1, size), Math.floorDiv(hi + 1 - origin, size) - 1};
+    }
+
+    /**
+     * Splits the part of a window outside of an inner rectangle into up to
+     * four rectangles: full width strips above and below, and strips left and
+     * right of the inner rectangle
+     * @return rectangles as {x0, x1, y0, y1}
+     */
+    static List<long[]> edges(long x0, long x1, long y0, long y1, long ix0, long ix1, long iy0, long iy1) {
+        List<long[]> out = new ArrayList<>();
+        if (y0 < iy0) {
+            out.add(new long[]{x0, x1, y0, iy0 - 1});
+        }
+        if (y1 > iy1) {
+            out.add(new long[]{x0, x1, iy1 + 1, y1});
+        }
+        if (x0 < ix0) {
+            out.add(new long[]{x0, ix0 - 1, iy0, iy1});
+        }
+        if (x1 > ix1) {
+            out.add(new long[]{ix1 + 1, x1, iy0, iy1});
+        }
+        return out;
+    }
+
+    private static void merge(Summary[] total, Summary[] s) {
+        for (int i = 0; i < total.length; ++i) {
+            total[i].merge(s[i]);
+        }
+    }
+
+    private static Summary[] empty(Array A, ArrayStats s) {
+        Summary[] out = new Summary[A.Attributes().size()];
+        for (int i = 0; i < out.length; ++i) {
+            out[i] = new Summary(Config.get().SCIDBWCS_STATS_BINS, s.lo[i], s.hi[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Gets the histogram ranges of the current array version, summaries of
+     * older versions are dropped
+     */
+    private ArrayStats stats(Array A) throws IOException {
+        String name = A.getName();
+        long now = System.currentTimeMillis();
+        ArrayStats s = arrays.get(name);
+        if (s != null && now - s.checked < Config.get().SCIDBWCS_STATS_VERSION_CHECK_SEC * 1000) {
+            return s;
+        }
+        long version = PyramidManager.currentVersion(name);
+        if (version < 0) {
+            throw new IOException("Cannot determine version of array '" + name + "'");
+        }
+        if (s != null && s.version == version) {
+            s.checked = now;
+            return s;
+        }
+        s = ranges(A, version, now);
+        arrays.put(name, s);
+        synchronized (chunks) {
+            Iterator<String> it = chunks.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.startsWith(name + "@") && !key.startsWith(name + "@" + version + "/")) {
+                    it.remove();
+                }
+            }
+        }
+        log.debug("Statistics of array '" + name + "' refer to version " + version);
+        return s;
+    }
+
+    /**
+     * Queries the range of all attributes in an array version
+     */
+    private static ArrayStats ranges(Array A, long version, long now) throws IOException {
+        final List<ArrayAttribute> attrs = A.Attributes();
+        final double[] lo = new double[attrs.size()];
+        final double[] hi = new double[attrs.size()];
+        for (final List<Integer> group : queryGroups(attrs)) {
+            SciDBQueryResult res = SciDBConnection.get().queryRead(rangeQuery(A.getName() + "@" + version, attrs, group));
+            if (res == null) {
+                throw new IOException("Computing ranges of array '" + A.getName() + "' failed");
+            }
+            res.iterate(new ISciDBCellProcessor() {
+                @Override
+                public void process(ResultSet res1) throws SQLException {
+                    for (int i : group) {
+                        lo[i] = res1.getDouble("_wcs_min_" + attrs.get(i).name);
+                        hi[i] = res1.getDouble("_wcs_max_" + attrs.get(i).name);
+                    }
+                }
+            });
+        }
+        return new ArrayStats(version, lo, hi, now);
+    }
+
+    /**
+     * Groups supported attributes such that NaN cells can be filtered out per
+     * query, each floating point attribute is queried on its own while all
+     * other attributes share a single query
+     * @param attrs attributes of an array
+     * @return groups of attribute indexes
+     */
+    static List<List<Integer>> queryGroups(List<ArrayAttribute> attrs) {
+        List<List<Integer>> groups = new ArrayList<>();
+        List<Integer> other = new ArrayList<>();
+        for (int i = 0; i < attrs.size(); ++i) {
+            ArrayAttribute a = attrs.get(i);
+            if (!isSupported(a)) {
+                continue;
+            }
+            if (isFloatingPoint(a)) {
+                groups.add(Collections.singletonList(i));
+            } else {
+                other.add(i);
+            }
+        }
+        if (!other.isEmpty()) {
+            groups.add(0, other);
+        }
+        return groups;
+    }
+
+    /**
+     * Excludes NaN cells of floating point attributes of a query group, as
+     * null cells are ignored by aggregates anyway
+     */
+    private static String withoutNaN(String q, List<ArrayAttribute> attrs, List<Integer> group) {
+        for (int i : group) {
+            if (isFloatingPoint(attrs.get(i))) {
+                q = "filter(" + q + ",not is_nan(" + attrs.get(i).name + "))";
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Builds the query of minimum and maximum of a group of attributes
+     * @param array array name including its version
+     * @param attrs attributes of the array
+     * @param group indexes of queried attributes
+     * @return AFL query
+     */
+    static String rangeQuery(String array, List<ArrayAttribute> attrs, List<Integer> group) {
+        StringBuilder conv = new StringBuilder();
+        StringBuilder aggr = new StringBuilder();
+        for (int i : group) {
+            ArrayAttribute a = attrs.get(i);
+            conv.append(",_wcs_d_").append(a.name).append(",double(").append(a.name).append(")");
+            aggr.append(aggr.length() > 0 ? "," : "").append("min(_wcs_d_").append(a.name).append(") as _wcs_min_").append(a.name)
+                    .append(",max(_wcs_d_").append(a.name).append(") as _wcs_max_").append(a.name);
+        }
+        return "aggregate(apply(" + withoutNaN(array, attrs, group) + conv + ")," + aggr + ")";
+    }
+
+    /**
+     * Builds the query of count, sum, sum of squares, minimum, and maximum of a
+     * group of attributes per block of cells
+     * @param base array expression of the summarized rectangle
+     * @param grid block size per dimension
+     * @param attrs attributes of the array
+     * @param group indexes of queried attributes
+     * @return AFL query
+     */
+    static String summaryQuery(String base, String grid, List<ArrayAttribute> attrs, List<Integer> group) {
+        StringBuilder conv = new StringBuilder();
+        StringBuilder aggr = new StringBuilder();
+        for (int i : group) {
+            ArrayAttribute a = attrs.get(i);
+            String d = "_wcs_d_" + a.name;
+            conv.append(",").append(d).append(",double(").append(a.name).append("),_wcs_sq_").append(a.name).append(",double(").append(a.name).append(")*double(").append(a.name).append(")");
+            aggr.append(",min(").append(d).append(") as _wcs_min_").append(a.name)
+                    .append(",max(").append(d).append(") as _wcs_max_").append(a.name)
+                    .append(",count(").append(d).append(") as _wcs_n_").append(a.name)
+                    .append(",sum(").append(d).append(") as _wcs_sum_").append(a.name)
+                    .append(",sum(_wcs_sq_").append(a.name).append(") as _wcs_ss_").append(a.name);
+        }
+        return "regrid(apply(" + withoutNaN(base, attrs, group) + conv + ")," + grid + aggr + ")";
+    }
+
+    /**
+     * Computes summaries of a rectangle of cells, aggregated over blocks of
+     * gx times gy cells
+     * @return summaries per block, keyed by column/row of the block relative
+     * to the rectangle
+     */
+    private static Map<String, Summary[]> summarize(final Array A, final ArrayStats s, long t, long x0, long x1, long y0, long y1, long gx, long gy) throws IOException {
+        final ArrayDimension xd = A.getXDim();
+        final ArrayDimension yd = A.getYDim();
+        final List<ArrayAttribute> attrs = A.Attributes();
+        final int bins = Config.get().SCIDBWCS_STATS_BINS;
+        final Map<String, Summary[]> out = new HashMap<>();
+
+        // subarray() rebases coordinates such that the rectangle starts at 0
+        StringBuilder lo = new StringBuilder();
+        StringBuilder hi = new StringBuilder();
+        StringBuilder grid = new StringBuilder();
+        for (ArrayDimension d : A.Dimensions()) {
+            String sep = lo.length() > 0 ? "," : "";
+            lo.append(sep).append(d == xd ? x0 : (d == yd ? y0 : t));
+            hi.append(sep).append(d == xd ? x1 : (d == yd ? y1 : t));
+            grid.append(sep).append(d == xd ? gx : (d == yd ? gy : 1));
+        }
+        String base = "subarray(" + A.getName() + "@" + s.version + "," + lo + "," + hi + ")";
+
+        // Blocks without any valid value of an attribute are missing in its result
+        for (final List<Integer> group : queryGroups(attrs)) {
+            SciDBQueryResult res = SciDBConnection.get().queryRead(summaryQuery(base, grid.toString(), attrs, group));
+            if (res == null) {
+                throw new IOException("Computing statistics of array '" + A.getName() + "' failed");
+            }
+            res.iterate(new ISciDBCellProcessor() {
+                @Override
+                public void process(ResultSet res1) throws SQLException {
+                    String key = res1.getLong(xd.name) + "/" + res1.getLong(yd.name);
+                    Summary[] c = out.get(key);
+                    if (c == null) {
+                        c = new Summary[attrs.size()];
+                        for (int i = 0; i < c.length; ++i) {
+                            c[i] = new Summary(bins, s.lo[i], s.hi[i]);
+                        }
+                        out.put(key, c);
+                    }
+                    for (int i : group) {
+                        ArrayAttribute a = attrs.get(i);
+                        c[i].count = res1.getLong("_wcs_n_" + a.name);
+                        if (c[i].count > 0) {
+                            c[i].min = res1.getDouble("_wcs_min_" + a.name);
+                            c[i].max = res1.getDouble("_wcs_max_" + a.name);
+                            c[i].sum = res1.getDouble("_wcs_sum_" + a.name);
+                            c[i].sumSquares = res1.getDouble("_wcs_ss_" + a.name);
+                        }
+                    }
+                }
+            });
+        }
+
+        // Histograms, bins are dimensions of the redimensioned result
+        for (int i = 0; i < attrs.size(); ++i) {
+            final ArrayAttribute a = attrs.get(i);
+            if (!isSupported(a) || out.isEmpty()) {
+                continue;
+            }
+            final int ai = i;
+            String v = "double(" + a.name + ")";
+            String bin = s.hi[i] > s.lo[i] ? "iif(" + v + ">=" + s.hi[i] + "," + (bins - 1) + ",int64(floor((" + v + "-" + s.lo[i] + ")*" + (bins / (s.hi[i] - s.lo[i])) + ")))" : "int64(0)";
+            String q = base;
+            if (a.nullable) {
+                q = "filter(" + q + ",not is_null(" + a.name + "))";
+            }
+            q = withoutNaN(q, attrs, Collections.singletonList(i));
+            q = "apply(" + q + ",_wcs_gx," + xd.name + "/" + gx + ",_wcs_gy," + yd.name + "/" + gy + ",_wcs_b," + bin + ")";
+            q = "redimension(" + q + ",<_wcs_n:uint64 null>[_wcs_gy=0:*," + HISTOGRAM_CHUNK + ",0,_wcs_gx=0:*," + HISTOGRAM_CHUNK + ",0,_wcs_b=0:" + (bins - 1) + "," + bins + ",0],count(" + a.name + ") as _wcs_n)";
+            SciDBQueryResult res = SciDBConnection.get().queryRead(q);
+            if (res == null) {
+                throw new IOException("Computing histogram of attribute '" + a.name + "' of array '" + A.getName() + "' failed");
+            }
+            res.iterate(new ISciDBCellProcessor() {
+                @Override
+                public void process(ResultSet res1) throws SQLException {
+                    Summary[] c = out.get(res1.getLong("_wcs_gx") + "/" + res1.getLong("_wcs_gy"));
+                    int b = (int) res1.getLong("_wcs_b");
+                    if (c != null && b >= 0 && b < c[ai].histogram.length) {
+                        c[ai].histogram[b] += res1.getLong("_wcs_n");
+                    }
+                }
+            });
+        }
+        return out;
+    }
+
+    private static final int HISTOGRAM_CHUNK = 64;
+
+    private static boolean isSupported(ArrayAttribute a) {
+        return DataType.fromSciDB(a.typeId) != null;
+    }
+
+    private static boolean isFloatingPoint(ArrayAttribute a) {
+        return a.typeId.equals("double") || a.typeId.equals("float");
+    }
+
+    static long origin(ArrayDimension d) {
+        return d.min != null ? d.min : d.getTrueMin();
+    }
+
+    static long chunkSize(ArrayDimension d) {
+        return (d.chunkSize != null && d.chunkSize > 0) ? d.chunkSize : 1;
+    }
+}
@@ -63,4 +63,27 @@ public class TemporalReference {
         if (t0.plus(dt.multipliedBy(i.intValue())).isAfter(t)) i = i -1L;
         return i;
     }
+
+    /**
+     * Gets the first index whose datetime is not before the given datetime
+     * @param t datetime
+     * @return index
+     */
+    public long indexAtOrAfter(DateTime t) {
+        long i = indexAtDatetime(t);
+        if (datetimeAtIndex(i).isBefore(t)) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Gets the number of time steps of a period, e.g. the resolution of a
+     * WCS time period
+     * @param p period
+     * @return number of steps, at least one
+     */
+    public long stepsOf(Period p) {
+        return Math.max(1, indexAtDatetime(t0.plus(p)));
+    }
 }
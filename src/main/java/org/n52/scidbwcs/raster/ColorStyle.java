@@ -0,0 +1,219 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Color ramp style of single band images. Styles are given as semicolon
+ * separated options, e.g. "ramp=viridis;stretch=sqrt;range=p2,p98;nodata=00000000":
+ * <ul>
+ * <li>ramp: a named ramp (gray, viridis, rdylgn, blues) or hex colors
+ * RRGGBB[AA] separated by dashes, evenly spaced from the minimum to the
+ * maximum value</li>
+ * <li>stretch: linear (default), sqrt, or log</li>
+ * <li>range: min,max values, or pLOW,pHIGH percentiles, data minimum and
+ * maximum otherwise</li>
+ * <li>nodata: RRGGBBAA color of nodata pixels, transparent by default</li>
+ * </ul>
+ * The ramp and stretch of a style are compiled into a lookup table of
+ * LUT_SIZE packed RGBA colors, indexed by values quantized linearly over the
+ * value range. Lookup tables are cached and shared by all styles with the same
+ * ramp and stretch.
+ */
+public class ColorStyle {
+
+    public static final int LUT_SIZE = 65536;
+    private static final int MAX_CACHED_LUTS = 64;
+    private static final ConcurrentHashMap<String, int[]> luts = new ConcurrentHashMap<>();
+
+    private static final Map<String, String> RAMPS = new HashMap<>();
+
+    static {
+        RAMPS.put("gray", "000000-ffffff");
+        RAMPS.put("viridis", "440154-3b528b-21918c-5ec962-fde725");
+        RAMPS.put("rdylgn", "d7191c-fdae61-ffffbf-a6d96a-1a9641");
+        RAMPS.put("blues", "f7fbff-6baed6-08306b");
+    }
+
+    public enum Stretch {
+        LINEAR, SQRT, LOG
+    }
+
+    public final int[] colors; // packed RGBA colors of the ramp
+    public final Stretch stretch;
+    public final double[] range; // min and max value, or null
+    public final double[] percentiles; // low and high percentile in [0,100], or null
+    public final int nodata; // packed RGBA
+
+    private final String lutKey;
+
+    private ColorStyle(int[] colors, Stretch stretch, double[] range, double[] percentiles, int nodata, String lutKey) {
+        this.colors = colors;
+        this.stretch = stretch;
+        this.range = range;
+        this.percentiles = percentiles;
+        this.nodata = nodata;
+        this.lutKey = lutKey;
+    }
+
+    /**
+     * Parses a style
+     * @param s semicolon separated options
+     * @return style
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    public static ColorStyle parse(String s) {
+        String ramp = RAMPS.get("gray");
+        Stretch stretch = Stretch.LINEAR;
+        double[] range = null;
+        double[] percentiles = null;
+        int nodata = 0;
+        for (String o : s.split(";")) {
+            if (o.trim().isEmpty()) {
+                continue;
+            }
+            int eq = o.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("option '" + o + "' must be given as key=value");
+            }
+            String key = o.substring(0, eq).trim().toLowerCase();
+            String value = o.substring(eq + 1).trim();
+            switch (key) {
+                case "ramp":
+                    ramp = RAMPS.containsKey(value.toLowerCase()) ? RAMPS.get(value.toLowerCase()) : value;
+                    break;
+                case "stretch":
+                    try {
+                        stretch = Stretch.valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("unknown stretch '" + value + "'");
+                    }
+                    break;
+                case "range": {
+                    String[] r = value.split(",");
+                    if (r.length != 2) {
+                        throw new IllegalArgumentException("range must be given as min,max or pLOW,pHIGH");
+                    }
+                    try {
+                        if (r[0].trim().toLowerCase().startsWith("p") && r[1].trim().toLowerCase().startsWith("p")) {
+                            percentiles = new double[]{Double.parseDouble(r[0].trim().substring(1)), Double.parseDouble(r[1].trim().substring(1))};
+                            if (!(percentiles[0] >= 0 && percentiles[0] < percentiles[1] && percentiles[1] <= 100)) {
+                                throw new IllegalArgumentException("invalid percentiles '" + value + "'");
+                            }
+                            range = null;
+                        } else {
+                            range = new double[]{Double.parseDouble(r[0]), Double.parseDouble(r[1])};
+                            percentiles = null;
+                        }
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("invalid range '" + value + "'");
+                    }
+                    break;
+                }
+                case "nodata":
+                    nodata = color(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option '" + key + "'");
+            }
+        }
+        String[] hex = ramp.split("-");
+        int[] colors = new int[hex.length];
+        for (int i = 0; i < hex.length; ++i) {
+            colors[i] = color(hex[i]);
+        }
+        return new ColorStyle(colors, stretch, range, percentiles, nodata, ramp.toLowerCase() + "/" + stretch);
+    }
+
+    /**
+     * Parses a hex color RRGGBB or RRGGBBAA to a packed RGBA integer
+     */
+    static int color(String hex) {
+        hex = hex.trim();
+        if (hex.startsWith("#")) {
+            hex = hex.substring(1);
+        }
+        if (hex.length() != 6 && hex.length() != 8) {
+            throw new IllegalArgumentException("invalid color '" + hex + "', RRGGBB or RRGGBBAA expected");
+        }
+        try {
+            long v = Long.parseLong(hex, 16);
+            return hex.length() == 6 ? (int) ((v << 8) | 0xFF) : (int) v;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid color '" + hex + "'");
+        }
+    }
+
+    /**
+     * Gets the compiled lookup table of the style
+     * @return LUT_SIZE packed RGBA colors for values from the minimum to the
+     * maximum of the range
+     */
+    public int[] lut() {
+        int[] lut = luts.get(lutKey);
+        if (lut == null) {
+            lut = compile(colors, stretch);
+            if (luts.size() >= MAX_CACHED_LUTS) {
+                luts.clear(); // e.g. many custom ramps
+            }
+            luts.putIfAbsent(lutKey, lut);
+        }
+        return lut;
+    }
+
+    private static int[] compile(int[] colors, Stretch stretch) {
+        int[] lut = new int[LUT_SIZE];
+        int segments = colors.length - 1;
+        for (int i = 0; i < LUT_SIZE; ++i) {
+            double f = (double) i / (LUT_SIZE - 1);
+            switch (stretch) {
+                case SQRT:
+                    f = Math.sqrt(f);
+                    break;
+                case LOG:
+                    f = Math.log1p(9 * f) / Math.log(10);
+                    break;
+                default:
+                    break;
+            }
+            if (segments == 0) {
+                lut[i] = colors[0];
+                continue;
+            }
+            double p = f * segments;
+            int s = Math.min((int) p, segments - 1);
+            lut[i] = mix(colors[s], colors[s + 1], p - s);
+        }
+        return lut;
+    }
+
+    private static int mix(int a, int b, double t) {
+        int out = 0;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int ca = (a >>> shift) & 0xFF;
+            int cb = (b >>> shift) & 0xFF;
+            out |= ((int) Math.round(ca + (cb - ca) * t) & 0xFF) << shift;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compression settings of raster outputs, consisting of a codec, a TIFF
+ * predictor, and a compression level. Blocks of pixels (strips or tiles) can
+ * be encoded independently, which allows compressing them in parallel. ZSTD is
+ * not available in the JVM and only supported by GDAL.
+ */
+public class Compression {
+
+    public enum Codec {
+        NONE(1), LZW(5), DEFLATE(8), ZSTD(50000);
+
+        public final int tiffCode;
+
+        private Codec(int tiffCode) {
+            this.tiffCode = tiffCode;
+        }
+    }
+
+    public enum Predictor {
+        NONE(1), HORIZONTAL(2), FLOATINGPOINT(3);
+
+        public final int tiffCode;
+
+        private Predictor(int tiffCode) {
+            this.tiffCode = tiffCode;
+        }
+    }
+
+    public final Codec codec;
+    public final Predictor predictor; // null selects a predictor by data type
+    public final int level;
+
+    public Compression(Codec codec, Predictor predictor, int level) {
+        this.codec = codec;
+        this.predictor = predictor;
+        this.level = level;
+    }
+
+    /**
+     * Parses compression settings
+     * @param codec codec name, e.g. "DEFLATE"
+     * @param predictor predictor name or TIFF code, null selects by data type
+     * @param level compression level, null for the codec's default
+     * @param defaultLevel level used if not given
+     * @return compression settings
+     * @throws IllegalArgumentException if a value is not supported
+     */
+    public static Compression parse(String codec, String predictor, String level, int defaultLevel) {
+        Codec c = Codec.valueOf(codec.trim().toUpperCase());
+        Predictor p = null;
+        if (predictor != null && !predictor.isEmpty()) {
+            p = null;
+            for (Predictor x : Predictor.values()) {
+                if (x.name().equalsIgnoreCase(predictor.trim()) || Integer.toString(x.tiffCode).equals(predictor.trim())) {
+                    p = x;
+                }
+            }
+            if (p == null) {
+                throw new IllegalArgumentException("Unknown predictor '" + predictor + "'");
+            }
+        }
+        int l = (level != null && !level.isEmpty()) ? Integer.parseInt(level.trim()) : defaultLevel;
+        if (l < 1 || l > 22) {
+            throw new IllegalArgumentException("Invalid compression level " + l);
+        }
+        return new Compression(c, p, l);
+    }
+
+    /**
+     * Gets the predictor applied to a data type
+     * @param t data type
+     * @return predictor
+     */
+    public Predictor predictorFor(DataType t) {
+        if (codec == Codec.NONE) {
+            return Predictor.NONE;
+        }
+        if (predictor != null) {
+            return (predictor == Predictor.FLOATINGPOINT && !t.isFloatingPoint()) ? Predictor.HORIZONTAL : predictor;
+        }
+        return t.isFloatingPoint() ? Predictor.FLOATINGPOINT : Predictor.HORIZONTAL;
+    }
+
+    /**
+     * Checks whether blocks can be encoded in the JVM
+     * @return false if the codec is only supported by GDAL
+     */
+    public boolean isJavaSupported() {
+        return codec != Codec.ZSTD;
+    }
+
+    /**
+     * Adds GDAL GeoTIFF creation options
+     * @param cmdlist gdal_translate arguments
+     * @param threads number of compression threads
+     */
+    public void addGDALOptions(List<String> cmdlist, int threads) {
+        addGDALOptions(cmdlist, threads, false);
+    }
+
+    /**
+     * Adds GDAL creation options of the GeoTIFF or COG driver, which differ in
+     * the names and values of predictor and level options
+     * @param cmdlist gdal_translate arguments
+     * @param threads number of compression threads
+     * @param cog true for the COG driver
+     */
+    public void addGDALOptions(List<String> cmdlist, int threads, boolean cog) {
+        cmdlist.add("-co");
+        cmdlist.add("COMPRESS=" + codec.name());
+        if (codec == Codec.NONE) {
+            return;
+        }
+        if (predictor != null) {
+            cmdlist.add("-co");
+            if (!cog) {
+                cmdlist.add("PREDICTOR=" + predictor.tiffCode);
+            } else if (predictor == Predictor.NONE) {
+                cmdlist.add("PREDICTOR=NO");
+            } else {
+                cmdlist.add("PREDICTOR=" + (predictor == Predictor.HORIZONTAL ? "STANDARD" : "FLOATING_POINT"));
+            }
+        }
+        if (codec == Codec.DEFLATE) {
+            cmdlist.add("-co");
+            cmdlist.add((cog ? "LEVEL=" : "ZLEVEL=") + Math.min(level, 9));
+        } else if (codec == Codec.ZSTD) {
+            cmdlist.add("-co");
+            cmdlist.add((cog ? "LEVEL=" : "ZSTD_LEVEL=") + level);
+        }
+        cmdlist.add("-co");
+        cmdlist.add("NUM_THREADS=" + threads);
+    }
+
+    /**
+     * Encodes a block of little endian samples of a single band
+     * @param data samples, rows are contiguous
+     * @param width samples per row
+     * @param rows number of rows
+     * @param t data type of samples
+     * @return encoded bytes
+     */
+    public byte[] encode(ByteBuffer data, int width, int rows, DataType t) {
+        byte[] b = new byte[width * rows * t.size];
+        ByteBuffer d = data.duplicate();
+        d.get(b);
+        switch (predictorFor(t)) {
+            case HORIZONTAL:
+                horizontalDifferencing(b, width, rows, t);
+                break;
+            case FLOATINGPOINT:
+                b = floatingPointDifferencing(b, width, rows, t.size);
+                break;
+        }
+        switch (codec) {
+            case DEFLATE:
+                return deflate(b, Math.min(level, 9));
+            case LZW:
+                return LZWEncoder.encode(b);
+            case NONE:
+                return b;
+        }
+        throw new UnsupportedOperationException("Codec " + codec + " is not supported in the JVM");
+    }
+
+    /**
+     * TIFF predictor 2, differences of integer samples of the same row
+     */
+    static void horizontalDifferencing(byte[] b, int width, int rows, DataType t) {
+        ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+        int size = t.size;
+        for (int r = 0; r < rows; ++r) {
+            int row = r * width * size;
+            for (int x = width - 1; x > 0; --x) {
+                int i = row + x * size;
+                switch (size) {
+                    case 1:
+                        b[i] = (byte) (b[i] - b[i - 1]);
+                        break;
+                    case 2:
+                        bb.putShort(i, (short) (bb.getShort(i) - bb.getShort(i - 2)));
+                        break;
+                    case 4:
+                        bb.putInt(i, bb.getInt(i) - bb.getInt(i - 4));
+                        break;
+                    default:
+                        bb.putLong(i, bb.getLong(i) - bb.getLong(i - 8));
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * TIFF predictor 3, bytes of each row are reordered by significance
+     * (most significant first) and differenced bytewise
+     */
+    static byte[] floatingPointDifferencing(byte[] b, int width, int rows, int size) {
+        byte[] out = new byte[b.length];
+        int rowBytes = width * size;
+        for (int r = 0; r < rows; ++r) {
+            int row = r * rowBytes;
+            for (int x = 0; x < width; ++x) {
+                for (int k = 0; k < size; ++k) {
+                    // little endian input, byte size-1-k has significance k
+                    out[row + k * width + x] = b[row + x * size + size - 1 - k];
+                }
+            }
+            for (int i = rowBytes - 1; i > 0; --i) {
+                out[row + i] = (byte) (out[row + i] - out[row + i - 1]);
+            }
+        }
+        return out;
+    }
+
+    private static byte[] deflate(byte[] b, int level) {
+        Deflater d = new Deflater(level);
+        try {
+            d.setInput(b);
+            d.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, b.length / 2));
+            byte[] buf = new byte[64 * 1024];
+            while (!d.finished()) {
+                int n = d.deflate(buf);
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+/**
+ * Pixel data types of raster buffers including their mapping from SciDB
+ * attribute types. SciDB types without an exact counterpart are widened.
+ */
+public enum DataType {
+
+    BYTE(1, "Byte"),
+    UINT16(2, "UInt16"),
+    INT16(2, "Int16"),
+    UINT32(4, "UInt32"),
+    INT32(4, "Int32"),
+    FLOAT32(4, "Float32"),
+    FLOAT64(8, "Float64");
+
+    public final int size; // bytes per pixel
+    public final String gdalName;
+
+    private DataType(int size, String gdalName) {
+        this.size = size;
+        this.gdalName = gdalName;
+    }
+
+    /**
+     * Gets the size of a SciDB attribute type in binary query results
+     * @param typeId SciDB type id
+     * @return number of bytes or -1 if the type is not supported
+     */
+    public static int sciDBTypeSize(String typeId) {
+        switch (typeId) {
+            case "bool":
+            case "int8":
+            case "uint8":
+                return 1;
+            case "int16":
+            case "uint16":
+                return 2;
+            case "int32":
+            case "uint32":
+            case "float":
+                return 4;
+            case "int64":
+            case "uint64":
+            case "double":
+                return 8;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the raster data type used to store values of a SciDB attribute type
+     * @param typeId SciDB type id
+     * @return data type or null if the type is not supported
+     */
+    public static DataType fromSciDB(String typeId) {
+        switch (typeId) {
+            case "bool":
+            case "uint8":
+                return BYTE;
+            case "int8":
+            case "int16":
+                return INT16;
+            case "uint16":
+                return UINT16;
+            case "int32":
+                return INT32;
+            case "uint32":
+                return UINT32;
+            case "float":
+                return FLOAT32;
+            case "int64":
+            case "uint64":
+            case "double":
+                return FLOAT64;
+        }
+        return null;
+    }
+
+    /**
+     * Gets a nodata value for this type, i.e. NaN for floating point types and
+     * the extreme value furthest from zero for integer types
+     * @return default nodata value
+     */
+    public double defaultNoData() {
+        switch (this) {
+            case BYTE:
+                return 255;
+            case UINT16:
+                return 65535;
+            case INT16:
+                return Short.MIN_VALUE;
+            case UINT32:
+                return 4294967295.0;
+            case INT32:
+                return Integer.MIN_VALUE;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Limits a value to the range of this type
+     * @param v value
+     * @return v if representable, the nearest bound otherwise
+     */
+    public double clamp(double v) {
+        switch (this) {
+            case BYTE:
+                return v < 0 ? 0 : (v > 255 ? 255 : v);
+            case UINT16:
+                return v < 0 ? 0 : (v > 65535 ? 65535 : v);
+            case INT16:
+                return v < Short.MIN_VALUE ? Short.MIN_VALUE : (v > Short.MAX_VALUE ? Short.MAX_VALUE : v);
+            case UINT32:
+                return v < 0 ? 0 : (v > 4294967295.0 ? 4294967295.0 : v);
+            case INT32:
+                return v < Integer.MIN_VALUE ? Integer.MIN_VALUE : (v > Integer.MAX_VALUE ? Integer.MAX_VALUE : v);
+        }
+        return v;
+    }
+
+    public boolean isFloatingPoint() {
+        return this == FLOAT32 || this == FLOAT64;
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Writes raster buffers as GeoTIFF files without GDAL. Strips of each band are
+ * compressed independently and in parallel on a fork-join pool, and written
+ * in order as soon as they are available, such that only a bounded number of
+ * compressed strips is held in memory. Bands are stored separately (planar
+ * configuration 2), georeferencing is written as GeoTIFF tags with an EPSG
+ * code, nodata values and band descriptions as GDAL tags. Cloud optimized
+ * GeoTIFFs (COG) are tiled, contain internal overviews and store all
+ * directories before the image data, such that clients can read arbitrary
+ * windows and resolutions with few HTTP range requests.
+ */
+public class GeoTIFFWriter {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(GeoTIFFWriter.class);
+
+    private static final int STRIP_BYTES = 256 * 1024; // uncompressed size of strips
+    private static final int MAX_OVERVIEWS = 16;
+
+    // Structural metadata as written by GDAL's COG driver, placed directly after the header
+    private static final String COG_METADATA = "LAYOUT=IFDS_BEFORE_DATA\nBLOCK_ORDER=ROW_MAJOR\nKNOWN_INCOMPATIBLE_EDITION=NO\n";
+
+    // Field types
+    static final short ASCII = 2;
+    static final short SHORT = 3;
+    static final short LONG = 4;
+    static final short DOUBLE = 12;
+
+    private static ForkJoinPool pool = null;
+
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int threads = threads();
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * Gets the number of compression threads
+     * @return configured number of threads or the number of processors
+     */
+    public static int threads() {
+        return Config.get().SCIDBWCS_COMPRESSION_THREADS > 0 ? Config.get().SCIDBWCS_COMPRESSION_THREADS : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * An image file directory, entries are kept sorted by tag
+     */
+    static class IFD {
+
+        private final TreeMap<Integer, Object[]> entries = new TreeMap<>(); // tag -> {type, count, values}
+
+        void add(int tag, short type, long... values) {
+            entries.put(tag, new Object[]{type, values.length, values});
+        }
+
+        void add(int tag, double... values) {
+            entries.put(tag, new Object[]{DOUBLE, values.length, values});
+        }
+
+        void add(int tag, String value) {
+            byte[] b = (value + "\0").getBytes(StandardCharsets.US_ASCII);
+            entries.put(tag, new Object[]{ASCII, b.length, b});
+        }
+
+        /**
+         * Size of the directory including values not fitting into entries
+         */
+        long size() {
+            long s = 2 + 12L * entries.size() + 4;
+            for (Object[] e : entries.values()) {
+                long n = valueBytes(e);
+                if (n > 4) {
+                    s += n + (n & 1);
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Serializes the directory for a given file position
+         * @param offset file position of the directory
+         * @param nextIFD position of the next directory or 0
+         */
+        ByteBuffer toBytes(long offset, long nextIFD) {
+            ByteBuffer b = ByteBuffer.allocate((int) size()).order(ByteOrder.LITTLE_ENDIAN);
+            long extra = offset + 2 + 12L * entries.size() + 4;
+            int extraPos = 2 + 12 * entries.size() + 4;
+            b.putShort((short) entries.size());
+            for (java.util.Map.Entry<Integer, Object[]> en : entries.entrySet()) {
+                Object[] e = en.getValue();
+                short type = (Short) e[0];
+                int count = (Integer) e[1];
+                b.putShort((short) (int) en.getKey());
+                b.putShort(type);
+                b.putInt(count);
+                long n = valueBytes(e);
+                ByteBuffer v;
+                if (n > 4) {
+                    b.putInt((int) extra);
+                    v = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                    v.position(extraPos);
+                    extra += n + (n & 1);
+                    extraPos += n + (n & 1);
+                } else {
+                    v = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                    v.position(b.position());
+                    b.putInt(0);
+                }
+                putValues(v, type, e[2]);
+            }
+            b.putInt((int) nextIFD);
+            b.clear();
+            return b;
+        }
+
+        private static long valueBytes(Object[] e) {
+            short type = (Short) e[0];
+            int count = (Integer) e[1];
+            switch (type) {
+                case ASCII:
+                    return count;
+                case SHORT:
+                    return 2L * count;
+                case LONG:
+                    return 4L * count;
+                default:
+                    return 8L * count;
+            }
+        }
+
+        private static void putValues(ByteBuffer v, short type, Object values) {
+            switch (type) {
+                case ASCII:
+                    v.put((byte[]) values);
+                    break;
+                case SHORT:
+                    for (long x : (long[]) values) {
+                        v.putShort((short) x);
+                    }
+                    break;
+                case LONG:
+                    for (long x : (long[]) values) {
+                        v.putInt((int) x);
+                    }
+                    break;
+                default:
+                    for (double x : (double[]) values) {
+                        v.putDouble(x);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Checks whether a raster can be written, i.e. all bands have the same
+     * data type, it is georeferenced, and fits into a classic TIFF file
+     * @param buf raster
+     * @return true if supported
+     */
+    public static boolean supports(RasterBuffer buf) {
+        return supports(buf, false);
+    }
+
+    /**
+     * Checks whether a raster can be written, optionally with overviews
+     * @param buf raster
+     * @param overviews true if overviews are added, which take up to one
+     * third of the raster's size
+     * @return true if supported
+     */
+    public static boolean supports(RasterBuffer buf, boolean overviews) {
+        if (buf.getGeoTransform() == null || buf.getBandCount() == 0) {
+            return false;
+        }
+        long bytes = 0;
+        for (int b = 0; b < buf.getBandCount(); ++b) {
+            if (buf.getType(b) != buf.getType(0)) {
+                return false;
+            }
+            bytes += buf.getBand(b).capacity();
+        }
+        if (overviews) {
+            bytes += bytes / 3;
+        }
+        return bytes < 0xF0000000L; // leave room for headers, compressed data may be larger
+    }
+
+    /**
+     * Writes a raster to a GeoTIFF file
+     * @param buf raster
+     * @param epsg EPSG code of the reference system
+     * @param geographic true for geographic, false for projected reference
+     * systems
+     * @param descriptions description per band, may be null
+     * @param c compression settings
+     * @param file output file
+     * @throws IOException
+     */
+    public static void write(RasterBuffer buf, int epsg, boolean geographic, String[] descriptions, Compression c, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        final DataType t = buf.getType(0);
+        int nbands = buf.getBandCount();
+        int width = buf.getWidth();
+        int height = buf.getHeight();
+        int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(1, width * t.size)));
+        int stripsPerBand = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        long[] offsets = new long[stripsPerBand * nbands];
+        long[] counts = new long[stripsPerBand * nbands];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            raf.setLength(0);
+            long pos = 8; // IFD offset is written at the end
+            List<Callable<byte[]>> blocks = new ArrayList<>();
+            for (int b = 0; b < nbands; ++b) {
+                for (int s = 0; s < stripsPerBand; ++s) {
+                    int rows = Math.min(rowsPerStrip, height - s * rowsPerStrip);
+                    blocks.add(blockTask(buf, b, 0, s * rowsPerStrip, width, rows, width, c));
+                }
+            }
+            pos = writeBlocks(ch, pos, blocks, offsets, counts);
+
+            IFD ifd = new IFD();
+            addImageTags(ifd, width, height, nbands, t, c);
+            ifd.add(273, LONG, offsets);
+            ifd.add(278, LONG, rowsPerStrip);
+            ifd.add(279, LONG, counts);
+            addGeoTags(ifd, buf, epsg, geographic, descriptions);
+
+            long ifdPos = pos + (pos & 1);
+            write(ch, ifd.toBytes(ifdPos, 0), ifdPos);
+            write(ch, header(ifdPos), 0);
+        }
+        log.debug("Wrote " + c.codec + " compressed GeoTIFF of " + width + "x" + height + "x" + nbands + " pixels in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes a raster to a cloud optimized GeoTIFF file. Overviews are
+     * computed by repeated downsampling by a factor of two until a level fits
+     * into a single tile. The file starts with the header, followed by the
+     * directories of all levels (full resolution first) and the tiles of all
+     * levels (smallest overview first), tiles are written in row major order.
+     * @param buf raster
+     * @param epsg EPSG code of the reference system
+     * @param geographic true for geographic, false for projected reference
+     * systems
+     * @param descriptions description per band, may be null
+     * @param c compression settings
+     * @param tileWidth tile width, must be a multiple of 16
+     * @param tileHeight tile height, must be a multiple of 16
+     * @param overviews resampling method of overviews
+     * @param file output file
+     * @throws IOException
+     */
+    public static void writeCOG(RasterBuffer buf, int epsg, boolean geographic, String[] descriptions, Compression c, int tileWidth, int tileHeight, Resampler.Method overviews, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        DataType t = buf.getType(0);
+        int nbands = buf.getBandCount();
+
+        List<RasterBuffer> levels = new ArrayList<>();
+        levels.add(buf);
+        RasterBuffer last = buf;
+        while ((last.getWidth() > tileWidth || last.getHeight() > tileHeight) && levels.size() <= MAX_OVERVIEWS) {
+            int w = (last.getWidth() + 1) / 2;
+            int h = (last.getHeight() + 1) / 2;
+            last = Resampler.resample(last, 0, 0, 2, 2, w, h, overviews);
+            levels.add(last);
+        }
+
+        // Directories only depend on the number of tiles, offsets are filled in after writing the tiles
+        IFD[] ifds = new IFD[levels.size()];
+        long[][] offsets = new long[levels.size()][];
+        long[][] counts = new long[levels.size()][];
+        byte[] md = ("GDAL_STRUCTURAL_METADATA_SIZE=" + String.format("%06d", COG_METADATA.length()) + " bytes\n" + COG_METADATA).getBytes(StandardCharsets.US_ASCII);
+        long pos = 8 + md.length;
+        long[] ifdPos = new long[levels.size()];
+        for (int l = 0; l < levels.size(); ++l) {
+            RasterBuffer level = levels.get(l);
+            int tiles = tilesAcross(level.getWidth(), tileWidth) * tilesAcross(level.getHeight(), tileHeight) * nbands;
+            offsets[l] = new long[tiles];
+            counts[l] = new long[tiles];
+            ifds[l] = new IFD();
+            if (l > 0) {
+                ifds[l].add(254, LONG, 1); // reduced resolution version
+            }
+            addImageTags(ifds[l], level.getWidth(), level.getHeight(), nbands, t, c);
+            ifds[l].add(322, LONG, tileWidth);
+            ifds[l].add(323, LONG, tileHeight);
+            ifds[l].add(324, LONG, offsets[l]);
+            ifds[l].add(325, LONG, counts[l]);
+            if (l == 0) {
+                addGeoTags(ifds[l], buf, epsg, geographic, descriptions);
+            } else {
+                ifds[l].add(42113, formatNoData(buf.getNoData(0)));
+            }
+            pos += pos & 1;
+            ifdPos[l] = pos;
+            pos += ifds[l].size();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            raf.setLength(0);
+            for (int l = levels.size() - 1; l >= 0; --l) {
+                RasterBuffer level = levels.get(l);
+                int nx = tilesAcross(level.getWidth(), tileWidth);
+                int ny = tilesAcross(level.getHeight(), tileHeight);
+                List<Callable<byte[]>> blocks = new ArrayList<>();
+                for (int b = 0; b < nbands; ++b) {
+                    for (int ty = 0; ty < ny; ++ty) {
+                        for (int tx = 0; tx < nx; ++tx) {
+                            blocks.add(blockTask(level, b, tx * tileWidth, ty * tileHeight, tileWidth, tileHeight, tileWidth, c));
+                        }
+                    }
+                }
+                pos = writeBlocks(ch, pos, blocks, offsets[l], counts[l]);
+            }
+            for (int l = 0; l < levels.size(); ++l) {
+                ifds[l].add(324, LONG, offsets[l]);
+                ifds[l].add(325, LONG, counts[l]);
+                write(ch, ifds[l].toBytes(ifdPos[l], l + 1 < levels.size() ? ifdPos[l + 1] : 0), ifdPos[l]);
+            }
+            write(ch, ByteBuffer.wrap(md), 8);
+            write(ch, header(ifdPos[0]), 0);
+        }
+        log.debug("Wrote " + c.codec + " compressed COG of " + buf.getWidth() + "x" + buf.getHeight() + "x" + nbands + " pixels with " + (levels.size() - 1) + " overviews in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static int tilesAcross(int size, int tile) {
+        return (size + tile - 1) / tile;
+    }
+
+    /**
+     * Creates a task encoding a rectangular block of a band, parts outside of
+     * the raster are padded with nodata
+     */
+    static Callable<byte[]> blockTask(final RasterBuffer buf, final int band, final int x0, final int y0, final int w, final int h, final int blockWidth, final Compression c) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                DataType t = buf.getType(band);
+                ByteBuffer src = buf.getBand(band);
+                if (x0 == 0 && w == buf.getWidth() && blockWidth == w) {
+                    ByteBuffer d = src.duplicate();
+                    d.position(y0 * w * t.size);
+                    d.limit((y0 + h) * w * t.size);
+                    return c.encode(d.slice(), w, h, t);
+                }
+                // Copy the block row by row
+                ByteBuffer blk = ByteBuffer.allocate(blockWidth * h * t.size).order(ByteOrder.LITTLE_ENDIAN);
+                for (int y = 0; y < h; ++y) {
+                    for (int x = 0; x < blockWidth; ++x) {
+                        int sx = x0 + x;
+                        int sy = y0 + y;
+                        double v = (sx < buf.getWidth() && sy < buf.getHeight()) ? buf.get(band, sx, sy) : buf.getNoData(band);
+                        putSample(blk, t, v);
+                    }
+                }
+                blk.flip();
+                return c.encode(blk, blockWidth, h, t);
+            }
+        };
+    }
+
+    private static void putSample(ByteBuffer b, DataType t, double v) {
+        switch (t) {
+            case BYTE:
+                b.put((byte) (long) v);
+                break;
+            case UINT16:
+            case INT16:
+                b.putShort((short) (long) v);
+                break;
+            case UINT32:
+            case INT32:
+                b.putInt((int) (long) v);
+                break;
+            case FLOAT32:
+                b.putFloat((float) v);
+                break;
+            default:
+                b.putDouble(v);
+                break;
+        }
+    }
+
+    /**
+     * Encodes blocks in parallel and writes them in order starting at a file
+     * position. At most twice the number of threads blocks are in flight.
+     * @return file position after the last block
+     */
+    static long writeBlocks(FileChannel ch, long pos, List<Callable<byte[]>> blocks, long[] offsets, long[] counts) throws IOException {
+        int window = 2 * pool().getParallelism();
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int next = 0;
+        int done = 0;
+        try {
+            while (done < blocks.size()) {
+                while (next < blocks.size() && pending.size() < window) {
+                    pending.addLast(pool().submit(blocks.get(next++)));
+                }
+                byte[] data = pending.removeFirst().get();
+                offsets[done] = pos;
+                counts[done] = data.length;
+                write(ch, ByteBuffer.wrap(data), pos);
+                pos += data.length;
+                ++done;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing raster");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+        }
+        return pos;
+    }
+
+    static void addImageTags(IFD ifd, int width, int height, int nbands, DataType t, Compression c) {
+        long[] bits = new long[nbands];
+        long[] format = new long[nbands];
+        for (int b = 0; b < nbands; ++b) {
+            bits[b] = 8 * t.size;
+            format[b] = t.isFloatingPoint() ? 3 : (t == DataType.INT16 || t == DataType.INT32) ? 2 : 1;
+        }
+        ifd.add(256, LONG, width);
+        ifd.add(257, LONG, height);
+        ifd.add(258, SHORT, bits);
+        ifd.add(259, SHORT, c.codec.tiffCode);
+        ifd.add(262, SHORT, 1); // min is black
+        ifd.add(277, SHORT, nbands);
+        ifd.add(284, SHORT, nbands > 1 ? 2 : 1);
+        if (c.predictorFor(t) != Compression.Predictor.NONE) {
+            ifd.add(317, SHORT, c.predictorFor(t).tiffCode);
+        }
+        if (nbands > 1) {
+            ifd.add(338, SHORT, new long[nbands - 1]); // unspecified extra samples
+        }
+        ifd.add(339, SHORT, format);
+    }
+
+    static void addGeoTags(IFD ifd, RasterBuffer buf, int epsg, boolean geographic, String[] descriptions) {
+        double[] gt = buf.getGeoTransform();
+        if (gt[2] == 0 && gt[4] == 0) {
+            ifd.add(33550, gt[1], -gt[5], 0);
+            ifd.add(33922, 0, 0, 0, gt[0], gt[3], 0);
+        } else {
+            ifd.add(34264, gt[1], gt[2], 0, gt[0], gt[4], gt[5], 0, gt[3], 0, 0, 0, 0, 0, 0, 0, 1);
+        }
+        // GTModelType, GTRasterType (pixel is area), and the EPSG code
+        ifd.add(34735, SHORT, 1, 1, 0, 3,
+                1024, 0, 1, geographic ? 2 : 1,
+                1025, 0, 1, 1,
+                geographic ? 2048 : 3072, 0, 1, epsg);
+
+        ifd.add(42113, formatNoData(buf.getNoData(0)));
+        if (descriptions != null) {
+            StringBuilder md = new StringBuilder("<GDALMetadata>\n");
+            for (int b = 0; b < descriptions.length; ++b) {
+                if (descriptions[b] != null) {
+                    md.append("  <Item name=\"DESCRIPTION\" sample=\"").append(b).append("\" role=\"description\">").append(escape(descriptions[b])).append("</Item>\n");
+                }
+            }
+            ifd.add(42112, md.append("</GDALMetadata>").toString());
+        }
+    }
+
+    private static String formatNoData(double nodata) {
+        return Double.isNaN(nodata) ? "nan" : (nodata == Math.rint(nodata) ? Long.toString((long) nodata) : Double.toString(nodata));
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    static ByteBuffer header(long firstIFD) {
+        ByteBuffer h = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        h.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) firstIFD);
+        h.flip();
+        return h;
+    }
+
+    static void write(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+    }
+}
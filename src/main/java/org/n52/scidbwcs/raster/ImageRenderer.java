@@ -0,0 +1,322 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Renders raster buffers as 8 bit gray or RGB images, optionally with an
+ * alpha channel for nodata pixels. Values are scaled linearly from a value
+ * range per band to [0,255]. Images are backed by pixel interleaved byte
+ * arrays, which can be encoded as PNG by PNGEncoder or as JPEG with ImageIO.
+ * Images of the same size and number of channels are pooled and reused, the
+ * total size of pooled images is bounded and least recently used sizes are
+ * evicted first.
+ */
+public class ImageRenderer {
+
+    private static final int MAX_POOLED_PER_KEY = 4;
+    // Access ordered, the eldest entry is the least recently used image size
+    private static final LinkedHashMap<String, ArrayDeque<BufferedImage>> pool = new LinkedHashMap<>(16, 0.75f, true);
+    private static long pooledBytes = 0;
+
+    /**
+     * Gets an image with 8 bit interleaved samples from the pool or creates a
+     * new one
+     * @param width image width
+     * @param height image height
+     * @param channels 1 (gray), 2 (gray, alpha), 3 (RGB), or 4 (RGBA)
+     * @return image, should be returned with release()
+     */
+    public static BufferedImage acquire(int width, int height, int channels) {
+        synchronized (pool) {
+            String k = key(width, height, channels);
+            ArrayDeque<BufferedImage> q = pool.get(k);
+            if (q != null) {
+                BufferedImage img = q.pollFirst();
+                pooledBytes -= samples(img).length;
+                if (q.isEmpty()) {
+                    pool.remove(k);
+                }
+                return img;
+            }
+        }
+        boolean alpha = channels == 2 || channels == 4;
+        ColorSpace cs = ColorSpace.getInstance(channels < 3 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        ComponentColorModel cm = new ComponentColorModel(cs, alpha, false, alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        int[] offsets = new int[channels];
+        for (int c = 0; c < channels; ++c) {
+            offsets[c] = c;
+        }
+        WritableRaster r = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height, width * channels, channels, offsets, null);
+        return new BufferedImage(cm, r, false, null);
+    }
+
+    /**
+     * Returns an image to the pool
+     * @param img image as returned by acquire()
+     */
+    public static void release(BufferedImage img) {
+        release(img, Config.get().SCIDBWCS_IMAGE_POOL_BYTES);
+    }
+
+    /**
+     * Returns an image to the pool and evicts least recently used images until
+     * the pool fits into the given size
+     * @param img image as returned by acquire()
+     * @param maxBytes maximum total size of pooled images
+     */
+    static void release(BufferedImage img, long maxBytes) {
+        long size = samples(img).length;
+        if (size > maxBytes) {
+            return;
+        }
+        String k = key(img.getWidth(), img.getHeight(), img.getRaster().getNumBands());
+        synchronized (pool) {
+            ArrayDeque<BufferedImage> q = pool.get(k);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                pool.put(k, q);
+            }
+            if (q.size() >= MAX_POOLED_PER_KEY) {
+                return;
+            }
+            q.addLast(img);
+            pooledBytes += size;
+            Iterator<Map.Entry<String, ArrayDeque<BufferedImage>>> it = pool.entrySet().iterator();
+            while (pooledBytes > maxBytes && it.hasNext()) {
+                ArrayDeque<BufferedImage> eldest = it.next().getValue();
+                while (pooledBytes > maxBytes && !eldest.isEmpty()) {
+                    pooledBytes -= samples(eldest.pollFirst()).length;
+                }
+                if (eldest.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the total size of pooled images
+     * @return size in bytes
+     */
+    static long pooledBytes() {
+        synchronized (pool) {
+            return pooledBytes;
+        }
+    }
+
+    private static String key(int width, int height, int channels) {
+        return width + "x" + height + "x" + channels;
+    }
+
+    /**
+     * Gets the interleaved samples of an image
+     * @param img image as returned by acquire()
+     * @return sample array
+     */
+    public static byte[] samples(BufferedImage img) {
+        return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Determines value ranges of bands. Configured ranges are used if
+     * available, Byte bands are rendered as they are, and otherwise the
+     * minimum and maximum of valid values is used.
+     * @param buf raster
+     * @param bands rendered bands
+     * @param configured either one range for all bands (min, max) or one per
+     * band (min1, max1, min2, max2, ...), may be null
+     * @return minimum and maximum per band
+     */
+    public static double[] ranges(RasterBuffer buf, int[] bands, double[] configured) {
+        double[] r = new double[2 * bands.length];
+        for (int i = 0; i < bands.length; ++i) {
+            if (configured != null && configured.length >= 2 * bands.length) {
+                r[2 * i] = configured[2 * i];
+                r[2 * i + 1] = configured[2 * i + 1];
+            } else if (configured != null && configured.length >= 2) {
+                r[2 * i] = configured[0];
+                r[2 * i + 1] = configured[1];
+            } else if (buf.getType(bands[i]) == DataType.BYTE) {
+                r[2 * i] = 0;
+                r[2 * i + 1] = 255;
+            } else {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                int n = buf.getWidth() * buf.getHeight();
+                for (int k = 0; k < n; ++k) {
+                    double v = buf.get(bands[i], k);
+                    if (!buf.isNoData(bands[i], v) && !Double.isNaN(v)) {
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                }
+                r[2 * i] = (min <= max) ? min : 0;
+                r[2 * i + 1] = (min <= max) ? max : 1;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Checks whether any rendered pixel is nodata
+     * @param buf raster
+     * @param bands rendered bands
+     * @return true if an alpha channel is needed
+     */
+    public static boolean hasNoData(RasterBuffer buf, int[] bands) {
+        int n = buf.getWidth() * buf.getHeight();
+        for (int b : bands) {
+            for (int k = 0; k < n; ++k) {
+                double v = buf.get(b, k);
+                if (buf.isNoData(b, v) || Double.isNaN(v)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders bands of a raster as gray (one band) or RGB (three bands) image
+     * @param buf raster
+     * @param bands one or three bands
+     * @param ranges minimum and maximum per band
+     * @param alpha add an alpha channel, nodata pixels are transparent
+     * @return pooled image, should be returned with release()
+     */
+    public static BufferedImage render(RasterBuffer buf, int[] bands, double[] ranges, boolean alpha) {
+        int w = buf.getWidth();
+        int h = buf.getHeight();
+        int nb = bands.length;
+        int channels = nb + (alpha ? 1 : 0);
+        BufferedImage img = acquire(w, h, channels);
+        byte[] out = samples(img);
+        double[] scale = new double[nb];
+        for (int i = 0; i < nb; ++i) {
+            double d = ranges[2 * i + 1] - ranges[2 * i];
+            scale[i] = d > 0 ? 255 / d : 0;
+        }
+        int n = w * h;
+        for (int k = 0; k < n; ++k) {
+            int o = k * channels;
+            boolean valid = true;
+            for (int i = 0; i < nb; ++i) {
+                double v = buf.get(bands[i], k);
+                if (buf.isNoData(bands[i], v) || Double.isNaN(v)) {
+                    valid = false;
+                    out[o + i] = 0;
+                    continue;
+                }
+                long s = Math.round((v - ranges[2 * i]) * scale[i]);
+                out[o + i] = (byte) (s < 0 ? 0 : (s > 255 ? 255 : s));
+            }
+            if (alpha) {
+                out[o + nb] = (byte) (valid ? 255 : 0);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Renders a band with a color lookup table as RGB or RGBA image in a
+     * single pass, values are quantized linearly from [min, max] to the
+     * table's indexes
+     * @param buf raster
+     * @param band rendered band
+     * @param lut packed RGBA colors, see ColorStyle
+     * @param min value of the first table entry
+     * @param max value of the last table entry
+     * @param nodata packed RGBA color of nodata pixels
+     * @param alpha add an alpha channel
+     * @return pooled image, should be returned with release()
+     */
+    public static BufferedImage renderLUT(RasterBuffer buf, int band, int[] lut, double min, double max, int nodata, boolean alpha) {
+        int w = buf.getWidth();
+        int h = buf.getHeight();
+        int channels = alpha ? 4 : 3;
+        BufferedImage img = acquire(w, h, channels);
+        byte[] out = samples(img);
+        int last = lut.length - 1;
+        double scale = max > min ? last / (max - min) : 0;
+        int n = w * h;
+        for (int k = 0, o = 0; k < n; ++k, o += channels) {
+            double v = buf.get(band, k);
+            int c;
+            if (buf.isNoData(band, v) || Double.isNaN(v)) {
+                c = nodata;
+            } else {
+                double i = (v - min) * scale;
+                c = lut[i <= 0 ? 0 : (i >= last ? last : (int) (i + 0.5))];
+            }
+            out[o] = (byte) (c >>> 24);
+            out[o + 1] = (byte) (c >>> 16);
+            out[o + 2] = (byte) (c >>> 8);
+            if (alpha) {
+                out[o + 3] = (byte) c;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Encodes an image without alpha channel as JPEG
+     * @param img image
+     * @param quality quality in [0,1]
+     * @param os output
+     * @throws IOException
+     */
+    public static void writeJPEG(BufferedImage img, float quality, OutputStream os) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext()) {
+            throw new IOException("No JPEG encoder available");
+        }
+        ImageWriter writer = it.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+            ImageWriteParam p = writer.getDefaultWriteParam();
+            p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setCompressionQuality(quality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), p);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
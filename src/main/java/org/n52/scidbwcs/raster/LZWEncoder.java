@@ -0,0 +1,131 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.util.Arrays;
+
+/**
+ * LZW encoder as used by TIFF, i.e. with MSB-first bit order and code widths
+ * increasing one code early, compatible with libtiff.
+ */
+class LZWEncoder {
+
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST = 258;
+    private static final int MAX_CODE = 4095;
+
+    private static final int HASH_SIZE = 9973; // prime, more than twice the number of codes
+
+    private final int[] keys = new int[HASH_SIZE];
+    private final short[] codes = new short[HASH_SIZE];
+
+    private byte[] out;
+    private int pos = 0;
+    private long bits = 0;
+    private int nbits = 0;
+
+    private LZWEncoder(int capacity) {
+        out = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Encodes bytes
+     * @param in input
+     * @return LZW compressed bytes
+     */
+    static byte[] encode(byte[] in) {
+        LZWEncoder e = new LZWEncoder(in.length / 2 + 16);
+        return e.run(in);
+    }
+
+    private byte[] run(byte[] in) {
+        int width = 9;
+        int maxcode = (1 << width) - 1;
+        int next = FIRST;
+        Arrays.fill(keys, -1);
+        put(CLEAR, width);
+
+        int ent = -1;
+        for (byte bv : in) {
+            int c = bv & 0xFF;
+            if (ent < 0) {
+                ent = c;
+                continue;
+            }
+            int key = (ent << 8) | c;
+            int h = (key * 31 + c) % HASH_SIZE;
+            if (h < 0) {
+                h += HASH_SIZE;
+            }
+            while (keys[h] != -1 && keys[h] != key) {
+                h = (h + 1) % HASH_SIZE;
+            }
+            if (keys[h] == key) {
+                ent = codes[h];
+                continue;
+            }
+            put(ent, width);
+            ent = c;
+            keys[h] = key;
+            codes[h] = (short) next++;
+            if (next == MAX_CODE - 1) {
+                // table is full, emit clear code and reset
+                put(CLEAR, width);
+                Arrays.fill(keys, -1);
+                next = FIRST;
+                width = 9;
+                maxcode = (1 << width) - 1;
+            } else if (next > maxcode) {
+                ++width;
+                maxcode = (1 << width) - 1;
+            }
+        }
+        if (ent >= 0) {
+            put(ent, width);
+            // the decoder adds one more entry before reading the end code
+            if (++next > maxcode && width < 12) {
+                ++width;
+            }
+        }
+        put(EOI, width);
+        if (nbits > 0) {
+            write((int) (bits << (8 - nbits)));
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    private void put(int code, int width) {
+        bits = (bits << width) | code;
+        nbits += width;
+        while (nbits >= 8) {
+            write((int) (bits >>> (nbits - 8)));
+            nbits -= 8;
+        }
+        bits &= (1L << nbits) - 1;
+    }
+
+    private void write(int b) {
+        if (pos == out.length) {
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        out[pos++] = (byte) b;
+    }
+}
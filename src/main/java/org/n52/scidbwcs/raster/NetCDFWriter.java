@@ -0,0 +1,377 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming writer for x/y/t data cubes in the NetCDF classic 64-bit offset
+ * format (CDF-2). Time is the record dimension, such that the file can be
+ * written one time slice after another without seeking, and its total size
+ * is known in advance. Each band of the cube becomes a variable with
+ * dimensions (time, y, x). Time, x, and y coordinates and the grid mapping
+ * follow the CF conventions, the grid mapping additionally carries GDAL's
+ * spatial_ref and GeoTransform attributes.
+ */
+public class NetCDFWriter {
+
+    private static final int NC_DIMENSION = 0x0A;
+    private static final int NC_VARIABLE = 0x0B;
+    private static final int NC_ATTRIBUTE = 0x0C;
+
+    private static final int NC_BYTE = 1;
+    private static final int NC_CHAR = 2;
+    private static final int NC_SHORT = 3;
+    private static final int NC_INT = 4;
+    private static final int NC_FLOAT = 5;
+    private static final int NC_DOUBLE = 6;
+
+    private static final String TIME_UNITS = "seconds since 1970-01-01 00:00:00";
+
+    private final int width;
+    private final int height;
+    private final int nrecords;
+    private final String[] names;
+    private final DataType[] types;
+    private final double[] nodata;
+    private final double[] geoTransform;
+    private final String wkt;
+
+    private final byte[] header;
+    private final long recordSize;
+    private int written = 0;
+
+    /**
+     * Creates a writer, all sizes must be known in advance
+     * @param width number of columns
+     * @param height number of rows
+     * @param nrecords number of time slices
+     * @param names variable name per band
+     * @param types data type per band
+     * @param nodata nodata value per band
+     * @param geoTransform affine transformation in GDAL order, must not be
+     * rotated
+     * @param wkt OGC WKT of the spatial reference system, may be null
+     */
+    public NetCDFWriter(int width, int height, int nrecords, String[] names, DataType[] types, double[] nodata, double[] geoTransform, String wkt) {
+        this.width = width;
+        this.height = height;
+        this.nrecords = nrecords;
+        this.names = names;
+        this.types = types;
+        this.nodata = nodata;
+        this.geoTransform = geoTransform;
+        this.wkt = wkt;
+
+        long rs = 8; // time coordinate
+        for (DataType t : types) {
+            rs += padded((long) width * height * ncSize(t));
+        }
+        this.recordSize = rs;
+
+        // begin offsets depend on the header size, which does not depend on their values
+        try {
+            int headerSize = buildHeader(0).length;
+            this.header = buildHeader(headerSize);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Gets the size of the complete file
+     * @return number of bytes
+     */
+    public long size() {
+        return header.length + nonRecordSize() + nrecords * recordSize;
+    }
+
+    /**
+     * Writes the header and all coordinates except time, must be called once
+     * before writing records
+     * @param out output channel
+     * @throws IOException
+     */
+    public void writeHeader(WritableByteChannel out) throws IOException {
+        write(out, ByteBuffer.wrap(header));
+
+        ByteBuffer b = ByteBuffer.allocate((int) nonRecordSize()).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(0); // grid mapping has no data
+        for (int i = 0; i < width; ++i) {
+            b.putDouble(geoTransform[0] + (i + 0.5) * geoTransform[1]);
+        }
+        for (int j = 0; j < height; ++j) {
+            b.putDouble(geoTransform[3] + (j + 0.5) * geoTransform[5]);
+        }
+        b.flip();
+        write(out, b);
+    }
+
+    /**
+     * Writes the next time slice
+     * @param out output channel
+     * @param buf raster containing the slice
+     * @param bands band of buf for each variable
+     * @param time time coordinate in seconds since 1970-01-01
+     * @throws IOException
+     */
+    public void writeRecord(WritableByteChannel out, RasterBuffer buf, int[] bands, double time) throws IOException {
+        if (written >= nrecords) {
+            throw new IOException("All " + nrecords + " records have already been written");
+        }
+        if (buf.getWidth() != width || buf.getHeight() != height) {
+            throw new IOException("Record of size " + buf.getWidth() + "x" + buf.getHeight() + " does not match " + width + "x" + height);
+        }
+        ByteBuffer t = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        t.putDouble(time);
+        t.flip();
+        write(out, t);
+
+        // Convert row by row to big endian values of the variable's type
+        for (int v = 0; v < names.length; ++v) {
+            int size = ncSize(types[v]);
+            ByteBuffer row = ByteBuffer.allocate(width * size).order(ByteOrder.BIG_ENDIAN);
+            for (int y = 0; y < height; ++y) {
+                row.clear();
+                for (int x = 0; x < width; ++x) {
+                    put(row, types[v], buf.get(bands[v], x, y));
+                }
+                row.flip();
+                write(out, row);
+            }
+            long pad = padded((long) width * height * size) - (long) width * height * size;
+            if (pad > 0) {
+                write(out, ByteBuffer.allocate((int) pad));
+            }
+        }
+        ++written;
+    }
+
+    private long nonRecordSize() {
+        return 4 + 8L * width + 8L * height;
+    }
+
+    private byte[] buildHeader(long headerSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream o = new DataOutputStream(bos); // big endian
+
+        o.write(new byte[]{'C', 'D', 'F', 2});
+        o.writeInt(nrecords);
+
+        // Dimensions, time is the record dimension
+        o.writeInt(NC_DIMENSION);
+        o.writeInt(3);
+        writeName(o, "time");
+        o.writeInt(0);
+        writeName(o, "y");
+        o.writeInt(height);
+        writeName(o, "x");
+        o.writeInt(width);
+
+        // Global attributes
+        o.writeInt(NC_ATTRIBUTE);
+        o.writeInt(1);
+        writeAttribute(o, "Conventions", "CF-1.6");
+
+        boolean geographic = wkt != null && wkt.trim().toUpperCase().startsWith("GEOGCS");
+        long begin = headerSize;
+        long recordBegin = headerSize + nonRecordSize();
+
+        o.writeInt(NC_VARIABLE);
+        o.writeInt(4 + names.length);
+
+        // Grid mapping
+        writeName(o, "crs");
+        o.writeInt(0);
+        o.writeInt(NC_ATTRIBUTE);
+        o.writeInt(wkt != null ? 3 : 1);
+        StringBuilder gt = new StringBuilder();
+        for (double c : geoTransform) {
+            gt.append(gt.length() > 0 ? " " : "").append(c);
+        }
+        writeAttribute(o, "GeoTransform", gt.toString());
+        if (wkt != null) {
+            writeAttribute(o, "crs_wkt", wkt);
+            writeAttribute(o, "spatial_ref", wkt);
+        }
+        o.writeInt(NC_INT);
+        o.writeInt(4);
+        o.writeLong(begin);
+        begin += 4;
+
+        // Spatial coordinates
+        writeCoordinate(o, "x", 2, geographic ? "longitude" : "projection_x_coordinate", geographic ? "degrees_east" : null, "X", width, begin);
+        begin += 8L * width;
+        writeCoordinate(o, "y", 1, geographic ? "latitude" : "projection_y_coordinate", geographic ? "degrees_north" : null, "Y", height, begin);
+
+        // Record variables
+        writeName(o, "time");
+        o.writeInt(1);
+        o.writeInt(0);
+        o.writeInt(NC_ATTRIBUTE);
+        o.writeInt(4);
+        writeAttribute(o, "standard_name", "time");
+        writeAttribute(o, "units", TIME_UNITS);
+        writeAttribute(o, "calendar", "standard");
+        writeAttribute(o, "axis", "T");
+        o.writeInt(NC_DOUBLE);
+        o.writeInt(8);
+        o.writeLong(recordBegin);
+        recordBegin += 8;
+
+        for (int v = 0; v < names.length; ++v) {
+            boolean unsigned = types[v] == DataType.BYTE || types[v] == DataType.UINT16;
+            writeName(o, names[v]);
+            o.writeInt(3);
+            o.writeInt(0);
+            o.writeInt(1);
+            o.writeInt(2);
+            o.writeInt(NC_ATTRIBUTE);
+            o.writeInt(unsigned ? 4 : 3);
+            writeAttribute(o, "long_name", names[v]);
+            writeAttribute(o, "grid_mapping", "crs");
+            if (unsigned) {
+                writeAttribute(o, "_Unsigned", "true");
+            }
+            // _FillValue must have the type of the variable
+            ByteBuffer fill = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            put(fill, types[v], nodata[v]);
+            writeName(o, "_FillValue");
+            o.writeInt(ncType(types[v]));
+            o.writeInt(1);
+            o.write(fill.array(), 0, fill.position());
+            writePadding(o, fill.position());
+
+            o.writeInt(ncType(types[v]));
+            long vsize = padded((long) width * height * ncSize(types[v]));
+            o.writeInt((int) Math.min(vsize, 0xFFFFFFFFL)); // larger sizes are not representable and ignored by readers
+            o.writeLong(recordBegin);
+            recordBegin += vsize;
+        }
+        o.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeCoordinate(DataOutputStream o, String name, int dimid, String standardName, String units, String axis, int n, long begin) throws IOException {
+        writeName(o, name);
+        o.writeInt(1);
+        o.writeInt(dimid);
+        o.writeInt(NC_ATTRIBUTE);
+        o.writeInt(units != null ? 3 : 2);
+        writeAttribute(o, "standard_name", standardName);
+        if (units != null) {
+            writeAttribute(o, "units", units);
+        }
+        writeAttribute(o, "axis", axis);
+        o.writeInt(NC_DOUBLE);
+        o.writeInt((int) padded(8L * n));
+        o.writeLong(begin);
+    }
+
+    private static void writeName(DataOutputStream o, String name) throws IOException {
+        byte[] b = name.getBytes(StandardCharsets.UTF_8);
+        o.writeInt(b.length);
+        o.write(b);
+        writePadding(o, b.length);
+    }
+
+    private static void writeAttribute(DataOutputStream o, String name, String value) throws IOException {
+        writeName(o, name);
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        o.writeInt(NC_CHAR);
+        o.writeInt(b.length);
+        o.write(b);
+        writePadding(o, b.length);
+    }
+
+    private static void writePadding(DataOutputStream o, long n) throws IOException {
+        for (long i = n; i < padded(n); ++i) {
+            o.writeByte(0);
+        }
+    }
+
+    private static long padded(long n) {
+        return (n + 3) / 4 * 4;
+    }
+
+    /**
+     * NetCDF classic has no unsigned types, unsigned bytes and shorts are
+     * marked by _Unsigned, unsigned ints are widened to doubles
+     */
+    private static int ncType(DataType t) {
+        switch (t) {
+            case BYTE:
+                return NC_BYTE;
+            case UINT16:
+            case INT16:
+                return NC_SHORT;
+            case INT32:
+                return NC_INT;
+            case FLOAT32:
+                return NC_FLOAT;
+        }
+        return NC_DOUBLE;
+    }
+
+    private static int ncSize(DataType t) {
+        switch (ncType(t)) {
+            case NC_BYTE:
+                return 1;
+            case NC_SHORT:
+                return 2;
+            case NC_INT:
+            case NC_FLOAT:
+                return 4;
+        }
+        return 8;
+    }
+
+    private static void put(ByteBuffer b, DataType t, double v) {
+        switch (ncType(t)) {
+            case NC_BYTE:
+                b.put((byte) (long) v);
+                break;
+            case NC_SHORT:
+                b.putShort((short) (long) v);
+                break;
+            case NC_INT:
+                b.putInt((int) (long) v);
+                break;
+            case NC_FLOAT:
+                b.putFloat((float) v);
+                break;
+            default:
+                b.putDouble(v);
+                break;
+        }
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes 8 bit images as PNG with parallel compression. Rows are filtered
+ * and compressed in independent blocks on the compression pool, each block
+ * ends at a byte boundary (sync flush) such that the compressed blocks form a
+ * single deflate stream when concatenated. Blocks are written as separate
+ * IDAT chunks in order as soon as they are available, the zlib checksum is
+ * combined from the checksums of all blocks. Deflaters and scratch buffers
+ * are reused per thread.
+ */
+public class PNGEncoder {
+
+    private static final int BLOCK_BYTES = 128 * 1024; // uncompressed size of blocks
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int ADLER_BASE = 65521;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+    /**
+     * Encodes an image as returned by ImageRenderer
+     * @param img image with interleaved 8 bit samples
+     * @param level compression level 0-9
+     * @param os output, not closed
+     * @throws IOException
+     */
+    public static void write(BufferedImage img, int level, OutputStream os) throws IOException {
+        final byte[] data = ImageRenderer.samples(img);
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final int channels = img.getRaster().getNumBands();
+        final int lvl = Math.max(0, Math.min(9, level));
+        int rowsPerBlock = Math.max(1, Math.min(height, BLOCK_BYTES / Math.max(1, width * channels + 1)));
+        int nblocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+        os.write(SIGNATURE);
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height).put((byte) 8);
+        ihdr.put((byte) (channels == 1 ? 0 : channels == 2 ? 4 : channels == 3 ? 2 : 6)); // color type
+        ihdr.put((byte) 0).put((byte) 0).put((byte) 0); // deflate, adaptive filtering, no interlace
+        writeChunk(os, "IHDR", ihdr.array(), 0, 13);
+
+        int window = 2 * GeoTIFFWriter.pool().getParallelism();
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int next = 0;
+        int done = 0;
+        long adler = 1;
+        try {
+            while (done < nblocks) {
+                while (next < nblocks && pending.size() < window) {
+                    final int y0 = next * rowsPerBlock;
+                    final int y1 = Math.min(height, y0 + rowsPerBlock);
+                    final boolean last = y1 == height;
+                    pending.addLast(GeoTIFFWriter.pool().submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return encodeBlock(data, width, channels, y0, y1, last, lvl);
+                        }
+                    }));
+                    ++next;
+                }
+                // Each result holds the block's checksum and uncompressed length followed by compressed data
+                byte[] b = pending.removeFirst().get();
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                long blockAdler = bb.getInt() & 0xFFFFFFFFL;
+                long len = bb.getInt() & 0xFFFFFFFFL;
+                adler = adler32Combine(adler, blockAdler, len);
+                if (done == 0) {
+                    // The first chunk starts with the zlib header (default compression), replacing the block length
+                    b[6] = 0x78;
+                    b[7] = (byte) 0x9C;
+                    writeChunk(os, "IDAT", b, 6, b.length - 6);
+                } else {
+                    writeChunk(os, "IDAT", b, 8, b.length - 8);
+                }
+                ++done;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing image");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+        }
+        byte[] trailer = ByteBuffer.allocate(4).putInt((int) adler).array();
+        writeChunk(os, "IDAT", trailer, 0, 4);
+        writeChunk(os, "IEND", new byte[0], 0, 0);
+        os.flush();
+    }
+
+    /**
+     * Filters and compresses rows [y0, y1)
+     * @return adler32 and length of the filtered rows, followed by the raw
+     * deflate data
+     */
+    static byte[] encodeBlock(byte[] data, int width, int channels, int y0, int y1, boolean last, int level) {
+        int stride = width * channels;
+        int n = (y1 - y0) * (stride + 1);
+        byte[] filtered = scratch.get();
+        if (filtered == null || filtered.length < n) {
+            filtered = new byte[n];
+            scratch.set(filtered);
+        }
+        for (int y = y0; y < y1; ++y) {
+            filterRow(data, y, stride, channels, filtered, (y - y0) * (stride + 1));
+        }
+        Adler32 a = new Adler32();
+        a.update(filtered, 0, n);
+
+        Deflater def = deflaters.get();
+        if (def == null) {
+            def = new Deflater(level, true);
+            deflaters.set(def);
+        }
+        def.reset();
+        def.setLevel(level);
+        def.setInput(filtered, 0, n);
+        if (last) {
+            def.finish();
+        }
+        // Header of eight bytes, see write()
+        byte[] out = new byte[8 + n / 2 + 64];
+        int pos = 8;
+        while (true) {
+            if (pos == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int avail = out.length - pos;
+            int k = def.deflate(out, pos, avail, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            pos += k;
+            if (last ? def.finished() : k < avail) {
+                break;
+            }
+        }
+        ByteBuffer.wrap(out).putInt((int) a.getValue()).putInt(n);
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Filters a row with the filter type producing the smallest sum of
+     * absolute differences
+     */
+    private static void filterRow(byte[] data, int y, int stride, int bpp, byte[] out, int o) {
+        int row = y * stride;
+        int prev = row - stride;
+        int bestType = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type <= 4; ++type) {
+            if (y == 0 && (type == 2 || type == 3 || type == 4)) {
+                continue; // equivalent to other filters in the first row
+            }
+            long sum = 0;
+            for (int i = 0; i < stride && sum < bestSum; ++i) {
+                sum += Math.abs((byte) filter(data, type, row, prev, i, bpp, y == 0));
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestType = type;
+            }
+        }
+        out[o] = (byte) bestType;
+        for (int i = 0; i < stride; ++i) {
+            out[o + 1 + i] = (byte) filter(data, bestType, row, prev, i, bpp, y == 0);
+        }
+    }
+
+    private static int filter(byte[] d, int type, int row, int prev, int i, int bpp, boolean first) {
+        int x = d[row + i] & 0xFF;
+        int a = i >= bpp ? d[row + i - bpp] & 0xFF : 0;
+        int b = first ? 0 : d[prev + i] & 0xFF;
+        int c = (!first && i >= bpp) ? d[prev + i - bpp] & 0xFF : 0;
+        switch (type) {
+            case 1:
+                return x - a;
+            case 2:
+                return x - b;
+            case 3:
+                return x - ((a + b) >> 1);
+            case 4:
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                return x - ((pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c));
+            default:
+                return x;
+        }
+    }
+
+    /**
+     * Combines the adler32 checksums of two consecutive byte sequences as
+     * zlib's adler32_combine()
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param len2 length of the second sequence
+     * @return checksum of the concatenation
+     */
+    static long adler32Combine(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(OutputStream os, String type, byte[] b, int off, int len) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(b, off, len);
+        ByteBuffer h = ByteBuffer.allocate(8);
+        h.putInt(len).put(t);
+        os.write(h.array());
+        os.write(b, off, len);
+        os.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+}
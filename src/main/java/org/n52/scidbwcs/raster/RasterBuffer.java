@@ -0,0 +1,218 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A georeferenced multi-band raster held in memory. Each band is stored as a
+ * contiguous, row-major buffer of its primitive data type in little endian
+ * byte order, which can be written to files without conversion. Pixels that
+ * have not been set contain the band's nodata value.
+ */
+public class RasterBuffer {
+
+    private final int width;
+    private final int height;
+    private final DataType[] types;
+    private final double[] nodata;
+    private final ByteBuffer[] bands;
+
+    private double[] geoTransform = null; // GDAL order
+    private String wkt = null;
+
+    /**
+     * Creates a raster filled with nodata values
+     * @param width number of columns
+     * @param height number of rows
+     * @param types data type per band
+     * @param nodata nodata value per band
+     */
+    public RasterBuffer(int width, int height, DataType[] types, double[] nodata) {
+        if ((long) width * height * 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Raster of size " + width + "x" + height + " is too large for a single buffer");
+        }
+        this.width = width;
+        this.height = height;
+        this.types = types;
+        this.nodata = nodata;
+        this.bands = new ByteBuffer[types.length];
+        for (int b = 0; b < types.length; ++b) {
+            bands[b] = ByteBuffer.allocate(width * height * types[b].size).order(ByteOrder.LITTLE_ENDIAN);
+            fill(b, nodata[b]);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBandCount() {
+        return types.length;
+    }
+
+    public DataType getType(int band) {
+        return types[band];
+    }
+
+    public double getNoData(int band) {
+        return nodata[band];
+    }
+
+    /**
+     * Gets the raw data of a band, positions are in bytes
+     * @param band band index
+     * @return band buffer, must not be modified in size
+     */
+    public ByteBuffer getBand(int band) {
+        return bands[band];
+    }
+
+    /**
+     * Gets the affine transformation from pixel to world coordinates
+     * @return coefficients in GDAL order or null if not georeferenced
+     */
+    public double[] getGeoTransform() {
+        return geoTransform;
+    }
+
+    public void setGeoTransform(double[] geoTransform) {
+        this.geoTransform = geoTransform;
+    }
+
+    /**
+     * Gets the spatial reference system
+     * @return OGC WKT or null if unknown
+     */
+    public String getWKT() {
+        return wkt;
+    }
+
+    public void setWKT(String wkt) {
+        this.wkt = wkt;
+    }
+
+    /**
+     * Sets all pixels of a band to the same value
+     * @param band band index
+     * @param v value
+     */
+    public final void fill(int band, double v) {
+        for (int i = 0; i < width * height; ++i) {
+            set(band, i, v);
+        }
+    }
+
+    /**
+     * Gets a pixel value
+     * @param band band index
+     * @param i pixel index, i.e. row * width + column
+     * @return pixel value converted to double
+     */
+    public double get(int band, int i) {
+        ByteBuffer buf = bands[band];
+        switch (types[band]) {
+            case BYTE:
+                return buf.get(i) & 0xFF;
+            case UINT16:
+                return buf.getShort(2 * i) & 0xFFFF;
+            case INT16:
+                return buf.getShort(2 * i);
+            case UINT32:
+                return buf.getInt(4 * i) & 0xFFFFFFFFL;
+            case INT32:
+                return buf.getInt(4 * i);
+            case FLOAT32:
+                return buf.getFloat(4 * i);
+            default:
+                return buf.getDouble(8 * i);
+        }
+    }
+
+    /**
+     * Sets a pixel value, integer types are rounded to the nearest integer but
+     * not clamped
+     * @param band band index
+     * @param i pixel index, i.e. row * width + column
+     * @param v pixel value
+     */
+    public void set(int band, int i, double v) {
+        ByteBuffer buf = bands[band];
+        switch (types[band]) {
+            case BYTE:
+                buf.put(i, (byte) Math.round(v));
+                break;
+            case UINT16:
+            case INT16:
+                buf.putShort(2 * i, (short) Math.round(v));
+                break;
+            case UINT32:
+            case INT32:
+                buf.putInt(4 * i, (int) Math.round(v));
+                break;
+            case FLOAT32:
+                buf.putFloat(4 * i, (float) v);
+                break;
+            default:
+                buf.putDouble(8 * i, v);
+                break;
+        }
+    }
+
+    public double get(int band, int x, int y) {
+        return get(band, y * width + x);
+    }
+
+    public void set(int band, int x, int y, double v) {
+        set(band, y * width + x, v);
+    }
+
+    /**
+     * Checks whether a value equals the nodata value of a band
+     * @param band band index
+     * @param v value
+     * @return true if v represents nodata
+     */
+    public boolean isNoData(int band, double v) {
+        return Double.isNaN(nodata[band]) ? Double.isNaN(v) : v == nodata[band];
+    }
+
+    /**
+     * Writes all bands one after another (band sequential) to a channel
+     * @param out output channel
+     * @throws IOException
+     */
+    public void writeBSQ(WritableByteChannel out) throws IOException {
+        for (ByteBuffer b : bands) {
+            ByteBuffer d = b.duplicate();
+            d.clear();
+            while (d.hasRemaining()) {
+                out.write(d);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Resamples raster buffers to a new grid with nearest neighbour, bilinear or
+ * bicubic interpolation. The source pixels and weights contributing to output
+ * columns and rows are precomputed per axis once, output rows are then
+ * processed in parallel on a fork-join pool. Nodata pixels of the source are
+ * excluded and the weights of the remaining pixels are renormalized; output
+ * pixels without valid source pixels are set to nodata.
+ */
+public class Resampler {
+
+    public enum Method {
+
+        NEAREST(1), BILINEAR(2), BICUBIC(4);
+
+        public final int taps; // source pixels per axis
+
+        private Method(int taps) {
+            this.taps = taps;
+        }
+
+        /**
+         * Gets the method of a WCS interpolation name
+         * @param interpolation one of Constants.WCS_INTERPOLATIONS, null or empty for nearest neighbour
+         * @return resampling method
+         */
+        public static Method fromWCS(String interpolation) {
+            if (interpolation == null) {
+                return NEAREST;
+            }
+            switch (interpolation.toLowerCase()) {
+                case "bilinear":
+                    return BILINEAR;
+                case "bicubic":
+                    return BICUBIC;
+            }
+            return NEAREST;
+        }
+    }
+
+    private static final int ROWS_PER_TASK = 32;
+    private static final double EPS = 1e-9;
+
+    private static ForkJoinPool pool = null;
+
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int threads = Config.get().SCIDBWCS_RESAMPLE_THREADS > 0 ? Config.get().SCIDBWCS_RESAMPLE_THREADS : Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * Source pixel indexes and weights per output column or row
+     */
+    static class AxisTable {
+
+        final int taps;
+        final int[] index;
+        final double[] weight;
+
+        AxisTable(int taps, int n) {
+            this.taps = taps;
+            this.index = new int[taps * n];
+            this.weight = new double[taps * n];
+        }
+    }
+
+    /**
+     * Computes the table of an axis. Output pixel i covers the source interval
+     * [start + i * scale, start + (i + 1) * scale) in pixel corner coordinates.
+     */
+    static AxisTable axisTable(Method m, double start, double scale, int n, int srcSize) {
+        AxisTable t = new AxisTable(m.taps, n);
+        for (int i = 0; i < n; ++i) {
+            double u = start + (i + 0.5) * scale - 0.5; // in pixel center coordinates
+            int o = i * m.taps;
+            switch (m) {
+                case NEAREST:
+                    t.index[o] = clamp((int) Math.floor(u + 0.5), srcSize);
+                    t.weight[o] = 1;
+                    break;
+                case BILINEAR: {
+                    int k = (int) Math.floor(u);
+                    double f = u - k;
+                    t.index[o] = clamp(k, srcSize);
+                    t.index[o + 1] = clamp(k + 1, srcSize);
+                    t.weight[o] = 1 - f;
+                    t.weight[o + 1] = f;
+                    break;
+                }
+                case BICUBIC: {
+                    int k = (int) Math.floor(u);
+                    double f = u - k;
+                    for (int j = 0; j < 4; ++j) {
+                        t.index[o + j] = clamp(k - 1 + j, srcSize);
+                        t.weight[o + j] = cubic(f - (j - 1));
+                    }
+                    break;
+                }
+            }
+        }
+        return t;
+    }
+
+    static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    /**
+     * Keys' cubic convolution kernel with a = -0.5
+     */
+    static double cubic(double x) {
+        x = Math.abs(x);
+        if (x <= 1) {
+            return (1.5 * x - 2.5) * x * x + 1;
+        } else if (x < 2) {
+            return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Resamples a raster to a new grid. The output pixel (i,j) covers the
+     * source area starting at (x0 + i * scaleX, y0 + j * scaleY) in source
+     * pixel coordinates, where (0,0) is the upper left corner of the source.
+     * If the source is georeferenced, the output geotransform is derived
+     * accordingly.
+     *
+     * @param src source raster
+     * @param x0 source column of the output's left edge
+     * @param y0 source row of the output's upper edge
+     * @param scaleX source pixels per output column
+     * @param scaleY source pixels per output row
+     * @param width number of output columns
+     * @param height number of output rows
+     * @param m resampling method
+     * @return resampled raster with the same bands, types and nodata values
+     */
+    public static RasterBuffer resample(RasterBuffer src, double x0, double y0, double scaleX, double scaleY, int width, int height, Method m) {
+        int nbands = src.getBandCount();
+        DataType[] types = new DataType[nbands];
+        double[] nodata = new double[nbands];
+        for (int b = 0; b < nbands; ++b) {
+            types[b] = src.getType(b);
+            nodata[b] = src.getNoData(b);
+        }
+        RasterBuffer out = new RasterBuffer(width, height, types, nodata);
+        if (src.getGeoTransform() != null) {
+            double[] gt = src.getGeoTransform();
+            out.setGeoTransform(new double[]{
+                gt[0] + x0 * gt[1] + y0 * gt[2], scaleX * gt[1], scaleY * gt[2],
+                gt[3] + x0 * gt[4] + y0 * gt[5], scaleX * gt[4], scaleY * gt[5]});
+        }
+        out.setWKT(src.getWKT());
+
+        AxisTable cols = axisTable(m, x0, scaleX, width, src.getWidth());
+        AxisTable rows = axisTable(m, y0, scaleY, height, src.getHeight());
+        pool().invoke(new RowTask(src, out, cols, rows, 0, height));
+        return out;
+    }
+
+    /**
+     * Resamples a block of output rows, splitting it recursively
+     */
+    private static class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RasterBuffer src, out;
+        private final AxisTable cols, rows;
+        private final int from, to;
+
+        RowTask(RasterBuffer src, RasterBuffer out, AxisTable cols, AxisTable rows, int from, int to) {
+            this.src = src;
+            this.out = out;
+            this.cols = cols;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(src, out, cols, rows, from, mid), new RowTask(src, out, cols, rows, mid, to));
+                return;
+            }
+            for (int b = 0; b < out.getBandCount(); ++b) {
+                for (int j = from; j < to; ++j) {
+                    resampleRow(src, out, b, cols, rows, j);
+                }
+            }
+        }
+    }
+
+    static void resampleRow(RasterBuffer src, RasterBuffer out, int b, AxisTable cols, AxisTable rows, int j) {
+        int sw = src.getWidth();
+        int w = out.getWidth();
+        int ty = rows.taps;
+        int tx = cols.taps;
+        int oy = j * ty;
+        double nodata = out.getNoData(b);
+        DataType type = out.getType(b); // bicubic interpolation may overshoot
+        int outIdx = j * w;
+        for (int i = 0; i < w; ++i) {
+            int ox = i * tx;
+            double sum = 0;
+            double wsum = 0;
+            for (int ky = 0; ky < ty; ++ky) {
+                double wy = rows.weight[oy + ky];
+                if (wy == 0) {
+                    continue;
+                }
+                int rowStart = rows.index[oy + ky] * sw;
+                for (int kx = 0; kx < tx; ++kx) {
+                    double wgt = wy * cols.weight[ox + kx];
+                    if (wgt == 0) {
+                        continue;
+                    }
+                    double v = src.get(b, rowStart + cols.index[ox + kx]);
+                    if (src.isNoData(b, v)) {
+                        continue;
+                    }
+                    sum += wgt * v;
+                    wsum += wgt;
+                }
+            }
+            out.set(b, outIdx + i, Math.abs(wsum) < EPS ? nodata : type.clamp(sum / wsum));
+        }
+    }
+}
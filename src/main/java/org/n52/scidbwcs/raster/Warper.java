@@ -0,0 +1,248 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Warps rasters to grids of other reference systems. The inverse mapping
+ * from output to source pixels is computed exactly only on a coarse grid of
+ * output pixels and interpolated bilinearly in between, which is usually
+ * accurate to a small fraction of a pixel for cartographic projections.
+ * Output rows are warped in parallel on the resampling pool.
+ */
+public class Warper {
+
+    private static final int ROWS_PER_TASK = 16;
+    private static final double EPS = 1e-9;
+
+    /**
+     * Maps output pixel coordinates to source pixel coordinates
+     */
+    public interface PixelMapping {
+
+        /**
+         * Maps points in place
+         * @param pts interleaved x and y pixel coordinates of n points, where
+         * (0,0) is the upper left corner of the raster. Points that cannot be
+         * mapped are set to NaN.
+         * @param n number of points
+         */
+        void map(double[] pts, int n);
+    }
+
+    /**
+     * Source pixel coordinates at the nodes of a coarse grid of output pixel
+     * centers
+     */
+    static class CoarseGrid {
+
+        final int[] cols, rows; // output pixel indexes of nodes
+        final double[] pts; // source coordinates per node, row major
+
+        CoarseGrid(int width, int height, int step, PixelMapping m) {
+            cols = nodes(width, step);
+            rows = nodes(height, step);
+            pts = new double[2 * cols.length * rows.length];
+            int k = 0;
+            for (int r : rows) {
+                for (int c : cols) {
+                    pts[k++] = c + 0.5;
+                    pts[k++] = r + 0.5;
+                }
+            }
+            m.map(pts, cols.length * rows.length);
+        }
+
+        private static int[] nodes(int size, int step) {
+            int n = (size - 1) / step + 1;
+            boolean last = (size - 1) % step != 0;
+            int[] out = new int[n + (last ? 1 : 0)];
+            for (int i = 0; i < n; ++i) {
+                out[i] = i * step;
+            }
+            if (last) {
+                out[n] = size - 1;
+            }
+            return out;
+        }
+
+        /**
+         * Interpolates source coordinates of all pixel centers of an output row
+         * @param j output row
+         * @param m exact mapping, used where grid nodes are not mappable
+         * @param out interleaved source coordinates, 2 * width values
+         */
+        void row(int j, PixelMapping m, double[] out) {
+            int r = segment(rows, j);
+            double fy = rows.length > 1 ? (double) (j - rows[r]) / (rows[r + 1] - rows[r]) : 0;
+            int r1 = Math.min(r + 1, rows.length - 1);
+            int nc = cols.length;
+            int width = out.length / 2;
+            for (int i = 0; i < width; ++i) {
+                int c = segment(cols, i);
+                double fx = nc > 1 ? (double) (i - cols[c]) / (cols[c + 1] - cols[c]) : 0;
+                int c1 = Math.min(c + 1, nc - 1);
+                int p00 = 2 * (r * nc + c), p01 = 2 * (r * nc + c1), p10 = 2 * (r1 * nc + c), p11 = 2 * (r1 * nc + c1);
+                for (int d = 0; d < 2; ++d) {
+                    double top = pts[p00 + d] + fx * (pts[p01 + d] - pts[p00 + d]);
+                    double bottom = pts[p10 + d] + fx * (pts[p11 + d] - pts[p10 + d]);
+                    out[2 * i + d] = top + fy * (bottom - top);
+                }
+                if (Double.isNaN(out[2 * i]) || Double.isNaN(out[2 * i + 1])) {
+                    // Close to the border of the projection's domain, map exactly
+                    double[] p = {i + 0.5, j + 0.5};
+                    m.map(p, 1);
+                    out[2 * i] = p[0];
+                    out[2 * i + 1] = p[1];
+                }
+            }
+        }
+
+        /**
+         * Index of the grid segment containing a pixel
+         */
+        private static int segment(int[] nodes, int i) {
+            if (nodes.length == 1) {
+                return 0;
+            }
+            int step = nodes[1] - nodes[0];
+            return Math.min(i / step, nodes.length - 2);
+        }
+    }
+
+    /**
+     * Warps a raster
+     * @param src source raster
+     * @param width output width
+     * @param height output height
+     * @param geoTransform output geotransform, may be null
+     * @param wkt output reference system, may be null
+     * @param m mapping from output to source pixel coordinates
+     * @param step distance of exactly mapped grid nodes in output pixels, 1
+     * maps all pixels exactly
+     * @param method interpolation method
+     * @return warped raster with the same bands, types and nodata values
+     */
+    public static RasterBuffer warp(RasterBuffer src, int width, int height, double[] geoTransform, String wkt, PixelMapping m, int step, Resampler.Method method) {
+        int nbands = src.getBandCount();
+        DataType[] types = new DataType[nbands];
+        double[] nodata = new double[nbands];
+        for (int b = 0; b < nbands; ++b) {
+            types[b] = src.getType(b);
+            nodata[b] = src.getNoData(b);
+        }
+        RasterBuffer out = new RasterBuffer(width, height, types, nodata);
+        out.setGeoTransform(geoTransform);
+        out.setWKT(wkt);
+        CoarseGrid grid = new CoarseGrid(width, height, Math.max(1, step), m);
+        Resampler.pool().invoke(new RowTask(src, out, grid, m, method, 0, height));
+        return out;
+    }
+
+    /**
+     * Warps a block of output rows, splitting it recursively
+     */
+    private static class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RasterBuffer src, out;
+        private final CoarseGrid grid;
+        private final PixelMapping m;
+        private final Resampler.Method method;
+        private final int from, to;
+
+        RowTask(RasterBuffer src, RasterBuffer out, CoarseGrid grid, PixelMapping m, Resampler.Method method, int from, int to) {
+            this.src = src;
+            this.out = out;
+            this.grid = grid;
+            this.m = m;
+            this.method = method;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(src, out, grid, m, method, from, mid), new RowTask(src, out, grid, m, method, mid, to));
+                return;
+            }
+            double[] coords = new double[2 * out.getWidth()];
+            for (int j = from; j < to; ++j) {
+                grid.row(j, m, coords);
+                for (int b = 0; b < out.getBandCount(); ++b) {
+                    int o = j * out.getWidth();
+                    for (int i = 0; i < out.getWidth(); ++i) {
+                        out.set(b, o + i, sample(src, b, coords[2 * i], coords[2 * i + 1], method, out.getType(b)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interpolates a band at source pixel coordinates, nodata values are
+     * ignored and pixels outside of the source are nodata
+     */
+    static double sample(RasterBuffer src, int b, double sx, double sy, Resampler.Method method, DataType type) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        double nodata = src.getNoData(b);
+        if (!(sx >= 0 && sy >= 0 && sx < w && sy < h)) {
+            return nodata; // includes NaN
+        }
+        if (method == Resampler.Method.NEAREST) {
+            return src.get(b, (int) sy * w + (int) sx);
+        }
+        double u = sx - 0.5; // in pixel center coordinates
+        double v = sy - 0.5;
+        int kx = (int) Math.floor(u);
+        int ky = (int) Math.floor(v);
+        double fx = u - kx;
+        double fy = v - ky;
+        int taps = method.taps;
+        int off = (taps == 4) ? -1 : 0;
+        double sum = 0;
+        double wsum = 0;
+        for (int j = 0; j < taps; ++j) {
+            double wy = (taps == 4) ? Resampler.cubic(fy - (j + off)) : (j == 0 ? 1 - fy : fy);
+            if (wy == 0) {
+                continue;
+            }
+            int row = Resampler.clamp(ky + j + off, h) * w;
+            for (int i = 0; i < taps; ++i) {
+                double wgt = wy * ((taps == 4) ? Resampler.cubic(fx - (i + off)) : (i == 0 ? 1 - fx : fx));
+                if (wgt == 0) {
+                    continue;
+                }
+                double val = src.get(b, row + Resampler.clamp(kx + i + off, w));
+                if (src.isNoData(b, val)) {
+                    continue;
+                }
+                sum += wgt * val;
+                wsum += wgt;
+            }
+        }
+        return Math.abs(wsum) < EPS ? nodata : type.clamp(sum / wsum);
+    }
+}
@@ -24,6 +24,14 @@ import java.io.IOException;
 import static java.net.HttpURLConnection.HTTP_OK;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -34,10 +42,16 @@ import org.n52.scidbwcs.util.Constants;
 import org.n52.scidbwcs.wcs.AbstractRequest;
 import org.n52.scidbwcs.wcs.WCSDescribeCoverageRequest;
 import org.n52.scidbwcs.wcs.WCSGetCapabilitiesRequest;
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.exec.RequestExecutors;
+import org.n52.scidbwcs.io.FileDelivery;
+import org.n52.scidbwcs.io.TempStorage;
+import org.n52.scidbwcs.md.PyramidManager;
+import org.n52.scidbwcs.wcs.Prefetcher;
 import org.n52.scidbwcs.wcs.WCSGetCoverageRequest;
+import org.n52.scidbwcs.wcs.WCSGetSamplesRequest;
+import org.n52.scidbwcs.wcs.WCSGetStatisticsRequest;
 
 /**
  * Servlet implementation which consumes WCS requests.
@@ -58,19 +72,21 @@ public class ows extends HttpServlet {
             log.error(ex);
         } 
 
-        try {
-            // Clean and recreate directory for temporary coverages
-            FileUtils.deleteDirectory(new File(Config.get().SCIDBWCS_TEMPPATH));
-        } catch (IOException ex) {
-             log.error(ex);
-        }
+        // Clean and recreate directories for temporary coverages
+        TempStorage.get();
 
-        if (!(new File(Config.get().SCIDBWCS_TEMPPATH)).mkdirs()) {
-            log.error("Cannot create temporary coverage directory, using '" + System.getProperty("java.io.tmpdir") + "' instead");
-            Config.get().SCIDBWCS_TEMPPATH = System.getProperty("java.io.tmpdir");
-        }
+        PyramidManager.get().start();
+        Prefetcher.get().start();
     }
 
+    @Override
+    public void destroy() {
+        RequestExecutors.shutdown();
+        PyramidManager.shutdown();
+        Prefetcher.shutdown();
+        TempStorage.shutdown();
+        super.destroy();
+    }
    
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
     /**
@@ -86,6 +102,95 @@ public class ows extends HttpServlet {
             throws ServletException, IOException {
 
         log.debug("HTTP GET: " + request.getQueryString());
+
+        // Long running operations are processed asynchronously on dedicated executors
+        ExecutorService executor = null;
+        String op = request.getParameter("REQUEST");
+        if (op != null && request.isAsyncSupported()) {
+            switch (op.toLowerCase()) {
+                case "getcoverage":
+                    executor = RequestExecutors.get().coverage();
+                    break;
+                case "describecoverage":
+                case "getstatistics":
+                    executor = RequestExecutors.get().describe();
+                    break;
+            }
+        }
+        if (executor == null) {
+            process(request, response);
+            return;
+        }
+
+        final AsyncContext ctx = request.startAsync();
+        // Shared between the listener and the worker, a timed out worker must not touch the recycled request
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        final AtomicReference<Future<?>> job = new AtomicReference<>();
+        ctx.setTimeout(Config.get().SCIDBWCS_ASYNC_TIMEOUT_SEC * 1000);
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                log.warn("Asynchronous request timed out: " + ((HttpServletRequest) event.getSuppliedRequest()).getQueryString());
+                timedOut.set(true);
+                Future<?> f = job.get();
+                if (f != null) {
+                    f.cancel(true);
+                }
+                HttpServletResponse r = (HttpServletResponse) event.getSuppliedResponse();
+                if (!r.isCommitted()) {
+                    writeException(new WCSException("Request timed out", WCSException.WCS_EXCEPTION_CODE.InternalServerError), r);
+                }
+                complete(ctx);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                log.warn("Asynchronous request failed: " + event.getThrowable());
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        try {
+            job.set(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (timedOut.get()) {
+                        return;
+                    }
+                    HttpServletRequest req = (HttpServletRequest) ctx.getRequest();
+                    try {
+                        process(req, (HttpServletResponse) ctx.getResponse());
+                    } catch (Exception ex) {
+                        log.error("Error while processing asynchronous request: " + ex);
+                    } finally {
+                        // Non-blocking writers complete the request after writing the last byte
+                        if (!timedOut.get() && !FileDelivery.isWritePending(req)) {
+                            complete(ctx);
+                        }
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            writeException(new WCSException("Server is busy, please retry later.", WCSException.WCS_EXCEPTION_CODE.ServiceUnavailable, Config.get().SCIDBWCS_RETRY_AFTER_SEC), response);
+            complete(ctx);
+        }
+    }
+
+    /**
+     * Processes a single WCS request and writes its response or an exception report
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException if an I/O error occurs
+     */
+    private void process(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
 
             try {
@@ -99,7 +204,7 @@ public class ows extends HttpServlet {
                         if (!q.isValid()) {
                             throw new WCSException("Invalid request", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
                         }
-                        q.run(response);
+                        q.run(request, response);
                         break;
                     }
 
@@ -108,7 +213,7 @@ public class ows extends HttpServlet {
                         if (!q.isValid()) {
                             throw new WCSException("Invalid request", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
                         }
-                        q.run(response);
+                        q.run(request, response);
                         break;
                     }
 
@@ -117,15 +222,32 @@ public class ows extends HttpServlet {
                         if (!q.isValid()) {
                             throw new WCSException("Invalid request", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
                         }
-                        q.run(response);
+                        q.run(request, response);
+                        break;
+                    }
+
+                    case "getstatistics": {
+                        q = WCSGetStatisticsRequest.fromKVP(request.getQueryString());
+                        if (!q.isValid()) {
+                            throw new WCSException("Invalid request", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+                        }
+                        q.run(request, response);
+                        break;
+                    }
+
+                    case "getsamples": {
+                        q = WCSGetSamplesRequest.fromKVP(request.getQueryString());
+                        if (!q.isValid()) {
+                            throw new WCSException("Invalid request", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+                        }
+                        q.run(request, response);
                         break;
                     }
 
                     default:
                         throw new WCSException("Unsupported operation: " + req, WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
                 }
-
-                response.setStatus(HTTP_OK);
+                // Status is set by the requests, e.g. 206 for partial coverage content
             } // Make ALL exception a WCS exception
             catch (Exception ex) {
                 if (!(ex instanceof WCSException)) {
@@ -136,12 +258,46 @@ public class ows extends HttpServlet {
             }
 
         } catch (WCSException ex) {
-            response.setContentType(ex.getMIME());
-            //response.setStatus(e.getCode().getHTTPCode());
+            if (Thread.currentThread().isInterrupted()) {
+                // Cancelled after a timeout, the response belongs to the container again
+                log.warn("Cancelled request failed: " + ex.getMessage());
+                return;
+            }
+            writeException(ex, response);
+        }
+
+    }
+
+    /**
+     * Writes an OGC exception report
+     */
+    private static void writeException(WCSException ex, HttpServletResponse response) throws IOException {
+        if (response.isCommitted()) {
+            // e.g. a streamed coverage failed after its header has been sent
+            log.error("Cannot write exception report, response has already been committed: " + ex.getMessage());
+            return;
+        }
+        response.setContentType(ex.getMIME());
+        //response.setStatus(e.getCode().getHTTPCode());
+        if (ex.getRetryAfter() > 0) {
+            // Rejected due to overload, tell clients when to come back
+            response.setHeader("Retry-After", Long.toString(ex.getRetryAfter()));
+            response.setStatus(ex.getCode().getHTTPCode());
+        } else {
             response.setStatus(HTTP_OK);
-            response.getWriter().print(ex.toXML());  
         }
+        response.getWriter().print(ex.toXML());
+    }
 
+    /**
+     * Completes an async context unless it has already been completed, e.g. after a timeout
+     */
+    private static void complete(AsyncContext ctx) {
+        try {
+            ctx.complete();
+        } catch (IllegalStateException ex) {
+            log.debug("Async context has already been completed");
+        }
     }
 
     /**
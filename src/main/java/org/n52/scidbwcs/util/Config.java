@@ -25,7 +25,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -107,6 +109,69 @@ public class Config {
     public String SCIDBWCS_GDALPATH = null; // If null, assumes that gdal_translate is in PATH
     public long SCIDBWCS_GDALTIMOUT_SEC = (long) 5 * 60; // 
     public String SCIDBWCS_TEMPPATH = ""; // relative path for temporary coverage files
+    public int SCIDBWCS_MAX_CONCURRENT_JOBS = 4; // maximum number of coverage jobs (e.g. GDAL processes) running at the same time
+    public int SCIDBWCS_MAX_CONCURRENT_LARGE_JOBS = 2; // maximum number of running large jobs, always less than SCIDBWCS_MAX_CONCURRENT_JOBS
+    public long SCIDBWCS_LARGE_JOB_PIXELS = (long) 2048 * 2048; // jobs with a higher estimated cost (output pixels or the equivalent amount of source data) are queued as large jobs
+    public long SCIDBWCS_MAX_QUEUE_SEC = 30; // jobs that would wait longer are rejected
+    public long SCIDBWCS_RETRY_AFTER_SEC = 10; // minimum Retry-After sent to clients of rejected jobs
+    public int SCIDBWCS_COVERAGE_THREADS = 64; // threads processing asynchronous GetCoverage requests, most of them wait for admission
+    public int SCIDBWCS_DESCRIBE_THREADS = 4; // threads processing asynchronous DescribeCoverage requests
+    public int SCIDBWCS_ASYNC_QUEUE_SIZE = 1000; // maximum number of asynchronous requests waiting for a thread, further requests are rejected
+    public long SCIDBWCS_ASYNC_TIMEOUT_SEC = (long) 30 * 60; // timeout of asynchronous requests including writing the response
+    public int SCIDBWCS_ASYNC_BUFFER_POOL = 64; // number of pooled 64 KiB buffers for copying file responses, writers beyond allocate temporary buffers
+    public long SCIDBWCS_RESULT_RETAIN_SEC = 120; // time to keep generated coverages for identical or resumed (range) requests
+    public long SCIDBWCS_TEMP_QUOTA_BYTES = (long) 10 * 1024 * 1024 * 1024; // maximum total size of temporary coverage files, unused files are evicted beyond
+    public String SCIDBWCS_TEMPPATH_MEM = null; // optional memory-backed directory for small outputs (e.g. /dev/shm/scidb-wcs), disabled if null
+    public long SCIDBWCS_TEMP_MEM_QUOTA_BYTES = (long) 256 * 1024 * 1024; // maximum total size of files in SCIDBWCS_TEMPPATH_MEM
+    public long SCIDBWCS_TEMP_MEM_MAX_FILE_BYTES = (long) 16 * 1024 * 1024; // outputs with larger estimated size are always written to disk
+    public boolean SCIDBWCS_PUSHDOWN_SUBSETTING = true; // subset and downsample inside SciDB instead of reading full resolution data through GDAL
+    public String[] SCIDBWCS_PYRAMID_ARRAYS = {}; // arrays for which overview pyramids are built and maintained
+    public long SCIDBWCS_PYRAMID_MIN_SIZE = 256; // no further pyramid levels are built below this number of cells along the larger spatial dimension
+    public long SCIDBWCS_PYRAMID_CHECK_SEC = (long) 10 * 60; // interval of checking pyramid arrays for new base array versions
+    public int SCIDBWCS_RESAMPLE_THREADS = 0; // threads for resampling outputs in the JVM, 0 uses one thread per processor
+    public int SCIDBWCS_SHIM_MAX_SESSIONS = 8; // maximum number of concurrently open Shim sessions
+    public int SCIDBWCS_FETCH_PARALLELISM = 4; // maximum number of concurrent queries reading parts of one coverage
+    public long SCIDBWCS_FETCH_SPLIT_CELLS = 1024 * 1024; // minimum number of transferred cells to read a coverage in parts
+    public int SCIDBWCS_MAX_TIME_SLICES = 1000; // maximum number of time slices of a single GetCoverage request
+    public boolean SCIDBWCS_NETCDF_STREAMING = true; // stream NetCDF data cubes directly to clients instead of using GDAL
+    public long SCIDBWCS_STREAM_BUFFER_BYTES = (long) 64 * 1024 * 1024; // approximate memory used to read time slices of a streamed cube in batches
+    public String SCIDBWCS_COMPRESSION = "DEFLATE"; // default GeoTIFF compression, one of NONE, DEFLATE, LZW, ZSTD
+    public int SCIDBWCS_COMPRESSION_LEVEL = 6; // default compression level
+    public Map<String, String> SCIDBWCS_COVERAGE_COMPRESSION = new HashMap<>(); // compression per coverage as CODEC or CODEC:LEVEL, e.g. {"A": "ZSTD:9"}
+    public int SCIDBWCS_COMPRESSION_THREADS = 0; // threads compressing strips and tiles of outputs, 0 uses one thread per processor
+    public int SCIDBWCS_COG_MIN_TILE_SIZE = 256; // minimum tile size of cloud optimized GeoTIFFs, tiles are otherwise aligned to the array's chunk size
+    public int SCIDBWCS_COG_MAX_TILE_SIZE = 1024; // maximum tile size of cloud optimized GeoTIFFs
+    public long SCIDBWCS_COG_RETAIN_SEC = (long) 30 * 60; // time to keep generated cloud optimized GeoTIFFs for range requests of the same coverage
+    public long SCIDBWCS_MAX_SOURCE_CELLS = (long) 64 * 1024 * 1024 * 1024; // GetCoverage requests reading more array cells (of whole chunks) are rejected, 0 disables the limit
+    public long SCIDBWCS_MAX_TRANSFER_BYTES = (long) 8 * 1024 * 1024 * 1024; // GetCoverage requests transferring more bytes from SciDB are rejected, 0 disables the limit
+    public long SCIDBWCS_MAX_OUTPUT_BYTES = (long) 4 * 1024 * 1024 * 1024; // GetCoverage requests with larger uncompressed outputs are rejected, 0 disables the limit
+    public boolean SCIDBWCS_RENDER_IN_JVM = true; // render PNG and JPEG outputs in the JVM instead of using GDAL
+    public Map<String, double[]> SCIDBWCS_RENDER_RANGES = new HashMap<>(); // value ranges scaled to [0,255] per coverage, either [min, max] or [min1, max1, min2, max2, min3, max3], data minimum and maximum otherwise
+    public Map<String, String> SCIDBWCS_RENDER_STYLES = new HashMap<>(); // color styles of single band images per coverage, e.g. {"A": "ramp=viridis;range=p2,p98"}, overridden by the STYLE request parameter
+    public int SCIDBWCS_PNG_LEVEL = 6; // compression level of rendered PNG images
+    public float SCIDBWCS_JPEG_QUALITY = 0.85f; // quality of rendered JPEG images in [0,1]
+    public long SCIDBWCS_IMAGE_POOL_BYTES = (long) 64 * 1024 * 1024; // maximum total size of pooled image buffers of rendered PNG and JPEG images
+    public boolean SCIDBWCS_REPROJECT_IN_JVM = true; // reproject coverages to RESPONSE_CRS or from a different CRS of the bounding box in the JVM
+    public int SCIDBWCS_WARP_GRID_STEP = 16; // distance in output pixels of exactly transformed points when reprojecting, 1 transforms all pixels exactly
+    public int SCIDBWCS_STATS_BINS = 64; // number of histogram bins of GetStatistics responses
+    public int SCIDBWCS_STATS_CACHE_CHUNKS = 100000; // maximum number of chunk summaries cached for GetStatistics requests
+    public long SCIDBWCS_STATS_VERSION_CHECK_SEC = 10; // seconds until cached statistics are checked against the current array version
+    public int SCIDBWCS_MAX_SAMPLE_POINTS = 10000; // maximum number of points of a single GetSamples request
+    public boolean SCIDBWCS_PREFETCH = true; // speculatively produce likely follow-up requests (panning, time steps, zooming) while the WCS is idle
+    public int SCIDBWCS_PREFETCH_THREADS = 1; // low priority threads producing prefetched and seeded coverages
+    public int SCIDBWCS_PREFETCH_QUEUE_SIZE = 16; // maximum number of waiting prefetch jobs, further predictions are dropped
+    public int SCIDBWCS_PREFETCH_MAX_PER_REQUEST = 2; // maximum number of predicted requests per client request
+    public long SCIDBWCS_PREFETCH_RETAIN_SEC = (long) 5 * 60; // time to keep prefetched coverages
+    public String[] SCIDBWCS_SEED_REQUESTS = {}; // GetCoverage query strings produced during off-peak hours
+    public String SCIDBWCS_SEED_HOURS = "1-5"; // off-peak hours of the day as start-end (end exclusive, e.g. 22-5), empty for always
+    public long SCIDBWCS_SEED_CHECK_SEC = 60; // interval of checking whether seeded coverages are still retained
+    public long SCIDBWCS_SEED_RETAIN_SEC = (long) 24 * 60 * 60; // time to keep seeded coverages
+    public boolean SCIDBWCS_CHUNK_OCCUPANCY = true; // skip empty chunks of sparse arrays using cached chunk occupancy bitmaps
+    public long SCIDBWCS_OCCUPANCY_CHECK_SEC = 10; // seconds until occupancy bitmaps are checked against the current array version
+    public long SCIDBWCS_OCCUPANCY_MAX_CHUNKS = 4000000; // arrays with more spatial chunks get no occupancy bitmap
+    public Map<String, String[]> SCIDBWCS_MOSAICS = new HashMap<>(); // virtual mosaics of aligned arrays by name, e.g. {"M": ["scene1", "scene2"]}, earlier arrays take precedence where they overlap
+    public int SCIDBWCS_MOSAIC_MAX_MEMBERS = 64; // maximum number of mosaicked arrays intersecting a requested bounding box
+    public int SCIDBWCS_CLIP_MAX_TERMS = 1000; // maximum number of cell spans in filter conditions of clip polygons, spans are widened beyond
 
     // WCS Server description for GetCapabilities
     public String WCS_DESCRIPTION = "This WCS prootype implementation for accessing SciDB arrays. Please notice that currently only two-dimensional coverages can be requested (i.e. either a spatial array or a temporal slice of a spatiotemporal array).";
@@ -42,7 +42,7 @@ public class Constants {
     /**
      * File formats supported by this WCS
      */
-    public final static String[] WCS_FORMATS = {"GeoTIFF", "JPEG", "PNG", "BMP", "NetCDF"}; // TODO: Add more from GDAL?
+    public final static String[] WCS_FORMATS = {"GeoTIFF", "COG", "JPEG", "PNG", "BMP", "NetCDF"}; // TODO: Add more from GDAL?
 
     /**
      * Interpolations supported by this WCS
@@ -19,6 +19,7 @@
  */
 package org.n52.scidbwcs.wcs;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.n52.scidbwcs.exception.WCSException;
 
@@ -42,6 +43,17 @@ public abstract class AbstractRequest {
     
      
     public abstract void run(HttpServletResponse response) throws WCSException;
+    
+    /**
+     * Runs the request with access to the original HTTP request, e.g. to identify clients.
+     * By default, this simply calls run(response).
+     * @param request HTTP request
+     * @param response HTTP response
+     * @throws WCSException 
+     */
+    public void run(HttpServletRequest request, HttpServletResponse response) throws WCSException {
+        run(response);
+    }
 
     
 }
@@ -0,0 +1,359 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.n52.scidbwcs.raster.RasterBuffer;
+
+/**
+ * Cells of an array's grid covered by a clip polygon. Polygons are given as
+ * WKT or GeoJSON (multi)polygons and rasterized to spans of cells per row,
+ * a cell is covered if its center is inside the polygon by the even-odd
+ * rule. Spans are pushed down to SciDB as filter condition, such that only
+ * covered cells are read and transferred.
+ */
+public class ClipRegion {
+
+    private static final Pattern RING = Pattern.compile("\\(([^()]+)\\)");
+
+    final long y0; // first row
+    final long[][] spans; // per row from y0, sorted disjoint first and last columns
+
+    ClipRegion(long y0, long[][] spans) {
+        this.y0 = y0;
+        this.spans = spans;
+    }
+
+    /**
+     * Parses a WKT or GeoJSON polygon or multipolygon
+     * @param geometry WKT, or GeoJSON geometry or feature
+     * @return rings as interleaved x and y coordinates, holes and parts are
+     * not distinguished
+     * @throws IllegalArgumentException if the geometry is invalid or not
+     * polygonal
+     */
+    public static List<double[]> parse(String geometry) {
+        String s = geometry.trim();
+        List<double[]> rings = new ArrayList<>();
+        if (s.startsWith("{")) {
+            try {
+                JsonObject o = new JsonParser().parse(s).getAsJsonObject();
+                if (o.has("geometry")) {
+                    o = o.getAsJsonObject("geometry");
+                }
+                String type = o.has("type") ? o.get("type").getAsString() : "";
+                JsonArray coords = o.getAsJsonArray("coordinates");
+                if (type.equals("Polygon")) {
+                    addRings(coords, rings);
+                } else if (type.equals("MultiPolygon")) {
+                    for (JsonElement p : coords) {
+                        addRings(p.getAsJsonArray(), rings);
+                    }
+                } else {
+                    throw new IllegalArgumentException("Polygon or MultiPolygon expected");
+                }
+            } catch (JsonParseException | IllegalStateException | ClassCastException | NullPointerException ex) {
+                throw new IllegalArgumentException("Invalid GeoJSON geometry");
+            }
+        } else {
+            String u = s.toUpperCase();
+            if (!u.startsWith("POLYGON") && !u.startsWith("MULTIPOLYGON")) {
+                throw new IllegalArgumentException("POLYGON or MULTIPOLYGON expected");
+            }
+            Matcher m = RING.matcher(s);
+            while (m.find()) {
+                String[] pts = m.group(1).trim().split("\\s*,\\s*");
+                double[] r = new double[2 * pts.length];
+                for (int i = 0; i < pts.length; ++i) {
+                    String[] c = pts[i].trim().split("\\s+");
+                    if (c.length < 2) {
+                        throw new IllegalArgumentException("Invalid coordinate '" + pts[i] + "'");
+                    }
+                    try {
+                        r[2 * i] = Double.parseDouble(c[0]);
+                        r[2 * i + 1] = Double.parseDouble(c[1]);
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Invalid coordinate '" + pts[i] + "'");
+                    }
+                }
+                rings.add(r);
+            }
+        }
+        for (double[] r : rings) {
+            if (r.length < 6) {
+                throw new IllegalArgumentException("Rings must have at least three vertices");
+            }
+        }
+        if (rings.isEmpty()) {
+            throw new IllegalArgumentException("Empty geometry");
+        }
+        return rings;
+    }
+
+    private static void addRings(JsonArray polygon, List<double[]> rings) {
+        for (JsonElement ring : polygon) {
+            JsonArray pts = ring.getAsJsonArray();
+            double[] r = new double[2 * pts.size()];
+            for (int i = 0; i < pts.size(); ++i) {
+                JsonArray c = pts.get(i).getAsJsonArray();
+                r[2 * i] = c.get(0).getAsDouble();
+                r[2 * i + 1] = c.get(1).getAsDouble();
+            }
+            rings.add(r);
+        }
+    }
+
+    /**
+     * Rasterizes rings given in continuous cell coordinates, where cell i
+     * covers [i, i+1), within a window of cells
+     * @param rings rings as interleaved x and y cell coordinates
+     * @param x0 first column
+     * @param x1 last column
+     * @param y0 first row
+     * @param y1 last row
+     * @return covered cells of the window
+     */
+    public static ClipRegion rasterize(List<double[]> rings, long x0, long x1, long y0, long y1) {
+        int h = (int) (y1 - y0 + 1);
+        double[][] xs = new double[h][];
+        int[] n = new int[h];
+
+        // Crossings of edges with the centers of rows they span
+        for (double[] r : rings) {
+            int k = r.length / 2;
+            for (int i = 0; i < k; ++i) {
+                double ax = r[2 * i], ay = r[2 * i + 1];
+                double bx = r[2 * ((i + 1) % k)], by = r[2 * ((i + 1) % k) + 1];
+                if (ay == by) {
+                    continue;
+                }
+                // Rows whose center c + 0.5 lies in [min(ay, by), max(ay, by))
+                long first = Math.max(y0, (long) Math.ceil(Math.min(ay, by) - 0.5));
+                long last = Math.min(y1, (long) Math.ceil(Math.max(ay, by) - 0.5) - 1);
+                for (long y = first; y <= last; ++y) {
+                    int j = (int) (y - y0);
+                    if (xs[j] == null) {
+                        xs[j] = new double[4];
+                    } else if (n[j] == xs[j].length) {
+                        xs[j] = Arrays.copyOf(xs[j], 2 * n[j]);
+                    }
+                    xs[j][n[j]++] = ax + (y + 0.5 - ay) * (bx - ax) / (by - ay);
+                }
+            }
+        }
+
+        long[][] spans = new long[h][];
+        for (int j = 0; j < h; ++j) {
+            if (n[j] < 2) {
+                spans[j] = new long[0];
+                continue;
+            }
+            Arrays.sort(xs[j], 0, n[j]);
+            long[] s = new long[n[j]];
+            int m = 0;
+            for (int i = 0; i + 1 < n[j]; i += 2) {
+                // Cells whose center c + 0.5 lies in [xa, xb)
+                long a = Math.max(x0, (long) Math.ceil(xs[j][i] - 0.5));
+                long b = Math.min(x1, (long) Math.ceil(xs[j][i + 1] - 0.5) - 1);
+                if (a > b) {
+                    continue;
+                }
+                if (m > 0 && a <= s[m - 1] + 1) {
+                    s[m - 1] = Math.max(s[m - 1], b);
+                } else {
+                    s[m++] = a;
+                    s[m++] = b;
+                }
+            }
+            spans[j] = Arrays.copyOf(s, m);
+        }
+        return new ClipRegion(y0, spans);
+    }
+
+    /**
+     * Gets the bounding box of covered cells
+     * @return first and last column and row, or null if no cell is covered
+     */
+    public long[] bounds() {
+        long[] b = {Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (int j = 0; j < spans.length; ++j) {
+            if (spans[j].length > 0) {
+                b[0] = Math.min(b[0], spans[j][0]);
+                b[1] = Math.max(b[1], spans[j][spans[j].length - 1]);
+                b[2] = Math.min(b[2], y0 + j);
+                b[3] = y0 + j;
+            }
+        }
+        return b[0] <= b[1] ? b : null;
+    }
+
+    /**
+     * Builds a filter condition selecting covered cells of a window in
+     * coordinates relative to the window, as produced by subarray(). Rows with
+     * identical spans are combined. If the condition would consist of more
+     * than the given number of spans, spans are widened to multiples of
+     * increasing powers of two, such that the condition selects a superset
+     * of covered cells.
+     * @param x name of the column dimension
+     * @param y name of the row dimension
+     * @param xmin first column of the window
+     * @param xmax last column of the window
+     * @param ymin first row of the window
+     * @param ymax last row of the window
+     * @param maxTerms maximum number of spans in the condition
+     * @return AFL expression
+     */
+    public String condition(String x, String y, long xmin, long xmax, long ymin, long ymax, int maxTerms) {
+        for (long q = 1;; q *= 2) {
+            List<long[]> rows = new ArrayList<>(); // first and last row followed by spans
+            int terms = 0;
+            long[] prev = null;
+            for (long r = Math.max(ymin, y0); r <= Math.min(ymax, y0 + spans.length - 1); ++r) {
+                long[] s = widen(spans[(int) (r - y0)], xmin, xmax, q);
+                if (s.length == 0) {
+                    prev = null;
+                    continue;
+                }
+                if (prev != null && prev[1] == r - 1 && Arrays.equals(Arrays.copyOfRange(prev, 2, prev.length), s)) {
+                    prev[1] = r;
+                    continue;
+                }
+                prev = new long[s.length + 2];
+                prev[0] = r;
+                prev[1] = r;
+                System.arraycopy(s, 0, prev, 2, s.length);
+                rows.add(prev);
+                terms += s.length / 2;
+            }
+            if (terms > maxTerms && q < xmax - xmin + 1) {
+                continue;
+            }
+            if (rows.isEmpty()) {
+                return "false";
+            }
+            StringBuilder c = new StringBuilder();
+            for (long[] r : rows) {
+                c.append(c.length() > 0 ? " or " : "").append("(");
+                if (r[0] == r[1]) {
+                    c.append(y).append("=").append(r[0] - ymin);
+                } else {
+                    c.append(y).append(">=").append(r[0] - ymin).append(" and ").append(y).append("<=").append(r[1] - ymin);
+                }
+                c.append(" and ");
+                if (r.length > 4) {
+                    c.append("(");
+                }
+                for (int i = 2; i < r.length; i += 2) {
+                    c.append(i > 2 ? " or " : "").append(x).append(">=").append(r[i] - xmin).append(" and ").append(x).append("<=").append(r[i + 1] - xmin);
+                }
+                if (r.length > 4) {
+                    c.append(")");
+                }
+                c.append(")");
+            }
+            return c.toString();
+        }
+    }
+
+    /**
+     * Clips spans to a window and widens them to multiples of q relative to
+     * the window
+     */
+    private static long[] widen(long[] s, long xmin, long xmax, long q) {
+        long[] out = new long[s.length];
+        int m = 0;
+        for (int i = 0; i < s.length; i += 2) {
+            long a = Math.max(s[i], xmin);
+            long b = Math.min(s[i + 1], xmax);
+            if (a > b) {
+                continue;
+            }
+            a = xmin + Math.floorDiv(a - xmin, q) * q;
+            b = Math.min(xmax, xmin + (Math.floorDiv(b - xmin, q) + 1) * q - 1);
+            if (m > 0 && a <= out[m - 1] + 1) {
+                out[m - 1] = Math.max(out[m - 1], b);
+            } else {
+                out[m++] = a;
+                out[m++] = b;
+            }
+        }
+        return Arrays.copyOf(out, m);
+    }
+
+    /**
+     * Sets cells of a reduced grid to nodata if none of the cells they have
+     * been computed from is covered
+     * @param buf reduced grid
+     * @param xmin first column of the window
+     * @param xmax last column of the window
+     * @param ymin first row of the window
+     * @param ymax last row of the window
+     * @param fx downsampling factor of columns
+     * @param fy downsampling factor of rows
+     */
+    public void mask(RasterBuffer buf, long xmin, long xmax, long ymin, long ymax, int fx, int fy) {
+        for (int r = 0; r < buf.getHeight(); ++r) {
+            // Union of spans of all rows of the block
+            List<long[]> u = new ArrayList<>();
+            long ra = ymin + (long) r * fy;
+            long rb = Math.min(ymax, ra + fy - 1);
+            for (long y = Math.max(ra, y0); y <= Math.min(rb, y0 + spans.length - 1); ++y) {
+                long[] s = spans[(int) (y - y0)];
+                for (int i = 0; i < s.length; i += 2) {
+                    u.add(new long[]{s[i], s[i + 1]});
+                }
+            }
+            if (u.size() > 1) {
+                Collections.sort(u, new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] a, long[] b) {
+                        return Long.compare(a[0], b[0]);
+                    }
+                });
+            }
+            int k = 0;
+            long end = Long.MIN_VALUE; // maximum last column of spans before k
+            for (int c = 0; c < buf.getWidth(); ++c) {
+                long ca = xmin + (long) c * fx;
+                long cb = Math.min(xmax, ca + fx - 1);
+                while (k < u.size() && u.get(k)[0] <= cb) {
+                    end = Math.max(end, u.get(k)[1]);
+                    ++k;
+                }
+                if (end < ca) {
+                    for (int b = 0; b < buf.getBandCount(); ++b) {
+                        buf.set(b, c, r, buf.getNoData(b));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Estimates the cost of GetCoverage requests before any execution from array
+ * metadata only, i.e. dimension bounds and chunk sizes, the affine
+ * transformation, attribute types, and the requested output size. Requests
+ * exceeding configured budgets are rejected immediately instead of occupying
+ * SciDB and GDAL until they time out, estimates of accepted requests are used
+ * to classify jobs for scheduling.
+ */
+public class CostEstimator {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(CostEstimator.class);
+
+    // Scanning a cell inside SciDB is much cheaper than transferring and encoding it
+    private static final long SOURCE_CELLS_PER_PIXEL = 16;
+
+    /**
+     * Estimated cost of a request
+     */
+    public static class Estimate {
+
+        public final long sourceCells; // cells of all chunks read by SciDB
+        public final long transferredCells; // cells transferred from SciDB
+        public final long transferredBytes;
+        public final long outputPixels; // pixels of all bands with the same attribute
+        public final long outputBytes;
+
+        Estimate(long sourceCells, long transferredCells, long transferredBytes, long outputPixels, long outputBytes) {
+            this.sourceCells = sourceCells;
+            this.transferredCells = transferredCells;
+            this.transferredBytes = transferredBytes;
+            this.outputPixels = outputPixels;
+            this.outputBytes = outputBytes;
+        }
+
+        /**
+         * Gets the cost used for scheduling in output pixel equivalents
+         * @return cost, comparable with SCIDBWCS_LARGE_JOB_PIXELS
+         */
+        public long schedulingCost() {
+            return Math.max(outputPixels, Math.max(transferredCells, sourceCells / SOURCE_CELLS_PER_PIXEL));
+        }
+
+        /**
+         * Checks the estimate against the configured budgets
+         * @throws WCSException if any budget is exceeded
+         */
+        public void checkBudgets() throws WCSException {
+            check(sourceCells, Config.get().SCIDBWCS_MAX_SOURCE_CELLS, "array cells to read");
+            check(transferredBytes, Config.get().SCIDBWCS_MAX_TRANSFER_BYTES, "bytes to transfer from SciDB");
+            check(outputBytes, Config.get().SCIDBWCS_MAX_OUTPUT_BYTES, "output bytes");
+        }
+
+        private static void check(long value, long budget, String what) throws WCSException {
+            if (budget > 0 && value > budget) {
+                log.info("Rejecting request with an estimated number of " + value + " " + what + " (budget " + budget + ")");
+                throw new WCSException("Request is too large, about " + value + " " + what + " exceed the limit of " + budget + ". Please request a smaller bounding box or a lower resolution.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "source cells: " + sourceCells + ", transferred cells: " + transferredCells + " (" + transferredBytes + " bytes), output pixels: " + outputPixels + " (" + outputBytes + " bytes)";
+        }
+    }
+
+    /**
+     * Estimates the cost of a request. Requests with a bounding box in another
+     * reference system than the array's are assumed to read the full array.
+     * @param req GetCoverage request
+     * @param A metadata of the requested array
+     * @return estimate
+     * @throws WCSException if requested time instants are invalid
+     */
+    public static Estimate estimate(WCSGetCoverageRequest req, Array A) throws WCSException {
+        if (A == null || !A.isSpatial() || A.getXDim() == null || A.getYDim() == null) {
+            return new Estimate(0, 0, 0, 0, 0);
+        }
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+
+        // Spatial window and downsampling, as done by CoveragePlan
+        boolean pushdown = Config.get().SCIDBWCS_PUSHDOWN_SUBSETTING && req.bbox != null && CoveragePlan.supportsCRS(req, A);
+        long[] cells = {xd.getTrueMin(), xd.getTrueMax(), yd.getTrueMin(), yd.getTrueMax()};
+        int[] f = {1, 1};
+        if (pushdown) {
+            double[] window = CoveragePlan.indexWindow(req, A);
+            cells = CoveragePlan.cellWindow(window, A);
+            if (cells == null) {
+                return new Estimate(0, 0, 0, 0, 0); // rejected later
+            }
+            f = CoveragePlan.factors(req, A, window, cells);
+            if (!req.crs.equalsIgnoreCase("IMAGE")) {
+                Array ovr = CoveragePlan.overviewFor(A, f[0], f[1]);
+                if (ovr != null) {
+                    return estimate(req, ovr);
+                }
+            }
+        }
+        long nx = cells[1] - cells[0] + 1;
+        long ny = cells[3] - cells[2] + 1;
+
+        // Requested time slices, whole chunks are read along all dimensions
+        long slices = 1;
+        long tcells = 1;
+        long[] times = null;
+        if (A.isTemporal() && A.getTDim() != null && req.time != null && req.time.length > 0) {
+            times = CoveragePlan.thinTimes(req.timeIndexes(A), req.depth, req.resz);
+        }
+        if (times != null && times.length > 0) {
+            ArrayDimension td = A.getTDim();
+            slices = times.length;
+            tcells = Math.min(CoveragePlan.chunkCount(td, times[0], times[times.length - 1]), slices) * CoveragePlan.chunkSize(td);
+        }
+        long source = multiply(multiply(CoveragePlan.chunkCount(xd, cells[0], cells[1]) * CoveragePlan.chunkSize(xd),
+                CoveragePlan.chunkCount(yd, cells[2], cells[3]) * CoveragePlan.chunkSize(yd)), tcells);
+
+        long cellBytes = 0;
+        for (ArrayAttribute a : RangeSubset.attributes(req, A)) {
+            DataType t = DataType.fromSciDB(a.typeId);
+            cellBytes += (t != null) ? t.size : 8;
+        }
+        // Aggregated time slices are reduced to a single one inside SciDB
+        long outSlices = pushdown && CoveragePlan.aggregateFunction(req) != null ? 1 : slices;
+        long transferred;
+        long transferredBytes;
+        if (pushdown) {
+            // Reduced grid including cell coordinates
+            transferred = multiply(multiply((nx - 1) / f[0] + 1, (ny - 1) / f[1] + 1), outSlices);
+            transferredBytes = multiply(transferred, cellBytes + 16 + (outSlices > 1 ? 8 : 0));
+        } else {
+            transferred = multiply(multiply(nx, ny), slices);
+            transferredBytes = multiply(transferred, cellBytes);
+        }
+
+        long pixels = req.estimatePixels() < Long.MAX_VALUE ? req.estimatePixels() : multiply(nx, ny);
+        pixels = multiply(pixels, outSlices);
+        Estimate e = new Estimate(source, transferred, transferredBytes, pixels, multiply(pixels, cellBytes));
+        log.debug("Estimated cost of request for '" + A.getName() + "': " + e);
+        return e;
+    }
+
+    /**
+     * Multiplies non-negative numbers, saturating at Long.MAX_VALUE
+     */
+    static long multiply(long a, long b) {
+        if (a != 0 && b > Long.MAX_VALUE / a) {
+            return Long.MAX_VALUE;
+        }
+        return a * b;
+    }
+}
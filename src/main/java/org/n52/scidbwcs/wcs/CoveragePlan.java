@@ -0,0 +1,1024 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.ChunkOccupancy;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.raster.Resampler;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Translates a GetCoverage request into a SciDB query that only returns the
+ * cells needed for the output. The requested bounding box is mapped to an
+ * index window using the array's affine transformation, and if the output
+ * has a lower resolution than the array, the window is downsampled inside
+ * SciDB by an integral factor, either by regrid() with averages or by picking
+ * every n-th cell for nearest neighbour interpolation. The reduced grid is at
+ * least as large as the requested output, the final resampling to the exact
+ * output size is left to the encoder. Requested time slices may be aggregated
+ * to a single slice by aggregate() over the temporal dimension.
+ * Cells outside of a clip polygon are filtered before any aggregation.
+ */
+public class CoveragePlan {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(CoveragePlan.class);
+
+    // Names of attributes carrying the cell coordinates of the reduced grid
+    public static final String COL_ATTR = "_wcs_x";
+    public static final String ROW_ATTR = "_wcs_y";
+    public static final String TIME_ATTR = "_wcs_t";
+
+    public final Array array;
+    public final List<ArrayAttribute> attributes;
+
+    // Index window (inclusive) in array coordinates
+    public final long xmin, xmax, ymin, ymax;
+    public final long[] times; // sorted time indexes or null if not temporal
+
+    // Downsampling factors
+    public final int fx, fy;
+
+    // Size of the reduced grid
+    public final int width, height;
+
+    public final boolean nearest;
+
+    // SciDB aggregate function over the requested time slices or null
+    public final String aggregate;
+
+    // Cells covered by the clip polygon or null
+    public final ClipRegion clip;
+
+    private CoveragePlan(Array array, List<ArrayAttribute> attributes, long xmin, long xmax, long ymin, long ymax, long[] times, int fx, int fy, boolean nearest, String aggregate, ClipRegion clip) {
+        this.array = array;
+        this.attributes = attributes;
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+        this.times = times;
+        this.fx = fx;
+        this.fy = fy;
+        this.nearest = nearest;
+        this.aggregate = aggregate;
+        this.clip = clip;
+        this.width = (int) Math.min(Integer.MAX_VALUE, (xmax - xmin) / fx + 1);
+        this.height = (int) Math.min(Integer.MAX_VALUE, (ymax - ymin) / fy + 1);
+    }
+
+    /**
+     * Creates a plan for a request if the request can be pushed down to SciDB
+     *
+     * @param req GetCoverage request
+     * @param A metadata of the requested array
+     * @return plan or null if the request must be processed by GDAL directly,
+     * e.g. because the bounding box is given in another reference system than
+     * the array's
+     * @throws WCSException if the request does not intersect the array
+     */
+    public static CoveragePlan create(WCSGetCoverageRequest req, Array A) throws WCSException {
+        if (A == null || !A.isSpatial() || req.bbox == null || A.getXDim() == null || A.getYDim() == null) {
+            return null;
+        }
+        boolean image = req.crs.equalsIgnoreCase("IMAGE");
+        if (req.response_crs != null && !req.response_crs.isEmpty() && !req.response_crs.equalsIgnoreCase(req.crs)) {
+            return null; // see Reprojection
+        }
+        if (!supportsCRS(req, A)) {
+            log.debug("Cannot push down request with CRS '" + req.crs + "' to array '" + A.getName() + "'");
+            return null;
+        }
+
+        // Only spatial and a temporal dimension with requested time slices are supported
+        long[] times = null;
+        for (ArrayDimension d : A.Dimensions()) {
+            if (d == A.getXDim() || d == A.getYDim()) {
+                continue;
+            }
+            if (A.isTemporal() && d == A.getTDim() && req.time != null && req.time.length > 0) {
+                continue;
+            }
+            return null;
+        }
+        if (A.isTemporal() && A.getTDim() != null) {
+            times = thinTimes(req.timeIndexes(A), req.depth, req.resz);
+        }
+        String aggregate = aggregateFunction(req);
+        if (aggregate != null && times == null) {
+            throw new WCSException("Temporal aggregation requires a TIME parameter for a spatiotemporal coverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+
+        // Only requested attributes and derived bands are read
+        List<ArrayAttribute> attrs = RangeSubset.attributes(req, A);
+        for (ArrayAttribute a : attrs) {
+            if (DataType.fromSciDB(a.typeId) == null) {
+                log.debug("Cannot push down request for array '" + A.getName() + "' with attribute of type '" + a.typeId + "'");
+                return null;
+            }
+        }
+
+        double[] window = indexWindow(req, A);
+        long[] cells = cellWindow(window, A);
+        if (cells == null) {
+            throw new WCSException("Requested bounding box does not intersect the coverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        long x0 = cells[0], x1 = cells[1], y0 = cells[2], y1 = cells[3];
+        int[] f = factors(req, A, window, cells);
+        int fx = f[0];
+        int fy = f[1];
+
+        // Read from the coarsest overview that still has at least the requested resolution,
+        // overviews hold averages and cannot answer nearest neighbour requests
+        boolean nearest = req.interpolation == null || req.interpolation.isEmpty() || req.interpolation.equalsIgnoreCase("nearest");
+        if (!image && !nearest) {
+            Array ovr = overviewFor(A, fx, fy);
+            if (ovr != null) {
+                log.debug("Reading from overview '" + ovr.getName() + "' of array '" + A.getName() + "'");
+                return create(req, ovr);
+            }
+        }
+
+        // Only cells covered by the clip polygon are read
+        ClipRegion clip = null;
+        List<double[]> rings = req.clipRings();
+        if (rings != null) {
+            clip = ClipRegion.rasterize(indexRings(req, A, rings), x0, x1, y0, y1);
+        }
+
+        CoveragePlan plan = new CoveragePlan(A, attrs, x0, x1, y0, y1, times, fx, fy, nearest, aggregate, clip);
+        if ((long) plan.width * plan.height * 8 > Integer.MAX_VALUE) {
+            log.debug("Reduced grid of " + plan.width + "x" + plan.height + " cells is too large to be held in memory");
+            return null;
+        }
+        if (A.getMembers() != null && plan.intersectingMembers().size() > Config.get().SCIDBWCS_MOSAIC_MAX_MEMBERS) {
+            throw new WCSException("Requested bounding box intersects more than " + Config.get().SCIDBWCS_MOSAIC_MAX_MEMBERS + " arrays of the mosaic.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        return plan;
+    }
+
+    /**
+     * Gets the SciDB aggregate function of the AGGREGATE parameter, which
+     * aggregates all requested time slices to a single one
+     * @param req GetCoverage request
+     * @return aggregate function or null if not requested
+     * @throws WCSException if the function is not supported
+     */
+    static String aggregateFunction(WCSGetCoverageRequest req) throws WCSException {
+        String f = req.getParameter("AGGREGATE");
+        if (f == null || f.isEmpty()) {
+            return null;
+        }
+        switch (f.toUpperCase()) {
+            case "MEAN":
+            case "AVG":
+                return "avg";
+            case "MIN":
+                return "min";
+            case "MAX":
+                return "max";
+            case "MEDIAN":
+                return "median";
+            case "SUM":
+                return "sum";
+            default:
+                throw new WCSException("Unsupported temporal aggregation '" + f + "', one of MEAN, MIN, MAX, MEDIAN, SUM expected.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+
+    /**
+     * Checks whether the bounding box of a request is given in image
+     * coordinates or in the reference system of the array
+     * @param req GetCoverage request
+     * @param A array
+     * @return true if the bounding box can be mapped to array indexes
+     */
+    static boolean supportsCRS(WCSGetCoverageRequest req, Array A) {
+        return req.crs.equalsIgnoreCase("IMAGE") || req.crs.equalsIgnoreCase(A.srs().auth_name + ":" + A.srs().auth_id);
+    }
+
+    /**
+     * Maps the bounding box of a request to a continuous index window of the
+     * array's spatial dimensions
+     * @param req GetCoverage request, the CRS must be supported
+     * @param A array
+     * @return minimum and maximum x and y index, where an index i covers [i, i+1)
+     */
+    static double[] indexWindow(WCSGetCoverageRequest req, Array A) {
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        if (req.crs.equalsIgnoreCase("IMAGE")) {
+            return new double[]{xd.getTrueMin() + req.bbox[0], xd.getTrueMin() + req.bbox[2], yd.getTrueMin() + req.bbox[1], yd.getTrueMin() + req.bbox[3]};
+        }
+        AffineTransform a = A.srs().a;
+        double[][] corners = {{req.bbox[0], req.bbox[1]}, {req.bbox[0], req.bbox[3]}, {req.bbox[2], req.bbox[1]}, {req.bbox[2], req.bbox[3]}};
+        double[] w = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double[] c : corners) {
+            AffineTransform.double2 p = a.fInv(new AffineTransform.double2(c[0], c[1]));
+            w[0] = Math.min(w[0], p.x);
+            w[1] = Math.max(w[1], p.x);
+            w[2] = Math.min(w[2], p.y);
+            w[3] = Math.max(w[3], p.y);
+        }
+        return w;
+    }
+
+    /**
+     * Maps rings of a clip polygon to continuous index coordinates of the
+     * array as indexWindow() does for the bounding box
+     * @param req GetCoverage request, the CRS must be supported
+     * @param A array
+     * @param rings rings in the request's reference system
+     * @return rings in index coordinates
+     */
+    static List<double[]> indexRings(WCSGetCoverageRequest req, Array A, List<double[]> rings) {
+        boolean image = req.crs.equalsIgnoreCase("IMAGE");
+        List<double[]> out = new ArrayList<>();
+        for (double[] r : rings) {
+            double[] o = new double[r.length];
+            for (int i = 0; i < r.length; i += 2) {
+                if (image) {
+                    o[i] = A.getXDim().getTrueMin() + r[i];
+                    o[i + 1] = A.getYDim().getTrueMin() + r[i + 1];
+                } else {
+                    AffineTransform.double2 p = A.srs().a.fInv(new AffineTransform.double2(r[i], r[i + 1]));
+                    o[i] = p.x;
+                    o[i + 1] = p.y;
+                }
+            }
+            out.add(o);
+        }
+        return out;
+    }
+
+    /**
+     * Gets the cells covering an index window, clipped to the array's extent
+     * @param window continuous index window as returned by indexWindow()
+     * @param A array
+     * @return first and last x and y index or null if the window does not
+     * intersect the array
+     */
+    static long[] cellWindow(double[] window, Array A) {
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        long x0 = Math.max((long) Math.floor(window[0]), xd.getTrueMin());
+        long x1 = Math.min((long) Math.ceil(window[1]) - 1, xd.getTrueMax());
+        long y0 = Math.max((long) Math.floor(window[2]), yd.getTrueMin());
+        long y1 = Math.min((long) Math.ceil(window[3]) - 1, yd.getTrueMax());
+        if (x1 < x0 || y1 < y0) {
+            return null;
+        }
+        return new long[]{x0, x1, y0, y1};
+    }
+
+    /**
+     * Computes the integral downsampling factors such that the reduced grid
+     * still has at least the requested resolution
+     * @param req GetCoverage request
+     * @param A array
+     * @param window continuous index window
+     * @param cells cell window
+     * @return factors along x and y
+     */
+    static int[] factors(WCSGetCoverageRequest req, Array A, double[] window, long[] cells) {
+        boolean image = req.crs.equalsIgnoreCase("IMAGE");
+        long nx = cells[1] - cells[0] + 1;
+        long ny = cells[3] - cells[2] + 1;
+
+        // Requested output size in pixels of the window
+        double outWidth, outHeight;
+        if (req.width > 0 && req.height > 0) {
+            outWidth = req.width * nx / Math.max(window[1] - window[0], 1);
+            outHeight = req.height * ny / Math.max(window[3] - window[2], 1);
+        } else if (req.resx > 0 && req.resy > 0) {
+            double cellx = image ? 1 : Math.hypot(A.srs().a._a11, A.srs().a._a21);
+            double celly = image ? 1 : Math.hypot(A.srs().a._a12, A.srs().a._a22);
+            outWidth = nx * cellx / req.resx;
+            outHeight = ny * celly / req.resy;
+        } else {
+            outWidth = nx;
+            outHeight = ny;
+        }
+        int fx = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.floor(nx / Math.ceil(outWidth))));
+        int fy = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.floor(ny / Math.ceil(outHeight))));
+        return new int[]{fx, fy};
+    }
+
+    /**
+     * Selects the coarsest overview of an array that still has at least the
+     * resolution given by downsampling factors
+     * @return overview array or null if no overview qualifies
+     */
+    static Array overviewFor(Array A, int fx, int fy) {
+        Array ovr = null;
+        for (Array o : A.getOverviews()) {
+            if (o.getOverviewFactor() <= Math.min(fx, fy) && (ovr == null || o.getOverviewFactor() > ovr.getOverviewFactor())) {
+                ovr = o;
+            }
+        }
+        return ovr;
+    }
+
+    /**
+     * Reduces the requested time slices according to the DEPTH and RESZ
+     * parameters, which are interpreted along the time axis. RESZ keeps every
+     * n-th slice, DEPTH selects the given number of evenly spaced slices.
+     * @param times requested time indexes
+     * @param depth number of output slices or non-positive if not given
+     * @param resz resolution in time slices or non-positive if not given
+     * @return selected time indexes
+     */
+    static long[] thinTimes(long[] times, int depth, double resz) {
+        if (times == null) {
+            return null;
+        }
+        if (resz >= 2) {
+            long step = Math.round(resz);
+            long[] t = new long[(int) ((times.length - 1) / step + 1)];
+            for (int i = 0; i < t.length; ++i) {
+                t[i] = times[(int) (i * step)];
+            }
+            times = t;
+        }
+        if (depth > 0 && depth < times.length) {
+            long[] t = new long[depth];
+            for (int i = 0; i < depth; ++i) {
+                t[i] = times[depth == 1 ? 0 : (int) Math.round((double) i * (times.length - 1) / (depth - 1))];
+            }
+            times = t;
+        }
+        return times;
+    }
+
+    /**
+     * Creates a plan reading the same window for other time slices, e.g. for
+     * reading a data cube in batches
+     * @param subset sorted time indexes
+     * @return new plan
+     */
+    public CoveragePlan withTimes(long[] subset) {
+        return new CoveragePlan(array, attributes, xmin, xmax, ymin, ymax, subset, fx, fy, nearest, aggregate, clip);
+    }
+
+    /**
+     * Builds the AFL query. The result contains the cell coordinates of the
+     * reduced grid as first attributes, followed by the time index relative
+     * to the first requested time if more than one time slice is requested,
+     * and the requested attributes converted to their original types. All time
+     * slices are read in a single pass over the range of requested times.
+     * @return AFL query string
+     */
+    public String toAFL() {
+        ArrayDimension xd = array.getXDim();
+        ArrayDimension yd = array.getYDim();
+
+        // aggregate() drops the temporal dimension before regrid()
+        StringBuilder grid = new StringBuilder();
+        for (ArrayDimension d : array.Dimensions()) {
+            if (isAggregated() && d != xd && d != yd) {
+                continue;
+            }
+            if (grid.length() > 0) {
+                grid.append(",");
+            }
+            grid.append(d == xd ? fx : (d == yd ? fy : 1));
+        }
+        String q = window();
+
+        // Derived bands are computed per cell, before any downsampling
+        StringBuilder derived = new StringBuilder();
+        for (ArrayAttribute a : attributes) {
+            if (a instanceof RangeSubset.DerivedAttribute) {
+                derived.append(",").append(a.name).append(",").append(((RangeSubset.DerivedAttribute) a).expression);
+            }
+        }
+        if (derived.length() > 0) {
+            q = "apply(" + q + derived + ")";
+        }
+
+        // Cells outside of the clip polygon are removed before any aggregation
+        if (clip != null) {
+            q = "filter(" + q + "," + clip.condition(xd.name, yd.name, xmin, xmax, ymin, ymax, Config.get().SCIDBWCS_CLIP_MAX_TERMS) + ")";
+        }
+
+        // Time slices are aggregated before downsampling, the result keeps the spatial dimensions
+        if (isAggregated()) {
+            String tcond = timeCondition();
+            if (!tcond.isEmpty()) {
+                q = "filter(" + q + "," + tcond + ")";
+            }
+            StringBuilder aggr = new StringBuilder();
+            StringBuilder cast = new StringBuilder();
+            for (ArrayAttribute a : attributes) {
+                aggr.append(",").append(aggregate).append("(").append(a.name).append(") as _wcs_t_").append(a.name);
+                String v = "_wcs_t_" + a.name;
+                cast.append(",").append(a.name).append(",").append(aggregate.equals("min") || aggregate.equals("max") ? v : (aggregate.equals("sum") ? "double(" + v + ")" : a.castAverage(v)));
+            }
+            StringBuilder dims = new StringBuilder();
+            for (ArrayDimension d : array.Dimensions()) {
+                if (d == xd || d == yd) {
+                    dims.append(",").append(d.name);
+                }
+            }
+            q = "apply(aggregate(" + q + aggr + dims + ")" + cast + ")";
+        }
+
+        String x = xd.name;
+        String y = yd.name;
+        String cond = "";
+        if (isMultiTemporal()) {
+            cond = timeCondition(); // only the requested slices are transferred
+        }
+        if ((fx > 1 || fy > 1) && nearest) {
+            cond += (cond.isEmpty() ? "" : " and ") + x + "%" + fx + "=0 and " + y + "%" + fy + "=0";
+            x = x + "/" + fx;
+            y = y + "/" + fy;
+        }
+        if (!cond.isEmpty()) {
+            q = "filter(" + q + "," + cond + ")";
+        }
+        if (fx > 1 || fy > 1) {
+            if (!nearest) {
+                StringBuilder aggr = new StringBuilder();
+                StringBuilder cast = new StringBuilder();
+                for (int i = 0; i < attributes.size(); ++i) {
+                    ArrayAttribute a = attributes.get(i);
+                    aggr.append(",avg(").append(a.name).append(") as _wcs_").append(a.name);
+                    cast.append(",").append(a.name).append(",").append(resultType(i).equals("double") ? "_wcs_" + a.name : a.castAverage("_wcs_" + a.name));
+                }
+                q = "apply(regrid(" + q + "," + grid + aggr + ")" + cast + ")";
+            }
+        }
+        String coords = COL_ATTR + "," + x + "," + ROW_ATTR + "," + y;
+        if (isMultiTemporal()) {
+            coords += "," + TIME_ATTR + "," + array.getTDim().name;
+        }
+        q = "apply(" + q + "," + coords + ")";
+
+        StringBuilder proj = new StringBuilder();
+        proj.append(COL_ATTR).append(",").append(ROW_ATTR);
+        if (isMultiTemporal()) {
+            proj.append(",").append(TIME_ATTR);
+        }
+        for (ArrayAttribute a : attributes) {
+            proj.append(",").append(a.name);
+        }
+        return "project(" + q + "," + proj + ")";
+    }
+
+    /**
+     * Builds the query of the window with coordinates starting at 0 as
+     * subarray() does. Windows of mosaics merge the intersecting members,
+     * each shifted to the window's grid by redimension().
+     */
+    private String window() {
+        List<ArrayDimension> dims = array.Dimensions();
+        int n = dims.size();
+        long[] lo = new long[n];
+        long[] hi = new long[n];
+        for (int j = 0; j < n; ++j) {
+            ArrayDimension d = dims.get(j);
+            lo[j] = d == array.getXDim() ? xmin : (d == array.getYDim() ? ymin : times[0]);
+            hi[j] = d == array.getXDim() ? xmax : (d == array.getYDim() ? ymax : times[times.length - 1]);
+        }
+        if (array.getMembers() == null) {
+            return "subarray(" + array.getName() + "," + join(lo) + "," + join(hi) + ")";
+        }
+
+        List<Integer> members = intersectingMembers();
+        if (members.size() == 1 && containsWindow(members.get(0))) {
+            int m = members.get(0);
+            long[] w = memberWindow(m);
+            return "subarray(" + array.getMembers().get(m).getName() + "," + join(Arrays.copyOfRange(w, 0, n)) + "," + join(Arrays.copyOfRange(w, n, 2 * n)) + ")";
+        }
+        StringBuilder attrs = new StringBuilder();
+        StringBuilder names = new StringBuilder();
+        for (ArrayAttribute a : array.Attributes()) {
+            attrs.append(attrs.length() > 0 ? "," : "").append(a.name).append(":").append(a.typeId).append(a.nullable ? " null" : "");
+            names.append(",").append(a.name);
+        }
+        StringBuilder shifted = new StringBuilder();
+        StringBuilder renamed = new StringBuilder();
+        for (int j = 0; j < n; ++j) {
+            ArrayDimension d = dims.get(j);
+            String bounds = "=0:" + (hi[j] - lo[j]) + "," + chunkSize(d) + ",0";
+            shifted.append(j > 0 ? "," : "").append("_wcs_m").append(j).append(bounds);
+            renamed.append(j > 0 ? "," : "").append(d.name).append(bounds);
+        }
+
+        // Earlier members take precedence in merge()
+        String q = null;
+        for (int m : members) {
+            Array M = array.getMembers().get(m);
+            long[] w = memberWindow(m);
+            StringBuilder apply = new StringBuilder();
+            StringBuilder proj = new StringBuilder();
+            for (int j = 0; j < n; ++j) {
+                ArrayDimension d = M.Dimensions().get(j);
+                long off = (d == M.getXDim()) ? array.getMemberColumnOffset(m) : ((d == M.getYDim()) ? array.getMemberRowOffset(m) : 0);
+                long delta = off - lo[j];
+                apply.append(",_wcs_m").append(j).append(",").append(d.name).append(delta < 0 ? "-" : "+").append(Math.abs(delta));
+                proj.append(",_wcs_m").append(j);
+            }
+            String p = "redimension(project(apply(between(" + M.getName() + "," + join(w) + ")" + apply + ")" + names + proj + "),<" + attrs + ">[" + shifted + "])";
+            q = (q == null) ? p : "merge(" + q + "," + p + ")";
+        }
+        return "cast(" + q + ",<" + attrs + ">[" + renamed + "])";
+    }
+
+    private static String join(long[] v) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < v.length; ++i) {
+            s.append(i > 0 ? "," : "").append(v[i]);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Gets the window of a mosaic member in the member's cells
+     * @param m index of the member
+     * @return first cells of all dimensions followed by last cells, or null
+     * if the member does not intersect the window
+     */
+    long[] memberWindow(int m) {
+        long[] w = memberWindow(m, true);
+        for (int j = 0; j < w.length / 2; ++j) {
+            if (w[j] > w[w.length / 2 + j]) {
+                return null;
+            }
+        }
+        return w;
+    }
+
+    private long[] memberWindow(int m, boolean clipped) {
+        Array M = array.getMembers().get(m);
+        int n = M.Dimensions().size();
+        long[] w = new long[2 * n];
+        for (int j = 0; j < n; ++j) {
+            ArrayDimension d = M.Dimensions().get(j);
+            if (d == M.getXDim()) {
+                w[j] = xmin - array.getMemberColumnOffset(m);
+                w[n + j] = xmax - array.getMemberColumnOffset(m);
+            } else if (d == M.getYDim()) {
+                w[j] = ymin - array.getMemberRowOffset(m);
+                w[n + j] = ymax - array.getMemberRowOffset(m);
+            } else {
+                w[j] = times[0];
+                w[n + j] = times[times.length - 1];
+            }
+            if (clipped) {
+                w[j] = Math.max(w[j], d.getTrueMin());
+                w[n + j] = Math.min(w[n + j], d.getTrueMax());
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Gets the members of a mosaic intersecting the window
+     * @return indexes of members in order of precedence
+     */
+    List<Integer> intersectingMembers() {
+        List<Integer> out = new ArrayList<>();
+        for (int m = 0; m < array.getMembers().size(); ++m) {
+            if (memberWindow(m) != null) {
+                out.add(m);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Checks whether a mosaic member contains the whole window and has the
+     * same attributes as the mosaic, such that it can be read directly
+     */
+    private boolean containsWindow(int m) {
+        Array M = array.getMembers().get(m);
+        for (int i = 0; i < M.Attributes().size(); ++i) {
+            if (M.Attributes().get(i).nullable != array.Attributes().get(i).nullable) {
+                return false;
+            }
+        }
+        return Arrays.equals(memberWindow(m, true), memberWindow(m, false));
+    }
+
+    /**
+     * Checks whether more than one time slice is requested, i.e. whether the
+     * query result contains time indexes
+     * @return true for multiple time slices
+     */
+    public boolean isMultiTemporal() {
+        return times != null && times.length > 1 && aggregate == null;
+    }
+
+    /**
+     * Checks whether the requested time slices are aggregated to a single
+     * output slice
+     * @return true if aggregated
+     */
+    public boolean isAggregated() {
+        return times != null && aggregate != null;
+    }
+
+    /**
+     * Builds the filter condition selecting the requested time slices,
+     * relative to the first requested slice. Irregular slices are listed
+     * explicitly.
+     * @return condition or an empty string if all slices between the first and
+     * last requested slice are requested
+     */
+    private String timeCondition() {
+        String t = array.getTDim().name;
+        if (times.length < 2) {
+            return "";
+        }
+        long step = times[1] - times[0];
+        boolean regular = true;
+        for (int i = 2; i < times.length; ++i) {
+            regular &= times[i] - times[i - 1] == step;
+        }
+        if (regular) {
+            return step > 1 ? t + "%" + step + "=0" : "";
+        }
+        StringBuilder cond = new StringBuilder("(");
+        for (int i = 0; i < times.length; ++i) {
+            cond.append(i > 0 ? " or " : "").append(t).append("=").append(times[i] - times[0]);
+        }
+        return cond.append(")").toString();
+    }
+
+    /**
+     * Gets the number of output time slices
+     * @return number of time slices, 1 if not temporal or aggregated
+     */
+    public int timeCount() {
+        return times == null || aggregate != null ? 1 : times.length;
+    }
+
+    /**
+     * Gets the step between requested time indexes if they are evenly spaced
+     * @return step or 0 if time indexes are irregular
+     */
+    public long timeStep() {
+        if (!isMultiTemporal()) {
+            return 1;
+        }
+        long step = times[1] - times[0];
+        for (int i = 2; i < times.length; ++i) {
+            if (times[i] - times[i - 1] != step) {
+                return 0;
+            }
+        }
+        return step;
+    }
+
+    /**
+     * Gets the position of a time index in the list of requested times
+     * @param t time index relative to the first requested time
+     * @return position or -1 if the time has not been requested
+     */
+    public int timeSlot(long t) {
+        if (times == null) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(times, times[0] + t);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * Gets the number of bands of the output, i.e. the number of attributes
+     * times the number of requested time slices
+     * @return number of bands
+     */
+    public int bandCount() {
+        return attributes.size() * timeCount();
+    }
+
+    /**
+     * Gets the band of an attribute at a time slice. Bands are ordered by
+     * attribute first, i.e. the time series of an attribute are contiguous.
+     * @param attr attribute index
+     * @param slot time slot as returned by timeSlot()
+     * @return band index
+     */
+    public int band(int attr, int slot) {
+        return attr * timeCount() + slot;
+    }
+
+    /**
+     * Gets the SciDB binary format string of the query result
+     * @return format string such as "(int64,int64,double null)"
+     */
+    public String binaryFormat() {
+        StringBuilder f = new StringBuilder(isMultiTemporal() ? "(int64,int64,int64" : "(int64,int64");
+        for (int i = 0; i < attributes.size(); ++i) {
+            f.append(",").append(resultType(i));
+            if (isNullable(i)) {
+                f.append(" null");
+            }
+        }
+        return f.append(")").toString();
+    }
+
+    /**
+     * Gets the SciDB type of an attribute in the query result
+     * @param i attribute index
+     * @return "double" for sums over time slices, which would overflow the
+     * attribute's type, the attribute's type otherwise
+     */
+    public String resultType(int i) {
+        return "sum".equals(aggregate) ? "double" : attributes.get(i).typeId;
+    }
+
+    /**
+     * Checks whether an attribute is nullable in the query result
+     * @param i attribute index
+     * @return true if values are prefixed by a null indicator byte
+     */
+    public boolean isNullable(int i) {
+        return attributes.get(i).nullable || isAggregated() || (!nearest && (fx > 1 || fy > 1)); // aggregates are always nullable
+    }
+
+    /**
+     * Computes the affine transformation of the reduced grid
+     * @return geotransform coefficients in GDAL order
+     */
+    public double[] geoTransform() {
+        AffineTransform a = array.srs().a;
+        AffineTransform.double2 o = a.f(new AffineTransform.double2(xmin, ymin));
+        return new double[]{o.x, a._a11 * fx, a._a12 * fy, o.y, a._a21 * fx, a._a22 * fy};
+    }
+
+    /**
+     * Checks whether the array's grid is aligned with the axes of its
+     * reference system, i.e. whether the reduced grid can be resampled to the
+     * requested bounding box without warping
+     * @return true if the affine transformation has no rotation or shear
+     */
+    public boolean isAxisAligned() {
+        AffineTransform a = array.srs().a;
+        return a._a12 == 0 && a._a21 == 0;
+    }
+
+    /**
+     * Resamples the reduced grid to the exact bounding box and size of the
+     * request. Requires an axis-aligned grid.
+     * @param grid reduced grid as read by CoverageReader
+     * @param req request
+     * @return output raster
+     */
+    public RasterBuffer resample(RasterBuffer grid, WCSGetCoverageRequest req) {
+        double x0, y0, scaleX, scaleY;
+        double bw = req.bbox[2] - req.bbox[0];
+        double bh = req.bbox[3] - req.bbox[1];
+        int w, h;
+        if (req.crs.equalsIgnoreCase("IMAGE")) {
+            // Bounding box in cells relative to the array's first cell
+            w = req.width > 0 ? req.width : (int) Math.ceil(bw / req.resx);
+            h = req.height > 0 ? req.height : (int) Math.ceil(bh / req.resy);
+            x0 = (array.getXDim().getTrueMin() + req.bbox[0] - xmin) / fx;
+            y0 = (array.getYDim().getTrueMin() + req.bbox[1] - ymin) / fy;
+            scaleX = bw / Math.max(w, 1) / fx;
+            scaleY = bh / Math.max(h, 1) / fy;
+        } else {
+            w = req.width > 0 ? req.width : (int) Math.ceil(bw / req.resx);
+            h = req.height > 0 ? req.height : (int) Math.ceil(bh / req.resy);
+            double[] gt = grid.getGeoTransform();
+            // The output is north up, starting at the upper left corner of the bounding box
+            x0 = (req.bbox[0] - gt[0]) / gt[1];
+            y0 = (req.bbox[3] - gt[3]) / gt[5];
+            scaleX = bw / Math.max(w, 1) / gt[1];
+            scaleY = -bh / Math.max(h, 1) / gt[5];
+            if (gt[1] < 0) {
+                x0 = (req.bbox[2] - gt[0]) / gt[1];
+                scaleX = -scaleX;
+            }
+        }
+        return Resampler.resample(grid, x0, y0, scaleX, scaleY, Math.max(w, 1), Math.max(h, 1), Resampler.Method.fromWCS(req.interpolation));
+    }
+
+    /**
+     * Derives the tile size of tiled outputs from the chunk size of the array,
+     * such that a tile covers about the area of a chunk at the output
+     * resolution. Sizes are rounded to multiples of 16 as required by TIFF and
+     * limited to [min, max].
+     * @param out output raster
+     * @param min minimum tile size
+     * @param max maximum tile size
+     * @return tile width and height
+     */
+    public int[] tileSize(RasterBuffer out, int min, int max) {
+        double[] gt = out.getGeoTransform();
+        AffineTransform a = array.srs().a;
+        double cx = chunkSize(array.getXDim()) * Math.abs(a._a11 / gt[1]);
+        double cy = chunkSize(array.getYDim()) * Math.abs(a._a22 / gt[5]);
+        return new int[]{roundTile(cx, min, max), roundTile(cy, min, max)};
+    }
+
+    private static int roundTile(double size, int min, int max) {
+        long s = Math.round(size / 16) * 16;
+        return (int) Math.max(min, Math.min(max, s));
+    }
+
+    /**
+     * Splits the plan into plans for disjoint windows that can be read
+     * concurrently. Window borders are placed at chunk borders of the array
+     * where possible, such that no chunk must be read by more than one query,
+     * and are aligned to the downsampling factors, such that the reduced grids
+     * of all parts are parts of this plan's reduced grid. The window is split
+     * into row bands first and bands are split into columns only if there are
+     * fewer chunk rows than requested parts.
+     * @param parts maximum number of parts
+     * @return list of plans, containing only this plan if the window cannot
+     * be split
+     */
+    public List<CoveragePlan> split(int parts) {
+        List<CoveragePlan> out = new ArrayList<>();
+        if (parts <= 1) {
+            out.add(this);
+            return out;
+        }
+        ArrayDimension xd = array.getXDim();
+        ArrayDimension yd = array.getYDim();
+        int ny = (int) Math.min(parts, chunkCount(yd, ymin, ymax));
+        int nx = (int) Math.min((parts + ny - 1) / ny, chunkCount(xd, xmin, xmax));
+        long[] ys = cuts(ymin, ymax, chunkOrigin(yd), chunkSize(yd), fy, ny);
+        long[] xs = cuts(xmin, xmax, chunkOrigin(xd), chunkSize(xd), fx, nx);
+        for (int j = 0; j < ys.length; ++j) {
+            long y1 = (j + 1 < ys.length) ? ys[j + 1] - 1 : ymax;
+            for (int i = 0; i < xs.length; ++i) {
+                long x1 = (i + 1 < xs.length) ? xs[i + 1] - 1 : xmax;
+                out.add(new CoveragePlan(array, attributes, xs[i], x1, ys[j], y1, times, fx, fy, nearest, aggregate, clip));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Shrinks the plan to the cells covered by the clip polygon and to the
+     * spatial chunks of the array that contain cells, see ChunkOccupancy.
+     * Plans of mosaics are not shrunk to occupied chunks.
+     * @return plan reading only the occupied part of the window, this plan if
+     * the occupancy of chunks is unknown, or null if no covered chunk within
+     * the window contains cells
+     */
+    public CoveragePlan occupied() {
+        CoveragePlan p = this;
+        if (clip != null) {
+            long[] c = clip.bounds();
+            if (c == null) {
+                return null;
+            }
+            p = within(c[0], c[1], c[2], c[3]);
+        }
+        if (array.getMembers() != null) {
+            return p.intersectingMembers().isEmpty() ? null : p;
+        }
+        ChunkOccupancy.Bitmap b = ChunkOccupancy.get().of(array);
+        if (b == null) {
+            return p;
+        }
+        long[] w = b.occupiedWindow(p.xmin, p.xmax, p.ymin, p.ymax);
+        if (w == null || p.within(w[0], w[1], w[2], w[3]) != p) {
+            // A recently checked bitmap may miss freshly loaded chunks, the version is verified before cells are omitted
+            b = ChunkOccupancy.get().of(array, true);
+            if (b == null) {
+                return p;
+            }
+            w = b.occupiedWindow(p.xmin, p.xmax, p.ymin, p.ymax);
+        }
+        if (w == null) {
+            return null;
+        }
+        return p.within(w[0], w[1], w[2], w[3]);
+    }
+
+    /**
+     * Restricts the plan to the smallest window containing the given cells
+     * that is aligned to the downsampling factors, such that the reduced grid
+     * of the result is a part of this plan's reduced grid
+     * @param x0 first column
+     * @param x1 last column
+     * @param y0 first row
+     * @param y1 last row
+     * @return plan of the window, offsets in the reduced grid are given by
+     * columnOffset() and rowOffset()
+     */
+    CoveragePlan within(long x0, long x1, long y0, long y1) {
+        long a = xmin + Math.floorDiv(Math.max(x0, xmin) - xmin, fx) * fx;
+        long b = Math.min(xmax, xmin + (Math.floorDiv(Math.min(x1, xmax) - xmin, fx) + 1) * fx - 1);
+        long c = ymin + Math.floorDiv(Math.max(y0, ymin) - ymin, fy) * fy;
+        long d = Math.min(ymax, ymin + (Math.floorDiv(Math.min(y1, ymax) - ymin, fy) + 1) * fy - 1);
+        if (a == xmin && b == xmax && c == ymin && d == ymax) {
+            return this;
+        }
+        return new CoveragePlan(array, attributes, a, b, c, d, times, fx, fy, nearest, aggregate, clip);
+    }
+
+    /**
+     * Gets the column offset of a part of this plan in the reduced grid
+     * @param part plan as returned by split() or within()
+     * @return first column of the part
+     */
+    public int columnOffset(CoveragePlan part) {
+        return (int) ((part.xmin - xmin) / fx);
+    }
+
+    /**
+     * Gets the row offset of a part of this plan in the reduced grid
+     * @param part plan as returned by split() or within()
+     * @return first row of the part
+     */
+    public int rowOffset(CoveragePlan part) {
+        return (int) ((part.ymin - ymin) / fy);
+    }
+
+    /**
+     * Computes the start indexes of at most n parts of the range [lo, hi].
+     * Starts are moved to the nearest chunk border and then to the next
+     * multiple of the factor f relative to lo.
+     */
+    static long[] cuts(long lo, long hi, long origin, long chunk, int f, int n) {
+        List<Long> starts = new ArrayList<>();
+        starts.add(lo);
+        long len = hi - lo + 1;
+        for (int k = 1; k < n; ++k) {
+            long b = lo + len * k / n;
+            if (chunk > 1) {
+                b = origin + Math.round((double) (b - origin) / chunk) * chunk;
+            }
+            if (b <= lo) {
+                continue;
+            }
+            b = lo + ((b - lo + f - 1) / f) * f;
+            if (b > starts.get(starts.size() - 1) && b <= hi) {
+                starts.add(b);
+            }
+        }
+        long[] out = new long[starts.size()];
+        for (int i = 0; i < out.length; ++i) {
+            out[i] = starts.get(i);
+        }
+        return out;
+    }
+
+    static long chunkOrigin(ArrayDimension d) {
+        return d.min != null ? d.min : d.getTrueMin();
+    }
+
+    static long chunkSize(ArrayDimension d) {
+        return (d.chunkSize != null && d.chunkSize > 0) ? d.chunkSize : 1;
+    }
+
+    /**
+     * Number of chunks of a dimension intersecting [lo, hi]
+     */
+    static long chunkCount(ArrayDimension d, long lo, long hi) {
+        long o = chunkOrigin(d);
+        long c = chunkSize(d);
+        return Math.floorDiv(hi - o, c) - Math.floorDiv(lo - o, c) + 1;
+    }
+
+    /**
+     * Gets the number of cells read from the array
+     * @return number of source cells
+     */
+    public long sourceCells() {
+        return (xmax - xmin + 1) * (ymax - ymin + 1) * (times == null ? 1 : times[times.length - 1] - times[0] + 1);
+    }
+
+    /**
+     * Gets the number of cells transferred from SciDB, time slices between
+     * requested slices are filtered in SciDB and not transferred
+     * @return number of cells of the reduced grid
+     */
+    public long transferredCells() {
+        return (long) width * height * timeCount();
+    }
+}
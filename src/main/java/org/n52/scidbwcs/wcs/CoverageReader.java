@@ -0,0 +1,216 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.db.IShimBinaryProcessor;
+import org.n52.scidbwcs.db.ShimClient;
+import org.n52.scidbwcs.exec.RequestExecutors;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Executes coverage plans and reads their results into raster buffers. Cells
+ * are transferred in SciDB's binary format including explicit coordinates,
+ * such that sparse and unordered results are placed correctly. Large windows
+ * are split into chunk-aligned parts which are fetched concurrently and
+ * stitched into a single buffer.
+ */
+public class CoverageReader {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(CoverageReader.class);
+
+    /**
+     * Runs the query of a plan and returns the reduced grid
+     * @param plan coverage plan
+     * @return raster with one band per attribute and time slice, cells not
+     * contained in the result are set to nodata
+     * @throws IOException if the query fails
+     */
+    public static RasterBuffer read(final CoveragePlan plan) throws IOException {
+        int nattr = plan.attributes.size();
+        DataType[] types = new DataType[plan.bandCount()];
+        double[] nodata = new double[plan.bandCount()];
+        for (int i = 0; i < nattr; ++i) {
+            for (int j = 0; j < plan.timeCount(); ++j) {
+                int b = plan.band(i, j);
+                types[b] = DataType.fromSciDB(plan.resultType(i));
+                nodata[b] = types[b].defaultNoData();
+            }
+        }
+        final RasterBuffer buf = new RasterBuffer(plan.width, plan.height, types, nodata);
+        buf.setGeoTransform(plan.geoTransform());
+        buf.setWKT(plan.array.srs().wkt);
+
+        // Only chunks containing cells are read, empty windows are answered without query
+        CoveragePlan occupied = plan.occupied();
+        if (occupied == null) {
+            log.debug("No covered and occupied chunks within source window " + (plan.xmax - plan.xmin + 1) + "x" + (plan.ymax - plan.ymin + 1) + ", returning empty grid");
+            return buf;
+        }
+
+        List<CoveragePlan> parts;
+        if (occupied.transferredCells() >= Config.get().SCIDBWCS_FETCH_SPLIT_CELLS) {
+            parts = occupied.split(Config.get().SCIDBWCS_FETCH_PARALLELISM);
+        } else {
+            parts = new ArrayList<>();
+            parts.add(occupied);
+        }
+        log.debug("Reading reduced grid of " + occupied.width + "x" + occupied.height + " of " + plan.width + "x" + plan.height + " cells (source window " + (occupied.xmax - occupied.xmin + 1) + "x" + (occupied.ymax - occupied.ymin + 1) + ") in " + parts.size() + " part(s)");
+        long start = System.currentTimeMillis();
+        long cells = 0;
+        if (parts.size() == 1) {
+            cells = readPart(plan, occupied, buf);
+        } else {
+            // Parts write disjoint regions of the buffer
+            List<Future<Long>> futures = new ArrayList<>();
+            for (final CoveragePlan part : parts) {
+                futures.add(RequestExecutors.get().fetch().submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return readPart(plan, part, buf);
+                    }
+                }));
+            }
+            try {
+                for (Future<Long> f : futures) {
+                    cells += f.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading coverage");
+            } catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof IOException) ? (IOException) ex.getCause() : new IOException(ex.getCause());
+            } finally {
+                for (Future<Long> f : futures) {
+                    f.cancel(true);
+                }
+            }
+        }
+        log.debug("Read " + cells + " cells in " + (System.currentTimeMillis() - start) + " ms");
+        if (plan.clip != null) {
+            plan.clip.mask(buf, plan.xmin, plan.xmax, plan.ymin, plan.ymax, plan.fx, plan.fy);
+        }
+        return buf;
+    }
+
+    /**
+     * Runs the query of a part of a plan and places its cells in the buffer
+     * of the whole plan
+     * @return number of cells read
+     */
+    private static long readPart(final CoveragePlan plan, final CoveragePlan part, final RasterBuffer buf) throws IOException {
+        String afl = part.toAFL();
+        log.debug("Running " + afl);
+        final long[] cells = {0};
+        ShimClient.get().queryReadBinary(afl, part.binaryFormat(), new IShimBinaryProcessor() {
+            @Override
+            public void process(InputStream in) throws IOException {
+                cells[0] = readCells(part, new DataInputStream(in), buf, plan.columnOffset(part), plan.rowOffset(part));
+            }
+        });
+        return cells[0];
+    }
+
+    /**
+     * Reads binary cells of a plan's result into a buffer
+     * @param ox column of the buffer where the plan's reduced grid starts
+     * @param oy row of the buffer where the plan's reduced grid starts
+     * @return number of cells read
+     */
+    static long readCells(CoveragePlan plan, DataInputStream in, RasterBuffer buf, int ox, int oy) throws IOException {
+        int nattr = plan.attributes.size();
+        String[] typeIds = new String[nattr];
+        boolean[] nullable = new boolean[nattr];
+        boolean multiTemporal = plan.isMultiTemporal();
+        int recordSize = multiTemporal ? 24 : 16;
+        for (int i = 0; i < nattr; ++i) {
+            typeIds[i] = plan.resultType(i);
+            nullable[i] = plan.isNullable(i);
+            recordSize += DataType.sciDBTypeSize(typeIds[i]) + (nullable[i] ? 1 : 0);
+        }
+
+        byte[] record = new byte[recordSize];
+        ByteBuffer r = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        long n = 0;
+        while (true) {
+            try {
+                in.readFully(record);
+            } catch (EOFException ex) {
+                break;
+            }
+            r.clear();
+            long x = r.getLong() + ox;
+            long y = r.getLong() + oy;
+            int slot = multiTemporal ? plan.timeSlot(r.getLong()) : 0;
+            boolean inside = slot >= 0 && x >= 0 && y >= 0 && x < buf.getWidth() && y < buf.getHeight();
+            int idx = (int) (y * buf.getWidth() + x);
+            for (int i = 0; i < nattr; ++i) {
+                boolean isNull = nullable[i] && r.get() != -1; // -1 indicates a present value, otherwise the missing reason code
+                double v = readValue(r, typeIds[i]);
+                if (inside && !isNull) {
+                    buf.set(plan.band(i, slot), idx, v);
+                }
+            }
+            ++n;
+        }
+        return n;
+    }
+
+    private static double readValue(ByteBuffer r, String typeId) {
+        switch (typeId) {
+            case "bool":
+            case "uint8":
+                return r.get() & 0xFF;
+            case "int8":
+                return r.get();
+            case "int16":
+                return r.getShort();
+            case "uint16":
+                return r.getShort() & 0xFFFF;
+            case "int32":
+                return r.getInt();
+            case "uint32":
+                return r.getInt() & 0xFFFFFFFFL;
+            case "float":
+                return r.getFloat();
+            case "int64":
+                return r.getLong();
+            case "uint64": {
+                long v = r.getLong();
+                return v >= 0 ? v : (double) (v >>> 1) * 2.0 + (v & 1);
+            }
+            default:
+                return r.getDouble();
+        }
+    }
+}
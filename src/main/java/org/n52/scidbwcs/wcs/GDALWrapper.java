@@ -19,14 +19,27 @@
  */
 package org.n52.scidbwcs.wcs;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.logging.log4j.LogManager;
-import org.joda.time.DateTime;
 import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.io.TempStorage;
 import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
 import org.n52.scidbwcs.md.ArrayManager;
+import org.n52.scidbwcs.md.SpatialReference;
+import org.n52.scidbwcs.raster.Compression;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.raster.GeoTIFFWriter;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.raster.Resampler;
 import org.n52.scidbwcs.util.Config;
 
 /**
@@ -36,8 +49,9 @@ public class GDALWrapper {
 
     private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(GDALWrapper.class);
 
-    private static ArrayList<String> buildTranslateCommand(WCSGetCoverageRequest req) throws WCSException {
-        ArrayList<String> cmdlist = new ArrayList<>();
+    private static final int COG_TILE_SIZE = 512; // tile size of reprojected cloud optimized GeoTIFFs
+
+    private static String gdalTranslate() {
         String cmd = "";
         if (Config.get().SCIDBWCS_GDALPATH != null) {
             cmd += Config.get().SCIDBWCS_GDALPATH;
@@ -46,7 +60,58 @@ public class GDALWrapper {
             }
         }
         cmd += "./gdal_translate";
-        cmdlist.add(cmd);
+        return cmd;
+    }
+
+    private static void addFormatOptions(ArrayList<String> cmdlist, WCSGetCoverageRequest req, boolean resampling) throws WCSException {
+        switch (req.format.toUpperCase()) {
+            case "JPEG":
+            case "PNG":
+            case "GIF":
+            case "BMP":
+                cmdlist.add("-of");
+                cmdlist.add(req.format.toUpperCase());
+                break;
+            case "GEOTIFF":
+                cmdlist.add("-of");
+                cmdlist.add("GTiff");
+                req.compression().addGDALOptions(cmdlist, GeoTIFFWriter.threads());
+                break;
+            case "COG":
+                cmdlist.add("-of");
+                cmdlist.add("COG");
+                req.compression().addGDALOptions(cmdlist, GeoTIFFWriter.threads(), true);
+                break;
+            case "NETCDF":
+                cmdlist.add("-of");
+                cmdlist.add("netCDF");
+                break;
+        }
+        
+        
+        
+        if (!resampling) {
+            return;
+        }
+        switch (req.interpolation.toUpperCase()) {
+            case "NEAREST":
+                cmdlist.add("-r");
+                cmdlist.add("nearest");
+                break;
+            case "BILINEAR":
+                cmdlist.add("-r");
+                cmdlist.add("bilinear");
+                break;
+            case "BICUBIC":
+                cmdlist.add("-r");
+                cmdlist.add("cubic");
+                break;
+        }
+    }
+
+    private static ArrayList<String> buildTranslateCommand(WCSGetCoverageRequest req, String outDSStr) throws WCSException {
+        ArrayList<String> cmdlist = new ArrayList<>();
+        cmdlist.add(gdalTranslate());
 
         
         if (req.resx > 0 && req.resy > 0) {
@@ -88,96 +153,372 @@ public class GDALWrapper {
 
         
         
+        if (CoveragePlan.aggregateFunction(req) != null) {
+            throw new WCSException("Temporal aggregation is only supported for requests in the coverage's native reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+
         if (req.time != null && req.time.length > 0) {
             // Convert datetime to index (could be done automatically by GDAl as well)
             Array A = ArrayManager.instance().getArrayMD_JDBC(req.coverage);
-            Long tidx = A.trs().indexAtDatetime(DateTime.parse(req.time[0]));
-            
-            if (tidx < A.getTDim().getTrueMin() || tidx > A.getTDim().getTrueMax()) {
-                throw new WCSException("Requested time is out of the coverage's range.",WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            long[] tidx = req.timeIndexes(A);
+            if (tidx.length > 1) {
+                // The SciDB GDAL driver reads single time slices only
+                throw new WCSException("Multiple time slices are only supported for requests in the coverage's native reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
             }
-            // TODO: Check whether tidx is valid in temporal dimension
             
             cmdlist.add("-oo");
-            cmdlist.add("t=" + tidx.toString());
+            cmdlist.add("t=" + Long.toString(tidx[0]));
         }
         
         
         
         
-        switch (req.format.toUpperCase()) {
-            case "JPEG":
-            case "PNG":
-            case "GIF":
-            case "BMP":
-                cmdlist.add("-of");
-                cmdlist.add(req.format.toUpperCase());
-                break;
-            case "GEOTIFF":
-                cmdlist.add("-of");
-                cmdlist.add("GTiff");
-                break;
-            case "NETCDF":
-                cmdlist.add("-of");
-                cmdlist.add("netCDF");
-                break;
+        // Range subsetting, GDAL bands correspond to array attributes
+        for (int b : RangeSubset.bands(req, ArrayManager.instance().getArrayMD_JDBC(req.coverage))) {
+            cmdlist.add("-b");
+            cmdlist.add(Integer.toString(b));
         }
-        
-        
-        
-        switch (req.interpolation.toUpperCase()) {
-            case "NEAREST":
-                cmdlist.add("-r");
-                cmdlist.add("nearest");
-                break;
-            case "BILINEAR":
-                cmdlist.add("-r");
-                cmdlist.add("bilinear");
-                break;
-            case "BICUBIC":
-                cmdlist.add("-r");
-                cmdlist.add("cubic");
-                break;
-        }
-     
+
+        addFormatOptions(cmdlist, req, true);
         
         // SciDB connection string
         String inDSStr = "SCIDB:array=" + req.coverage + " host=" + (Config.get().SCIDBWCS_DB_SSL ? "https" : "http") + "://" + Config.get().SCIDBWCS_DB_HOST + " port=" + Config.get().SCIDBWCS_DB_SHIMPORT + " user=" + Config.get().SCIDBWCS_DB_USER + " password=" + Config.get().SCIDBWCS_DB_PW;
         cmdlist.add(inDSStr);
        
         
-        String outDSStr =  Config.get().SCIDBWCS_TEMPPATH + (Config.get().SCIDBWCS_TEMPPATH.endsWith("/") ? "" : "/") + req.getRequestID();
-        
-        switch (req.format.toUpperCase()) {
+        cmdlist.add(outDSStr);
+
+        return cmdlist;
+    }
+
+    /**
+     * Gets the file extension of output files for a WCS format
+     * @param format WCS format name
+     * @return file extension including the dot
+     */
+    public static String getExtension(String format) {
+        switch (format.toUpperCase()) {
             case "JPEG":
-                outDSStr += ".jpg";
-                break;
+                return ".jpg";
             case "PNG":
-                outDSStr += ".png";
-                break;
+                return ".png";
             case "GIF":
-                outDSStr += ".gif";
-                break;
+                return ".gif";
             case "BMP":
-                outDSStr += ".bmp";
-                break;
+                return ".bmp";
             case "GEOTIFF":
-                outDSStr += ".tif";
-                break;
+            case "COG":
+                return ".tif";
             case "NETCDF":
-                outDSStr += ".nc";
-                break;
+                return ".nc";
         }
-        
-        cmdlist.add(outDSStr);
+        return "";
+    }
 
-        return cmdlist;
+    /**
+     * Runs gdal_translate for a GetCoverage request, writing to a new managed
+     * temporary file
+     * @param req request
+     * @return temporary file referenced once by the caller or null if GDAL failed
+     * @throws WCSException 
+     */
+    public static TempStorage.TempFile runTranslate(WCSGetCoverageRequest req) throws WCSException {
+        if (Config.get().SCIDBWCS_PUSHDOWN_SUBSETTING) {
+            Array A = ArrayManager.instance().getArrayMD_JDBC(req.coverage);
+            Reprojection rp = Reprojection.create(req, A);
+            if (rp != null) {
+                return runTranslate(req, rp.plan, rp);
+            }
+            CoveragePlan plan = CoveragePlan.create(req, A);
+            if (plan != null) {
+                return runTranslate(req, plan);
+            }
+        }
+
+        // The GDAL driver reads single arrays only
+        if (ArrayManager.mosaicMembers(req.coverage) != null) {
+            throw new WCSException("Mosaics are only supported for requests in the coverage's native reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        if (req.getParameter("CLIP") != null) {
+            throw new WCSException("Clip polygons are only supported for requests in the coverage's native reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+
+        // Reserve space for the worst case of eight bytes per pixel, nothing if the size is unknown
+        long estimatedBytes = req.estimatePixels() < Long.MAX_VALUE / 8 ? req.estimatePixels() * 8 : 0;
+        TempStorage.TempFile out = TempStorage.get().allocate(getExtension(req.format), estimatedBytes);
+        ArrayList<String> cmds;
+        try {
+            cmds = buildTranslateCommand(req, out.getPath());
+        } catch (WCSException ex) {
+            out.release();
+            throw ex;
+        }
+        return execute(cmds, out);
     }
 
-    public static String runTranslate(WCSGetCoverageRequest req) throws WCSException {
-        Runtime r = Runtime.getRuntime();
+    /**
+     * Runs a GetCoverage request by reading the reduced grid of a coverage
+     * plan from SciDB and translating it to the output format. The grid is
+     * passed to GDAL as raw file with a VRT header.
+     * @param req request
+     * @param plan plan of the request
+     * @return temporary file referenced once by the caller or null if GDAL failed
+     * @throws WCSException 
+     */
+    public static TempStorage.TempFile runTranslate(WCSGetCoverageRequest req, CoveragePlan plan) throws WCSException {
+        return runTranslate(req, plan, null);
+    }
+
+    /**
+     * Runs a GetCoverage request as runTranslate(req, plan) but warps the
+     * reduced grid to the response CRS of a reprojection
+     * @param req request
+     * @param plan plan of the request
+     * @param rp reprojection whose plan is given, may be null
+     * @return temporary file referenced once by the caller or null if GDAL failed
+     * @throws WCSException 
+     */
+    private static TempStorage.TempFile runTranslate(WCSGetCoverageRequest req, CoveragePlan plan, Reprojection rp) throws WCSException {
+        RasterBuffer buf;
+        try {
+            buf = CoverageReader.read(plan);
+        } catch (IOException ex) {
+            log.error("Reading coverage from SciDB failed: " + ex);
+            throw new WCSException("Reading coverage from SciDB failed", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        }
+
+        // Resample to the exact output grid in the JVM, GDAL only encodes
+        boolean resampled = false;
+        if (rp != null) {
+            long start = System.currentTimeMillis();
+            buf = rp.warp(buf);
+            resampled = true;
+            log.debug("Warped to " + buf.getWidth() + "x" + buf.getHeight() + " pixels in " + (System.currentTimeMillis() - start) + " ms");
+        } else if (plan.isAxisAligned()) {
+            long start = System.currentTimeMillis();
+            buf = plan.resample(buf, req);
+            resampled = true;
+            log.debug("Resampled to " + buf.getWidth() + "x" + buf.getHeight() + " pixels in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        long rawBytes = 0;
+        for (int b = 0; b < buf.getBandCount(); ++b) {
+            rawBytes += buf.getBand(b).capacity();
+        }
+
+        // GeoTIFF and COG are written in the JVM with parallel compression if possible
+        boolean cog = req.format.equalsIgnoreCase("COG");
+        if (resampled && (cog || req.format.equalsIgnoreCase("GEOTIFF"))) {
+            Compression c = req.compression();
+            SpatialReference srs = plan.array.srs();
+            int epsg = rp != null ? rp.epsg : ("EPSG".equalsIgnoreCase(srs.auth_name) ? srs.auth_id : 0);
+            boolean geographic = rp != null ? rp.geographic : isGeographic(srs);
+            if (c.isJavaSupported() && GeoTIFFWriter.supports(buf, cog) && epsg > 0) {
+                String[] descriptions = new String[buf.getBandCount()];
+                for (int b = 0; b < descriptions.length; ++b) {
+                    descriptions[b] = bandDescription(plan, b);
+                }
+                TempStorage.TempFile out = TempStorage.get().allocate(getExtension(req.format), cog ? rawBytes + rawBytes / 3 : rawBytes);
+                try {
+                    if (cog) {
+                        // Overviews average 2x2 pixels unless nearest neighbour interpolation has been requested
+                        // Chunks of the array are not aligned to reprojected grids
+                        int cogTile = Math.max(Config.get().SCIDBWCS_COG_MIN_TILE_SIZE, Math.min(Config.get().SCIDBWCS_COG_MAX_TILE_SIZE, COG_TILE_SIZE));
+                        int[] tile = rp != null ? new int[]{cogTile, cogTile} : plan.tileSize(buf, Config.get().SCIDBWCS_COG_MIN_TILE_SIZE, Config.get().SCIDBWCS_COG_MAX_TILE_SIZE);
+                        Resampler.Method m = Resampler.Method.fromWCS(req.interpolation) == Resampler.Method.NEAREST ? Resampler.Method.NEAREST : Resampler.Method.BILINEAR;
+                        GeoTIFFWriter.writeCOG(buf, epsg, geographic, descriptions, c, tile[0], tile[1], m, out.getFile());
+                    } else {
+                        GeoTIFFWriter.write(buf, epsg, geographic, descriptions, c, out.getFile());
+                    }
+                    out.commit();
+                    return out;
+                } catch (IOException ex) {
+                    out.release();
+                    log.error("Writing GeoTIFF failed: " + ex);
+                    throw new WCSException("Writing coverage failed", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+                }
+            }
+        }
+        TempStorage.TempFile raw = TempStorage.get().allocate(".raw", rawBytes);
+        TempStorage.TempFile vrt = TempStorage.get().allocate(".vrt", 0);
+        try {
+            try (FileChannel c = new FileOutputStream(raw.getFile()).getChannel()) {
+                buf.writeBSQ(c);
+            }
+            raw.commit();
+            writeVRT(buf, plan, req, raw.getFile(), vrt.getFile());
+            vrt.commit();
+
+            ArrayList<String> cmds = new ArrayList<>();
+            cmds.add(gdalTranslate());
+            if (resampled) {
+                // nothing to do
+            } else if (req.crs.equalsIgnoreCase("IMAGE")) {
+                // The reduced grid covers the requested pixel window
+                long w = req.width > 0 ? req.width : (long) Math.ceil((req.bbox[2] - req.bbox[0]) / req.resx);
+                long h = req.height > 0 ? req.height : (long) Math.ceil((req.bbox[3] - req.bbox[1]) / req.resy);
+                cmds.add("-outsize");
+                cmds.add(Long.toString(Math.max(1, w)));
+                cmds.add(Long.toString(Math.max(1, h)));
+            } else {
+                if (req.resx > 0 && req.resy > 0) {
+                    cmds.add("-tr");
+                    cmds.add(Double.toString(req.resx));
+                    cmds.add(Double.toString(req.resy));
+                }
+                if (req.width > 0 && req.height > 0) {
+                    cmds.add("-outsize");
+                    cmds.add(Integer.toString(req.width));
+                    cmds.add(Integer.toString(req.height));
+                }
+                // Clip the reduced grid to the exact bounding box, it is given in the array's reference system
+                cmds.add("-projwin");
+                cmds.add(Double.toString(req.bbox[0]));
+                cmds.add(Double.toString(req.bbox[3]));
+                cmds.add(Double.toString(req.bbox[2]));
+                cmds.add(Double.toString(req.bbox[1]));
+            }
+            addFormatOptions(cmds, req, !resampled);
+            cmds.add(vrt.getPath());
+            long estimatedBytes = req.estimatePixels() < Long.MAX_VALUE / 8 ? req.estimatePixels() * 8 : rawBytes;
+            TempStorage.TempFile out = TempStorage.get().allocate(getExtension(req.format), estimatedBytes);
+            cmds.add(out.getPath());
+            return execute(cmds, out);
+        } catch (IOException ex) {
+            log.error("Writing reduced grid failed: " + ex);
+            throw new WCSException("Writing coverage failed", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        } finally {
+            raw.release();
+            vrt.release();
+        }
+    }
+
+    /**
+     * Writes a GDAL VRT header for a band sequential raw file as written by
+     * RasterBuffer.writeBSQ(). Bands are described by attribute name and
+     * datetime. For NetCDF outputs of multiple time slices of a single
+     * attribute, netCDF driver metadata is added such that GDAL writes a 3D
+     * variable with a time dimension.
+     */
+    private static void writeVRT(RasterBuffer buf, CoveragePlan plan, WCSGetCoverageRequest req, File raw, File vrt) throws IOException {
+        try (FileOutputStream os = new FileOutputStream(vrt)) {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            XMLStreamWriter writer = factory.createXMLStreamWriter(os, "UTF-8");
+
+            writer.writeStartElement("VRTDataset");
+            writer.writeAttribute("rasterXSize", Integer.toString(buf.getWidth()));
+            writer.writeAttribute("rasterYSize", Integer.toString(buf.getHeight()));
+            if (buf.getWKT() != null) {
+                writer.writeStartElement("SRS");
+                writer.writeCharacters(buf.getWKT());
+                writer.writeEndElement(); // SRS
+            }
+            if (buf.getGeoTransform() != null) {
+                double[] gt = buf.getGeoTransform();
+                String gtStr = Double.toString(gt[0]);
+                for (int i = 1; i < 6; ++i) {
+                    gtStr += ", " + Double.toString(gt[i]);
+                }
+                writer.writeStartElement("GeoTransform");
+                writer.writeCharacters(gtStr);
+                writer.writeEndElement(); // GeoTransform
+            }
+            boolean netcdf3D = plan.isMultiTemporal() && plan.attributes.size() == 1 && req.format.equalsIgnoreCase("NETCDF");
+            if (netcdf3D) {
+                StringBuilder values = new StringBuilder();
+                for (long t : plan.times) {
+                    values.append(values.length() > 0 ? "," : "").append(timeValue(plan, t));
+                }
+                writer.writeStartElement("Metadata");
+                writeMDI(writer, "NETCDF_DIM_EXTRA", "{time}");
+                writeMDI(writer, "NETCDF_DIM_time_DEF", "{" + plan.timeCount() + ",6}"); // 6 = NC_DOUBLE
+                writeMDI(writer, "NETCDF_DIM_time_VALUES", "{" + values + "}");
+                writeMDI(writer, "time#standard_name", "time");
+                writeMDI(writer, "time#units", "seconds since 1970-01-01 00:00:00");
+                writeMDI(writer, "time#axis", "T");
+                writer.writeEndElement(); // Metadata
+            }
+            long offset = 0;
+            for (int b = 0; b < buf.getBandCount(); ++b) {
+                DataType t = buf.getType(b);
+                writer.writeStartElement("VRTRasterBand");
+                writer.writeAttribute("dataType", t.gdalName);
+                writer.writeAttribute("band", Integer.toString(b + 1));
+                writer.writeAttribute("subClass", "VRTRawRasterBand");
+                if (b < plan.bandCount()) {
+                    ArrayAttribute a = plan.attributes.get(b / plan.timeCount());
+                    long tidx = plan.times == null ? 0 : plan.times[b % plan.timeCount()];
+                    writeElement(writer, "Description", bandDescription(plan, b));
+                    if (netcdf3D) {
+                        writer.writeStartElement("Metadata");
+                        writeMDI(writer, "NETCDF_VARNAME", a.name);
+                        writeMDI(writer, "NETCDF_DIM_time", timeValue(plan, tidx));
+                        writer.writeEndElement(); // Metadata
+                    }
+                }
+                writeElement(writer, "NoDataValue", Double.isNaN(buf.getNoData(b)) ? "nan" : Double.toString(buf.getNoData(b)));
+                writer.writeStartElement("SourceFilename");
+                writer.writeAttribute("relativeToVRT", "0");
+                writer.writeCharacters(raw.getAbsolutePath());
+                writer.writeEndElement(); // SourceFilename
+                writeElement(writer, "ImageOffset", Long.toString(offset));
+                writeElement(writer, "PixelOffset", Integer.toString(t.size));
+                writeElement(writer, "LineOffset", Long.toString((long) t.size * buf.getWidth()));
+                writeElement(writer, "ByteOrder", "LSB");
+                writer.writeEndElement(); // VRTRasterBand
+                offset += buf.getBand(b).capacity();
+            }
+            writer.writeEndElement(); // VRTDataset
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Describes a band of a plan's output by attribute name and datetime
+     */
+    private static String bandDescription(CoveragePlan plan, int b) {
+        ArrayAttribute a = plan.attributes.get(b / plan.timeCount());
+        if (plan.isAggregated()) {
+            return a.name + "_" + plan.aggregate;
+        }
+        if (!plan.isMultiTemporal()) {
+            return a.name;
+        }
+        return a.name + "@" + plan.array.trs().datetimeAtIndex(plan.times[b % plan.timeCount()]);
+    }
 
-        ArrayList<String> cmds =  buildTranslateCommand(req);
+    private static boolean isGeographic(SpatialReference srs) {
+        return srs.wkt != null && srs.wkt.trim().toUpperCase().startsWith("GEOGCS");
+    }
+
+    private static void writeMDI(XMLStreamWriter writer, String key, String value) throws XMLStreamException {
+        writer.writeStartElement("MDI");
+        writer.writeAttribute("key", key);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Seconds since the epoch of a time index
+     */
+    private static String timeValue(CoveragePlan plan, long t) {
+        return Long.toString(plan.array.trs().datetimeAtIndex(t).getMillis() / 1000);
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Runs a gdal_translate command whose output is written to a temporary file
+     * @return the committed output file or null if GDAL failed
+     */
+    private static TempStorage.TempFile execute(ArrayList<String> cmds, TempStorage.TempFile out) throws WCSException {
+        Runtime r = Runtime.getRuntime();
         String [] cc = new String[cmds.size()];
         for (int i=0; i<cmds.size(); ++i) {
             cc[i] = cmds.get(i);
@@ -186,9 +527,9 @@ public class GDALWrapper {
 
         ///log.debug("Starting system command: '" + cmd + "'");
         //
-        String result = null;
+        TempStorage.TempFile result = null;
         
-        Process p;
+        Process p = null;
         try {
             
             p = r.exec(cc);
@@ -196,12 +537,14 @@ public class GDALWrapper {
             boolean res = p.waitFor(Config.get().SCIDBWCS_GDALTIMOUT_SEC, TimeUnit.SECONDS);
             if (!res) {
                 log.error("GDAL translate exceeded timeout of " + Config.get().SCIDBWCS_GDALTIMOUT_SEC + " seconds, aborting.");
+                p.destroy();
                 // timeout
             } else if (p.exitValue() != 0) {
                 log.error("GDAL translate returned error (return value " + p.exitValue() + ")");
             } else {
                 log.debug("GDAL translate finished. Output file written to " + cmds.get(cmds.size()-1));
-                result = cmds.get(cmds.size()-1);
+                out.commit();
+                result = out;
             }
             
             
@@ -210,10 +553,19 @@ public class GDALWrapper {
             log.error("Unable to start GDAL translate: " + ex);
 
         } catch (InterruptedException ex) {
-            log.error("GDAL translate process has been interrupated: " + ex);
+            // The request has been cancelled, e.g. after a timeout
+            log.warn("GDAL translate process has been interrupted, aborting.");
+            if (p != null) {
+                p.destroy();
+            }
+            out.release();
+            Thread.currentThread().interrupt();
+            throw new WCSException("GDAL translate has been cancelled", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
         }
         
-        
+        if (result == null) {
+            out.release();
+        }
         return result;
         
 
@@ -0,0 +1,172 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.io.FileDelivery;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.StatisticsManager;
+import org.n52.scidbwcs.raster.ColorStyle;
+import org.n52.scidbwcs.raster.ImageRenderer;
+import org.n52.scidbwcs.raster.PNGEncoder;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Renders PNG and JPEG previews in the JVM and streams them directly to the
+ * HTTP response, without GDAL and temporary files. The first band is
+ * rendered as gray image, or the first three bands as RGB image, scaled by
+ * the value ranges configured per coverage in SCIDBWCS_RENDER_RANGES. Nodata
+ * pixels are transparent in PNG images. If a color style is given by the
+ * request parameter STYLE or configured per coverage in SCIDBWCS_RENDER_STYLES,
+ * the first band is rendered with the style's lookup table instead, where
+ * percentile ranges are estimated from cached statistics of the array.
+ */
+public class ImageStreamer {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(ImageStreamer.class);
+
+    /**
+     * Checks whether a request can be rendered in the JVM
+     * @param req request
+     * @param plan plan of the request, may be null
+     * @return true if the request asks for PNG or JPEG output of an
+     * axis-aligned grid
+     */
+    public static boolean supports(WCSGetCoverageRequest req, CoveragePlan plan) {
+        return Config.get().SCIDBWCS_RENDER_IN_JVM && plan != null && plan.isAxisAligned() && (req.format.equalsIgnoreCase("PNG") || req.format.equalsIgnoreCase("JPEG"));
+    }
+
+    /**
+     * Reads, renders and sends the image of a request
+     * @param req request
+     * @param plan plan of the request
+     * @param style color style as returned by style(), may be null
+     * @param response HTTP response
+     * @throws IOException if reading from SciDB or writing the response fails
+     */
+    public static void stream(WCSGetCoverageRequest req, CoveragePlan plan, ColorStyle style, HttpServletResponse response) throws IOException {
+        long start = System.currentTimeMillis();
+        RasterBuffer buf = plan.resample(CoverageReader.read(plan), req);
+        boolean png = req.format.equalsIgnoreCase("PNG");
+        BufferedImage img;
+        if (style != null) {
+            int[] bands = {0};
+            double[] range = style.range;
+            if (range == null && style.percentiles != null) {
+                range = percentiles(plan, style.percentiles);
+            }
+            if (range == null) {
+                range = ImageRenderer.ranges(buf, bands, Config.get().SCIDBWCS_RENDER_RANGES.get(req.coverage));
+            }
+            boolean alpha = png && (style.nodata & 0xFF) != 0xFF && ImageRenderer.hasNoData(buf, bands);
+            img = ImageRenderer.renderLUT(buf, 0, style.lut(), range[0], range[1], style.nodata, alpha);
+        } else {
+            int[] bands = buf.getBandCount() >= 3 ? new int[]{0, 1, 2} : new int[]{0};
+            double[] ranges = ImageRenderer.ranges(buf, bands, Config.get().SCIDBWCS_RENDER_RANGES.get(req.coverage));
+            img = ImageRenderer.render(buf, bands, ranges, png && ImageRenderer.hasNoData(buf, bands));
+        }
+        try {
+            FileDelivery.checkCancelled();
+            response.setContentType(req.getMIME());
+            if (png) {
+                PNGEncoder.write(img, Config.get().SCIDBWCS_PNG_LEVEL, response.getOutputStream());
+            } else {
+                ImageRenderer.writeJPEG(img, Config.get().SCIDBWCS_JPEG_QUALITY, response.getOutputStream());
+                response.getOutputStream().flush();
+            }
+        } finally {
+            ImageRenderer.release(img);
+        }
+        log.debug("Rendered " + buf.getWidth() + "x" + buf.getHeight() + " " + req.format + " image in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Gets the color style of a request or its coverage
+     * @return style or null if the coverage is rendered without style
+     * @throws WCSException if the style is invalid
+     */
+    public static ColorStyle style(WCSGetCoverageRequest req) throws WCSException {
+        String s = null;
+        if (req.parameter != null) {
+            for (Map.Entry<String, String[]> e : req.parameter.entrySet()) {
+                if (e.getKey().equalsIgnoreCase("STYLE")) {
+                    // Values have been split at commas, e.g. of ranges
+                    StringBuilder joined = new StringBuilder();
+                    for (String v : e.getValue()) {
+                        joined.append(joined.length() > 0 ? "," : "").append(v);
+                    }
+                    try {
+                        s = URLDecoder.decode(joined.toString(), "UTF-8");
+                    } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+                        throw new WCSException("Invalid style '" + joined + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+                    }
+                }
+            }
+        }
+        if (s == null && Config.get().SCIDBWCS_RENDER_STYLES != null) {
+            s = Config.get().SCIDBWCS_RENDER_STYLES.get(req.coverage);
+        }
+        if (s == null || s.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return ColorStyle.parse(s);
+        } catch (IllegalArgumentException ex) {
+            throw new WCSException("Invalid style: " + ex.getMessage(), WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+
+    /**
+     * Estimates percentiles of the first attribute within the window of a
+     * plan from cached statistics
+     * @return low and high value or null if statistics are not available,
+     * e.g. for derived bands or temporal aggregates
+     */
+    private static double[] percentiles(CoveragePlan plan, double[] p) {
+        ArrayAttribute a = plan.attributes.get(0);
+        int attr = -1;
+        for (int i = 0; i < plan.array.Attributes().size(); ++i) {
+            if (plan.array.Attributes().get(i).name.equals(a.name)) {
+                attr = i;
+            }
+        }
+        if (attr < 0 || a instanceof RangeSubset.DerivedAttribute || plan.isAggregated()) {
+            return null;
+        }
+        try {
+            long t = plan.times != null ? plan.times[0] : 0;
+            StatisticsManager.Summary s = StatisticsManager.get().window(plan.array, t, plan.xmin, plan.xmax, plan.ymin, plan.ymax)[attr];
+            double lo = s.percentile(p[0]);
+            double hi = s.percentile(p[1]);
+            return Double.isNaN(lo) || Double.isNaN(hi) ? null : new double[]{lo, hi};
+        } catch (IOException ex) {
+            log.warn("Cannot estimate percentiles of coverage '" + plan.array.getName() + "': " + ex);
+            return null;
+        }
+    }
+}
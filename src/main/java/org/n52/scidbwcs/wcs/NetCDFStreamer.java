@@ -0,0 +1,122 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.io.FileDelivery;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.raster.NetCDFWriter;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Streams x/y/t data cubes as NetCDF directly to the HTTP response. Time
+ * slices are read from SciDB in batches limited by
+ * SCIDBWCS_STREAM_BUFFER_BYTES, resampled, and written as NetCDF records
+ * before the next batch is read. Neither the cube nor the output file is
+ * materialized, the response size is known before the first byte is sent.
+ */
+public class NetCDFStreamer {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(NetCDFStreamer.class);
+
+    /**
+     * Checks whether a request can be streamed
+     * @param req request
+     * @param plan plan of the request, may be null
+     * @return true if the request asks for NetCDF output of a temporal array
+     * with an axis-aligned grid
+     */
+    public static boolean supports(WCSGetCoverageRequest req, CoveragePlan plan) {
+        return Config.get().SCIDBWCS_NETCDF_STREAMING && plan != null && plan.times != null && !plan.isAggregated() && plan.isAxisAligned() && req.format.equalsIgnoreCase("NETCDF");
+    }
+
+    /**
+     * Streams the data cube of a request to the response
+     * @param req request
+     * @param plan plan of the request
+     * @param response HTTP response
+     * @throws IOException if reading from SciDB or writing the response fails
+     */
+    public static void stream(WCSGetCoverageRequest req, CoveragePlan plan, HttpServletResponse response) throws IOException {
+        int nattr = plan.attributes.size();
+        int batch = slicesPerBatch(req, plan);
+        log.debug("Streaming " + plan.timeCount() + " time slices of '" + plan.array.getName() + "' as NetCDF in batches of " + batch);
+
+        NetCDFWriter writer = null;
+        WritableByteChannel out = null;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < plan.timeCount(); i += batch) {
+            CoveragePlan part = plan.withTimes(Arrays.copyOfRange(plan.times, i, Math.min(i + batch, plan.timeCount())));
+            RasterBuffer buf = part.resample(CoverageReader.read(part), req);
+
+            // Nothing is written to responses of cancelled requests
+            FileDelivery.checkCancelled();
+
+            // The header is sent after the first batch has been read successfully
+            if (writer == null) {
+                String[] names = new String[nattr];
+                DataType[] types = new DataType[nattr];
+                double[] nodata = new double[nattr];
+                for (int a = 0; a < nattr; ++a) {
+                    names[a] = plan.attributes.get(a).name;
+                    types[a] = buf.getType(part.band(a, 0));
+                    nodata[a] = buf.getNoData(part.band(a, 0));
+                }
+                writer = new NetCDFWriter(buf.getWidth(), buf.getHeight(), plan.timeCount(), names, types, nodata, buf.getGeoTransform(), buf.getWKT());
+                response.setContentType(req.getMIME());
+                response.setHeader("Content-Length", Long.toString(writer.size()));
+                out = Channels.newChannel(response.getOutputStream());
+                writer.writeHeader(out);
+            }
+
+            int[] bands = new int[nattr];
+            for (int s = 0; s < part.timeCount(); ++s) {
+                for (int a = 0; a < nattr; ++a) {
+                    bands[a] = part.band(a, s);
+                }
+                writer.writeRecord(out, buf, bands, plan.array.trs().datetimeAtIndex(part.times[s]).getMillis() / 1000.0);
+            }
+        }
+        response.getOutputStream().flush();
+        log.debug("Streamed " + (writer == null ? 0 : writer.size()) + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Number of time slices whose reduced grid and resampled output fit into
+     * the stream buffer
+     */
+    private static int slicesPerBatch(WCSGetCoverageRequest req, CoveragePlan plan) {
+        long pixels = (long) plan.width * plan.height;
+        if (req.estimatePixels() < Long.MAX_VALUE) {
+            pixels += req.estimatePixels();
+        }
+        long bytesPerSlice = 0;
+        for (int a = 0; a < plan.attributes.size(); ++a) {
+            bytesPerSlice += pixels * DataType.fromSciDB(plan.resultType(a)).size;
+        }
+        return (int) Math.max(1, Math.min(plan.timeCount(), Config.get().SCIDBWCS_STREAM_BUFFER_BYTES / Math.max(1, bytesPerSlice)));
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.joda.time.DateTime;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.exec.CoverageJobScheduler;
+import org.n52.scidbwcs.exec.RequestCoalescer;
+import org.n52.scidbwcs.exec.RequestExecutors;
+import org.n52.scidbwcs.io.TempStorage;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayManager;
+import org.n52.scidbwcs.util.Config;
+
+/**
+ * Speculatively produces coverages that clients are likely to request next,
+ * such that they are served from the results retained by the
+ * RequestCoalescer. Consecutive requests of each client and coverage are
+ * classified as panning, stepping through time, or zooming, and the frequency
+ * of these patterns is learned per coverage. After each request, the most
+ * likely follow-up requests (neighbouring windows, the next or previous time
+ * index, the next zoom level) are executed on a low priority executor, but only
+ * while the CoverageJobScheduler has idle capacity. Configured requests are
+ * additionally seeded during off-peak hours. Streamed formats are neither
+ * predicted nor seeded, since their responses are never served from retained
+ * results. This is a singleton class.
+ */
+public class Prefetcher {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(Prefetcher.class);
+    private static Prefetcher instance = null; // Singleton instance
+
+    static final int PAN = 0, TIME = 1, ZOOM = 2; // access patterns
+    private static final double PATTERN_EWMA_WEIGHT = 0.2;
+    private static final int MAX_HISTORY = 1024; // tracked client and coverage pairs
+    private static final String CLIENT = "prefetch"; // client of speculative jobs for fair queuing
+    private static final double EPS = 1e-6; // relative tolerance comparing bounding boxes
+
+    /**
+     * A predicted request with its estimated likelihood
+     */
+    static class Candidate {
+
+        final WCSGetCoverageRequest req;
+        final double score;
+
+        Candidate(WCSGetCoverageRequest req, double score) {
+            this.req = req;
+            this.score = score;
+        }
+    }
+
+    // Last request per client and coverage
+    private final LinkedHashMap<String, WCSGetCoverageRequest> history = new LinkedHashMap<String, WCSGetCoverageRequest>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WCSGetCoverageRequest> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+    // Learned frequencies of access patterns per coverage
+    private final HashMap<String, double[]> patterns = new HashMap<>();
+    // Keys of submitted but not yet finished speculative jobs
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ScheduledExecutorService scheduler = null;
+
+    private Prefetcher() {
+    }
+
+    /**
+     * Returns the singleton instance
+     *
+     * @return prefetcher instance
+     */
+    public static synchronized Prefetcher get() {
+        if (instance == null) {
+            instance = new Prefetcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts seeding configured requests in the background
+     */
+    public synchronized void start() {
+        if (scheduler != null || Config.get().SCIDBWCS_SEED_REQUESTS == null || Config.get().SCIDBWCS_SEED_REQUESTS.length == 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scidbwcs-seeding");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                seed();
+            }
+        }, 0, Config.get().SCIDBWCS_SEED_CHECK_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops seeding, should be called when the servlet is destroyed
+     */
+    public static synchronized void shutdown() {
+        if (instance != null && instance.scheduler != null) {
+            instance.scheduler.shutdownNow();
+            instance.scheduler = null;
+        }
+    }
+
+    /**
+     * Records a GetCoverage request and submits its likely follow-up requests
+     * @param client identifier of the requesting client
+     * @param req request
+     * @param A array of the request
+     */
+    public void observe(String client, WCSGetCoverageRequest req, Array A) {
+        if (!Config.get().SCIDBWCS_PREFETCH || A == null || req.isStreamedFormat()) {
+            return;
+        }
+        String key = client + "/" + req.coverage;
+        WCSGetCoverageRequest prev;
+        double[] w;
+        synchronized (this) {
+            prev = history.put(key, req);
+            w = patterns.get(req.coverage);
+            if (w == null) {
+                w = new double[]{1.0 / 3, 1.0 / 3, 1.0 / 3};
+                patterns.put(req.coverage, w);
+            }
+            int p = prev != null ? classify(prev, req) : -1;
+            if (p >= 0) {
+                for (int i = 0; i < w.length; ++i) {
+                    w[i] = (1 - PATTERN_EWMA_WEIGHT) * w[i] + (i == p ? PATTERN_EWMA_WEIGHT : 0);
+                }
+            }
+            w = w.clone();
+        }
+        if (!CoverageJobScheduler.get().hasIdleCapacity()) {
+            return;
+        }
+        try {
+            List<Candidate> c = candidates(prev, req, A, w);
+            for (int i = 0; i < Math.min(c.size(), Config.get().SCIDBWCS_PREFETCH_MAX_PER_REQUEST); ++i) {
+                submit(c.get(i).req, A, Config.get().SCIDBWCS_PREFETCH_RETAIN_SEC);
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Predicting follow-up requests of coverage '" + req.coverage + "' failed: " + ex);
+        }
+    }
+
+    /**
+     * Classifies the transition between two requests of the same coverage
+     * @return PAN, TIME, ZOOM, or -1 if requests are unrelated
+     */
+    static int classify(WCSGetCoverageRequest prev, WCSGetCoverageRequest cur) {
+        if (prev.bbox == null || cur.bbox == null || prev.bbox.length != 4 || cur.bbox.length != 4 || !prev.crs.equalsIgnoreCase(cur.crs)) {
+            return -1;
+        }
+        double pw = prev.bbox[2] - prev.bbox[0], ph = prev.bbox[3] - prev.bbox[1];
+        double cw = cur.bbox[2] - cur.bbox[0], ch = cur.bbox[3] - cur.bbox[1];
+        boolean sameSize = close(pw, cw, pw) && close(ph, ch, ph);
+        boolean sameBox = sameSize && close(prev.bbox[0], cur.bbox[0], pw) && close(prev.bbox[1], cur.bbox[1], ph);
+        if (sameBox) {
+            return instant(prev) != null && instant(cur) != null && !instant(prev).equals(instant(cur)) ? TIME : -1;
+        }
+        if (sameSize) {
+            return PAN;
+        }
+        return close(pw / ph, cw / ch, pw / ph) ? ZOOM : -1;
+    }
+
+    /**
+     * Predicts follow-up requests
+     * @param prev previous request of the client, may be null
+     * @param cur current request
+     * @param A array
+     * @param w learned frequencies of PAN, TIME, and ZOOM
+     * @return candidates ordered by decreasing score
+     */
+    static List<Candidate> candidates(WCSGetCoverageRequest prev, WCSGetCoverageRequest cur, Array A, double[] w) {
+        List<Candidate> out = new ArrayList<>();
+        if (cur.bbox == null || cur.bbox.length != 4) {
+            return out;
+        }
+        int p = prev != null ? classify(prev, cur) : -1;
+        double[] b = cur.bbox;
+        double bw = b[2] - b[0], bh = b[3] - b[1];
+
+        // Continue panning in the same direction, or any neighbour
+        if (p == PAN) {
+            out.add(new Candidate(moved(cur, b[0] - prev.bbox[0], b[1] - prev.bbox[1], 1), 2 * w[PAN]));
+        } else {
+            double[][] d = {{bw, 0}, {-bw, 0}, {0, bh}, {0, -bh}};
+            for (double[] v : d) {
+                out.add(new Candidate(moved(cur, v[0], v[1], 1), w[PAN] / 4));
+            }
+        }
+
+        // Next or previous time index, preferring the direction of the last step
+        String t = instant(cur);
+        if (A.isTemporal() && t != null) {
+            long i = A.trs().indexAtDatetime(DateTime.parse(t));
+            long step = 0;
+            if (p == TIME) {
+                step = Long.signum(i - A.trs().indexAtDatetime(DateTime.parse(instant(prev))));
+            }
+            long[] next = step != 0 ? new long[]{i + step} : new long[]{i + 1, i - 1};
+            for (long n : next) {
+                if (n >= A.getTDim().getTrueMin() && n <= A.getTDim().getTrueMax()) {
+                    WCSGetCoverageRequest r = cur.copy();
+                    r.time = new String[]{A.trs().datetimeAtIndex(n).toString()};
+                    out.add(new Candidate(r, (step != 0 ? 2 : 0.5) * w[TIME]));
+                }
+            }
+        }
+
+        // Next zoom level around the center, continuing the last zoom factor
+        double f = 0.5;
+        if (p == ZOOM) {
+            f = bw / (prev.bbox[2] - prev.bbox[0]);
+        }
+        if (f > 0 && !close(f, 1, 1)) {
+            out.add(new Candidate(moved(cur, 0, 0, f), (p == ZOOM ? 2 : 0.5) * w[ZOOM]));
+        }
+
+        Collections.sort(out, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Copies a request with its bounding box shifted and scaled around its
+     * center, the output size in pixels is kept
+     */
+    private static WCSGetCoverageRequest moved(WCSGetCoverageRequest cur, double dx, double dy, double scale) {
+        WCSGetCoverageRequest r = cur.copy();
+        double cx = (cur.bbox[0] + cur.bbox[2]) / 2 + dx;
+        double cy = (cur.bbox[1] + cur.bbox[3]) / 2 + dy;
+        double hw = (cur.bbox[2] - cur.bbox[0]) / 2 * scale;
+        double hh = (cur.bbox[3] - cur.bbox[1]) / 2 * scale;
+        r.bbox = new double[]{cx - hw, cy - hh, cx + hw, cy + hh};
+        r.resx = cur.resx * scale;
+        r.resy = cur.resy * scale;
+        return r;
+    }
+
+    /**
+     * Gets the single requested instant of a request
+     * @return instant or null if the request has no or several instants or
+     * periods
+     */
+    private static String instant(WCSGetCoverageRequest r) {
+        return r.time != null && r.time.length == 1 && !r.time[0].contains("/") ? r.time[0] : null;
+    }
+
+    private static boolean close(double a, double b, double ref) {
+        return Math.abs(a - b) <= EPS * Math.abs(ref);
+    }
+
+    /**
+     * Checks whether an hour of the day is within the configured seeding hours
+     * @param spec hours given as start-end, where the end is exclusive and may
+     * be smaller than the start to wrap around midnight, e.g. 22-5
+     * @param hour hour of the day
+     * @return true if seeding is allowed
+     */
+    static boolean inHours(String spec, int hour) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return true;
+        }
+        String[] p = spec.trim().split("-");
+        int start = Integer.parseInt(p[0].trim());
+        int end = p.length > 1 ? Integer.parseInt(p[1].trim()) : start + 1;
+        return start <= end ? (hour >= start && hour < end) : (hour >= start || hour < end);
+    }
+
+    /**
+     * Submits configured seed requests during off-peak hours unless their
+     * results are still retained
+     */
+    private void seed() {
+        try {
+            if (!inHours(Config.get().SCIDBWCS_SEED_HOURS, Calendar.getInstance().get(Calendar.HOUR_OF_DAY))) {
+                return;
+            }
+            for (String kvp : Config.get().SCIDBWCS_SEED_REQUESTS) {
+                if (!CoverageJobScheduler.get().hasIdleCapacity()) {
+                    return;
+                }
+                try {
+                    WCSGetCoverageRequest req = WCSGetCoverageRequest.fromKVP(kvp);
+                    if (!req.isValid()) {
+                        log.warn("Ignoring invalid seed request '" + kvp + "'");
+                        continue;
+                    }
+                    if (req.isStreamedFormat()) {
+                        log.warn("Ignoring seed request '" + kvp + "' of a streamed format");
+                        continue;
+                    }
+                    submit(req, ArrayManager.instance().getArrayMD_JDBC(req.coverage), Config.get().SCIDBWCS_SEED_RETAIN_SEC);
+                } catch (WCSException | RuntimeException ex) {
+                    log.warn("Cannot seed request '" + kvp + "': " + ex);
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Seeding failed: " + ex);
+        }
+    }
+
+    /**
+     * Produces a coverage on the prefetch executor unless it is already
+     * available, the result is retained by the RequestCoalescer
+     */
+    private void submit(final WCSGetCoverageRequest req, final Array A, final long retainSec) {
+        final String key = req.canonicalKey();
+        if (RequestCoalescer.get().isAvailable(key) || !pending.add(key)) {
+            return;
+        }
+        try {
+            RequestExecutors.get().prefetch().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!CoverageJobScheduler.get().hasIdleCapacity() || RequestCoalescer.get().isAvailable(key)) {
+                            return;
+                        }
+                        CostEstimator.Estimate cost = CostEstimator.estimate(req, A);
+                        cost.checkBudgets();
+                        final long schedulingCost = cost.schedulingCost();
+                        TempStorage.TempFile out = RequestCoalescer.get().execute(key, retainSec, new Callable<TempStorage.TempFile>() {
+                            @Override
+                            public TempStorage.TempFile call() throws WCSException {
+                                return CoverageJobScheduler.get().run(CLIENT, schedulingCost, new Callable<TempStorage.TempFile>() {
+                                    @Override
+                                    public TempStorage.TempFile call() throws WCSException {
+                                        return GDALWrapper.runTranslate(req);
+                                    }
+                                });
+                            }
+                        });
+                        if (out != null) {
+                            out.release(); // the retained result is kept by the coalescer
+                        }
+                        log.debug("Prefetched request '" + key + "'");
+                    } catch (WCSException | RuntimeException ex) {
+                        log.debug("Prefetching request '" + key + "' failed: " + ex);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pending.remove(key); // speculative work is simply dropped if the queue is full
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+
+/**
+ * Range subsetting of GetCoverage requests. The ATTRIBUTE parameter (the
+ * range axis of DescribeCoverage, BAND is accepted as well) selects array
+ * attributes by name or 1-based index in the given order. The EXPRESSION
+ * parameter adds derived bands computed by SciDB's apply(), e.g.
+ * EXPRESSION=ndvi:(nir-red)/(nir+red). Multiple expressions are separated by
+ * semicolons. If only expressions are given, the output consists of derived
+ * bands only. Expressions are validated against a small grammar of numbers,
+ * attribute names, operators and whitelisted functions before they are
+ * inserted into AFL queries.
+ */
+public class RangeSubset {
+
+    private static final String[] SELECTION_PARAMETERS = {"ATTRIBUTE", "BAND"};
+    private static final String EXPRESSION_PARAMETER = "EXPRESSION";
+
+    private static final Set<String> FUNCTIONS = new HashSet<>(Arrays.asList(
+            "abs", "sqrt", "exp", "log", "log10", "pow", "floor", "ceil", "round",
+            "sin", "cos", "tan", "asin", "acos", "atan", "iif", "is_nan", "is_null",
+            "double", "float", "int8", "int16", "int32", "int64", "uint8", "uint16", "uint32", "uint64"));
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("and", "or", "not", "true", "false"));
+
+    /**
+     * A band computed from array attributes, its values are always doubles
+     */
+    public static class DerivedAttribute extends ArrayAttribute {
+
+        public final String expression; // validated AFL expression
+
+        DerivedAttribute(String name, String expression, boolean nullable) {
+            super(name, "double", nullable);
+            this.expression = expression;
+        }
+    }
+
+    /**
+     * Gets the attributes of the output of a request, including derived bands
+     * @param req GetCoverage request
+     * @param A array
+     * @return selected attributes in requested order, all attributes of the
+     * array if no range subset is requested
+     * @throws WCSException if attributes are unknown or expressions are invalid
+     */
+    public static List<ArrayAttribute> attributes(WCSGetCoverageRequest req, Array A) throws WCSException {
+        List<ArrayAttribute> out = new ArrayList<>();
+        for (int i : selection(req, A)) {
+            out.add(A.Attributes().get(i));
+        }
+        List<DerivedAttribute> derived = expressions(req, A);
+        if (out.isEmpty() && derived.isEmpty()) {
+            return new ArrayList<>(A.Attributes());
+        }
+        out.addAll(derived);
+        return out;
+    }
+
+    /**
+     * Gets the 1-based band numbers of selected attributes, e.g. for
+     * gdal_translate -b
+     * @param req GetCoverage request
+     * @param A array
+     * @return band numbers, empty if all bands are requested
+     * @throws WCSException if the request contains expressions, which can
+     * only be evaluated by SciDB
+     */
+    public static int[] bands(WCSGetCoverageRequest req, Array A) throws WCSException {
+        if (!expressions(req, A).isEmpty()) {
+            throw new WCSException("Band expressions are only supported for requests in the coverage's native reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        List<Integer> sel = selection(req, A);
+        int[] b = new int[sel.size()];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = sel.get(i) + 1;
+        }
+        return b;
+    }
+
+    /**
+     * Indexes of attributes selected by name or 1-based number
+     */
+    private static List<Integer> selection(WCSGetCoverageRequest req, Array A) throws WCSException {
+        List<Integer> sel = new ArrayList<>();
+        String[] values = null;
+        for (String p : SELECTION_PARAMETERS) {
+            values = parameterValues(req, p);
+            if (values != null) {
+                break;
+            }
+        }
+        if (values == null) {
+            return sel;
+        }
+        for (String v : values) {
+            v = v.trim();
+            if (v.isEmpty()) {
+                continue;
+            }
+            int idx = indexOf(A, v);
+            if (idx < 0 && v.matches("[0-9]+")) {
+                idx = Integer.parseInt(v) - 1;
+                if (idx >= A.Attributes().size()) {
+                    idx = -1;
+                }
+            }
+            if (idx < 0) {
+                throw new WCSException("Array '" + A.getName() + "' has no attribute '" + v + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            sel.add(idx);
+        }
+        return sel;
+    }
+
+    private static List<DerivedAttribute> expressions(WCSGetCoverageRequest req, Array A) throws WCSException {
+        List<DerivedAttribute> out = new ArrayList<>();
+        String[] values = parameterValues(req, EXPRESSION_PARAMETER);
+        if (values == null) {
+            return out;
+        }
+        // Values have been split at commas, which may occur as function argument separators
+        StringBuilder joined = new StringBuilder();
+        for (String v : values) {
+            joined.append(joined.length() > 0 ? "," : "").append(v);
+        }
+        String s;
+        try {
+            s = URLDecoder.decode(joined.toString().replace("+", "%2B"), "UTF-8"); // keep literal plus signs
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            throw new WCSException("Invalid band expression '" + joined + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        Set<String> names = new HashSet<>();
+        for (String e : s.split(";")) {
+            if (e.trim().isEmpty()) {
+                continue;
+            }
+            int colon = e.indexOf(':');
+            if (colon < 0) {
+                throw new WCSException("Band expression '" + e + "' must be given as name:expression", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            String name = e.substring(0, colon).trim();
+            if (!name.matches("[A-Za-z][A-Za-z0-9_]*") || indexOf(A, name) >= 0 || isDimension(A, name) || !names.add(name)) {
+                throw new WCSException("Invalid or duplicate band name '" + name + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            String expr = e.substring(colon + 1).trim();
+            boolean nullable = validate(expr, A);
+            out.add(new DerivedAttribute(name, "double(" + expr + ")", nullable));
+        }
+        return out;
+    }
+
+    /**
+     * Checks that an expression only consists of numbers, attribute names of
+     * the array, arithmetic, comparison and logical operators, and
+     * whitelisted functions with balanced parentheses
+     * @param expr expression
+     * @param A array
+     * @return true if the expression references nullable attributes
+     * @throws WCSException if the expression is invalid
+     */
+    static boolean validate(String expr, Array A) throws WCSException {
+        boolean nullable = false;
+        int depth = 0;
+        boolean operand = false; // whether the previous token ends an operand
+        int i = 0;
+        int n = expr.length();
+        if (n == 0) {
+            throw invalid(expr, "empty expression");
+        }
+        while (i < n) {
+            char c = expr.charAt(i);
+            if (Character.isWhitespace(c)) {
+                ++i;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(expr.charAt(i + 1)))) {
+                int j = i;
+                while (j < n && (Character.isDigit(expr.charAt(j)) || expr.charAt(j) == '.')) {
+                    ++j;
+                }
+                if (j < n && (expr.charAt(j) == 'e' || expr.charAt(j) == 'E')) {
+                    ++j;
+                    if (j < n && (expr.charAt(j) == '+' || expr.charAt(j) == '-')) {
+                        ++j;
+                    }
+                    while (j < n && Character.isDigit(expr.charAt(j))) {
+                        ++j;
+                    }
+                }
+                if (operand || !expr.substring(i, j).matches("([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][+-]?[0-9]+)?")) {
+                    throw invalid(expr, "unexpected number '" + expr.substring(i, j) + "'");
+                }
+                operand = true;
+                i = j;
+            } else if (Character.isLetter(c) || c == '_') {
+                int j = i;
+                while (j < n && (Character.isLetterOrDigit(expr.charAt(j)) || expr.charAt(j) == '_')) {
+                    ++j;
+                }
+                String id = expr.substring(i, j);
+                int k = j;
+                while (k < n && Character.isWhitespace(expr.charAt(k))) {
+                    ++k;
+                }
+                boolean call = k < n && expr.charAt(k) == '(';
+                int idx = indexOf(A, id);
+                if (call && FUNCTIONS.contains(id)) {
+                    if (operand) {
+                        throw invalid(expr, "unexpected function '" + id + "'");
+                    }
+                    operand = false; // followed by an opening parenthesis
+                } else if (!call && idx >= 0) {
+                    if (operand) {
+                        throw invalid(expr, "unexpected attribute '" + id + "'");
+                    }
+                    nullable |= A.Attributes().get(idx).nullable;
+                    operand = true;
+                } else if (!call && KEYWORDS.contains(id.toLowerCase())) {
+                    boolean constant = id.equalsIgnoreCase("true") || id.equalsIgnoreCase("false");
+                    if (operand == (constant || id.equalsIgnoreCase("not"))) {
+                        throw invalid(expr, "unexpected '" + id + "'");
+                    }
+                    operand = constant;
+                } else {
+                    throw invalid(expr, "unknown attribute or function '" + id + "'");
+                }
+                i = j;
+            } else if (c == '(') {
+                if (operand) {
+                    throw invalid(expr, "unexpected '('");
+                }
+                ++depth;
+                ++i;
+            } else if (c == ')') {
+                if (!operand || --depth < 0) {
+                    throw invalid(expr, "unexpected ')'");
+                }
+                ++i;
+            } else {
+                String op = null;
+                for (String o : new String[]{"<=", ">=", "<>", "+", "-", "*", "/", "%", "<", ">", "=", ","}) {
+                    if (expr.startsWith(o, i)) {
+                        op = o;
+                        break;
+                    }
+                }
+                if (op == null) {
+                    throw invalid(expr, "unexpected character '" + c + "'");
+                }
+                boolean unary = op.equals("-") || op.equals("+");
+                if (!operand && !unary) {
+                    throw invalid(expr, "unexpected '" + op + "'");
+                }
+                if (op.equals(",") && depth == 0) {
+                    throw invalid(expr, "unexpected ','");
+                }
+                operand = false;
+                i += op.length();
+            }
+        }
+        if (depth != 0 || !operand) {
+            throw invalid(expr, "incomplete expression");
+        }
+        return nullable;
+    }
+
+    private static WCSException invalid(String expr, String reason) {
+        return new WCSException("Invalid band expression '" + expr + "': " + reason, WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+    }
+
+    private static String[] parameterValues(WCSGetCoverageRequest req, String name) {
+        if (req.parameter == null) {
+            return null;
+        }
+        for (Map.Entry<String, String[]> e : req.parameter.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(Array A, String name) {
+        for (int i = 0; i < A.Attributes().size(); ++i) {
+            if (A.Attributes().get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDimension(Array A, String name) {
+        for (ArrayDimension d : A.Dimensions()) {
+            if (d.name.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.geotools.referencing.CRS;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.raster.RasterBuffer;
+import org.n52.scidbwcs.raster.Resampler;
+import org.n52.scidbwcs.raster.Warper;
+import org.n52.scidbwcs.util.Config;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Reprojects GetCoverage outputs to a RESPONSE_CRS that differs from the
+ * array's reference system. The output grid is derived from the bounding box
+ * transformed to the response CRS. The area of the array covering the output
+ * grid is read as reduced grid of a coverage plan and warped in the JVM.
+ * Reference systems and transformations are cached across requests.
+ */
+public class Reprojection {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(Reprojection.class);
+
+    private static final int EDGE_POINTS = 32; // points per edge when transforming bounding boxes
+    private static final int MARGIN_CELLS = 2; // additionally read array cells around the footprint of the output grid
+
+    private static final ConcurrentHashMap<String, CoordinateReferenceSystem> crsCache = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, MathTransform> transformCache = new ConcurrentHashMap<>();
+
+    public final CoveragePlan plan;
+    public final int width, height;
+    public final double[] geoTransform;
+    public final String wkt;
+    public final int epsg; // 0 if the response CRS is not an EPSG code
+    public final boolean geographic;
+
+    private final MathTransform toSource; // from the response CRS to the array's CRS
+    private final Resampler.Method method;
+
+    private Reprojection(CoveragePlan plan, int width, int height, double[] geoTransform, CoordinateReferenceSystem crs, String code, MathTransform toSource, Resampler.Method method) {
+        this.plan = plan;
+        this.width = width;
+        this.height = height;
+        this.geoTransform = geoTransform;
+        this.wkt = crs.toWKT();
+        this.epsg = code.toUpperCase().startsWith("EPSG:") ? Integer.parseInt(code.substring(5).trim()) : 0;
+        this.geographic = crs instanceof GeographicCRS;
+        this.toSource = toSource;
+        this.method = method;
+    }
+
+    /**
+     * Checks whether a request must be reprojected, i.e. whether its bounding
+     * box or response is given in another reference system than the array's
+     * @param req GetCoverage request
+     * @param A array
+     * @return true if the request needs reprojection
+     */
+    public static boolean isRequired(WCSGetCoverageRequest req, Array A) {
+        if (A == null || !A.isSpatial() || req.bbox == null || req.crs.equalsIgnoreCase("IMAGE")) {
+            return false;
+        }
+        String arrayCRS = A.srs().auth_name + ":" + A.srs().auth_id;
+        return !req.crs.equalsIgnoreCase(arrayCRS) || !responseCRS(req).equalsIgnoreCase(arrayCRS);
+    }
+
+    private static String responseCRS(WCSGetCoverageRequest req) {
+        return (req.response_crs == null || req.response_crs.isEmpty()) ? req.crs : req.response_crs;
+    }
+
+    /**
+     * Creates the output grid of a request in its response CRS and plans
+     * reading the corresponding area of the array
+     * @param req GetCoverage request
+     * @param A array
+     * @return reprojection or null if the request does not need reprojection
+     * or cannot be pushed down
+     * @throws WCSException if reference systems are unknown or the bounding box
+     * does not intersect the coverage
+     */
+    public static Reprojection create(WCSGetCoverageRequest req, Array A) throws WCSException {
+        if (!Config.get().SCIDBWCS_REPROJECT_IN_JVM || !isRequired(req, A)) {
+            return null;
+        }
+        String arrayCode = A.srs().auth_name + ":" + A.srs().auth_id;
+        String outCode = responseCRS(req);
+        if (req.getParameter("CLIP") != null && !req.crs.equalsIgnoreCase(arrayCode)) {
+            throw new WCSException("Clip polygons of reprojected requests must be given in the coverage's reference system.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        try {
+            CoordinateReferenceSystem outCRS = decode(outCode, null);
+            MathTransform bboxToOut = transform(req.crs, outCode, null);
+            MathTransform outToSource = transform(outCode, arrayCode, A.srs().wkt);
+
+            // Output extent from densified edges of the bounding box
+            double[] extent = bounds(edges(req.bbox[0], req.bbox[1], req.bbox[2], req.bbox[3]), bboxToOut);
+            if (extent == null || !(extent[2] > extent[0] && extent[3] > extent[1])) {
+                throw new WCSException("Bounding box cannot be transformed to '" + outCode + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            int w, h;
+            if (req.width > 0 && req.height > 0) {
+                w = req.width;
+                h = req.height;
+            } else {
+                w = (int) Math.max(1, Math.ceil((extent[2] - extent[0]) / req.resx));
+                h = (int) Math.max(1, Math.ceil((extent[3] - extent[1]) / req.resy));
+            }
+            double[] gt = {extent[0], (extent[2] - extent[0]) / w, 0, extent[3], 0, -(extent[3] - extent[1]) / h};
+
+            // Footprint of the output grid in the array's reference system
+            double[] src = bounds(grid(gt, w, h), outToSource);
+            if (src == null) {
+                throw new WCSException("Requested bounding box does not intersect the coverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            AffineTransform a = A.srs().a;
+            double cx = MARGIN_CELLS * (Math.abs(a._a11) + Math.abs(a._a12));
+            double cy = MARGIN_CELLS * (Math.abs(a._a21) + Math.abs(a._a22));
+
+            // Read at least at output resolution, the warp interpolates the remaining difference
+            WCSGetCoverageRequest derived = req.copy();
+            derived.crs = arrayCode;
+            derived.response_crs = arrayCode;
+            derived.bbox = new double[]{src[0] - cx, src[1] - cy, src[2] + cx, src[3] + cy};
+            derived.width = -1;
+            derived.height = -1;
+            derived.resx = derived.resy = Math.min((src[2] - src[0]) / w, (src[3] - src[1]) / h);
+            if (!(derived.resx > 0)) {
+                derived.resx = derived.resy = Math.min(Math.abs(a._a11) + Math.abs(a._a12), Math.abs(a._a21) + Math.abs(a._a22));
+            }
+            CoveragePlan plan = CoveragePlan.create(derived, A);
+            if (plan == null) {
+                return null;
+            }
+            log.debug("Reprojecting " + w + "x" + h + " pixels from '" + arrayCode + "' to '" + outCode + "'");
+            return new Reprojection(plan, w, h, gt, outCRS, outCode, outToSource, Resampler.Method.fromWCS(req.interpolation));
+        } catch (FactoryException ex) {
+            log.warn("Cannot reproject request of array '" + A.getName() + "': " + ex);
+            throw new WCSException("Unsupported reference system '" + req.crs + "' or '" + outCode + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+
+    /**
+     * Warps the reduced grid of the plan to the output grid
+     * @param grid reduced grid as read by CoverageReader
+     * @return raster in the response CRS
+     */
+    public RasterBuffer warp(RasterBuffer grid) {
+        final double[] g = grid.getGeoTransform();
+        final double det = g[1] * g[5] - g[2] * g[4];
+        final double[] gt = geoTransform;
+        Warper.PixelMapping m = new Warper.PixelMapping() {
+            @Override
+            public void map(double[] pts, int n) {
+                for (int k = 0; k < 2 * n; k += 2) {
+                    double px = pts[k], py = pts[k + 1];
+                    pts[k] = gt[0] + px * gt[1] + py * gt[2];
+                    pts[k + 1] = gt[3] + px * gt[4] + py * gt[5];
+                }
+                transformInPlace(toSource, pts, n);
+                for (int k = 0; k < 2 * n; k += 2) {
+                    double x = pts[k] - g[0], y = pts[k + 1] - g[3];
+                    pts[k] = (g[5] * x - g[2] * y) / det;
+                    pts[k + 1] = (-g[4] * x + g[1] * y) / det;
+                }
+            }
+        };
+        return Warper.warp(grid, width, height, geoTransform, wkt, m, Config.get().SCIDBWCS_WARP_GRID_STEP, method);
+    }
+
+    /**
+     * Transforms points in place, points that cannot be transformed are set
+     * to NaN
+     */
+    static void transformInPlace(MathTransform t, double[] pts, int n) {
+        try {
+            t.transform(pts, 0, pts, 0, n);
+        } catch (TransformException ex) {
+            // Retry point by point, e.g. if a few points are outside of the projection's domain
+            for (int k = 0; k < 2 * n; k += 2) {
+                try {
+                    t.transform(pts, k, pts, k, 1);
+                } catch (TransformException ex2) {
+                    pts[k] = pts[k + 1] = Double.NaN;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounding box of transformed points, ignoring points that cannot be
+     * transformed
+     * @return minx, miny, maxx, maxy or null if no point can be transformed
+     */
+    private static double[] bounds(double[] pts, MathTransform t) {
+        int n = pts.length / 2;
+        transformInPlace(t, pts, n);
+        double[] b = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int k = 0; k < 2 * n; k += 2) {
+            if (Double.isNaN(pts[k]) || Double.isNaN(pts[k + 1]) || Double.isInfinite(pts[k]) || Double.isInfinite(pts[k + 1])) {
+                continue;
+            }
+            b[0] = Math.min(b[0], pts[k]);
+            b[1] = Math.min(b[1], pts[k + 1]);
+            b[2] = Math.max(b[2], pts[k]);
+            b[3] = Math.max(b[3], pts[k + 1]);
+        }
+        return b[0] <= b[2] && b[1] <= b[3] ? b : null;
+    }
+
+    /**
+     * Points along the edges of a rectangle
+     */
+    private static double[] edges(double xmin, double ymin, double xmax, double ymax) {
+        double[] pts = new double[8 * EDGE_POINTS];
+        int k = 0;
+        for (int i = 0; i < EDGE_POINTS; ++i) {
+            double f = (double) i / EDGE_POINTS;
+            double x = xmin + f * (xmax - xmin);
+            double y = ymin + f * (ymax - ymin);
+            pts[k++] = x;
+            pts[k++] = ymin;
+            pts[k++] = xmax - f * (xmax - xmin);
+            pts[k++] = ymax;
+            pts[k++] = xmin;
+            pts[k++] = ymax - f * (ymax - ymin);
+            pts[k++] = xmax;
+            pts[k++] = y;
+        }
+        return pts;
+    }
+
+    /**
+     * World coordinates of a regular grid of points covering a raster
+     * including its edges, such that the footprint of projections with
+     * extrema in the interior is captured as well
+     */
+    private static double[] grid(double[] gt, int w, int h) {
+        double[] pts = new double[2 * (EDGE_POINTS + 1) * (EDGE_POINTS + 1)];
+        int k = 0;
+        for (int j = 0; j <= EDGE_POINTS; ++j) {
+            double py = (double) j / EDGE_POINTS * h;
+            for (int i = 0; i <= EDGE_POINTS; ++i) {
+                double px = (double) i / EDGE_POINTS * w;
+                pts[k++] = gt[0] + px * gt[1] + py * gt[2];
+                pts[k++] = gt[3] + px * gt[4] + py * gt[5];
+            }
+        }
+        return pts;
+    }
+
+    /**
+     * Decodes a reference system with longitude first axis order
+     * @param code authority code, e.g. EPSG:4326
+     * @param wkt fallback definition if the code is unknown, may be null
+     */
+    private static CoordinateReferenceSystem decode(String code, String wkt) throws FactoryException {
+        String key = code.toUpperCase();
+        CoordinateReferenceSystem crs = crsCache.get(key);
+        if (crs == null) {
+            try {
+                crs = CRS.decode(key, true);
+            } catch (FactoryException ex) {
+                if (wkt == null || wkt.isEmpty()) {
+                    throw ex;
+                }
+                log.debug("Unknown reference system '" + code + "', parsing WKT");
+                crs = CRS.parseWKT(wkt);
+            }
+            crsCache.putIfAbsent(key, crs);
+        }
+        return crs;
+    }
+
+    /**
+     * Gets a cached transformation between reference systems
+     * @param from source authority code
+     * @param to target authority code
+     * @param toWKT fallback definition of the target, may be null
+     */
+    static MathTransform transform(String from, String to, String toWKT) throws FactoryException {
+        String key = from.toUpperCase() + "->" + to.toUpperCase();
+        MathTransform t = transformCache.get(key);
+        if (t == null) {
+            t = CRS.findMathTransform(decode(from, null), decode(to, toWKT), true);
+            transformCache.putIfAbsent(key, t);
+        }
+        return t;
+    }
+}
@@ -25,12 +25,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import org.apache.logging.log4j.LogManager;
 import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.io.FileDelivery;
 import org.n52.scidbwcs.md.Array;
 import org.n52.scidbwcs.md.ArrayManager;
 import org.n52.scidbwcs.md.Extent;
@@ -110,6 +112,11 @@ public class WCSDescribeCoverageRequest extends AbstractRequest {
     
     @Override
     public void run(HttpServletResponse response) throws WCSException {
+        run(null, response);
+    }
+    
+    @Override
+    public void run(HttpServletRequest request, HttpServletResponse response) throws WCSException {
         try {
             List<Array> arrayMD = ArrayManager.instance().getArrayMD_JDBC(this.coverages);
             
@@ -333,8 +340,7 @@ public class WCSDescribeCoverageRequest extends AbstractRequest {
 
             writer.close();
 
-             response.setContentType("application/xml");
-             response.getWriter().print(buf.toString());
+             FileDelivery.sendBytes(request, response, buf.toByteArray(), "application/xml");
 
         } catch (IOException | XMLStreamException  ex) {
             log.error(ex);
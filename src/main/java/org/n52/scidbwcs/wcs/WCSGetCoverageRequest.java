@@ -19,22 +19,37 @@
  */
 package org.n52.scidbwcs.wcs;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.URLDecoder;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Period;
 import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.exec.CoverageJobScheduler;
+import org.n52.scidbwcs.exec.RequestCoalescer;
+import org.n52.scidbwcs.io.FileDelivery;
+import org.n52.scidbwcs.io.TempStorage;
 import org.n52.scidbwcs.md.Array;
 import org.n52.scidbwcs.md.ArrayManager;
+import org.n52.scidbwcs.raster.ColorStyle;
+import org.n52.scidbwcs.raster.Compression;
+import org.n52.scidbwcs.util.Config;
 import org.n52.scidbwcs.util.Constants;
 
 /**
@@ -44,21 +59,6 @@ public class WCSGetCoverageRequest extends AbstractRequest {
 
     private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(WCSGetCoverageRequest.class);
 
-    private static Long curID = new Long(0);
-
-    private Long ID = null;
-
-    public Long getRequestID() {
-        if (ID == null) {
-            assignID();
-        }
-        return ID;
-    }
-
-    private synchronized void assignID() {
-        this.ID = curID++;
-    }
-
     public String coverage;
     public String crs;
     public String response_crs;
@@ -136,24 +136,34 @@ public class WCSGetCoverageRequest extends AbstractRequest {
             req.bbox = null;
         }
 
-        // Time does not support tmin/tmax/tres style
+        // Time is a list of instants and start/end[/res] periods
         if (kv.containsKey("TIME")) {
             String[] time = kv.getOrDefault("TIME", null).split(",");
             kv.remove("TIME");
-            if (!ArrayManager.instance().getArrayMD_JDBC(req.coverage).isTemporal()) {
+            Array A = ArrayManager.instance().getArrayMD_JDBC(req.coverage);
+            if (A == null) {
+                throw new WCSException("Coverage '" + req.coverage + "' cannot be mosaicked, arrays must exist and have aligned grids.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            if (!A.isTemporal()) {
                 throw new WCSException("Array '" + req.coverage + "' has no temporal reference but TIME WCS parameter is given.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
             }
-            if (time.length > 1) {
-                throw new WCSException("Accepts only a single TIME value.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
-            } else if (time.length == 1) {
-
-                if (time[0].split("/").length != 1) {
-                    throw new WCSException("Time period start/end/res not supported.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
-                }
-                try {
-                    DateTime t = DateTime.parse(time[0]);
-                } catch (Exception e) {
-                    throw new WCSException("Invalid datetime format, ISO 8601 expected.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            if (time.length >= 1) {
+                for (String t : time) {
+                    String[] p = t.split("/");
+                    if (p.length < 1 || p.length > 3) {
+                        throw new WCSException("Invalid time period '" + t + "', start/end/res expected.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+                    }
+                    try {
+                        DateTime.parse(p[0]);
+                        if (p.length > 1) {
+                            DateTime.parse(p[1]);
+                        }
+                        if (p.length > 2) {
+                            Period.parse(p[2]);
+                        }
+                    } catch (Exception e) {
+                        throw new WCSException("Invalid datetime format, ISO 8601 expected.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+                    }
                 }
                 req.time = new String[time.length];
                 for (int i = 0; i < time.length; ++i) {
@@ -189,6 +199,127 @@ public class WCSGetCoverageRequest extends AbstractRequest {
 
     
 
+    /**
+     * Resolves the requested instants and periods to indexes of an array's
+     * temporal dimension
+     * @param A temporal array
+     * @return sorted distinct time indexes or null if no time is requested
+     * @throws WCSException if a requested time is out of the array's range or
+     * too many time slices are requested
+     */
+    public long[] timeIndexes(Array A) throws WCSException {
+        if (time == null || time.length == 0) {
+            return null;
+        }
+        long tmin = A.getTDim().getTrueMin();
+        long tmax = A.getTDim().getTrueMax();
+        TreeSet<Long> idx = new TreeSet<>();
+        for (String t : time) {
+            String[] p = t.split("/");
+            if (p.length == 1) {
+                long i = A.trs().indexAtDatetime(DateTime.parse(p[0]));
+                if (i < tmin || i > tmax) {
+                    throw new WCSException("Requested time is out of the coverage's range.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+                }
+                idx.add(i);
+                continue;
+            }
+            long start = Math.max(tmin, A.trs().indexAtOrAfter(DateTime.parse(p[0])));
+            long end = Math.min(tmax, A.trs().indexAtDatetime(DateTime.parse(p[1])));
+            long step = p.length > 2 ? A.trs().stepsOf(Period.parse(p[2])) : 1;
+            if (end < start) {
+                throw new WCSException("Requested time period '" + t + "' does not intersect the coverage's range.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            if ((end - start) / step + 1 + idx.size() > Config.get().SCIDBWCS_MAX_TIME_SLICES) {
+                throw new WCSException("Request exceeds the maximum of " + Config.get().SCIDBWCS_MAX_TIME_SLICES + " time slices.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            for (long i = start; i <= end; i += step) {
+                idx.add(i);
+            }
+        }
+        if (idx.size() > Config.get().SCIDBWCS_MAX_TIME_SLICES) {
+            throw new WCSException("Request exceeds the maximum of " + Config.get().SCIDBWCS_MAX_TIME_SLICES + " time slices.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        long[] out = new long[idx.size()];
+        int k = 0;
+        for (Long i : idx) {
+            out[k++] = i;
+        }
+        return out;
+    }
+
+    /**
+     * Gets the compression of GeoTIFF outputs. Requests may select the codec,
+     * predictor, and level by the additional parameters COMPRESSION, PREDICTOR,
+     * and LEVEL. Otherwise, the coverage's or the default compression is used.
+     * @return compression settings
+     * @throws WCSException if the requested compression is not supported
+     */
+    public Compression compression() throws WCSException {
+        String codec = Config.get().SCIDBWCS_COMPRESSION;
+        String level = null;
+        String cov = Config.get().SCIDBWCS_COVERAGE_COMPRESSION == null ? null : Config.get().SCIDBWCS_COVERAGE_COMPRESSION.get(coverage);
+        if (cov != null) {
+            String[] s = cov.split(":");
+            codec = s[0];
+            level = s.length > 1 ? s[1] : null;
+        }
+        if (getParameter("COMPRESSION") != null) {
+            codec = getParameter("COMPRESSION");
+            level = null;
+        }
+        if (getParameter("LEVEL") != null) {
+            level = getParameter("LEVEL");
+        }
+        try {
+            return Compression.parse(codec, getParameter("PREDICTOR"), level, Config.get().SCIDBWCS_COMPRESSION_LEVEL);
+        } catch (IllegalArgumentException ex) {
+            throw new WCSException("Unsupported compression: " + ex.getMessage(), WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+
+    /**
+     * Gets the clip polygon given by the CLIP parameter as WKT or GeoJSON
+     * (multi)polygon in the request's reference system
+     * @return rings of the polygon or null if not given
+     * @throws WCSException if the geometry is invalid
+     */
+    public List<double[]> clipRings() throws WCSException {
+        if (parameter == null) {
+            return null;
+        }
+        for (Map.Entry<String, String[]> e : parameter.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("CLIP")) {
+                // Parameter values have been split at commas
+                String geometry = String.join(",", e.getValue());
+                try {
+                    return ClipRegion.parse(URLDecoder.decode(geometry, "UTF-8"));
+                } catch (IllegalArgumentException | UnsupportedEncodingException ex) {
+                    throw new WCSException("Invalid CLIP geometry: " + ex.getMessage(), WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the first value of an additional parameter, ignoring the case of
+     * its name
+     * @param name parameter name
+     * @return value or null if not given
+     */
+    public String getParameter(String name) {
+        if (parameter == null) {
+            return null;
+        }
+        for (Map.Entry<String, String[]> e : parameter.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+                return e.getValue()[0];
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean isValid() {
         boolean v = true;
@@ -200,7 +331,7 @@ public class WCSGetCoverageRequest extends AbstractRequest {
         }
         v &= formatSupported;
         v &= (this.resx > 0 && this.resy > 0) || (this.width > 0 && this.height > 0);
-        v &= this.request.equalsIgnoreCase("GetCapabilities");
+        v &= this.request.equalsIgnoreCase("GetCoverage");
         v &= this.service.equalsIgnoreCase("WCS");
         v &= this.crs != null && this.crs.length() > 0;
 
@@ -223,6 +354,7 @@ public class WCSGetCoverageRequest extends AbstractRequest {
                 mime = "image/bmp";
                 break;
             case "GEOTIFF":
+            case "COG":
                 mime = "image/tiff";
                 break;
             case "NETCDF":
@@ -235,31 +367,218 @@ public class WCSGetCoverageRequest extends AbstractRequest {
         return mime;
     }
 
+    /**
+     * Checks whether the output format is streamed without temporary files.
+     * Streamed responses are not retained by the RequestCoalescer.
+     * @return true for NetCDF, PNG, and JPEG outputs if subsetting is pushed
+     * down to SciDB
+     */
+    public boolean isStreamedFormat() {
+        return Config.get().SCIDBWCS_PUSHDOWN_SUBSETTING && (format.equalsIgnoreCase("NETCDF") || format.equalsIgnoreCase("PNG") || format.equalsIgnoreCase("JPEG"));
+    }
+
+    /**
+     * Builds a canonical string representation of all parameters that affect the
+     * produced coverage. Requests with equal keys produce identical outputs.
+     * @return canonical request key
+     */
+    public String canonicalKey() {
+        StringBuilder key = new StringBuilder();
+        key.append("COVERAGE=").append(coverage);
+        key.append("&VERSION=").append(version);
+        key.append("&CRS=").append(crs == null ? "" : crs.toUpperCase());
+        key.append("&RESPONSE_CRS=").append(response_crs == null ? "" : response_crs.toUpperCase());
+        key.append("&BBOX=").append(Arrays.toString(canonicalBBox()));
+        key.append("&TIME=").append(Arrays.toString(canonicalTime()));
+        key.append("&WIDTH=").append(width).append("&HEIGHT=").append(height).append("&DEPTH=").append(depth);
+        key.append("&RESX=").append(resx).append("&RESY=").append(resy).append("&RESZ=").append(resz);
+        key.append("&FORMAT=").append(format == null ? "" : format.toUpperCase());
+        key.append("&INTERPOLATION=").append(interpolation == null ? "" : interpolation.toLowerCase());
+        if (parameter != null) {
+            // Sort additional parameters to make the key independent of their order
+            TreeMap<String, String[]> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            sorted.putAll(parameter);
+            for (Map.Entry<String, String[]> e : sorted.entrySet()) {
+                key.append("&").append(e.getKey().toUpperCase()).append("=").append(Arrays.toString(e.getValue()));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Creates a shallow copy of this request, e.g. to derive requests for
+     * intermediate grids
+     * @return copy sharing bounding box, times and parameters with this request
+     */
+    WCSGetCoverageRequest copy() {
+        WCSGetCoverageRequest r = new WCSGetCoverageRequest();
+        r.url = url;
+        r.service = service;
+        r.version = version;
+        r.request = request;
+        r.coverage = coverage;
+        r.crs = crs;
+        r.response_crs = response_crs;
+        r.bbox = bbox;
+        r.time = time;
+        r.width = width;
+        r.height = height;
+        r.depth = depth;
+        r.resx = resx;
+        r.resy = resy;
+        r.resz = resz;
+        r.format = format;
+        r.exceptions = exceptions;
+        r.parameter = parameter;
+        r.interpolation = interpolation;
+        return r;
+    }
+
+    /**
+     * Rounds bounding box coordinates to 12 significant digits, such that
+     * boxes computed by clients or the prefetcher with different rounding
+     * errors share results
+     */
+    private double[] canonicalBBox() {
+        if (bbox == null) {
+            return null;
+        }
+        double[] b = new double[bbox.length];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = Double.isNaN(bbox[i]) || Double.isInfinite(bbox[i]) ? bbox[i] : new BigDecimal(bbox[i]).round(new MathContext(12)).doubleValue();
+        }
+        return b;
+    }
+
+    /**
+     * Normalizes instants and period boundaries to UTC ISO 8601 strings
+     */
+    private String[] canonicalTime() {
+        if (time == null) {
+            return null;
+        }
+        String[] t = new String[time.length];
+        for (int i = 0; i < t.length; ++i) {
+            String[] p = time[i].split("/");
+            StringBuilder s = new StringBuilder();
+            for (int j = 0; j < p.length; ++j) {
+                s.append(j > 0 ? "/" : "").append(j < 2 ? DateTime.parse(p[j]).withZone(DateTimeZone.UTC).toString() : p[j]);
+            }
+            t[i] = s.toString();
+        }
+        return t;
+    }
+
+    /**
+     * Estimates the number of pixels of the requested coverage
+     * @return estimated number of output pixels or Long.MAX_VALUE if unknown
+     */
+    public long estimatePixels() {
+        if (this.width > 0 && this.height > 0) {
+            return (long) this.width * (long) this.height;
+        }
+        if (this.resx > 0 && this.resy > 0 && this.bbox != null) {
+            return (long) Math.ceil(Math.abs(this.bbox[2] - this.bbox[0]) / this.resx) * (long) Math.ceil(Math.abs(this.bbox[3] - this.bbox[1]) / this.resy);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run(HttpServletRequest request, HttpServletResponse response) throws WCSException {
+        run(request.getRemoteAddr(), request, response);
+    }
+
     @Override
     public void run(HttpServletResponse response) throws WCSException {
+        run("", null, response);
+    }
+
+    /**
+     * Runs a streaming job after admission by the coverage job scheduler.
+     * Plans without any occupied chunk are answered with nodata only and
+     * therefore run immediately.
+     */
+    private static <T> T schedule(String client, long cost, CoveragePlan plan, Callable<T> job) throws WCSException {
+        if (plan.occupied() != null) {
+            return CoverageJobScheduler.get().run(client, cost, job);
+        }
         try {
-            String filename = GDALWrapper.runTranslate(this);
-            assert (filename != null);
-            response.setContentType(this.getMIME());
-
-            ServletOutputStream oStream = response.getOutputStream();
-            FileInputStream iStream = new FileInputStream(filename);
-            FileChannel iChannel = iStream.getChannel();
-            byte[] buf = new byte[64 * 1024];
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
-
-            try {
-                int l = 0;
-                while (l >= 0) {
-                    oStream.write(buf, 0, l);
-                    byteBuffer.clear();
-                    l = iChannel.read(byteBuffer);
+            return job.call();
+        } catch (WCSException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new WCSException(ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        }
+    }
+
+    /**
+     * Runs the request after admission by the coverage job scheduler
+     * @param client client identifier used for fair queuing
+     * @param request HTTP request used for range requests, may be null 
+     * @param response HTTP response
+     * @throws WCSException 
+     */
+    public void run(String client, HttpServletRequest request, HttpServletResponse response) throws WCSException {
+        try {
+            final WCSGetCoverageRequest req = this;
+            final String c = client;
+
+            // Reject requests exceeding budgets before anything is executed
+            Array A = ArrayManager.instance().getArrayMD_JDBC(coverage);
+            if (A == null) {
+                throw new WCSException("Coverage '" + coverage + "' cannot be mosaicked, arrays must exist and have aligned grids.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            CostEstimator.Estimate cost = CostEstimator.estimate(this, A);
+            cost.checkBudgets();
+            final long schedulingCost = cost.schedulingCost();
+
+            // NetCDF data cubes and image previews are streamed without temporary files, they are not shared between requests
+            if (isStreamedFormat()) {
+                final CoveragePlan plan = CoveragePlan.create(this, A);
+                final HttpServletResponse r = response;
+                if (NetCDFStreamer.supports(this, plan)) {
+                    schedule(c, schedulingCost, plan, new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            NetCDFStreamer.stream(req, plan, r);
+                            return null;
+                        }
+                    });
+                    return;
+                }
+                if (ImageStreamer.supports(this, plan)) {
+                    final ColorStyle style = ImageStreamer.style(this);
+                    schedule(c, schedulingCost, plan, new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            ImageStreamer.stream(req, plan, style, r);
+                            return null;
+                        }
+                    });
+                    return;
+                }
+            }
+
+            // Identical concurrent requests share a single execution, COGs are kept longer for range reads of clients
+            long retainSec = format.equalsIgnoreCase("COG") ? Config.get().SCIDBWCS_COG_RETAIN_SEC : Config.get().SCIDBWCS_RESULT_RETAIN_SEC;
+            TempStorage.TempFile out = RequestCoalescer.get().execute(canonicalKey(), retainSec, new Callable<TempStorage.TempFile>() {
+                @Override
+                public TempStorage.TempFile call() throws WCSException {
+                    return CoverageJobScheduler.get().run(c, schedulingCost, new Callable<TempStorage.TempFile>() {
+                        @Override
+                        public TempStorage.TempFile call() throws WCSException {
+                            return GDALWrapper.runTranslate(req);
+                        }
+                    });
                 }
-            } finally {
-                iStream.close();
+            });
+            if (out == null) {
+                throw new WCSException("Generating coverage failed", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
             }
-            oStream.flush();
-            oStream.close();
+            // Likely follow-up requests are produced speculatively while the WCS is idle
+            Prefetcher.get().observe(c, this, A);
+            // Releases our reference after the response has been written
+            FileDelivery.send(request, response, out, this.getMIME());
 
         } catch (IOException ex) {
             log.error(ex);
@@ -0,0 +1,389 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.db.ISciDBCellProcessor;
+import org.n52.scidbwcs.db.SciDBConnection;
+import org.n52.scidbwcs.db.SciDBQueryResult;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.ArrayManager;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.util.Config;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * This class implements GetSamples requests, which return attribute values of
+ * an array at a list of points, including all requested time slices of
+ * spacetime arrays. Points are given as POINTS=x1,y1,x2,y2,... in the
+ * reference system CRS and are mapped to array cells in the JVM, values of all
+ * points and times are read by a single query joining the array with a sparse
+ * mask of the point cells. Rows are streamed as CSV (FORMAT=text/csv, default)
+ * or JSON (FORMAT=application/json) without GDAL or temporary files.
+ */
+public class WCSGetSamplesRequest extends AbstractRequest {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(WCSGetSamplesRequest.class);
+
+    public WCSGetCoverageRequest query; // coverage, CRS, TIME, and attributes given as for GetCoverage
+    public double[] points; // x1, y1, x2, y2, ... in the request's CRS
+
+    public static WCSGetSamplesRequest fromKVP(String kvp) throws WCSException {
+        WCSGetSamplesRequest req = new WCSGetSamplesRequest();
+        req.query = WCSGetCoverageRequest.fromKVP(kvp);
+        req.url = req.query.url;
+        req.request = req.query.request;
+        req.service = req.query.service;
+        req.version = req.query.version;
+        req.points = null;
+        for (Map.Entry<String, String[]> e : req.query.parameter.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("POINTS")) {
+                req.points = parsePoints(e.getValue());
+            }
+        }
+        return req;
+    }
+
+    /**
+     * Parses coordinates of points
+     * @param values x and y coordinates of all points
+     * @return coordinates as x1, y1, x2, y2, ...
+     * @throws WCSException if values are no pairs of numbers
+     */
+    static double[] parsePoints(String[] values) throws WCSException {
+        if (values.length == 0 || values.length % 2 != 0) {
+            throw new WCSException("POINTS must be a list of x,y coordinate pairs.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        if (values.length / 2 > Config.get().SCIDBWCS_MAX_SAMPLE_POINTS) {
+            throw new WCSException("Request exceeds the maximum of " + Config.get().SCIDBWCS_MAX_SAMPLE_POINTS + " points.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        double[] p = new double[values.length];
+        try {
+            for (int i = 0; i < values.length; ++i) {
+                p[i] = Double.parseDouble(values[i].trim());
+            }
+        } catch (NumberFormatException ex) {
+            throw new WCSException("Invalid coordinate in POINTS: " + ex.getMessage(), WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        return p;
+    }
+
+    @Override
+    public boolean isValid() {
+        return request.equalsIgnoreCase("GetSamples") && service.equalsIgnoreCase("WCS") && isVersionSupported() && !query.coverage.isEmpty() && points != null;
+    }
+
+    @Override
+    public void run(HttpServletResponse response) throws WCSException {
+        run(null, response);
+    }
+
+    @Override
+    public void run(HttpServletRequest request, HttpServletResponse response) throws WCSException {
+        final Array A = ArrayManager.instance().getArrayMD_JDBC(query.coverage);
+        if (A == null || !A.isSpatial()) {
+            throw new WCSException("Coverage '" + query.coverage + "' does not exist or is not spatial.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        if (A.getMembers() != null) {
+            throw new WCSException("Mosaics are only supported by GetCoverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        final boolean json = query.format.equalsIgnoreCase("application/json") || query.format.equalsIgnoreCase("json");
+        if (!json && !query.format.isEmpty() && !query.format.equalsIgnoreCase("text/csv") && !query.format.equalsIgnoreCase("csv")) {
+            throw new WCSException("Unsupported format '" + query.format + "', text/csv or application/json expected.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        final List<ArrayAttribute> attrs = RangeSubset.attributes(query, A);
+        for (ArrayAttribute a : attrs) {
+            if (DataType.fromSciDB(a.typeId) == null) {
+                throw new WCSException("Attribute '" + a.name + "' of type '" + a.typeId + "' cannot be sampled.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+        }
+        long[] times = A.isTemporal() ? query.timeIndexes(A) : null;
+
+        // Map points to array cells, several points may fall into the same cell
+        final long[] cells = cells(toArrayCRS(points, A), A);
+        final Map<String, List<Integer>> pointsOfCell = new LinkedHashMap<>();
+        List<Long> distinct = new ArrayList<>();
+        for (int i = 0; i < cells.length / 2; ++i) {
+            if (cells[2 * i] == Long.MIN_VALUE) {
+                continue;
+            }
+            String key = cells[2 * i] + "/" + cells[2 * i + 1];
+            List<Integer> p = pointsOfCell.get(key);
+            if (p == null) {
+                p = new ArrayList<>();
+                pointsOfCell.put(key, p);
+                distinct.add(cells[2 * i]);
+                distinct.add(cells[2 * i + 1]);
+            }
+            p.add(i);
+        }
+
+        try {
+            final Writer w = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+            final JsonWriter jw = json ? new JsonWriter(w) : null;
+            response.setContentType(json ? "application/json" : "text/csv");
+            if (json) {
+                jw.beginArray();
+            } else {
+                StringBuilder header = new StringBuilder("point,x,y");
+                if (A.isTemporal()) {
+                    header.append(",time");
+                }
+                for (ArrayAttribute a : attrs) {
+                    header.append(",").append(a.name);
+                }
+                w.write(header.append("\n").toString());
+            }
+
+            if (!distinct.isEmpty()) {
+                long[] d = new long[distinct.size()];
+                for (int i = 0; i < d.length; ++i) {
+                    d[i] = distinct.get(i);
+                }
+                String afl = toAFL(A, attrs, d, times);
+                log.debug("Sampling " + (d.length / 2) + " cells of array '" + A.getName() + "'");
+                SciDBQueryResult res = SciDBConnection.get().queryRead(afl);
+                if (res == null) {
+                    throw new WCSException("Sampling coverage '" + A.getName() + "' failed.", WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+                }
+                final String xname = A.getXDim().name;
+                final String yname = A.getYDim().name;
+                final String tname = A.isTemporal() ? A.getTDim().name : null;
+                final IOException[] error = {null};
+                res.iterate(new ISciDBCellProcessor() {
+                    @Override
+                    public void process(ResultSet res1) throws SQLException {
+                        if (error[0] != null) {
+                            return;
+                        }
+                        List<Integer> pts = pointsOfCell.get(res1.getLong(xname) + "/" + res1.getLong(yname));
+                        if (pts == null) {
+                            return;
+                        }
+                        String time = tname != null ? A.trs().datetimeAtIndex(res1.getLong(tname)).toString() : null;
+                        Double[] v = new Double[attrs.size()];
+                        for (int k = 0; k < v.length; ++k) {
+                            ArrayAttribute a = attrs.get(k);
+                            boolean isNull = a.nullable && res1.getBoolean("_wcs_n_" + a.name);
+                            v[k] = isNull ? null : res1.getDouble("_wcs_v_" + a.name);
+                        }
+                        try {
+                            for (int i : pts) {
+                                if (json) {
+                                    writeJson(jw, i, time, attrs, v);
+                                } else {
+                                    writeCsv(w, i, time, v);
+                                }
+                            }
+                        } catch (IOException ex) {
+                            error[0] = ex;
+                        }
+                    }
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+            }
+
+            if (json) {
+                jw.endArray();
+                jw.flush();
+            }
+            w.flush();
+        } catch (IOException ex) {
+            log.error(ex);
+            throw new WCSException("Error in GetSamples: " + ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        }
+    }
+
+    private void writeCsv(Writer w, int i, String time, Double[] v) throws IOException {
+        StringBuilder s = new StringBuilder();
+        s.append(i + 1).append(",").append(points[2 * i]).append(",").append(points[2 * i + 1]);
+        if (time != null) {
+            s.append(",").append(time);
+        }
+        for (Double x : v) {
+            s.append(",");
+            if (x != null && !x.isNaN()) {
+                s.append(x);
+            }
+        }
+        w.write(s.append("\n").toString());
+    }
+
+    private void writeJson(JsonWriter jw, int i, String time, List<ArrayAttribute> attrs, Double[] v) throws IOException {
+        jw.beginObject();
+        jw.name("point").value(i + 1);
+        jw.name("x").value(points[2 * i]);
+        jw.name("y").value(points[2 * i + 1]);
+        if (time != null) {
+            jw.name("time").value(time);
+        }
+        for (int k = 0; k < v.length; ++k) {
+            jw.name(attrs.get(k).name);
+            if (v[k] == null || v[k].isNaN() || v[k].isInfinite()) {
+                jw.nullValue();
+            } else {
+                jw.value(v[k]);
+            }
+        }
+        jw.endObject();
+    }
+
+    /**
+     * Transforms points from the request's CRS to the array's reference
+     * system, IMAGE coordinates are returned as given
+     */
+    private double[] toArrayCRS(double[] pts, Array A) throws WCSException {
+        String arrayCode = A.srs().auth_name + ":" + A.srs().auth_id;
+        if (query.crs.isEmpty() || query.crs.equalsIgnoreCase("IMAGE") || query.crs.equalsIgnoreCase(arrayCode)) {
+            return pts;
+        }
+        try {
+            MathTransform t = Reprojection.transform(query.crs, arrayCode, A.srs().wkt);
+            double[] out = pts.clone();
+            Reprojection.transformInPlace(t, out, out.length / 2);
+            return out;
+        } catch (FactoryException ex) {
+            throw new WCSException("Unsupported reference system '" + query.crs + "'", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+
+    /**
+     * Maps points to array cells
+     * @param pts coordinates in the array's reference system
+     * @param A array
+     * @return x and y indexes per point, Long.MIN_VALUE for points outside of
+     * the array
+     */
+    long[] cells(double[] pts, Array A) {
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        boolean image = query.crs.equalsIgnoreCase("IMAGE");
+        long[] c = new long[pts.length];
+        for (int i = 0; i < pts.length; i += 2) {
+            double x = pts[i], y = pts[i + 1];
+            if (image) {
+                x += xd.getTrueMin();
+                y += yd.getTrueMin();
+            } else {
+                AffineTransform.double2 p = A.srs().a.fInv(new AffineTransform.double2(x, y));
+                x = p.x;
+                y = p.y;
+            }
+            if (Double.isNaN(x) || Double.isNaN(y) || Math.floor(x) < xd.getTrueMin() || Math.floor(x) > xd.getTrueMax() || Math.floor(y) < yd.getTrueMin() || Math.floor(y) > yd.getTrueMax()) {
+                c[i] = c[i + 1] = Long.MIN_VALUE;
+            } else {
+                c[i] = (long) Math.floor(x);
+                c[i + 1] = (long) Math.floor(y);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Creates the query reading all attributes at the given cells and times.
+     * Cells are packed into a one-dimensional literal array, unpacked, and
+     * redimensioned to a sparse mask with the array's spatial dimensions, which
+     * is joined with the array restricted to the bounding box of all cells.
+     * @param A array
+     * @param attrs attributes to read
+     * @param cells distinct x and y indexes
+     * @param times sorted time indexes, null for all time slices
+     * @return AFL query
+     */
+    static String toAFL(Array A, List<ArrayAttribute> attrs, long[] cells, long[] times) {
+        ArrayDimension xd = A.getXDim();
+        ArrayDimension yd = A.getYDim();
+        long x0 = Long.MAX_VALUE, x1 = Long.MIN_VALUE, y0 = Long.MAX_VALUE, y1 = Long.MIN_VALUE;
+        for (int i = 0; i < cells.length; i += 2) {
+            x0 = Math.min(x0, cells[i]);
+            x1 = Math.max(x1, cells[i]);
+            y0 = Math.min(y0, cells[i + 1]);
+            y1 = Math.max(y1, cells[i + 1]);
+        }
+        long w = x1 - x0 + 1;
+        int n = cells.length / 2;
+        StringBuilder lit = new StringBuilder("[");
+        for (int i = 0; i < cells.length; i += 2) {
+            lit.append(i > 0 ? "," : "").append("(").append((cells[i + 1] - y0) * w + cells[i] - x0).append(")");
+        }
+        lit.append("]");
+
+        StringBuilder lo = new StringBuilder();
+        StringBuilder hi = new StringBuilder();
+        StringBuilder maskDims = new StringBuilder();
+        for (ArrayDimension d : A.Dimensions()) {
+            String sep = lo.length() > 0 ? "," : "";
+            if (d == xd || d == yd) {
+                lo.append(sep).append(d == xd ? x0 : y0);
+                hi.append(sep).append(d == xd ? x1 : y1);
+                maskDims.append(maskDims.length() > 0 ? "," : "").append(d.name).append("=").append(d.min != null ? d.min : d.getTrueMin()).append(":").append(d.max != null ? Long.toString(d.max) : "*")
+                        .append(",").append(d.chunkSize).append(",").append(d.overlap != null ? d.overlap : 0);
+            } else {
+                lo.append(sep).append(times != null ? times[0] : d.getTrueMin());
+                hi.append(sep).append(times != null ? times[times.length - 1] : d.getTrueMax());
+            }
+        }
+        String mask = "redimension(apply(build(<_wcs_p:int64>[_wcs_i=0:" + (n - 1) + "," + n + ",0],'" + lit + "',true),"
+                + xd.name + "," + x0 + "+_wcs_p%" + w + "," + yd.name + "," + y0 + "+_wcs_p/" + w + "),<_wcs_i:int64>[" + maskDims + "])";
+
+        String q = "between(" + A.getName() + "," + lo + "," + hi + ")";
+        if (times != null && times.length > 1 && times[times.length - 1] - times[0] + 1 != times.length) {
+            StringBuilder cond = new StringBuilder();
+            for (long t : times) {
+                cond.append(cond.length() > 0 ? " or " : "").append(A.getTDim().name).append("=").append(t);
+            }
+            q = "filter(" + q + "," + cond + ")";
+        }
+        q = "cross_join(" + q + " as _wcs_a," + mask + " as _wcs_m,_wcs_a." + xd.name + ",_wcs_m." + xd.name + ",_wcs_a." + yd.name + ",_wcs_m." + yd.name + ")";
+
+        StringBuilder apply = new StringBuilder();
+        StringBuilder proj = new StringBuilder();
+        for (ArrayAttribute a : attrs) {
+            String v = a instanceof RangeSubset.DerivedAttribute ? ((RangeSubset.DerivedAttribute) a).expression : "double(" + a.name + ")";
+            apply.append(",_wcs_v_").append(a.name).append(",").append(v);
+            proj.append(proj.length() > 0 ? "," : "").append("_wcs_v_").append(a.name);
+            if (a.nullable) {
+                apply.append(",_wcs_n_").append(a.name).append(",is_null(").append(v).append(")");
+                proj.append(",_wcs_n_").append(a.name);
+            }
+        }
+        return "project(apply(" + q + apply + ")," + proj + ")";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.io.FileDelivery;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayManager;
+import org.n52.scidbwcs.md.StatisticsManager;
+
+/**
+ * This class implements GetStatistics requests, which return count, minimum,
+ * maximum, mean, standard deviation, and a histogram of array attributes
+ * within a bounding box as JSON. Parameters are given as for GetCoverage
+ * requests (COVERAGE, CRS, BBOX, TIME, ATTRIBUTE), the bounding box defaults to
+ * the whole coverage. Temporal coverages require a single time instant.
+ */
+public class WCSGetStatisticsRequest extends AbstractRequest {
+
+    private static final org.apache.logging.log4j.Logger log = LogManager.getLogger(WCSGetStatisticsRequest.class);
+
+    public WCSGetCoverageRequest query; // window and attributes given as for GetCoverage
+
+    public static WCSGetStatisticsRequest fromKVP(String kvp) throws WCSException {
+        WCSGetStatisticsRequest req = new WCSGetStatisticsRequest();
+        req.query = WCSGetCoverageRequest.fromKVP(kvp);
+        req.url = req.query.url;
+        req.request = req.query.request;
+        req.service = req.query.service;
+        req.version = req.query.version;
+        return req;
+    }
+
+    @Override
+    public boolean isValid() {
+        return request.equalsIgnoreCase("GetStatistics") && service.equalsIgnoreCase("WCS") && isVersionSupported() && !query.coverage.isEmpty();
+    }
+
+    @Override
+    public void run(HttpServletResponse response) throws WCSException {
+        run(null, response);
+    }
+
+    @Override
+    public void run(HttpServletRequest request, HttpServletResponse response) throws WCSException {
+        Array A = ArrayManager.instance().getArrayMD_JDBC(query.coverage);
+        if (A == null || !A.isSpatial()) {
+            throw new WCSException("Coverage '" + query.coverage + "' does not exist or is not spatial.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        if (A.getMembers() != null) {
+            throw new WCSException("Mosaics are only supported by GetCoverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        if (query.getParameter("EXPRESSION") != null) {
+            throw new WCSException("Band expressions are not supported for statistics.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+        int[] bands = RangeSubset.bands(query, A);
+
+        long t = 0;
+        if (A.isTemporal()) {
+            long[] times = query.timeIndexes(A);
+            if (times == null || times.length != 1) {
+                throw new WCSException("Statistics of temporal coverages require a single TIME instant.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            t = times[0];
+        }
+
+        long[] cells;
+        if (query.bbox == null) {
+            cells = new long[]{A.getXDim().getTrueMin(), A.getXDim().getTrueMax(), A.getYDim().getTrueMin(), A.getYDim().getTrueMax()};
+        } else {
+            if (!CoveragePlan.supportsCRS(query, A)) {
+                throw new WCSException("Unsupported CRS '" + query.crs + "' for statistics of coverage '" + A.getName() + "'.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+            cells = CoveragePlan.cellWindow(CoveragePlan.indexWindow(query, A), A);
+            if (cells == null) {
+                throw new WCSException("Requested bounding box does not intersect the coverage.", WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+            }
+        }
+
+        try {
+            StatisticsManager.Summary[] s = StatisticsManager.get().window(A, t, cells[0], cells[1], cells[2], cells[3]);
+            List<ArrayAttribute> attrs = A.Attributes();
+            JsonArray out = new JsonArray();
+            for (int i = 0; i < attrs.size(); ++i) {
+                if (bands.length > 0 && !contains(bands, i + 1)) {
+                    continue;
+                }
+                out.add(toJson(attrs.get(i).name, s[i]));
+            }
+            JsonObject doc = new JsonObject();
+            doc.addProperty("coverage", A.getName());
+            JsonArray window = new JsonArray();
+            for (long c : cells) {
+                window.add(new JsonPrimitive(c));
+            }
+            doc.add("cells", window);
+            doc.add("attributes", out);
+            byte[] data = new GsonBuilder().serializeNulls().create().toJson(doc).getBytes(StandardCharsets.UTF_8);
+            FileDelivery.sendBytes(request, response, data, "application/json");
+        } catch (IOException ex) {
+            log.error(ex);
+            throw new WCSException("Error in GetStatistics: " + ex, WCSException.WCS_EXCEPTION_CODE.InternalServerError);
+        }
+    }
+
+    private static boolean contains(int[] a, int v) {
+        for (int x : a) {
+            if (x == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static JsonObject toJson(String name, StatisticsManager.Summary s) {
+        JsonObject o = new JsonObject();
+        o.addProperty("name", name);
+        o.addProperty("count", s.count);
+        o.add("min", number(s.count > 0 ? s.min : Double.NaN));
+        o.add("max", number(s.count > 0 ? s.max : Double.NaN));
+        o.add("mean", number(s.mean()));
+        o.add("stddev", number(s.stddev()));
+        JsonObject h = new JsonObject();
+        h.add("min", number(s.histogramMin));
+        h.add("max", number(s.histogramMax));
+        JsonArray counts = new JsonArray();
+        for (long c : s.histogram) {
+            counts.add(new JsonPrimitive(c));
+        }
+        h.add("counts", counts);
+        o.add("histogram", h);
+        return o;
+    }
+
+    private static JsonElement number(double v) {
+        return Double.isNaN(v) || Double.isInfinite(v) ? JsonNull.INSTANCE : new JsonPrimitive(v);
+    }
+}
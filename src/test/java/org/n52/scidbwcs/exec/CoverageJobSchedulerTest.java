@@ -0,0 +1,193 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.exception.WCSException;
+
+public class CoverageJobSchedulerTest {
+
+    public CoverageJobSchedulerTest() {
+    }
+
+    /**
+     * Test of run method, of class CoverageJobScheduler.
+     */
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final CoverageJobScheduler s = new CoverageJobScheduler(2, 1, 100, 60, 1);
+        final AtomicInteger active = new AtomicInteger(0);
+        final AtomicInteger maxActive = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            final String client = "client" + (i % 3);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        s.run(client, 10, new Callable<Integer>() {
+                            @Override
+                            public Integer call() throws Exception {
+                                int a = active.incrementAndGet();
+                                synchronized (maxActive) {
+                                    maxActive.set(Math.max(maxActive.get(), a));
+                                }
+                                Thread.sleep(50);
+                                active.decrementAndGet();
+                                return a;
+                            }
+                        });
+                    } catch (WCSException ex) {
+                        fail(ex.getMessage());
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(maxActive.get() <= 2);
+        assertEquals(s.getRunning(), 0);
+        assertEquals(s.getQueued(), 0);
+    }
+
+    /**
+     * Test of load shedding, of class CoverageJobScheduler.
+     */
+    @Test
+    public void testLoadShedding() throws Exception {
+        final CoverageJobScheduler s = new CoverageJobScheduler(1, 1, 100, 0, 5);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    s.run("a", 10, new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            started.countDown();
+                            finish.await();
+                            return 0;
+                        }
+                    });
+                } catch (WCSException ex) {
+                    fail(ex.getMessage());
+                }
+            }
+        });
+        t.start();
+        started.await();
+        try {
+            s.run("b", 10, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return 0;
+                }
+            });
+            fail("Job should have been rejected");
+        } catch (WCSException ex) {
+            assertEquals(ex.getCode(), WCSException.WCS_EXCEPTION_CODE.ServiceUnavailable);
+            assertTrue(ex.getRetryAfter() >= 5);
+        }
+        finish.countDown();
+        t.join();
+        assertEquals(s.getRunning(), 0);
+    }
+
+    /**
+     * Test of interrupting a waiting job, of class CoverageJobScheduler.
+     */
+    @Test
+    public void testInterruptedWaiter() throws Exception {
+        final CoverageJobScheduler s = new CoverageJobScheduler(1, 1, 100, 60, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    s.run("a", 10, new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            started.countDown();
+                            finish.await();
+                            return 0;
+                        }
+                    });
+                } catch (WCSException ex) {
+                    fail(ex.getMessage());
+                }
+            }
+        });
+        t.start();
+        started.await();
+
+        final AtomicInteger ran = new AtomicInteger(0);
+        final boolean[] interrupted = {false};
+        Thread w = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    s.run("b", 10, new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return ran.incrementAndGet();
+                        }
+                    });
+                } catch (WCSException ex) {
+                    interrupted[0] = Thread.currentThread().isInterrupted();
+                }
+            }
+        });
+        w.start();
+        while (s.getQueued() == 0) {
+            Thread.sleep(1);
+        }
+        w.interrupt();
+        w.join();
+        assertTrue(interrupted[0]);
+        assertEquals(s.getQueued(), 0);
+        assertEquals(s.getRunning(), 1);
+
+        finish.countDown();
+        t.join();
+        assertEquals(ran.get(), 0);
+        assertEquals(s.getRunning(), 0);
+    }
+
+    /**
+     * Test of classify method, of class CoverageJobScheduler.
+     */
+    @Test
+    public void testClassify() {
+        CoverageJobScheduler s = new CoverageJobScheduler(4, 2, 100, 10, 1);
+        assertEquals(s.classify(100), CoverageJobScheduler.JobClass.SMALL);
+        assertEquals(s.classify(101), CoverageJobScheduler.JobClass.LARGE);
+    }
+}
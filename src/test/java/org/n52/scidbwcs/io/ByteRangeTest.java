@@ -0,0 +1,79 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.io;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+
+    public ByteRangeTest() {
+    }
+
+    /**
+     * Test of parse method, of class ByteRange.
+     */
+    @Test
+    public void testParse() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+
+        List<ByteRange> r = ByteRange.parse("bytes=0-499", 1000);
+        assertEquals(r.size(), 1);
+        assertEquals(r.get(0).start, 0L);
+        assertEquals(r.get(0).end, 499L);
+        assertEquals(r.get(0).length(), 500L);
+        assertEquals(r.get(0).toContentRange(1000), "bytes 0-499/1000");
+
+        r = ByteRange.parse("bytes=500-", 1000);
+        assertEquals(r.get(0).start, 500L);
+        assertEquals(r.get(0).end, 999L);
+
+        r = ByteRange.parse("bytes=-100", 1000);
+        assertEquals(r.get(0).start, 900L);
+        assertEquals(r.get(0).end, 999L);
+
+        r = ByteRange.parse("bytes=0-9, 900-2000", 1000);
+        assertEquals(r.size(), 2);
+        assertEquals(r.get(1).end, 999L);
+
+        r = ByteRange.parse("bytes=1000-1100", 1000);
+        assertTrue(r.isEmpty());
+
+        // Overlapping and adjacent ranges are merged in ascending order
+        r = ByteRange.parse("bytes=500-599,0-99,100-199,50-150,550-700", 1000);
+        assertEquals(r.size(), 2);
+        assertEquals(r.get(0).start, 0L);
+        assertEquals(r.get(0).end, 199L);
+        assertEquals(r.get(1).start, 500L);
+        assertEquals(r.get(1).end, 700L);
+
+        // Too many disjoint ranges are answered with the full resource
+        StringBuilder h = new StringBuilder("bytes=0-4");
+        for (int i = 1; i < ByteRange.MAX_RANGES; ++i) {
+            h.append(",").append(10 * i).append("-").append(10 * i + 4);
+        }
+        assertEquals(ByteRange.parse(h.toString(), 1000).size(), ByteRange.MAX_RANGES);
+        h.append(",900-904");
+        assertNull(ByteRange.parse(h.toString(), 1000));
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.md;
+
+import java.util.BitSet;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ChunkOccupancyTest {
+
+    public ChunkOccupancyTest() {
+    }
+
+    /**
+     * Test of occupiedWindow method, of class ChunkOccupancy.Bitmap.
+     */
+    @Test
+    public void testOccupiedWindow() {
+        // 4 x 3 chunks of 10 x 10 cells starting at chunk (2,0), occupied chunks (3,0) and (4,2)
+        BitSet bits = new BitSet();
+        bits.set(1);
+        bits.set(2 * 4 + 2);
+        ChunkOccupancy.Bitmap b = new ChunkOccupancy.Bitmap(1, 0, 0, 10, 10, 2, 0, 4, 3, bits, 0);
+        assertEquals(b.count(), 2);
+        assertArrayEquals(b.occupiedWindow(0, 100, 0, 100), new long[]{30, 49, 0, 29});
+        assertArrayEquals(b.occupiedWindow(35, 45, 5, 8), new long[]{35, 39, 5, 8});
+        assertArrayEquals(b.occupiedWindow(35, 45, 5, 25), new long[]{35, 45, 5, 25});
+        assertNull(b.occupiedWindow(20, 29, 0, 29));
+        assertNull(b.occupiedWindow(40, 49, 0, 19));
+        assertNull(b.occupiedWindow(-100, -1, -100, -1));
+        assertNull(b.occupiedWindow(60, 100, 0, 29));
+    }
+}
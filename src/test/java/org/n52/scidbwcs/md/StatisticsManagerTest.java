@@ -0,0 +1,144 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.md;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class StatisticsManagerTest {
+
+    public StatisticsManagerTest() {
+    }
+
+    /**
+     * Test of merge method, of class StatisticsManager.Summary.
+     */
+    @Test
+    public void testSummaryMerge() {
+        StatisticsManager.Summary a = new StatisticsManager.Summary(4, 0, 8);
+        a.count = 2;
+        a.sum = 2 + 4;
+        a.sumSquares = 4 + 16;
+        a.min = 2;
+        a.max = 4;
+        a.histogram[1] = 1;
+        a.histogram[2] = 1;
+        StatisticsManager.Summary b = new StatisticsManager.Summary(4, 0, 8);
+        b.count = 2;
+        b.sum = 4 + 6;
+        b.sumSquares = 16 + 36;
+        b.min = 4;
+        b.max = 6;
+        b.histogram[2] = 1;
+        b.histogram[3] = 1;
+        StatisticsManager.Summary empty = new StatisticsManager.Summary(4, 0, 8);
+        assertTrue(Double.isNaN(empty.mean()));
+
+        a.merge(b);
+        a.merge(empty);
+        assertEquals(4, a.count);
+        assertEquals(2, a.min, 0);
+        assertEquals(6, a.max, 0);
+        assertEquals(4, a.mean(), 1e-12);
+        assertEquals(Math.sqrt(2), a.stddev(), 1e-12);
+        assertArrayEquals(new long[]{0, 1, 2, 1}, a.histogram);
+    }
+
+    /**
+     * Test of percentile method, of class StatisticsManager.Summary.
+     */
+    @Test
+    public void testPercentile() {
+        StatisticsManager.Summary s = new StatisticsManager.Summary(4, 0, 100);
+        assertTrue(Double.isNaN(s.percentile(50)));
+        s.count = 100;
+        s.min = 0;
+        s.max = 100;
+        s.histogram[0] = 25;
+        s.histogram[1] = 25;
+        s.histogram[2] = 25;
+        s.histogram[3] = 25;
+        assertEquals(50, s.percentile(50), 1e-9);
+        assertEquals(10, s.percentile(10), 1e-9);
+        assertEquals(100, s.percentile(100), 1e-9);
+        s.max = 90;
+        assertEquals(90, s.percentile(100), 1e-9);
+    }
+
+    /**
+     * Test of fullChunks method, of class StatisticsManager.
+     */
+    @Test
+    public void testFullChunks() {
+        assertArrayEquals(new long[]{0, 1}, StatisticsManager.fullChunks(0, 19, 0, 10));
+        assertArrayEquals(new long[]{1, 1}, StatisticsManager.fullChunks(5, 24, 0, 10));
+        assertArrayEquals(new long[]{1, 0}, StatisticsManager.fullChunks(5, 14, 0, 10));
+        assertArrayEquals(new long[]{0, 0}, StatisticsManager.fullChunks(-5, 4, -5, 10));
+    }
+
+    /**
+     * Test of edges method, of class StatisticsManager.
+     */
+    @Test
+    public void testEdges() {
+        List<long[]> e = StatisticsManager.edges(5, 34, 3, 25, 10, 29, 10, 19);
+        assertEquals(4, e.size());
+        long cells = 0;
+        for (long[] r : e) {
+            cells += (r[1] - r[0] + 1) * (r[3] - r[2] + 1);
+        }
+        assertEquals(30 * 23 - 20 * 10, cells);
+        assertArrayEquals(new long[]{5, 34, 3, 9}, e.get(0));
+        assertArrayEquals(new long[]{5, 34, 20, 25}, e.get(1));
+        assertArrayEquals(new long[]{5, 9, 10, 19}, e.get(2));
+        assertArrayEquals(new long[]{30, 34, 10, 19}, e.get(3));
+
+        assertTrue(StatisticsManager.edges(10, 29, 10, 19, 10, 29, 10, 19).isEmpty());
+    }
+
+    /**
+     * Test of excluding NaN cells from range and summary queries, of class
+     * StatisticsManager.
+     */
+    @Test
+    public void testNaNCells() {
+        List<ArrayAttribute> attrs = new ArrayList<>();
+        attrs.add(new ArrayAttribute("a", "int16", true));
+        attrs.add(new ArrayAttribute("b", "double", false));
+        attrs.add(new ArrayAttribute("c", "uint8", false));
+        attrs.add(new ArrayAttribute("d", "float", true));
+        List<List<Integer>> g = StatisticsManager.queryGroups(attrs);
+        assertEquals(3, g.size());
+        assertEquals(Arrays.asList(0, 2), g.get(0));
+        assertEquals(Arrays.asList(1), g.get(1));
+        assertEquals(Arrays.asList(3), g.get(2));
+
+        // Integer attributes cannot be NaN and are not filtered
+        assertEquals("aggregate(apply(A@3,_wcs_d_a,double(a),_wcs_d_c,double(c)),min(_wcs_d_a) as _wcs_min_a,max(_wcs_d_a) as _wcs_max_a,min(_wcs_d_c) as _wcs_min_c,max(_wcs_d_c) as _wcs_max_c)",
+                StatisticsManager.rangeQuery("A@3", attrs, g.get(0)));
+        assertEquals("aggregate(apply(filter(A@3,not is_nan(b)),_wcs_d_b,double(b)),min(_wcs_d_b) as _wcs_min_b,max(_wcs_d_b) as _wcs_max_b)",
+                StatisticsManager.rangeQuery("A@3", attrs, g.get(1)));
+        assertEquals("regrid(apply(filter(subarray(A@3,0,0,9,9),not is_nan(d)),_wcs_d_d,double(d),_wcs_sq_d,double(d)*double(d)),10,10,min(_wcs_d_d) as _wcs_min_d,max(_wcs_d_d) as _wcs_max_d,count(_wcs_d_d) as _wcs_n_d,sum(_wcs_d_d) as _wcs_sum_d,sum(_wcs_sq_d) as _wcs_ss_d)",
+                StatisticsManager.summaryQuery("subarray(A@3,0,0,9,9)", "10,10", attrs, g.get(2)));
+    }
+}
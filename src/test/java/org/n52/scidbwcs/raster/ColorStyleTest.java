@@ -0,0 +1,81 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ColorStyleTest {
+
+    public ColorStyleTest() {
+    }
+
+    /**
+     * Test of parse and lut methods, of class ColorStyle.
+     */
+    @Test
+    public void testParse() {
+        ColorStyle s = ColorStyle.parse("ramp=000000-ff0000-ffffff;stretch=sqrt;range=p2,p98;nodata=00000000");
+        assertEquals(3, s.colors.length);
+        assertEquals(0xFF0000FF, s.colors[1]);
+        assertEquals(ColorStyle.Stretch.SQRT, s.stretch);
+        assertNull(s.range);
+        assertArrayEquals(new double[]{2, 98}, s.percentiles, 0);
+        assertEquals(0, s.nodata);
+
+        int[] lut = s.lut();
+        assertEquals(ColorStyle.LUT_SIZE, lut.length);
+        assertEquals(0x000000FF, lut[0]);
+        assertEquals(0xFFFFFFFF, lut[lut.length - 1]);
+        assertEquals(0xFF0000FF, lut[(ColorStyle.LUT_SIZE - 1) / 4 + 1] & 0xFFFFFFFF); // sqrt(1/4) is the middle of the ramp
+
+        s = ColorStyle.parse("ramp=gray;range=-1,1");
+        assertArrayEquals(new double[]{-1, 1}, s.range, 0);
+        assertEquals(ColorStyle.Stretch.LINEAR, s.stretch);
+
+        try {
+            ColorStyle.parse("ramp=gray;range=1");
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            ColorStyle.parse("ramp=12345");
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * Test of renderLUT method, of class ImageRenderer.
+     */
+    @Test
+    public void testRenderLUT() {
+        RasterBuffer buf = new RasterBuffer(3, 1, new DataType[]{DataType.FLOAT64}, new double[]{-9999});
+        buf.set(0, 0, 0.0);
+        buf.set(0, 1, 10.0);
+        buf.set(0, 2, -9999);
+        ColorStyle s = ColorStyle.parse("ramp=000000-ffffff;nodata=ff000080");
+        BufferedImage img = ImageRenderer.renderLUT(buf, 0, s.lut(), 0, 10, s.nodata, true);
+        byte[] px = ImageRenderer.samples(img);
+        assertArrayEquals(new byte[]{0, 0, 0, (byte) 255, (byte) 255, (byte) 255, (byte) 255, (byte) 255, (byte) 255, 0, 0, (byte) 128}, px);
+        ImageRenderer.release(img);
+    }
+}
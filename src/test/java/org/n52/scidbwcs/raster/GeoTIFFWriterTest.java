@@ -0,0 +1,236 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeoTIFFWriterTest {
+
+    public GeoTIFFWriterTest() {
+    }
+
+    /**
+     * Simple TIFF LZW decoder
+     */
+    private static byte[] lzwDecode(byte[] in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<byte[]> dict = new ArrayList<>();
+        long bits = 0;
+        int nbits = 0;
+        int pos = 0;
+        int width = 9;
+        byte[] prev = null;
+        while (true) {
+            while (nbits < width) {
+                bits = (bits << 8) | (pos < in.length ? in[pos++] & 0xFF : 0);
+                nbits += 8;
+            }
+            int code = (int) ((bits >>> (nbits - width)) & ((1 << width) - 1));
+            nbits -= width;
+            if (code == 257) {
+                break;
+            }
+            if (code == 256) {
+                dict.clear();
+                for (int i = 0; i < 258; ++i) {
+                    dict.add(new byte[]{(byte) i});
+                }
+                width = 9;
+                prev = null;
+                continue;
+            }
+            byte[] entry;
+            if (prev == null) {
+                entry = dict.get(code);
+            } else {
+                if (code < dict.size()) {
+                    entry = dict.get(code);
+                } else {
+                    entry = Arrays.copyOf(prev, prev.length + 1);
+                    entry[prev.length] = prev[0];
+                }
+                byte[] e = Arrays.copyOf(prev, prev.length + 1);
+                e[prev.length] = entry[0];
+                dict.add(e);
+                if (dict.size() >= (1 << width) - 1 && width < 12) {
+                    ++width;
+                }
+            }
+            out.write(entry, 0, entry.length);
+            prev = entry;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Test of the LZW encoder, decoded output must match the input
+     */
+    @Test
+    public void testLZW() {
+        Random r = new Random(42);
+        byte[] in = new byte[200000];
+        for (int i = 0; i < in.length; ++i) {
+            in[i] = (byte) (i % 1000 < 500 ? r.nextInt(4) : r.nextInt(256)); // compressible and random parts
+        }
+        assertArrayEquals(lzwDecode(LZWEncoder.encode(in)), in);
+        assertArrayEquals(lzwDecode(LZWEncoder.encode(new byte[0])), new byte[0]);
+        assertArrayEquals(lzwDecode(LZWEncoder.encode(new byte[]{7})), new byte[]{7});
+    }
+
+    /**
+     * Test of predictors, of class Compression.
+     */
+    @Test
+    public void testPredictors() {
+        byte[] b = {1, 0, 3, 0, 2, 0, 5, 1};
+        Compression.horizontalDifferencing(b, 2, 2, DataType.UINT16);
+        assertArrayEquals(b, new byte[]{1, 0, 2, 0, 2, 0, 3, 1});
+
+        // Two little endian 16 bit samples, bytes ordered by significance and differenced
+        byte[] f = Compression.floatingPointDifferencing(new byte[]{0x10, 0x01, 0x20, 0x02}, 2, 1, 2);
+        assertArrayEquals(f, new byte[]{0x01, 0x01, 0x0E, 0x10});
+    }
+
+    /**
+     * Test of write method, of class GeoTIFFWriter.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        RasterBuffer buf = new RasterBuffer(300, 500, new DataType[]{DataType.INT16, DataType.INT16}, new double[]{-1, -1});
+        for (int i = 0; i < 300 * 500; ++i) {
+            buf.set(0, i, i % 300);
+            buf.set(1, i, i / 300);
+        }
+        buf.setGeoTransform(new double[]{10, 0.5, 0, 50, 0, -0.5});
+        assertTrue(GeoTIFFWriter.supports(buf));
+
+        File f = File.createTempFile("scidbwcs", ".tif");
+        try {
+            GeoTIFFWriter.write(buf, 4326, true, new String[]{"a", "b"}, new Compression(Compression.Codec.DEFLATE, null, 6), f);
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(b.getShort(2), 42);
+            int ifd = b.getInt(4);
+            int n = b.getShort(ifd);
+            int offsets = -1, counts = -1, nstrips = 0;
+            for (int e = 0; e < n; ++e) {
+                int p = ifd + 2 + 12 * e;
+                int tag = b.getShort(p) & 0xFFFF;
+                if (tag == 259) {
+                    assertEquals(b.getShort(p + 8), 8);
+                } else if (tag == 317) {
+                    assertEquals(b.getShort(p + 8), 2);
+                } else if (tag == 273) {
+                    nstrips = b.getInt(p + 4);
+                    offsets = b.getInt(p + 8);
+                } else if (tag == 279) {
+                    counts = b.getInt(p + 8);
+                }
+            }
+            assertTrue(nstrips >= 2);
+
+            // First strip of the second band starts at row 0 and contains the row index
+            int strip = nstrips / 2;
+            byte[] data = new byte[b.getInt(counts + 4 * strip)];
+            b.position(b.getInt(offsets + 4 * strip));
+            b.get(data);
+            Inflater inf = new Inflater();
+            inf.setInput(data);
+            byte[] raw = new byte[300 * 2 * 3];
+            inf.inflate(raw);
+            ByteBuffer r = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(r.getShort(0), 0); // differences of a constant row
+            assertEquals(r.getShort(2), 0);
+            assertEquals(r.getShort(600), 1); // first sample of the second row
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Test of writeCOG method, of class GeoTIFFWriter.
+     */
+    @Test
+    public void testWriteCOG() throws Exception {
+        RasterBuffer buf = new RasterBuffer(1000, 600, new DataType[]{DataType.BYTE}, new double[]{0});
+        for (int i = 0; i < 1000 * 600; ++i) {
+            buf.set(0, i, 1 + (i % 1000) / 4);
+        }
+        buf.setGeoTransform(new double[]{10, 0.5, 0, 50, 0, -0.5});
+        assertTrue(GeoTIFFWriter.supports(buf, true));
+
+        File f = File.createTempFile("scidbwcs", ".tif");
+        try {
+            GeoTIFFWriter.writeCOG(buf, 4326, true, null, new Compression(Compression.Codec.NONE, null, 0), 256, 256, Resampler.Method.BILINEAR, f);
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(new String(b.array(), 8, 30, "US-ASCII"), "GDAL_STRUCTURAL_METADATA_SIZE=");
+
+            // Full resolution and overviews of 500x300 and 250x150 pixels, all directories before image data
+            int[] widths = {1000, 500, 250};
+            int ifd = b.getInt(4);
+            long lastIFD = 0;
+            long firstTile = Long.MAX_VALUE;
+            int[] tileOffsets = new int[3];
+            for (int l = 0; l < 3; ++l) {
+                assertTrue(ifd > 0);
+                int n = b.getShort(ifd);
+                for (int e = 0; e < n; ++e) {
+                    int p = ifd + 2 + 12 * e;
+                    int tag = b.getShort(p) & 0xFFFF;
+                    if (tag == 256) {
+                        assertEquals(b.getInt(p + 8), widths[l]);
+                    } else if (tag == 254) {
+                        assertEquals(b.getInt(p + 8), 1);
+                    } else if (tag == 322) {
+                        assertEquals(b.getInt(p + 8), 256);
+                    } else if (tag == 324) {
+                        int count = b.getInt(p + 4);
+                        int offsets = count > 1 ? b.getInt(p + 8) : p + 8;
+                        tileOffsets[l] = b.getInt(offsets);
+                        for (int k = 0; k < count; ++k) {
+                            firstTile = Math.min(firstTile, b.getInt(offsets + 4 * k));
+                        }
+                    }
+                }
+                lastIFD = ifd + 2 + 12 * n + 4;
+                ifd = b.getInt(ifd + 2 + 12 * n);
+            }
+            assertEquals(ifd, 0);
+            assertTrue(lastIFD <= firstTile);
+            assertTrue(tileOffsets[2] < tileOffsets[1] && tileOffsets[1] < tileOffsets[0]); // smallest overview first
+
+            // Overviews average two by two pixels
+            assertEquals(b.get(tileOffsets[0] + 5), 2);
+            assertEquals(b.get(tileOffsets[1] + 2), 2);
+        } finally {
+            f.delete();
+        }
+    }
+}
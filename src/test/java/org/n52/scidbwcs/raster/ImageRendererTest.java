@@ -0,0 +1,55 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageRendererTest {
+
+    public ImageRendererTest() {
+    }
+
+    /**
+     * Test of acquire and release methods, of class ImageRenderer.
+     */
+    @Test
+    public void testPool() {
+        BufferedImage a = ImageRenderer.acquire(101, 99, 1);
+        BufferedImage b = ImageRenderer.acquire(103, 99, 1);
+        BufferedImage c = ImageRenderer.acquire(107, 99, 1);
+        long limit = 103 * 99 + 107 * 99;
+
+        // The least recently released size is evicted first
+        ImageRenderer.release(a, limit);
+        ImageRenderer.release(b, limit);
+        ImageRenderer.release(c, limit);
+        assertEquals(ImageRenderer.pooledBytes(), limit);
+        assertSame(ImageRenderer.acquire(103, 99, 1), b);
+        assertSame(ImageRenderer.acquire(107, 99, 1), c);
+        assertNotSame(ImageRenderer.acquire(101, 99, 1), a);
+        assertEquals(ImageRenderer.pooledBytes(), 0L);
+
+        // Images larger than the pool are not kept
+        ImageRenderer.release(a, 1000);
+        assertEquals(ImageRenderer.pooledBytes(), 0L);
+    }
+}
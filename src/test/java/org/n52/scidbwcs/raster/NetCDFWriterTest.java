@@ -0,0 +1,76 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NetCDFWriterTest {
+
+    public NetCDFWriterTest() {
+    }
+
+    /**
+     * Test of writeHeader and writeRecord methods, of class NetCDFWriter.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        RasterBuffer buf = new RasterBuffer(3, 2, new DataType[]{DataType.BYTE, DataType.FLOAT32}, new double[]{255, Double.NaN});
+        for (int i = 0; i < 6; ++i) {
+            buf.set(0, i, i);
+            buf.set(1, i, i * 0.5);
+        }
+        NetCDFWriter w = new NetCDFWriter(3, 2, 2, new String[]{"a", "b"}, new DataType[]{DataType.BYTE, DataType.FLOAT32}, new double[]{255, Double.NaN}, new double[]{0, 1, 0, 10, 0, -1}, null);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        WritableByteChannel out = Channels.newChannel(bos);
+        w.writeHeader(out);
+        w.writeRecord(out, buf, new int[]{0, 1}, 0);
+        w.writeRecord(out, buf, new int[]{0, 1}, 86400);
+        try {
+            w.writeRecord(out, buf, new int[]{0, 1}, 0);
+            fail();
+        } catch (java.io.IOException ex) {
+        }
+
+        byte[] b = bos.toByteArray();
+        assertEquals(b.length, w.size());
+        ByteBuffer bb = ByteBuffer.wrap(b); // big endian
+        assertEquals(bb.get(0), 'C');
+        assertEquals(bb.get(3), 2);
+        assertEquals(bb.getInt(4), 2);
+
+        // Each record: time (8), a padded to 8 bytes, b (24)
+        long recordSize = 8 + 8 + 24;
+        int rec1 = (int) (b.length - recordSize);
+        assertEquals(bb.getDouble(rec1), 86400.0, 0);
+        assertEquals(bb.get(rec1 + 8 + 5), 5);
+        assertEquals(bb.getFloat(rec1 + 16 + 4 * 5), 2.5f, 0);
+
+        // y coordinates of pixel centers precede the records
+        int rec0 = (int) (b.length - 2 * recordSize);
+        assertEquals(bb.getDouble(rec0 - 8), 8.5, 1e-12);
+        assertEquals(bb.getDouble(rec0 - 16), 9.5, 1e-12);
+    }
+}
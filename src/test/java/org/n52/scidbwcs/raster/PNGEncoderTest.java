@@ -0,0 +1,86 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PNGEncoderTest {
+
+    public PNGEncoderTest() {
+    }
+
+    /**
+     * Test of adler32Combine method, of class PNGEncoder.
+     */
+    @Test
+    public void testAdler32Combine() {
+        byte[] a = "scidb-wcs".getBytes();
+        byte[] b = "renders previews".getBytes();
+        Adler32 x = new Adler32();
+        x.update(a);
+        Adler32 y = new Adler32();
+        y.update(b);
+        Adler32 xy = new Adler32();
+        xy.update(a);
+        xy.update(b);
+        assertEquals(PNGEncoder.adler32Combine(x.getValue(), y.getValue(), b.length), xy.getValue());
+    }
+
+    /**
+     * Test of rendering and encoding multiple blocks, decoded images must
+     * match the rendered samples
+     */
+    @Test
+    public void testWrite() throws Exception {
+        int w = 400, h = 500;
+        RasterBuffer buf = new RasterBuffer(w, h, new DataType[]{DataType.INT16}, new double[]{-1});
+        for (int i = 0; i < w * h; ++i) {
+            buf.set(0, i, (i % 7 == 0) ? -1 : (i % w) * 10 + (i / w) % 3);
+        }
+        int[] bands = {0};
+        double[] ranges = ImageRenderer.ranges(buf, bands, null);
+        assertEquals(ranges[0], 0, 1e-9);
+        assertEquals(ranges[1], 3992, 1e-9);
+        assertTrue(ImageRenderer.hasNoData(buf, bands));
+
+        BufferedImage img = ImageRenderer.render(buf, bands, ranges, true);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PNGEncoder.write(img, 6, os);
+        BufferedImage dec = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(dec.getWidth(), w);
+        assertEquals(dec.getHeight(), h);
+        byte[] s = ImageRenderer.samples(img);
+        for (int y = 0; y < h; y += 37) {
+            for (int x = 0; x < w; x += 13) {
+                int i = y * w + x;
+                assertEquals(dec.getRaster().getSample(x, y, 1), (i % 7 == 0) ? 0 : 255);
+                assertEquals(dec.getRaster().getSample(x, y, 0), s[2 * i] & 0xFF);
+            }
+        }
+        ImageRenderer.release(img);
+        assertSame(ImageRenderer.acquire(w, h, 2), img); // pooled
+    }
+}
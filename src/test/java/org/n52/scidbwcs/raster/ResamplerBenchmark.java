@@ -0,0 +1,81 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the resampling engine. These are not run as unit tests,
+ * start them with the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResamplerBenchmark {
+
+    @Param({"BYTE", "FLOAT32"})
+    public DataType type;
+
+    @Param({"NEAREST", "BILINEAR", "BICUBIC"})
+    public Resampler.Method method;
+
+    private RasterBuffer src;
+
+    @Setup
+    public void setup() {
+        src = new RasterBuffer(4096, 4096, new DataType[]{type}, new double[]{type.defaultNoData()});
+        Random rnd = new Random(42);
+        for (int i = 0; i < 4096 * 4096; ++i) {
+            src.set(0, i, rnd.nextInt(200));
+        }
+    }
+
+    @Benchmark
+    public RasterBuffer downsample() {
+        return Resampler.resample(src, 0, 0, 4096.0 / 3000, 4096.0 / 3000, 3000, 3000, method);
+    }
+
+    @Benchmark
+    public RasterBuffer upsample() {
+        return Resampler.resample(src, 1000, 1000, 0.5, 0.5, 2048, 2048, method);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ResamplerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
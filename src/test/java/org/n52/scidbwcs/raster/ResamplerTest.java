@@ -0,0 +1,93 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResamplerTest {
+
+    public ResamplerTest() {
+    }
+
+    private static RasterBuffer createRaster() {
+        // 4 x 4 raster with v = x + 10 * y
+        RasterBuffer r = new RasterBuffer(4, 4, new DataType[]{DataType.FLOAT32}, new double[]{Double.NaN});
+        for (int y = 0; y < 4; ++y) {
+            for (int x = 0; x < 4; ++x) {
+                r.set(0, x, y, x + 10 * y);
+            }
+        }
+        r.setGeoTransform(new double[]{100, 1, 0, 200, 0, -1});
+        return r;
+    }
+
+    /**
+     * Test of resample method with nearest neighbour interpolation, of class Resampler.
+     */
+    @Test
+    public void testNearest() {
+        RasterBuffer r = createRaster();
+        RasterBuffer o = Resampler.resample(r, 0, 0, 2, 2, 2, 2, Resampler.Method.NEAREST);
+        assertEquals(o.getWidth(), 2);
+        assertEquals(o.get(0, 0, 0), 11.0, 1e-6);
+        assertEquals(o.get(0, 1, 1), 33.0, 1e-6);
+        assertEquals(o.getGeoTransform()[1], 2.0, 1e-9);
+        assertEquals(o.getGeoTransform()[5], -2.0, 1e-9);
+
+        // Identity
+        o = Resampler.resample(r, 0, 0, 1, 1, 4, 4, Resampler.Method.NEAREST);
+        assertEquals(o.get(0, 3, 2), 23.0, 1e-6);
+    }
+
+    /**
+     * Test of resample method with bilinear and bicubic interpolation, of class Resampler.
+     */
+    @Test
+    public void testInterpolation() {
+        RasterBuffer r = createRaster();
+        // Output pixel centers fall between source pixel centers
+        RasterBuffer o = Resampler.resample(r, 0, 0, 2, 2, 2, 2, Resampler.Method.BILINEAR);
+        assertEquals(o.get(0, 0, 0), 5.5, 1e-6);
+        assertEquals(o.get(0, 1, 1), 27.5, 1e-6);
+
+        // Bicubic interpolation reproduces linear functions
+        o = Resampler.resample(r, 1, 1, 1, 1, 2, 2, Resampler.Method.BICUBIC);
+        assertEquals(o.get(0, 0, 0), 11.0, 1e-6);
+        assertEquals(o.get(0, 1, 0), 12.0, 1e-6);
+    }
+
+    /**
+     * Test of nodata handling, of class Resampler.
+     */
+    @Test
+    public void testNoData() {
+        RasterBuffer r = createRaster();
+        r.set(0, 0, 0, Double.NaN);
+        RasterBuffer o = Resampler.resample(r, 0, 0, 2, 2, 2, 2, Resampler.Method.BILINEAR);
+        assertEquals(o.get(0, 0, 0), (1 + 10 + 11) / 3.0, 1e-6);
+
+        r.set(0, 1, 0, Double.NaN);
+        r.set(0, 0, 1, Double.NaN);
+        r.set(0, 1, 1, Double.NaN);
+        o = Resampler.resample(r, 0, 0, 2, 2, 2, 2, Resampler.Method.BILINEAR);
+        assertTrue(Double.isNaN(o.get(0, 0, 0)));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.raster;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WarperTest {
+
+    public WarperTest() {
+    }
+
+    private static RasterBuffer createRaster() {
+        // 64 x 64 raster with v = x + 100 * y
+        RasterBuffer r = new RasterBuffer(64, 64, new DataType[]{DataType.FLOAT64}, new double[]{-1});
+        for (int y = 0; y < 64; ++y) {
+            for (int x = 0; x < 64; ++x) {
+                r.set(0, x, y, x + 100 * y);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Maps output pixels to a shifted source window at twice the resolution
+     */
+    private static final Warper.PixelMapping AFFINE = new Warper.PixelMapping() {
+        @Override
+        public void map(double[] pts, int n) {
+            for (int k = 0; k < 2 * n; k += 2) {
+                pts[k] = 3.25 + 0.5 * pts[k];
+                pts[k + 1] = 5.5 + 0.5 * pts[k + 1];
+            }
+        }
+    };
+
+    /**
+     * Slightly curved mapping as from a cartographic projection
+     */
+    private static final Warper.PixelMapping CURVED = new Warper.PixelMapping() {
+        @Override
+        public void map(double[] pts, int n) {
+            for (int k = 0; k < 2 * n; k += 2) {
+                double x = pts[k], y = pts[k + 1];
+                pts[k] = x + 0.001 * y * y;
+                pts[k + 1] = y + 0.0005 * x * y;
+            }
+        }
+    };
+
+    /**
+     * Test of row method, of class Warper.CoarseGrid.
+     */
+    @Test
+    public void testCoarseGrid() {
+        int w = 100, h = 70;
+        Warper.CoarseGrid g = new Warper.CoarseGrid(w, h, 16, CURVED);
+        double[] row = new double[2 * w];
+        double maxErr = 0;
+        for (int j = 0; j < h; ++j) {
+            g.row(j, CURVED, row);
+            for (int i = 0; i < w; ++i) {
+                double[] p = {i + 0.5, j + 0.5};
+                CURVED.map(p, 1);
+                maxErr = Math.max(maxErr, Math.max(Math.abs(p[0] - row[2 * i]), Math.abs(p[1] - row[2 * i + 1])));
+            }
+        }
+        assertTrue(maxErr < 0.1);
+
+        // Affine mappings are interpolated exactly
+        g = new Warper.CoarseGrid(w, h, 16, AFFINE);
+        g.row(37, AFFINE, row);
+        assertEquals(3.25 + 0.5 * 99.5, row[2 * 99], 1e-9);
+        assertEquals(5.5 + 0.5 * 37.5, row[2 * 99 + 1], 1e-9);
+    }
+
+    /**
+     * Test of warp method, of class Warper.
+     */
+    @Test
+    public void testWarp() {
+        RasterBuffer r = createRaster();
+        double[] gt = {10, 0.5, 0, 20, 0, -0.5};
+        RasterBuffer o = Warper.warp(r, 40, 40, gt, "WKT", AFFINE, 16, Resampler.Method.NEAREST);
+        assertEquals(40, o.getWidth());
+        assertEquals("WKT", o.getWKT());
+        assertEquals(0.5, o.getGeoTransform()[1], 1e-12);
+        for (int j = 0; j < 40; ++j) {
+            for (int i = 0; i < 40; ++i) {
+                double sx = 3.25 + 0.5 * (i + 0.5), sy = 5.5 + 0.5 * (j + 0.5);
+                assertEquals(Math.floor(sx) + 100 * Math.floor(sy), o.get(0, i, j), 1e-9);
+            }
+        }
+
+        // Bilinear interpolation reproduces linear functions
+        o = Warper.warp(r, 40, 40, gt, null, AFFINE, 16, Resampler.Method.BILINEAR);
+        assertEquals(3.25 + 0.5 * 10.5 - 0.5 + 100 * (5.5 + 0.5 * 20.5 - 0.5), o.get(0, 10, 20), 1e-6);
+
+        // Pixels mapped outside of the source are nodata
+        o = Warper.warp(r, 200, 10, gt, null, AFFINE, 16, Resampler.Method.BILINEAR);
+        assertEquals(-1, o.get(0, 150, 5), 1e-12);
+    }
+}
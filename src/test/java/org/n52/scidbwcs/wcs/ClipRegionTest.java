@@ -0,0 +1,91 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.n52.scidbwcs.raster.DataType;
+import org.n52.scidbwcs.raster.RasterBuffer;
+
+public class ClipRegionTest {
+
+    public ClipRegionTest() {
+    }
+
+    /**
+     * Test of parse method, of class ClipRegion.
+     */
+    @Test
+    public void testParse() {
+        List<double[]> r = ClipRegion.parse("MULTIPOLYGON (((0 0, 10 0, 10 10, 0 10, 0 0)), ((20 20, 30 20, 30 30, 20 20)))");
+        assertEquals(r.size(), 2);
+        assertArrayEquals(r.get(1), new double[]{20, 20, 30, 20, 30, 30, 20, 20}, 0);
+
+        r = ClipRegion.parse("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[1,0],[1,1],[0,0]]]}}");
+        assertEquals(r.size(), 1);
+        assertArrayEquals(r.get(0), new double[]{0, 0, 1, 0, 1, 1, 0, 0}, 0);
+
+        try {
+            ClipRegion.parse("POINT (1 2)");
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            ClipRegion.parse("POLYGON ((0 0, 1 x, 1 1, 0 0))");
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * Test of rasterize and condition methods, of class ClipRegion.
+     */
+    @Test
+    public void testCondition() {
+        ClipRegion c = ClipRegion.rasterize(Arrays.asList(new double[]{2, 1, 6, 1, 6, 4, 2, 4}), 0, 9, 0, 9);
+        assertArrayEquals(c.bounds(), new long[]{2, 5, 1, 3});
+        assertEquals(c.condition("x", "y", 0, 9, 0, 9, 100), "(y>=1 and y<=3 and x>=2 and x<=5)");
+        assertEquals(c.condition("x", "y", 1, 9, 3, 9, 100), "(y=0 and x>=1 and x<=4)");
+        assertEquals(c.condition("x", "y", 0, 9, 5, 9, 100), "false");
+
+        // Square with a hole
+        c = ClipRegion.rasterize(Arrays.asList(new double[]{0, 0, 10, 0, 10, 10, 0, 10}, new double[]{3, 3, 7, 3, 7, 7, 3, 7}), 0, 9, 0, 9);
+        assertEquals(c.condition("x", "y", 0, 9, 0, 9, 100), "(y>=0 and y<=2 and x>=0 and x<=9) or (y>=3 and y<=6 and (x>=0 and x<=2 or x>=7 and x<=9)) or (y>=7 and y<=9 and x>=0 and x<=9)");
+        // Spans are widened if the condition becomes too large
+        assertEquals(c.condition("x", "y", 0, 9, 0, 9, 3), "(y>=0 and y<=9 and x>=0 and x<=9)");
+    }
+
+    /**
+     * Test of mask method, of class ClipRegion.
+     */
+    @Test
+    public void testMask() {
+        ClipRegion c = ClipRegion.rasterize(Arrays.asList(new double[]{0, 0, 10, 0, 10, 10, 0, 10}, new double[]{3, 3, 7, 3, 7, 7, 3, 7}), 0, 9, 0, 9);
+        RasterBuffer buf = new RasterBuffer(5, 5, new DataType[]{DataType.BYTE}, new double[]{255});
+        buf.fill(0, 1);
+        c.mask(buf, 0, 9, 0, 9, 2, 2);
+        assertEquals(buf.get(0, 2, 2), 255, 0);
+        assertEquals(buf.get(0, 1, 1), 1, 0);
+        assertEquals(buf.get(0, 1, 2), 1, 0);
+        assertEquals(buf.get(0, 4, 4), 1, 0);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.SpatialReference;
+
+public class CostEstimatorTest {
+
+    public CostEstimatorTest() {
+    }
+
+    /**
+     * Test of estimate method, of class CostEstimator.
+     */
+    @Test
+    public void testEstimate() throws Exception {
+        // 1000 x 1000 cells of 0.01 degrees in chunks of 500 x 500 cells
+        Array A = new Array("A");
+        A.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Attributes().add(new ArrayAttribute("v", "uint8", false));
+        A.Attributes().add(new ArrayAttribute("w", "float", false));
+        A.setSrs(new SpatialReference(new AffineTransform(0, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+
+        // The window touches one chunk only
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,6,4,10&WIDTH=100&HEIGHT=100&FORMAT=GeoTIFF");
+        CostEstimator.Estimate e = CostEstimator.estimate(r, A);
+        assertEquals(e.sourceCells, 500L * 500L);
+        assertEquals(e.transferredCells, 100L * 100L);
+        assertEquals(e.transferredBytes, 100L * 100L * (1 + 4 + 16));
+        assertEquals(e.outputPixels, 100L * 100L);
+        assertEquals(e.outputBytes, 100L * 100L * 5);
+        assertEquals(e.schedulingCost(), 500L * 500L / 16); // reading the whole chunk dominates
+        e.checkBudgets();
+
+        // A huge output is rejected
+        r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,10&WIDTH=100000&HEIGHT=100000&FORMAT=NetCDF");
+        e = CostEstimator.estimate(r, A);
+        assertEquals(e.sourceCells, 1000L * 1000L);
+        assertEquals(e.outputBytes, 100000L * 100000L * 5);
+        try {
+            e.checkBudgets();
+            fail();
+        } catch (WCSException ex) {
+            assertEquals(ex.getCode(), WCSException.WCS_EXCEPTION_CODE.InvalidParameterValue);
+        }
+    }
+}
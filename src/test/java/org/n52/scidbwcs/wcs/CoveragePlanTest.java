@@ -0,0 +1,310 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.SpatialReference;
+import org.n52.scidbwcs.md.TemporalReference;
+
+public class CoveragePlanTest {
+
+    public CoveragePlanTest() {
+    }
+
+    private static Array createArray() {
+        // 1000 x 1000 cells of 0.01 degrees, north up, upper left corner at (0,10)
+        Array A = new Array("A");
+        A.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Attributes().add(new ArrayAttribute("v", "uint8", false));
+        A.setSrs(new SpatialReference(new AffineTransform(0, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        return A;
+    }
+
+    /**
+     * Test of create and toAFL methods, of class CoveragePlan.
+     */
+    @Test
+    public void testCreate() throws Exception {
+        Array A = createArray();
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=100&HEIGHT=100&FORMAT=GeoTIFF&INTERPOLATION=bilinear");
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertNotNull(p);
+        assertEquals(p.xmin, 0L);
+        assertEquals(p.xmax, 499L);
+        assertEquals(p.ymin, 500L);
+        assertEquals(p.ymax, 999L);
+        assertEquals(p.fx, 5);
+        assertEquals(p.fy, 5);
+        assertEquals(p.width, 100);
+        assertEquals(p.height, 100);
+        assertEquals(p.toAFL(), "project(apply(apply(regrid(subarray(A,500,0,999,499),5,5,avg(v) as _wcs_v),v,uint8(floor(_wcs_v+0.5))),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+        assertEquals(p.binaryFormat(), "(int64,int64,uint8 null)");
+        double[] gt = p.geoTransform();
+        assertEquals(gt[0], 0.0, 1e-9);
+        assertEquals(gt[3], 5.0, 1e-9);
+        assertEquals(gt[1], 0.05, 1e-9);
+        assertEquals(gt[5], -0.05, 1e-9);
+
+        r.interpolation = "nearest";
+        p = CoveragePlan.create(r, A);
+        assertEquals(p.toAFL(), "project(apply(filter(subarray(A,500,0,999,499),x%5=0 and y%5=0),_wcs_x,x/5,_wcs_y,y/5),_wcs_x,_wcs_y,v)");
+        assertEquals(p.binaryFormat(), "(int64,int64,uint8)");
+
+        // Different reference system is not pushed down
+        r.crs = "EPSG:3857";
+        assertNull(CoveragePlan.create(r, A));
+    }
+
+    /**
+     * Test of selecting overviews, of class CoveragePlan.
+     */
+    @Test
+    public void testOverviews() throws Exception {
+        Array A = createArray();
+        List<Array> ovr = new ArrayList<>();
+        ovr.add(A.createOverview("A_ovr2_v1", 2));
+        ovr.add(A.createOverview("A_ovr4_v1", 4));
+        A.setOverviews(ovr);
+        assertEquals(ovr.get(1).getXDim().max.longValue(), 249L);
+
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=100&HEIGHT=100&FORMAT=GeoTIFF&INTERPOLATION=bilinear");
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertEquals(p.array.getName(), "A_ovr4_v1");
+        assertEquals(p.xmin, 0L);
+        assertEquals(p.xmax, 124L);
+        assertEquals(p.ymin, 125L);
+        assertEquals(p.ymax, 249L);
+        assertEquals(p.width, 125);
+        double[] gt = p.geoTransform();
+        assertEquals(gt[0], 0.0, 1e-9);
+        assertEquals(gt[3], 5.0, 1e-9);
+        assertEquals(gt[1], 0.04, 1e-9);
+
+        // Nearest neighbour requests must not read averaged overviews
+        r.interpolation = "nearest";
+        p = CoveragePlan.create(r, A);
+        assertEquals(p.array.getName(), "A");
+    }
+
+    /**
+     * Test of split method, of class CoveragePlan.
+     */
+    @Test
+    public void testSplit() throws Exception {
+        Array A = createArray();
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,10&WIDTH=1000&HEIGHT=1000&FORMAT=GeoTIFF");
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertEquals(p.split(1).size(), 1);
+
+        List<CoveragePlan> parts = p.split(4);
+        assertEquals(parts.size(), 4);
+        long cells = 0;
+        for (CoveragePlan part : parts) {
+            assertTrue(part.xmin == 0 || part.xmin == 500);
+            assertTrue(part.ymin == 0 || part.ymin == 500);
+            assertEquals(part.xmax - part.xmin, 499L);
+            cells += part.transferredCells();
+        }
+        assertEquals(cells, p.transferredCells());
+        assertEquals(p.columnOffset(parts.get(3)), 500);
+        assertEquals(p.rowOffset(parts.get(3)), 500);
+
+        // Only two chunk rows and columns
+        assertEquals(p.split(16).size(), 4);
+
+        // Borders are aligned to the downsampling factor
+        assertArrayEquals(CoveragePlan.cuts(0, 999, 0, 500, 3, 2), new long[]{0, 501});
+        assertArrayEquals(CoveragePlan.cuts(100, 999, 0, 100, 1, 3), new long[]{100, 400, 700});
+        assertArrayEquals(CoveragePlan.cuts(0, 99, 0, 500, 1, 4), new long[]{0});
+    }
+
+    /**
+     * Test of multiple time slices, of class CoveragePlan.
+     */
+    @Test
+    public void testMultiTemporal() throws Exception {
+        Array A = createArray();
+        A.Dimensions().add(0, new ArrayDimension("t", 0L, 99L, 0L, 99L, 1L, 0L));
+        A.setTrs(new TemporalReference("t", "2001-01-01T00:00:00", "P1D"));
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=500&HEIGHT=500&FORMAT=GeoTIFF");
+        r.time = new String[]{"2001-01-03T00:00:00/2001-01-09T12:00:00/P2D"};
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertArrayEquals(p.times, new long[]{2, 4, 6, 8});
+        assertEquals(p.timeStep(), 2L);
+        assertEquals(p.bandCount(), 4);
+        assertEquals(p.timeSlot(4), 2);
+        assertEquals(p.timeSlot(3), -1);
+        assertEquals(p.toAFL(), "project(apply(filter(subarray(A,2,500,0,8,999,499),t%2=0),_wcs_x,x,_wcs_y,y,_wcs_t,t),_wcs_x,_wcs_y,_wcs_t,v)");
+        assertEquals(p.binaryFormat(), "(int64,int64,int64,uint8)");
+
+        r.time = new String[]{"2001-01-02T00:00:00", "2001-01-05T00:00:00", "2001-01-06T00:00:00"};
+        p = CoveragePlan.create(r, A);
+        assertArrayEquals(p.times, new long[]{1, 4, 5});
+        assertEquals(p.timeStep(), 0L);
+        assertEquals(p.toAFL(), "project(apply(filter(subarray(A,1,500,0,5,999,499),(t=0 or t=3 or t=4)),_wcs_x,x,_wcs_y,y,_wcs_t,t),_wcs_x,_wcs_y,_wcs_t,v)");
+        assertEquals(p.transferredCells(), 500L * 500 * 3);
+
+        r.time = new String[]{"2001-01-02T00:00:00"};
+        p = CoveragePlan.create(r, A);
+        assertEquals(p.toAFL(), "project(apply(subarray(A,1,500,0,1,999,499),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+
+        // DEPTH and RESZ along the time axis
+        assertArrayEquals(CoveragePlan.thinTimes(new long[]{0, 1, 2, 3, 4, 5, 6}, 3, 0), new long[]{0, 3, 6});
+        assertArrayEquals(CoveragePlan.thinTimes(new long[]{0, 1, 2, 3, 4, 5, 6}, -1, 3), new long[]{0, 3, 6});
+        assertArrayEquals(CoveragePlan.thinTimes(new long[]{0, 1, 2}, 5, 0), new long[]{0, 1, 2});
+
+        r.time = new String[]{"2002-01-02T00:00:00"};
+        try {
+            CoveragePlan.create(r, A);
+            fail();
+        } catch (WCSException ex) {
+        }
+    }
+
+    /**
+     * Test of temporal aggregation, of class CoveragePlan.
+     */
+    @Test
+    public void testAggregate() throws Exception {
+        Array A = createArray();
+        A.Dimensions().add(0, new ArrayDimension("t", 0L, 99L, 0L, 99L, 1L, 0L));
+        A.setTrs(new TemporalReference("t", "2001-01-01T00:00:00", "P1D"));
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=500&HEIGHT=500&FORMAT=GeoTIFF&AGGREGATE=mean");
+        r.time = new String[]{"2001-01-03T00:00:00/2001-01-09T12:00:00/P2D"};
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertTrue(p.isAggregated());
+        assertFalse(p.isMultiTemporal());
+        assertEquals(p.bandCount(), 1);
+        assertEquals(p.toAFL(), "project(apply(apply(aggregate(filter(subarray(A,2,500,0,8,999,499),t%2=0),avg(v) as _wcs_t_v,y,x),v,uint8(floor(_wcs_t_v+0.5))),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+        assertEquals(p.binaryFormat(), "(int64,int64,uint8 null)");
+
+        r.parameter.put("AGGREGATE", new String[]{"MAX"});
+        r.time = new String[]{"2001-01-02T00:00:00", "2001-01-05T00:00:00"};
+        p = CoveragePlan.create(r, A);
+        assertEquals(p.toAFL(), "project(apply(apply(aggregate(filter(subarray(A,1,500,0,4,999,499),t%3=0),max(v) as _wcs_t_v,y,x),v,_wcs_t_v),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+
+        r.time = new String[]{"2001-01-02T00:00:00", "2001-01-05T00:00:00", "2001-01-06T00:00:00"};
+        p = CoveragePlan.create(r, A);
+        assertTrue(p.toAFL().contains("filter(subarray(A,1,500,0,5,999,499),(t=0 or t=3 or t=4))"));
+
+        // Sums keep double precision, downsampling grids have spatial dimensions only
+        r.parameter.put("AGGREGATE", new String[]{"SUM"});
+        r.time = new String[]{"2001-01-02T00:00:00", "2001-01-05T00:00:00"};
+        r.width = 100;
+        r.height = 100;
+        r.interpolation = "bilinear";
+        p = CoveragePlan.create(r, A);
+        assertEquals(p.toAFL(), "project(apply(apply(regrid(apply(aggregate(filter(subarray(A,1,500,0,4,999,499),t%3=0),sum(v) as _wcs_t_v,y,x),v,double(_wcs_t_v)),5,5,avg(v) as _wcs_v),v,_wcs_v),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+        assertEquals(p.binaryFormat(), "(int64,int64,double null)");
+
+        r.parameter.put("AGGREGATE", new String[]{"mode"});
+        try {
+            CoveragePlan.create(r, A);
+            fail();
+        } catch (WCSException ex) {
+        }
+    }
+
+    /**
+     * Test of within method, of class CoveragePlan.
+     */
+    @Test
+    public void testWithin() throws Exception {
+        Array A = createArray();
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=100&HEIGHT=100&FORMAT=GeoTIFF");
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertSame(p.within(0, 999, 0, 999), p);
+
+        CoveragePlan q = p.within(103, 260, 700, 1200);
+        assertEquals(q.xmin, 100L);
+        assertEquals(q.xmax, 264L);
+        assertEquals(q.ymin, 700L);
+        assertEquals(q.ymax, 999L);
+        assertEquals(q.width, 33);
+        assertEquals(q.height, 60);
+        assertEquals(p.columnOffset(q), 20);
+        assertEquals(p.rowOffset(q), 40);
+    }
+
+    /**
+     * Test of reading mosaics, of class CoveragePlan.
+     */
+    @Test
+    public void testMosaic() throws Exception {
+        Array A = createArray();
+        Array B = new Array("B");
+        B.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        B.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        B.Attributes().add(new ArrayAttribute("v", "uint8", false));
+        B.setSrs(new SpatialReference(new AffineTransform(10, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        Array M = Array.createMosaic("M", Arrays.asList(A, B));
+        assertNotNull(M);
+        assertEquals(M.getMemberColumnOffset(1), 1000L);
+        assertEquals(M.getMemberRowOffset(1), 0L);
+        assertEquals((long) M.getXDim().max, 1999L);
+
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A,B&CRS=EPSG:4326&BBOX=5,5,15,10&WIDTH=1000&HEIGHT=500&FORMAT=GeoTIFF");
+        CoveragePlan p = CoveragePlan.create(r, M);
+        assertEquals(p.xmin, 500L);
+        assertEquals(p.xmax, 1499L);
+        assertEquals(p.toAFL(), "project(apply(cast(merge("
+                + "redimension(project(apply(between(A,0,500,499,999),_wcs_m0,y+0,_wcs_m1,x-500),v,_wcs_m0,_wcs_m1),<v:uint8>[_wcs_m0=0:499,500,0,_wcs_m1=0:999,500,0]),"
+                + "redimension(project(apply(between(B,0,0,499,499),_wcs_m0,y+0,_wcs_m1,x+500),v,_wcs_m0,_wcs_m1),<v:uint8>[_wcs_m0=0:499,500,0,_wcs_m1=0:999,500,0])),"
+                + "<v:uint8>[y=0:499,500,0,x=0:999,500,0]),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+
+        // Windows within a single array are read directly
+        r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A,B&CRS=EPSG:4326&BBOX=12,5,15,10&WIDTH=300&HEIGHT=500&FORMAT=GeoTIFF");
+        p = CoveragePlan.create(r, M);
+        assertEquals(p.toAFL(), "project(apply(subarray(B,0,200,499,499),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+
+        // Grids must be aligned
+        B.setSrs(new SpatialReference(new AffineTransform(10.005, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        assertNull(Array.createMosaic("M", Arrays.asList(A, B)));
+    }
+
+    /**
+     * Test of clipping to polygons, of class CoveragePlan.
+     */
+    @Test
+    public void testClip() throws Exception {
+        Array A = createArray();
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=500&HEIGHT=500&FORMAT=GeoTIFF&CLIP=POLYGON((1%204,2%204,2%203,1%203,1%204))");
+        CoveragePlan p = CoveragePlan.create(r, A);
+        assertArrayEquals(p.clip.bounds(), new long[]{100, 199, 600, 699});
+        assertEquals(p.toAFL(), "project(apply(filter(subarray(A,500,0,999,499),(y>=100 and y<=199 and x>=100 and x<=199)),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,v)");
+
+        r.parameter.put("CLIP", new String[]{"LINESTRING(1 4", "2 4)"});
+        try {
+            CoveragePlan.create(r, A);
+            fail();
+        } catch (WCSException ex) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.List;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.SpatialReference;
+import org.n52.scidbwcs.md.TemporalReference;
+
+public class PrefetcherTest {
+
+    public PrefetcherTest() {
+    }
+
+    private static Array createArray() {
+        Array A = new Array("A");
+        A.Dimensions().add(new ArrayDimension("t", 0L, 9L, 0L, 9L, 1L, 0L));
+        A.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Attributes().add(new ArrayAttribute("v", "uint8", false));
+        A.setSrs(new SpatialReference(new AffineTransform(0, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        A.setTrs(new TemporalReference("t", "2001-01-01T00:00:00", "P1D"));
+        return A;
+    }
+
+    private static WCSGetCoverageRequest request(String bbox, String time) throws Exception {
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=" + bbox + "&WIDTH=256&HEIGHT=256&FORMAT=GeoTIFF");
+        r.time = time != null ? new String[]{time} : null;
+        return r;
+    }
+
+    /**
+     * Test of classify method, of class Prefetcher.
+     */
+    @Test
+    public void testClassify() throws Exception {
+        WCSGetCoverageRequest a = request("0,0,1,1", null);
+        assertEquals(Prefetcher.PAN, Prefetcher.classify(a, request("1,0,2,1", null)));
+        assertEquals(Prefetcher.ZOOM, Prefetcher.classify(a, request("0.25,0.25,0.75,0.75", null)));
+        assertEquals(-1, Prefetcher.classify(a, request("0,0,1,1", null)));
+        assertEquals(-1, Prefetcher.classify(a, request("0,0,2,1", null)));
+    }
+
+    /**
+     * Test of candidates method, of class Prefetcher.
+     */
+    @Test
+    public void testCandidates() throws Exception {
+        Array A = createArray();
+        double[] w = {0.2, 0.6, 0.2};
+        WCSGetCoverageRequest prev = request("1,1,2,2", null);
+        WCSGetCoverageRequest cur = request("2,1,3,2", null);
+        List<Prefetcher.Candidate> c = Prefetcher.candidates(prev, cur, A, w);
+        assertEquals(2, c.size()); // continued panning and zooming in
+        assertArrayEquals(new double[]{3, 1, 4, 2}, c.get(0).req.bbox, 1e-12);
+        assertArrayEquals(new double[]{2.25, 1.25, 2.75, 1.75}, c.get(1).req.bbox, 1e-12);
+
+        // Stepping backwards through time continues backwards
+        prev = request("2,1,3,2", "2001-01-05");
+        cur = request("2,1,3,2", "2001-01-04");
+        assertEquals(Prefetcher.TIME, Prefetcher.classify(prev, cur));
+        c = Prefetcher.candidates(prev, cur, A, w);
+        assertEquals(2L, A.trs().indexAtDatetime(DateTime.parse(c.get(0).req.time[0])));
+        assertEquals(6, c.size()); // one time step, four neighbours, one zoom level
+    }
+
+    /**
+     * Test of inHours method, of class Prefetcher.
+     */
+    @Test
+    public void testInHours() {
+        assertTrue(Prefetcher.inHours("1-5", 1));
+        assertTrue(Prefetcher.inHours("1-5", 4));
+        assertFalse(Prefetcher.inHours("1-5", 5));
+        assertTrue(Prefetcher.inHours("22-5", 23));
+        assertTrue(Prefetcher.inHours("22-5", 0));
+        assertFalse(Prefetcher.inHours("22-5", 12));
+        assertTrue(Prefetcher.inHours("", 12));
+    }
+}
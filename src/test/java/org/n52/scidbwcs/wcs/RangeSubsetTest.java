@@ -0,0 +1,111 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.SpatialReference;
+
+public class RangeSubsetTest {
+
+    public RangeSubsetTest() {
+    }
+
+    private static Array createArray() {
+        Array A = new Array("L8");
+        A.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Attributes().add(new ArrayAttribute("red", "uint16", false));
+        A.Attributes().add(new ArrayAttribute("green", "uint16", false));
+        A.Attributes().add(new ArrayAttribute("nir", "uint16", true));
+        A.setSrs(new SpatialReference(new AffineTransform(0, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        return A;
+    }
+
+    private static WCSGetCoverageRequest request(String range) throws WCSException {
+        return WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=L8&CRS=EPSG:4326&BBOX=0,0,5,5&WIDTH=500&HEIGHT=500&FORMAT=GeoTIFF" + range);
+    }
+
+    /**
+     * Test of attributes method, of class RangeSubset.
+     */
+    @Test
+    public void testAttributes() throws Exception {
+        Array A = createArray();
+        assertEquals(3, RangeSubset.attributes(request(""), A).size());
+
+        List<ArrayAttribute> attrs = RangeSubset.attributes(request("&ATTRIBUTE=nir,1"), A);
+        assertEquals(2, attrs.size());
+        assertEquals("nir", attrs.get(0).name);
+        assertEquals("red", attrs.get(1).name);
+        assertArrayEquals(new int[]{3, 1}, RangeSubset.bands(request("&ATTRIBUTE=nir,1"), A));
+
+        attrs = RangeSubset.attributes(request("&EXPRESSION=ndvi:(nir-red)/(nir%2Bred)"), A);
+        assertEquals(1, attrs.size());
+        assertEquals("ndvi", attrs.get(0).name);
+        assertEquals("double", attrs.get(0).typeId);
+        assertTrue(attrs.get(0).nullable);
+        assertEquals("double((nir-red)/(nir+red))", ((RangeSubset.DerivedAttribute) attrs.get(0)).expression);
+
+        attrs = RangeSubset.attributes(request("&ATTRIBUTE=green&EXPRESSION=a:iif(red>green,1,0);b:-red*1.5e2"), A);
+        assertEquals(3, attrs.size());
+        assertFalse(attrs.get(2).nullable);
+
+        try {
+            RangeSubset.attributes(request("&ATTRIBUTE=blue"), A);
+            fail("Unknown attribute accepted");
+        } catch (WCSException ex) {
+        }
+    }
+
+    /**
+     * Test of validate method, of class RangeSubset.
+     */
+    @Test
+    public void testValidate() throws Exception {
+        Array A = createArray();
+        assertFalse(RangeSubset.validate("sqrt(red * red + green * green)", A));
+        assertFalse(RangeSubset.validate("red > 100 and not green < 5", A));
+        String[] invalid = {"", "red)", "(red", "red green", "red +", "x", "show('L8')", "red;remove(L8)", "filter(red,1)", "1 2", "red,green"};
+        for (String e : invalid) {
+            try {
+                RangeSubset.validate(e, A);
+                fail("Invalid expression '" + e + "' accepted");
+            } catch (WCSException ex) {
+            }
+        }
+    }
+
+    /**
+     * Test of projection and derived bands in toAFL, of class CoveragePlan.
+     */
+    @Test
+    public void testAFL() throws Exception {
+        CoveragePlan p = CoveragePlan.create(request("&ATTRIBUTE=red&EXPRESSION=ndvi:(nir-red)/(nir%2Bred)"), createArray());
+        assertEquals("project(apply(apply(subarray(L8,500,0,999,499),ndvi,double((nir-red)/(nir+red))),_wcs_x,x,_wcs_y,y),_wcs_x,_wcs_y,red,ndvi)", p.toAFL());
+        assertEquals("(int64,int64,uint16,double null)", p.binaryFormat());
+    }
+}
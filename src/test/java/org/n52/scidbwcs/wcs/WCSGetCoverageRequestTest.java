@@ -0,0 +1,78 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import org.junit.Test;
+import org.n52.scidbwcs.util.Config;
+import static org.junit.Assert.*;
+
+public class WCSGetCoverageRequestTest {
+
+    public WCSGetCoverageRequestTest() {
+    }
+
+    /**
+     * Test of fromKVP and isValid methods, of class WCSGetCoverageRequest.
+     */
+    @Test
+    public void testFromKVP() throws Exception {
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("http://xyz.com/?REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,10&WIDTH=100&HEIGHT=50&FORMAT=GeoTIFF");
+        assertEquals(r.coverage, "A");
+        assertEquals(r.width, 100);
+        assertEquals(r.height, 50);
+        assertEquals(r.bbox.length, 4);
+        assertEquals(r.estimatePixels(), 5000L);
+        assertEquals(r.isValid(), true);
+        r.format = "XYZ";
+        assertEquals(r.isValid(), false);
+    }
+
+    /**
+     * Test of canonicalKey method, of class WCSGetCoverageRequest.
+     */
+    @Test
+    public void testCanonicalKey() throws Exception {
+        WCSGetCoverageRequest a = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,10&WIDTH=100&HEIGHT=50&FORMAT=GeoTIFF&BAND=1&X=2");
+        WCSGetCoverageRequest b = WCSGetCoverageRequest.fromKVP("X=2&BAND=1&FORMAT=GeoTIFF&HEIGHT=50&WIDTH=100&BBOX=0.0,0,10,10.0&CRS=epsg:4326&COVERAGE=A&VERSION=1.0.0&SERVICE=WCS&REQUEST=GetCoverage");
+        WCSGetCoverageRequest c = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,11&WIDTH=100&HEIGHT=50&FORMAT=GeoTIFF&BAND=1&X=2");
+        assertEquals(a.canonicalKey(), b.canonicalKey());
+        assertNotEquals(a.canonicalKey(), c.canonicalKey());
+
+        // Rounding errors of computed bounding boxes and time zones are ignored
+        b.bbox[2] = 0.1 + 0.2 + 9.7;
+        assertEquals(a.canonicalKey(), b.canonicalKey());
+        a.time = new String[]{"2001-01-02T01:00:00+01:00"};
+        b.time = new String[]{"2001-01-02T00:00:00Z"};
+        assertEquals(a.canonicalKey(), b.canonicalKey());
+    }
+
+    /**
+     * Test of isStreamedFormat method, of class WCSGetCoverageRequest.
+     */
+    @Test
+    public void testIsStreamedFormat() throws Exception {
+        WCSGetCoverageRequest r = WCSGetCoverageRequest.fromKVP("REQUEST=GetCoverage&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&BBOX=0,0,10,10&WIDTH=100&HEIGHT=50&FORMAT=GeoTIFF");
+        assertFalse(r.isStreamedFormat());
+        r.format = "png";
+        assertEquals(r.isStreamedFormat(), Config.get().SCIDBWCS_PUSHDOWN_SUBSETTING);
+        r.format = "NetCDF";
+        assertEquals(r.isStreamedFormat(), Config.get().SCIDBWCS_PUSHDOWN_SUBSETTING);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * scidb-wcs - A Web Coverage Service implementation for SciDB
+ *
+ * Copyright (C) 2015 Marius Appel <marius.appel@uni-muenster.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.n52.scidbwcs.wcs;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.n52.scidbwcs.exception.WCSException;
+import org.n52.scidbwcs.md.AffineTransform;
+import org.n52.scidbwcs.md.Array;
+import org.n52.scidbwcs.md.ArrayAttribute;
+import org.n52.scidbwcs.md.ArrayDimension;
+import org.n52.scidbwcs.md.SpatialReference;
+
+public class WCSGetSamplesRequestTest {
+
+    public WCSGetSamplesRequestTest() {
+    }
+
+    private static Array createArray() {
+        Array A = new Array("A");
+        A.Dimensions().add(new ArrayDimension("y", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Dimensions().add(new ArrayDimension("x", 0L, 999L, 0L, 999L, 500L, 0L));
+        A.Attributes().add(new ArrayAttribute("v", "uint8", false));
+        A.setSrs(new SpatialReference(new AffineTransform(0, 10, 0.01, -0.01), "x", "y", "EPSG", 4326, "", ""));
+        return A;
+    }
+
+    /**
+     * Test of parsePoints method, of class WCSGetSamplesRequest.
+     */
+    @Test
+    public void testParsePoints() throws Exception {
+        assertArrayEquals(new double[]{1.5, 2, -3, 4}, WCSGetSamplesRequest.parsePoints(new String[]{"1.5", "2", "-3", "4"}), 0);
+        try {
+            WCSGetSamplesRequest.parsePoints(new String[]{"1", "2", "3"});
+            fail();
+        } catch (WCSException ex) {
+        }
+        try {
+            WCSGetSamplesRequest.parsePoints(new String[]{"1", "a"});
+            fail();
+        } catch (WCSException ex) {
+        }
+    }
+
+    /**
+     * Test of cells and toAFL methods, of class WCSGetSamplesRequest.
+     */
+    @Test
+    public void testToAFL() throws Exception {
+        Array A = createArray();
+        WCSGetSamplesRequest r = WCSGetSamplesRequest.fromKVP("REQUEST=GetSamples&SERVICE=WCS&VERSION=1.0.0&COVERAGE=A&CRS=EPSG:4326&POINTS=0.005,9.995,5.005,4.995,20,20");
+        assertTrue(r.isValid());
+        long[] c = r.cells(r.points, A);
+        assertArrayEquals(new long[]{0, 0, 500, 500, Long.MIN_VALUE, Long.MIN_VALUE}, c);
+
+        String afl = WCSGetSamplesRequest.toAFL(A, A.Attributes(), new long[]{0, 0, 500, 500}, null);
+        assertEquals("project(apply(cross_join(between(A,0,0,500,500) as _wcs_a,"
+                + "redimension(apply(build(<_wcs_p:int64>[_wcs_i=0:1,2,0],'[(0),(251000)]',true),x,0+_wcs_p%501,y,0+_wcs_p/501),<_wcs_i:int64>[y=0:999,500,0,x=0:999,500,0]) as _wcs_m,"
+                + "_wcs_a.x,_wcs_m.x,_wcs_a.y,_wcs_m.y),_wcs_v_v,double(v)),_wcs_v_v)", afl);
+    }
+}